@@ -0,0 +1,25 @@
+package android.content;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Замена BroadcastReceiver: события передаются напрямую, goAsync() не удерживает сообщение.
+ */
+
+public abstract class BroadcastReceiver {
+
+    public static class PendingResult {
+
+        public final void finish() {
+        }
+    }
+
+    public final PendingResult goAsync() {
+        return null;
+    }
+
+    public abstract void onReceive(Context context, Intent intent);
+}
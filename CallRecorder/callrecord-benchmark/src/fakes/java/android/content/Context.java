@@ -0,0 +1,61 @@
+package android.content;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Замена Context для запуска бенчмарков на JVM.
+ * Хранит настройки в памяти, остальные вызовы ничего не делают.
+ */
+
+public class Context {
+
+    public static final int MODE_PRIVATE = 0;
+    public static final String TELEPHONY_SERVICE = "phone";
+
+    private final Map<String, SharedPreferences> mPreferences = new HashMap<>();
+
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+
+        synchronized (mPreferences) {
+
+            SharedPreferences preferences = mPreferences.get(name);
+
+            if (preferences == null) {
+                preferences = new InMemorySharedPreferences();
+                mPreferences.put(name, preferences);
+            }
+
+            return preferences;
+        }
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public String getPackageName() {
+        return "com.aykuttasil.callrecord.benchmark";
+    }
+
+    public File getFilesDir() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    public Object getSystemService(String name) {
+        return null;
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        return null;
+    }
+
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+    }
+}
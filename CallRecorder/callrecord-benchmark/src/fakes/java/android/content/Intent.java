@@ -0,0 +1,13 @@
+package android.content;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Замена Intent, нужна только для сигнатуры BroadcastReceiver.onReceive().
+ */
+
+public class Intent {
+}
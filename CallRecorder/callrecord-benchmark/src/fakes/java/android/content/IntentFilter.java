@@ -0,0 +1,13 @@
+package android.content;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Замена IntentFilter, нужна только для сигнатуры Context.registerReceiver().
+ */
+
+public class IntentFilter {
+}
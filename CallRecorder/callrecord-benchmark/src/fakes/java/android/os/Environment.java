@@ -0,0 +1,19 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Замена Environment: внешнее хранилище - временная директория JVM.
+ */
+
+public class Environment {
+
+    public static File getExternalStorageDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
@@ -0,0 +1,47 @@
+package com.aykuttasil.callrecord.benchmark;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.aykuttasil.callrecord.CallRecord;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Подготовка окружения для бенчмарков.
+ * На JVM вместо android.jar подключаются замены из src/fakes,
+ * поэтому ContextWrapper создает рабочий Context с настройками в памяти.
+ */
+
+final class BenchmarkContexts {
+
+    private BenchmarkContexts() {
+    }
+
+    /**
+     * @return новый Context с пустыми настройками
+     */
+    static Context newContext() {
+        return new ContextWrapper(null);
+    }
+
+    /**
+     * @return новый Context с настройками, записанными Builder'ом
+     */
+    static Context newConfiguredContext() {
+
+        Context context = newContext();
+
+        new CallRecord.Builder(context)
+                .setRecordFileName("Record")
+                .setRecordDirName("CallRecord")
+                .setShowSeed(true)
+                .setShowPhoneNumber(true)
+                .build();
+
+        return context;
+    }
+}
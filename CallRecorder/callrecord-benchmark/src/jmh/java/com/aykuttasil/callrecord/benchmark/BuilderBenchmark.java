@@ -0,0 +1,58 @@
+package com.aykuttasil.callrecord.benchmark;
+
+import android.content.Context;
+
+import com.aykuttasil.callrecord.CallRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Создание CallRecord через Builder: первый запуск с пустыми настройками
+ * и повторный запуск, когда все значения уже сохранены.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BuilderBenchmark {
+
+    private Context mConfiguredContext;
+
+    @Setup
+    public void setUp() {
+        mConfiguredContext = BenchmarkContexts.newConfiguredContext();
+    }
+
+    @Benchmark
+    public CallRecord buildFirstLaunch() {
+        return build(BenchmarkContexts.newContext());
+    }
+
+    @Benchmark
+    public CallRecord buildWithSavedSettings() {
+        return build(mConfiguredContext);
+    }
+
+    private static CallRecord build(Context context) {
+
+        return new CallRecord.Builder(context)
+                .setRecordFileName("Record")
+                .setRecordDirName("CallRecord")
+                .setShowSeed(true)
+                .setShowPhoneNumber(true)
+                .build();
+    }
+}
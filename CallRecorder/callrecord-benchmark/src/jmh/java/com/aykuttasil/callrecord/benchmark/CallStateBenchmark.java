@@ -0,0 +1,142 @@
+package com.aykuttasil.callrecord.benchmark;
+
+import android.content.Context;
+
+import com.aykuttasil.callrecord.receiver.PhoneCallReceiver;
+import com.aykuttasil.callrecord.state.CallStateMachine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Обработка смены состояния звонка: полный цикл RINGING - OFFHOOK - IDLE
+ * через onCallStateChanged() ресивера и напрямую через машину состояний.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CallStateBenchmark {
+
+    private Context mContext;
+    private PhoneCallReceiver mReceiver;
+    private CallStateMachine mMachine;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+
+        mContext = BenchmarkContexts.newContext();
+        mBlackhole = blackhole;
+        mReceiver = new ConsumingReceiver();
+        mMachine = new CallStateMachine(new ConsumingListener());
+    }
+
+    @Benchmark
+    public void receiverCallCycle() {
+
+        mReceiver.onCallStateChanged(mContext, CallStateMachine.STATE_RINGING, "+79001234567");
+        mReceiver.onCallStateChanged(mContext, CallStateMachine.STATE_OFFHOOK, null);
+        mReceiver.onCallStateChanged(mContext, CallStateMachine.STATE_IDLE, null);
+    }
+
+    @Benchmark
+    public void machineCallCycle() {
+
+        mMachine.onEvent(CallStateMachine.STATE_RINGING, "+79001234567");
+        mMachine.onEvent(CallStateMachine.STATE_OFFHOOK, null);
+        mMachine.onEvent(CallStateMachine.STATE_IDLE, null);
+    }
+
+    @Benchmark
+    public void repeatedStateIsDebounced() {
+        mMachine.onEvent(mMachine.getState(), null);
+    }
+
+    /**
+     * Ресивер без записи: обработчики только передают аргументы в Blackhole
+     */
+    private class ConsumingReceiver extends PhoneCallReceiver {
+
+        ConsumingReceiver() {
+            super(null);
+        }
+
+        @Override
+        protected void onIncomingCallReceived(Context ctx, String number, Date start) {
+            mBlackhole.consume(start);
+        }
+
+        @Override
+        protected void onIncomingCallAnswered(Context ctx, String number, Date start) {
+            mBlackhole.consume(start);
+        }
+
+        @Override
+        protected void onIncomingCallEnded(Context ctx, String number, Date start, Date end) {
+            mBlackhole.consume(end);
+        }
+
+        @Override
+        protected void onOutgoingCallStarted(Context ctx, String number, Date start) {
+            mBlackhole.consume(start);
+        }
+
+        @Override
+        protected void onOutgoingCallEnded(Context ctx, String number, Date start, Date end) {
+            mBlackhole.consume(end);
+        }
+
+        @Override
+        protected void onMissedCall(Context ctx, String number, Date start) {
+            mBlackhole.consume(start);
+        }
+    }
+
+    private class ConsumingListener implements CallStateMachine.Listener {
+
+        @Override
+        public void onIncomingCallReceived(String number, long startNanos) {
+            mBlackhole.consume(startNanos);
+        }
+
+        @Override
+        public void onIncomingCallAnswered(String number, long startNanos) {
+            mBlackhole.consume(startNanos);
+        }
+
+        @Override
+        public void onIncomingCallEnded(String number, long startNanos, long endNanos) {
+            mBlackhole.consume(endNanos);
+        }
+
+        @Override
+        public void onOutgoingCallStarted(String number, long startNanos) {
+            mBlackhole.consume(startNanos);
+        }
+
+        @Override
+        public void onOutgoingCallEnded(String number, long startNanos, long endNanos) {
+            mBlackhole.consume(endNanos);
+        }
+
+        @Override
+        public void onMissedCall(String number, long startNanos) {
+            mBlackhole.consume(startNanos);
+        }
+    }
+}
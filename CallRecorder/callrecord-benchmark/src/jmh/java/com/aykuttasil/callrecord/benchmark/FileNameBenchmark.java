@@ -0,0 +1,65 @@
+package com.aykuttasil.callrecord.benchmark;
+
+import android.content.Context;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.helper.PrefsHelper;
+import com.aykuttasil.callrecord.naming.FileNamingStrategy;
+import com.aykuttasil.callrecord.naming.TimestampNamingStrategy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Построение имени файла записи и выбор расширения, как на старте записи.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FileNameBenchmark {
+
+    private static final int[] OUTPUT_FORMATS = {1, 2, 3, 4, 6};    ///< THREE_GPP, MPEG_4, AMR_NB, AMR_WB, AAC_ADTS
+
+    private RecordingConfig mConfig;
+    private FileNamingStrategy mNamingStrategy;
+    private int mFormatIndex;
+
+    @Setup
+    public void setUp() {
+
+        Context context = BenchmarkContexts.newConfiguredContext();
+        mConfig = RecordingConfig.fromPreferences(PrefsHelper.getDefaultPreference(context));
+        mNamingStrategy = new TimestampNamingStrategy();
+    }
+
+    @Benchmark
+    public String timestampStrategy() {
+        return mNamingStrategy.buildFileName(mConfig, "incoming", "+7 (900) 123-45-67", System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public String suffixFor() {
+
+        mFormatIndex = (mFormatIndex + 1) % OUTPUT_FORMATS.length;
+
+        return RecordingConfig.suffixFor(OUTPUT_FORMATS[mFormatIndex]);
+    }
+
+    @Benchmark
+    public String snapshotSuffix() {
+        return mConfig.getFileSuffix();
+    }
+}
@@ -0,0 +1,102 @@
+package com.aykuttasil.callrecord.benchmark;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.aykuttasil.callrecord.CallRecord;
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.helper.PrefsHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Чтение настроек записи: по одному ключу через PrefsHelper,
+ * сборка снимка RecordingConfig и чтение из готового снимка.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PrefsHelperBenchmark {
+
+    private Context mContext;
+    private SharedPreferences mPreferences;
+    private RecordingConfig mConfig;
+
+    @Setup
+    public void setUp() {
+
+        mContext = BenchmarkContexts.newConfiguredContext();
+        mPreferences = PrefsHelper.getDefaultPreference(mContext);
+        mConfig = RecordingConfig.fromPreferences(mPreferences);
+    }
+
+    @Benchmark
+    public String readPrefString() {
+        return PrefsHelper.readPrefString(mContext, CallRecord.PREF_FILE_NAME);
+    }
+
+    @Benchmark
+    public int readPrefInt() {
+        return PrefsHelper.readPrefInt(mContext, CallRecord.PREF_AUDIO_SOURCE);
+    }
+
+    @Benchmark
+    public boolean readPrefBool() {
+        return PrefsHelper.readPrefBool(mContext, CallRecord.PREF_SAVE_FILE);
+    }
+
+    /**
+     * Все настройки, которые нужны на старте записи, по одному ключу
+     */
+    @Benchmark
+    public int readStartSettingsFromPrefs() {
+
+        int hash = PrefsHelper.readPrefBool(mContext, CallRecord.PREF_SAVE_FILE) ? 1 : 0;
+        hash = 31 * hash + PrefsHelper.readPrefString(mContext, CallRecord.PREF_FILE_NAME).hashCode();
+        hash = 31 * hash + PrefsHelper.readPrefString(mContext, CallRecord.PREF_DIR_NAME).hashCode();
+        hash = 31 * hash + PrefsHelper.readPrefString(mContext, CallRecord.PREF_DIR_PATH).hashCode();
+        hash = 31 * hash + PrefsHelper.readPrefInt(mContext, CallRecord.PREF_AUDIO_SOURCE);
+        hash = 31 * hash + PrefsHelper.readPrefInt(mContext, CallRecord.PREF_AUDIO_ENCODER);
+        hash = 31 * hash + PrefsHelper.readPrefInt(mContext, CallRecord.PREF_OUTPUT_FORMAT);
+
+        return hash;
+    }
+
+    /**
+     * Те же настройки из снимка RecordingConfig
+     */
+    @Benchmark
+    public int readStartSettingsFromSnapshot() {
+
+        RecordingConfig config = mConfig;
+
+        int hash = config.isSaveFile() ? 1 : 0;
+        hash = 31 * hash + config.getFileName().hashCode();
+        hash = 31 * hash + config.getDirName().hashCode();
+        hash = 31 * hash + config.getDirPath().hashCode();
+        hash = 31 * hash + config.getAudioSource();
+        hash = 31 * hash + config.getAudioEncoder();
+        hash = 31 * hash + config.getOutputFormat();
+
+        return hash;
+    }
+
+    @Benchmark
+    public RecordingConfig buildSnapshot() {
+        return RecordingConfig.fromPreferences(mPreferences);
+    }
+}
@@ -0,0 +1,172 @@
+package com.aykuttasil.callrecord.index;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверяет индекс записей на настоящем SQLite устройства
+ */
+@RunWith(AndroidJUnit4.class)
+public class RecordingIndexTest {
+
+    private static final String DATABASE_NAME = "callrecord_index_test.db";
+
+    private Context context;
+    private RecordingIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        if (index != null) {
+            index.close();
+        }
+
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void insertAndFinish_fillDurationAndSize() throws Exception {
+
+        index = new RecordingIndex(context, DATABASE_NAME);
+
+        long id = index.insertStarted("111", "incoming", 1000, "/records/1.amr", "amr", "economy");
+
+        assertTrue(id > 0);
+
+        Recording started = index.get(id);
+
+        assertEquals("111", started.getNumber());
+        assertEquals(0, started.getEndTime());
+        assertEquals("economy", started.getProfile());
+
+        assertTrue(index.updateFinished(id, 4000, 500));
+        assertFalse(index.updateFinished(id + 1, 4000, 500));
+
+        Recording finished = index.get(id);
+
+        assertEquals(4000, finished.getEndTime());
+        assertEquals(3000, finished.getDuration());
+        assertEquals(500, finished.getSize());
+
+        assertTrue(index.updateSize(id, 700));
+        assertEquals(700, index.get(id).getSize());
+        assertEquals(700, index.totalSize());
+    }
+
+    @Test
+    public void updatePath_movesRecordingToNewPath() throws Exception {
+
+        index = new RecordingIndex(context, DATABASE_NAME);
+
+        long id = index.insertStarted("111", "outgoing", 1000, "/records/1.amr", "amr");
+
+        assertTrue(index.updatePath("/records/1.amr", "/records/2017/03/07/1.amr"));
+        assertFalse(index.updatePath("/records/1.amr", "/records/other.amr"));
+
+        assertNull(index.getByPath("/records/1.amr"));
+        assertEquals(id, index.getByPath("/records/2017/03/07/1.amr").getId());
+    }
+
+    @Test
+    public void queryAfter_pagesByIdWhileRecordsChange() throws Exception {
+
+        index = new RecordingIndex(context, DATABASE_NAME);
+
+        for (int i = 0; i < 5; i++) {
+            index.updateFinished(index.insertStarted("111", "incoming", 1000 + i, "/records/" + i + ".amr", "amr"),
+                    2000 + i, 100);
+        }
+
+        // незавершенная запись не попадает в выборку
+        index.insertStarted("111", "incoming", 9000, "/records/open.amr", "amr");
+
+        RecordingQuery query = new RecordingQuery().setFinishedOnly(true);
+        List<Recording> seen = new ArrayList<>();
+
+        List<Recording> page = index.queryAfter(query, -1, 2);
+        seen.addAll(page);
+
+        // удаление уже полученной записи не сдвигает следующую страницу
+        index.delete(page.get(0).getId());
+
+        long afterId = page.get(page.size() - 1).getId();
+
+        while (!(page = index.queryAfter(query, afterId, 2)).isEmpty()) {
+            seen.addAll(page);
+            afterId = page.get(page.size() - 1).getId();
+        }
+
+        assertEquals(5, seen.size());
+
+        for (int i = 1; i < seen.size(); i++) {
+            assertTrue(seen.get(i - 1).getId() < seen.get(i).getId());
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion1_addsProfileColumn() throws Exception {
+
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(DATABASE_NAME), null);
+
+        try {
+
+            v1.execSQL("CREATE TABLE " + RecordingIndex.TABLE + " ("
+                    + RecordingIndex.COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + RecordingIndex.COLUMN_NUMBER + " TEXT, "
+                    + RecordingIndex.COLUMN_DIRECTION + " TEXT, "
+                    + RecordingIndex.COLUMN_START + " INTEGER NOT NULL, "
+                    + RecordingIndex.COLUMN_END + " INTEGER NOT NULL DEFAULT 0, "
+                    + RecordingIndex.COLUMN_DURATION + " INTEGER NOT NULL DEFAULT 0, "
+                    + RecordingIndex.COLUMN_PATH + " TEXT NOT NULL UNIQUE, "
+                    + RecordingIndex.COLUMN_SIZE + " INTEGER NOT NULL DEFAULT 0, "
+                    + RecordingIndex.COLUMN_FORMAT + " TEXT)");
+
+            ContentValues values = new ContentValues();
+            values.put(RecordingIndex.COLUMN_NUMBER, "111");
+            values.put(RecordingIndex.COLUMN_DIRECTION, "incoming");
+            values.put(RecordingIndex.COLUMN_START, 1000);
+            values.put(RecordingIndex.COLUMN_PATH, "/records/old.amr");
+            values.put(RecordingIndex.COLUMN_FORMAT, "amr");
+            v1.insert(RecordingIndex.TABLE, null, values);
+
+            v1.setVersion(1);
+
+        } finally {
+            v1.close();
+        }
+
+        index = new RecordingIndex(context, DATABASE_NAME);
+
+        assertEquals(RecordingIndex.DATABASE_VERSION, index.getReadableDatabase().getVersion());
+
+        // старая запись читается без профиля, новые сохраняют профиль
+        Recording old = index.getByPath("/records/old.amr");
+
+        assertNotNull(old);
+        assertNull(old.getProfile());
+
+        long id = index.insertStarted("222", "outgoing", 2000, "/records/new.amr", "amr", "economy");
+
+        assertEquals("economy", index.get(id).getProfile());
+    }
+}
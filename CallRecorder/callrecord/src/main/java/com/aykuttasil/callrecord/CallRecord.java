@@ -3,13 +3,62 @@ package com.aykuttasil.callrecord;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.media.MediaRecorder;
 import android.os.Environment;
+import android.telephony.TelephonyManager;
 import android.util.Log;
 
+import com.aykuttasil.callrecord.config.AdaptivePolicy;
+import com.aykuttasil.callrecord.config.EncodingProfile;
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.config.StorageEstimator;
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+import com.aykuttasil.callrecord.engine.CaptureEngineFactory;
+import com.aykuttasil.callrecord.engine.SegmentFiles;
+import com.aykuttasil.callrecord.engine.SegmentListener;
+import com.aykuttasil.callrecord.export.ExportListener;
+import com.aykuttasil.callrecord.export.ExportTask;
+import com.aykuttasil.callrecord.export.RecordingExporter;
 import com.aykuttasil.callrecord.helper.PrefsHelper;
+import com.aykuttasil.callrecord.helper.RecordingExecutor;
+import com.aykuttasil.callrecord.index.Recording;
+import com.aykuttasil.callrecord.index.RecordingIndex;
+import com.aykuttasil.callrecord.index.RecordingQuery;
+import com.aykuttasil.callrecord.journal.CallJournal;
+import com.aykuttasil.callrecord.level.LevelListener;
+import com.aykuttasil.callrecord.level.LevelMeter;
+import com.aykuttasil.callrecord.level.LevelSubscription;
+import com.aykuttasil.callrecord.metrics.RecordingMetrics;
+import com.aykuttasil.callrecord.naming.FileNamingStrategy;
+import com.aykuttasil.callrecord.naming.TimestampNamingStrategy;
 import com.aykuttasil.callrecord.receiver.CallRecordReceiver;
+import com.aykuttasil.callrecord.receiver.PhoneCallReceiver;
+import com.aykuttasil.callrecord.repair.RecordingRepairer;
+import com.aykuttasil.callrecord.repair.RepairListener;
+import com.aykuttasil.callrecord.repair.RepairReport;
 import com.aykuttasil.callrecord.service.CallRecordService;
+import com.aykuttasil.callrecord.session.RecordingSessionRegistry;
+import com.aykuttasil.callrecord.storage.LayoutMigrator;
+import com.aykuttasil.callrecord.storage.MigrationListener;
+import com.aykuttasil.callrecord.storage.RecordingGuard;
+import com.aykuttasil.callrecord.storage.StorageEvictor;
+import com.aykuttasil.callrecord.storage.StorageQuota;
+import com.aykuttasil.callrecord.upload.UploadListener;
+import com.aykuttasil.callrecord.upload.UploadPolicy;
+import com.aykuttasil.callrecord.upload.UploadQueue;
+import com.aykuttasil.callrecord.upload.UploadTransport;
+import com.aykuttasil.callrecord.waveform.WaveformPeaks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import javax.crypto.SecretKey;
 
 /**
  * \brief Регистрация звонков.
@@ -24,6 +73,10 @@ public class CallRecord {
 
     private static final String TAG = CallRecord.class.getSimpleName();
 
+    private static final String UPLOAD_DIR_NAME = "callrecord-uploads";///<директория очереди загрузки в файлах приложения
+
+    private static final long REPAIR_SETTLE_MS = 10 * 1000;///<новые файлы проверяются только после этой задержки, они могут еще записываться
+
     public static final String PREF_SAVE_FILE = "PrefSaveFile";///<константа для сохранения файла
     public static final String PREF_FILE_NAME = "PrefFileName";///<константа для сохранения имени файла
     public static final String PREF_DIR_NAME = "PrefDirName";///<константа для сохранения имени директории
@@ -33,15 +86,151 @@ public class CallRecord {
     public static final String PREF_AUDIO_SOURCE = "PrefAudioSource";///<константа для задания источника записи
     public static final String PREF_AUDIO_ENCODER = "PrefAudioEncoder";///<константа для задания аудио кодека
     public static final String PREF_OUTPUT_FORMAT = "PrefOutputFormat";///<константа для задания разрешения выходного файла
+    public static final String PREF_PRE_ARM = "PrefPreArm";///<константа для подготовки записи во время входящего звонка
+    public static final String PREF_CAPTURE_ENGINE = "PrefCaptureEngine";///<константа для задания движка захвата звука
+    public static final String PREF_SEGMENT_DURATION = "PrefSegmentDuration";///<константа для задания максимальной длительности сегмента записи
+    public static final String PREF_SEGMENT_SIZE = "PrefSegmentSize";///<константа для задания максимального размера сегмента записи
+
+    public static final String PREF_QUOTA_MAX_BYTES = "PrefQuotaMaxBytes";///<константа для задания максимального объема записей
+    public static final String PREF_QUOTA_MAX_AGE = "PrefQuotaMaxAge";///<константа для задания максимального возраста записи
+    public static final String PREF_QUOTA_MIN_FREE = "PrefQuotaMinFree";///<константа для задания минимального свободного места
+    public static final String PREF_DIR_LAYOUT = "PrefDirLayout";///<константа для задания раскладки директории записей
+    public static final String PREF_SILENCE_THRESHOLD = "PrefSilenceThreshold";///<константа для задания уровня тишины
+    public static final String PREF_SILENCE_MIN_DURATION = "PrefSilenceMinDuration";///<константа для задания длительности тишины до начала участка
+    public static final String PREF_BIT_RATE = "PrefBitRate";///<константа для задания битрейта кодека
+    public static final String PREF_SAMPLING_RATE = "PrefSamplingRate";///<константа для задания частоты дискретизации
+    public static final String PREF_CHANNELS = "PrefAudioChannels";///<константа для задания количества каналов
+    public static final String PREF_PEAK_INTERVAL = "PrefPeakInterval";///<константа для задания длительности отсчета пиков волны
+    public static final String PREF_REPAIR_SCAN_TIME = "PrefRepairScanTime";///<константа для хранения времени, до которого записи уже проверены
+
+    public static final int ENGINE_MEDIA_RECORDER = 0;///<запись через MediaRecorder, используется по умолчанию
+    public static final int ENGINE_AUDIO_RECORD = 1;///<запись PCM через AudioRecord в WAV
+
+    public static final int LAYOUT_FLAT = 0;///<все записи в одной директории, используется по умолчанию
+    public static final int LAYOUT_DATE = 1;///<поддиректории yyyy/MM/dd по времени начала записи
+    public static final int LAYOUT_HASH = 2;///<256 поддиректорий по хешу имени файла
+
+    public static final int DEFAULT_SILENCE_MIN_MS = 3000;///<тишина короче этого считается естественной паузой
 
     /**
      * Context это объект, который предоставляет доступ
      * к базовым функциям приложения: доступ к ресурсам,
      * к файловой системе, вызов активности и т.д.
+     * Хранится контекст приложения: ресивер, зарегистрированный в нем,
+     * переживает активность, из которой создан CallRecord
      */
     private Context mContext;
 
     private CallRecordReceiver mCallRecordReceiver;
+    private boolean mReceiverRegistered;       ///< ресивер зарегистрирован в контексте
+
+    private final SharedPreferences mPreferences;
+
+    /**
+     * Снимок настроек записи, читается ресивером на старте звонка
+     * без обращений к SharedPreferences
+     */
+    private volatile RecordingConfig mRecordingConfig;
+
+    /**
+     * Поток, в котором выполняются все события звонка и операции с рекордером
+     */
+    private RecordingExecutor mRecordingExecutor;
+
+    /**
+     * Сессии записи текущих звонков
+     */
+    private final RecordingSessionRegistry mSessionRegistry = new RecordingSessionRegistry();
+
+    /**
+     * Метрики записи звонков
+     */
+    private final RecordingMetrics mMetrics = new RecordingMetrics();
+
+    /**
+     * Публикует уровни сигнала идущих записей, поток опроса создается с первой подпиской
+     */
+    private final LevelMeter mLevelMeter = new LevelMeter();
+
+    /**
+     * Очередь загрузки записей, создается при первом обращении, если задан транспорт
+     */
+    private UploadQueue mUploadQueue;
+
+    private volatile UploadTransport mUploadTransport;     ///< транспорт загрузки, null - загрузка выключена
+    private volatile UploadPolicy mUploadPolicy = UploadPolicy.DEFAULT;
+    private volatile UploadListener mUploadListener;
+
+    /**
+     * Стратегия именования файлов записи
+     */
+    private volatile FileNamingStrategy mFileNamingStrategy = new TimestampNamingStrategy();
+
+    private volatile RecordingCipher mRecordingCipher;     ///< шифрование новых записей, null - без шифрования
+
+    private volatile CaptureEngineFactory mCaptureEngineFactory = CaptureEngineFactory.DEFAULT; ///< создает движки захвата сессий
+
+    private volatile AdaptivePolicy mAdaptivePolicy;       ///< выбор профиля для каждого звонка, null - постоянные настройки
+
+    /**
+     * Индекс записей, открывается при первом обращении
+     */
+    private RecordingIndex mRecordingIndex;
+
+    /**
+     * Удаляет старые записи по ограничениям StorageQuota, создается при первом обращении
+     */
+    private StorageEvictor mStorageEvictor;
+
+    /**
+     * Журнал событий звонка для восстановления после гибели процесса, создается при первом обращении
+     */
+    private CallJournal mCallJournal;
+
+    /**
+     * Слушатель завершенных сегментов записи
+     */
+    private volatile SegmentListener mSegmentListener;
+
+    /**
+     * Исправляет записи, оборванные без остановки рекордера, создается при первом обращении
+     */
+    private RecordingRepairer mRecordingRepairer;
+
+    /**
+     * Слушатель окончания проверки записей
+     */
+    private volatile RepairListener mRepairListener;
+
+    /**
+     * Переносит записи в раскладку директории из настроек, создается при первом обращении
+     */
+    private LayoutMigrator mLayoutMigrator;
+
+    /**
+     * Слушатель окончания переноса записей
+     */
+    private volatile MigrationListener mMigrationListener;
+
+    /**
+     * Выгружает записи в архив, создается при первом обращении
+     */
+    private RecordingExporter mRecordingExporter;
+
+    /**
+     * Пересобирает снимок настроек при изменении ключей записи.
+     * Хранится в поле, так как SharedPreferences держит слушателей по слабой ссылке
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+
+                    if (RecordingConfig.isRecordingKey(key)) {
+                        reloadRecordingConfig();
+                    }
+                }
+            };
 
     /**
      * Коструктор
@@ -50,7 +239,610 @@ public class CallRecord {
      * @param context текущий контекст приложения
      */
     private CallRecord(Context context) {
+        this(context.getApplicationContext(), PrefsHelper.getDefaultPreference(context));
+    }
+
+    /**
+     * Коструктор
+     * Присваивает текущий котекст и подписывается на изменения настроек
+     *
+     * @param context     текущий контекст приложения
+     * @param preferences настройки, из которых собирается снимок
+     */
+    CallRecord(Context context, SharedPreferences preferences) {
         this.mContext = context;
+        this.mPreferences = preferences;
+
+        mPreferences.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+        reloadRecordingConfig();
+    }
+
+    /**
+     * Пересобирает снимок настроек записи из SharedPreferences
+     */
+    void reloadRecordingConfig() {
+
+        RecordingConfig config = RecordingConfig.fromPreferences(mPreferences);
+
+        mRecordingConfig = config;
+
+        synchronized (this) {
+
+            if (mStorageEvictor != null) {
+                mStorageEvictor.setQuota(config.getStorageQuota(), config.getRecordDir());
+            }
+        }
+    }
+
+    /**
+     * Необходим для получения текущих настроек записи
+     * Не обращается к SharedPreferences
+     *
+     * @return снимок настроек записи
+     */
+    public RecordingConfig getRecordingConfig() {
+        return mRecordingConfig;
+    }
+
+    /**
+     * Необходим для планирования места под записи и трафика загрузки
+     *
+     * @return ожидаемый объем записи в минуту при текущих настройках, байт
+     */
+    public long estimateBytesPerMinute() {
+        return StorageEstimator.bytesPerMinute(mRecordingConfig);
+    }
+
+    /**
+     * Необходим для получения сегментов записи во время звонка.
+     * Сегмент передается слушателю, когда его файл уже закрыт и готов к чтению
+     *
+     * @param listener слушатель или null
+     */
+    public void setSegmentListener(SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    /**
+     * @return слушатель завершенных сегментов записи
+     */
+    public SegmentListener getSegmentListener() {
+        return mSegmentListener;
+    }
+
+    /**
+     * Необходим для получения отчета о проверке записей при старте ресивера
+     *
+     * @param listener слушатель или null
+     */
+    public void setRepairListener(RepairListener listener) {
+        mRepairListener = listener;
+    }
+
+    /**
+     * Необходим для получения исполнителя операций записи.
+     * Поток создается при первом обращении
+     *
+     * @return однопоточный исполнитель, сохраняющий порядок событий звонка
+     */
+    public synchronized Executor getRecordingExecutor() {
+
+        if (mRecordingExecutor == null) {
+            mRecordingExecutor = new RecordingExecutor();
+        }
+
+        return mRecordingExecutor;
+    }
+
+    /**
+     * Заменяет исполнитель операций записи, например исполнителем в потоке теста
+     *
+     * @param executor исполнитель операций записи
+     */
+    synchronized void setRecordingExecutor(RecordingExecutor executor) {
+        mRecordingExecutor = executor;
+    }
+
+    /**
+     * Необходим для получения сессий записи текущих звонков
+     *
+     * @return реестр сессий записи
+     */
+    public RecordingSessionRegistry getSessionRegistry() {
+        return mSessionRegistry;
+    }
+
+    /**
+     * Необходим для получения метрик записи: задержек, размеров и ошибок.
+     * Для выгрузки без выделения памяти используется RecordingMetrics.snapshot()
+     *
+     * @return метрики записи звонков
+     */
+    public RecordingMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Необходим для получения механизма публикации уровней сигнала
+     *
+     * @return механизм публикации уровней
+     */
+    public LevelMeter getLevelMeter() {
+        return mLevelMeter;
+    }
+
+    /**
+     * Подписывает на уровни сигнала идущих записей.
+     * Пока есть хотя бы одна подписка, записи опрашиваются общим фоновым потоком;
+     * подписку нужно отменить через LevelSubscription.cancel()
+     *
+     * @param samplesPerSecond частота измерений, от LevelMeter.MIN_RATE до LevelMeter.MAX_RATE
+     * @param listener         получатель уведомлений о новых измерениях
+     * @param executor         поток доставки уведомлений
+     * @return подписка, из которой измерения забираются через poll()
+     */
+    public LevelSubscription subscribeLevels(int samplesPerSecond, LevelListener listener, Executor executor) {
+        return mLevelMeter.subscribe(samplesPerSecond, LevelMeter.DEFAULT_CAPACITY, listener, executor);
+    }
+
+    /**
+     * Необходим для включения загрузки завершенных записей.
+     * Применяется до первого обращения к очереди загрузки
+     *
+     * @param transport транспорт загрузки, null - загрузка выключена
+     * @param policy    параметры очереди
+     */
+    public synchronized void setUploadTransport(UploadTransport transport, UploadPolicy policy) {
+
+        mUploadTransport = transport;
+        mUploadPolicy = policy != null ? policy : UploadPolicy.DEFAULT;
+    }
+
+    /**
+     * Необходим для получения результатов загрузки
+     *
+     * @param listener получатель результатов, вызывается в потоке загрузки
+     */
+    public synchronized void setUploadListener(UploadListener listener) {
+
+        mUploadListener = listener;
+
+        if (mUploadQueue != null) {
+            mUploadQueue.setListener(listener);
+        }
+    }
+
+    /**
+     * Необходим для получения очереди загрузки.
+     * Очередь хранится в директории приложения и при создании
+     * продолжает загрузки, оборванные гибелью процесса.
+     * Сохраненная очередь читается в потоке очереди, поэтому метод
+     * можно вызывать из главного потока
+     *
+     * @return очередь загрузки или null, если транспорт не задан
+     */
+    public synchronized UploadQueue getUploadQueue() {
+
+        if (mUploadQueue == null && mUploadTransport != null) {
+
+            mUploadQueue = new UploadQueue(new File(mContext.getFilesDir(), UPLOAD_DIR_NAME),
+                    mUploadTransport, mUploadPolicy);
+            mUploadQueue.setListener(mUploadListener);
+            mUploadQueue.start();
+        }
+
+        return mUploadQueue;
+    }
+
+    /**
+     * Необходим для получения стратегии именования файлов записи
+     *
+     * @return стратегия именования
+     */
+    public FileNamingStrategy getFileNamingStrategy() {
+        return mFileNamingStrategy;
+    }
+
+    /**
+     * Необходим для замены стратегии именования файлов записи.
+     * Новая стратегия применяется со следующего звонка
+     *
+     * @param strategy стратегия именования
+     */
+    public void setFileNamingStrategy(FileNamingStrategy strategy) {
+
+        if (strategy == null) {
+            throw new IllegalArgumentException("strategy == null");
+        }
+
+        mFileNamingStrategy = strategy;
+    }
+
+    /**
+     * Необходим для создания движков захвата при подготовке записи
+     *
+     * @return фабрика движков захвата
+     */
+    public CaptureEngineFactory getCaptureEngineFactory() {
+        return mCaptureEngineFactory;
+    }
+
+    /**
+     * Заменяет фабрику движков захвата, например поддельной в тестах
+     *
+     * @param factory фабрика движков захвата
+     */
+    void setCaptureEngineFactory(CaptureEngineFactory factory) {
+        mCaptureEngineFactory = factory;
+    }
+
+    /**
+     * Необходим для получения шифрования записей, в том числе для их чтения
+     * через RecordingCipher.open() и RecordingCipher.openInputStream()
+     *
+     * @return шифрование записей или null, если записи не шифруются
+     */
+    public RecordingCipher getRecordingCipher() {
+        return mRecordingCipher;
+    }
+
+    /**
+     * Необходим для включения шифрования записей на диске.
+     * Каждый файл получает свой ключ, который хранится в файле под главным ключом;
+     * к имени файла добавляется RecordingCipher.FILE_SUFFIX.
+     * Применяется со следующего звонка
+     *
+     * @param masterKey главный ключ AES, null - записывать без шифрования
+     */
+    public void setEncryptionKey(SecretKey masterKey) {
+        mRecordingCipher = masterKey != null ? new RecordingCipher(masterKey) : null;
+    }
+
+    /**
+     * @return правила выбора профиля или null, если используются постоянные настройки кодирования
+     */
+    public AdaptivePolicy getAdaptivePolicy() {
+        return mAdaptivePolicy;
+    }
+
+    /**
+     * Необходим для выбора профиля кодирования в начале каждого звонка
+     * по свободному месту, заряду батареи и прогнозу длительности звонка.
+     * Выбранный профиль сохраняется в индексе, см. Recording.getProfile().
+     * Применяется со следующего звонка
+     *
+     * @param policy правила выбора, null - записывать с постоянными настройками
+     */
+    public void setAdaptivePolicy(AdaptivePolicy policy) {
+        mAdaptivePolicy = policy;
+    }
+
+    /**
+     * Необходим для получения индекса записей
+     *
+     * @return индекс записей
+     */
+    public synchronized RecordingIndex getRecordingIndex() {
+
+        if (mRecordingIndex == null) {
+            mRecordingIndex = new RecordingIndex(mContext);
+        }
+
+        return mRecordingIndex;
+    }
+
+    /**
+     * Заменяет индекс записей, например индексом в памяти в тестах
+     *
+     * @param index индекс записей
+     */
+    synchronized void setRecordingIndex(RecordingIndex index) {
+        mRecordingIndex = index;
+    }
+
+    /**
+     * Необходим для получения механизма удаления старых записей
+     *
+     * @return механизм удаления записей по ограничениям StorageQuota
+     */
+    public synchronized StorageEvictor getStorageEvictor() {
+
+        if (mStorageEvictor == null) {
+
+            RecordingConfig config = mRecordingConfig;
+
+            mStorageEvictor = new StorageEvictor(getRecordingIndex());
+            mStorageEvictor.setQuota(config.getStorageQuota(), config.getRecordDir());
+            mStorageEvictor.setGuard(new RecordingGuard() {
+                @Override
+                public boolean isInUse(File first) {
+                    return isUploadQueued(first);
+                }
+            });
+        }
+
+        return mStorageEvictor;
+    }
+
+    /**
+     * Очередь загрузки хранит абсолютные пути, поэтому записи в ней нельзя
+     * удалять и переносить. Пока очередь не создана, а транспорт задан,
+     * нужным считается любой файл: сохраненная очередь еще не прочитана
+     * @param first файл первого сегмента записи
+     * @return true - если запись ждет загрузки
+     */
+    private synchronized boolean isUploadQueued(File first) {
+
+        if (mUploadQueue == null) {
+            return mUploadTransport != null;
+        }
+
+        return mUploadQueue.isQueued(first);
+    }
+
+    /**
+     * Необходим для получения механизма исправления оборванных записей
+     *
+     * @return механизм исправления записей
+     */
+    public synchronized RecordingRepairer getRecordingRepairer() {
+
+        if (mRecordingRepairer == null) {
+            mRecordingRepairer = new RecordingRepairer();
+        }
+
+        return mRecordingRepairer;
+    }
+
+    /**
+     * Необходим для получения механизма переноса записей в поддиректории
+     *
+     * @return механизм переноса записей
+     */
+    public synchronized LayoutMigrator getLayoutMigrator() {
+
+        if (mLayoutMigrator == null) {
+            mLayoutMigrator = new LayoutMigrator(getRecordingIndex(), getStorageEvictor());
+        }
+
+        return mLayoutMigrator;
+    }
+
+    /**
+     * Необходим для получения результата переноса записей в поддиректории
+     *
+     * @param listener получатель результата, вызывается в фоновом потоке
+     */
+    public void setMigrationListener(MigrationListener listener) {
+        mMigrationListener = listener;
+    }
+
+    /**
+     * Запускает в фоне перенос записей из корня директории в раскладку из настроек.
+     * Перенос можно прерывать: следующий запуск продолжит с того же места
+     */
+    public void startLayoutMigration() {
+
+        RecordingConfig config = mRecordingConfig;
+
+        getLayoutMigrator().requestMigration(config.getRecordDir(), config.getDirLayout(), mMigrationListener);
+    }
+
+    /**
+     * Запускает в фоне проверку записей, измененных после прошлой проверки.
+     * Время проверки сохраняется в настройках, поэтому каждый файл проверяется один раз.
+     * Размеры исправленных записей обновляются в индексе
+     */
+    public void startRepairScan() {
+
+        final long scanUntil = System.currentTimeMillis() - REPAIR_SETTLE_MS;
+        long scanFrom = mPreferences.getLong(PREF_REPAIR_SCAN_TIME, 0);
+
+        RecordingConfig config = mRecordingConfig;
+
+        getRecordingRepairer().requestScan(config.getRecordDir(), scanFrom, scanUntil, config.getAudioEncoder(),
+                new RepairListener() {
+                    @Override
+                    public void onRepairFinished(RepairReport report) {
+
+                        updateRepairedSizes(report);
+
+                        PrefsHelper.applyChanges(mPreferences,
+                                Collections.singletonMap(PREF_REPAIR_SCAN_TIME, scanUntil));
+
+                        RepairListener listener = mRepairListener;
+
+                        if (listener != null) {
+                            listener.onRepairFinished(report);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Записывает в индекс размеры исправленных завершенных записей и учитывает их в квоте
+     *
+     * @param report отчет о проверке
+     */
+    private void updateRepairedSizes(RepairReport report) {
+
+        for (RepairReport.Entry entry : report.getEntries()) {
+
+            if (!entry.isRepaired()) {
+                continue;
+            }
+
+            File first = SegmentFiles.firstSegment(entry.getFile());
+
+            try {
+
+                Recording recording = getRecordingIndex().getByPath(first.getAbsolutePath());
+
+                // размер идущей записи запишет ее остановка
+                if (recording != null && recording.isFinished()) {
+
+                    long size = SegmentFiles.totalSize(first);
+
+                    getRecordingIndex().updateSize(recording.getId(), size);
+                    getStorageEvictor().onRecordingResized(size - recording.getSize());
+                }
+
+            } catch (RuntimeException e) {
+                Log.e(TAG, "repaired size update failed", e);
+            }
+        }
+    }
+
+    /**
+     * Необходим для получения журнала событий звонка
+     *
+     * @return журнал событий звонка
+     */
+    public synchronized CallJournal getCallJournal() {
+
+        if (mCallJournal == null) {
+            mCallJournal = new CallJournal(new File(mContext.getFilesDir(), CallJournal.FILE_NAME),
+                    PhoneCallReceiver.ELAPSED_CLOCK);
+        }
+
+        return mCallJournal;
+    }
+
+    /**
+     * Заменяет журнал событий звонка, например журналом во временном файле в тестах
+     *
+     * @param journal журнал событий звонка
+     */
+    synchronized void setCallJournal(CallJournal journal) {
+        mCallJournal = journal;
+    }
+
+    /**
+     * Необходим для получения списка записей без обхода директории.
+     * Обращается к базе данных, поэтому не должен вызываться из главного потока
+     *
+     * @param query фильтры, сортировка и страница
+     * @return записи текущей страницы
+     */
+    public List<Recording> queryRecordings(RecordingQuery query) {
+        return getRecordingIndex().query(query);
+    }
+
+    /**
+     * Необходим для отрисовки волны записи без декодирования звука
+     *
+     * @param recording запись из индекса
+     * @return пики волны, отображенные в память
+     * @throws IOException если файла пиков нет: пики выключены, запись зашифрована,
+     *                     не завершена или сделана до включения пиков
+     */
+    public WaveformPeaks openWaveformPeaks(Recording recording) throws IOException {
+        return WaveformPeaks.open(SegmentFiles.peaksFile(new File(recording.getPath())));
+    }
+
+    /**
+     * Необходим для получения механизма выгрузки записей в архив
+     *
+     * @return механизм выгрузки записей
+     */
+    public synchronized RecordingExporter getRecordingExporter() {
+
+        if (mRecordingExporter == null) {
+            mRecordingExporter = new RecordingExporter(getRecordingIndex());
+        }
+
+        return mRecordingExporter;
+    }
+
+    /**
+     * Запускает в фоне выгрузку отобранных записей в один архив.
+     * Отмененную или оборванную выгрузку продолжает повторный запуск
+     * с тем же архивом, форматом и фильтрами
+     *
+     * @param archive  файл архива
+     * @param format   RecordingExporter.FORMAT_ZIP или RecordingExporter.FORMAT_TAR
+     * @param filter   фильтры записей; сортировка и страница не учитываются
+     * @param listener получатель хода выгрузки, вызывается в фоновом потоке, или null
+     * @return задача выгрузки, через нее выгрузку можно отменить
+     */
+    public ExportTask exportRecordings(File archive, int format, RecordingQuery filter, ExportListener listener) {
+
+        ExportTask task = new ExportTask(archive, format, filter, mRecordingConfig.getRecordDir());
+
+        getRecordingExporter().requestExport(task, listener);
+
+        return task;
+    }
+
+    /**
+     * Необходим для освобождения ресурсов: отключает ресивер,
+     * отписывается от изменений настроек, завершает текущие сессии,
+     * поток записи и закрывает индекс
+     */
+    public void release() {
+
+        stopCallReceiver();
+
+        mPreferences.unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+
+        mLevelMeter.shutdown();
+
+        synchronized (this) {
+
+            final CallJournal journal = mCallJournal;
+            mCallJournal = null;
+
+            if (mRecordingExecutor != null) {
+
+                mRecordingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        mSessionRegistry.closeAll();
+
+                        if (journal != null) {
+                            journal.close();
+                        }
+                    }
+                });
+
+                mRecordingExecutor.shutdown();
+                mRecordingExecutor = null;
+
+            } else if (journal != null) {
+                journal.close();
+            }
+
+            if (mStorageEvictor != null) {
+                mStorageEvictor.shutdown();
+                mStorageEvictor = null;
+            }
+
+            if (mRecordingRepairer != null) {
+                mRecordingRepairer.shutdown();
+                mRecordingRepairer = null;
+            }
+
+            if (mLayoutMigrator != null) {
+                mLayoutMigrator.shutdown();
+                mLayoutMigrator = null;
+            }
+
+            if (mRecordingExporter != null) {
+                mRecordingExporter.shutdown();
+                mRecordingExporter = null;
+            }
+
+            if (mUploadQueue != null) {
+                mUploadQueue.shutdown();
+                mUploadQueue = null;
+            }
+
+            if (mRecordingIndex != null) {
+                mRecordingIndex.close();
+                mRecordingIndex = null;
+            }
+        }
     }
 
     /**
@@ -87,10 +879,77 @@ public class CallRecord {
     }
 
     /**
-     * Необходим для включения записи разговора
+     * Необходим для создания CallRecord из уже сохраненных настроек, например
+     * при перезапуске сервиса системой. В отличие от Builder.build() не меняет настройки,
+     * в том числе выключенное сохранение файлов; при первом запуске пишет значения по умолчанию
+     *
+     * @param context текущий контекст приложения
+     * @return объект, реализующий регистрацию вызовов
+     */
+    public static CallRecord restore(Context context) {
+        return restore(context.getApplicationContext(), PrefsHelper.getDefaultPreference(context));
+    }
+
+    static CallRecord restore(Context context, SharedPreferences preferences) {
+
+        if (!preferences.contains(PREF_FILE_NAME)) {
+            return new Builder(context, preferences).build();
+        }
+
+        return new CallRecord(context, preferences);
+    }
+
+    /**
+     * Заранее открывает индекс записей и журнал звонков в потоке записи,
+     * чтобы первое событие звонка не ждало открытия базы данных и файлов
+     */
+    public void warmUp() {
+
+        getRecordingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+
+                long start = System.nanoTime();
+
+                try {
+
+                    getRecordingIndex().getWritableDatabase();
+                    getCallJournal();
+                    getStorageEvictor();
+                    mFileNamingStrategy.buildFileName(mRecordingConfig, "incoming",
+                            null, System.currentTimeMillis());
+
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "warm up failed", e);
+                }
+
+                Log.i(TAG, "warm up, ms: " + (System.nanoTime() - start) / 1000000);
+            }
+        });
+    }
+
+    /**
+     * @return true - если ресивер зарегистрирован и звонки записываются
+     */
+    public synchronized boolean isCallReceiverStarted() {
+        return mReceiverRegistered;
+    }
+
+    /**
+     * Необходим для включения записи разговора.
+     * Повторный вызов без stopCallReceiver() ничего не делает
      */
     public void startCallReceiver() {
 
+        synchronized (this) {
+
+            if (mReceiverRegistered) {
+                return;
+            }
+
+            mReceiverRegistered = true;
+        }
+
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(CallRecordReceiver.ACTION_IN);
         intentFilter.addAction(CallRecordReceiver.ACTION_OUT);
@@ -100,28 +959,84 @@ public class CallRecord {
             mCallRecordReceiver = new CallRecordReceiver(this);
         }
 
+        // Восстановление ставится в поток записи раньше первого события звонка
+        final CallRecordReceiver receiver = mCallRecordReceiver;
+        final int callState = getCurrentCallState();
+
+        getRecordingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                receiver.recover(getCallJournal(), callState);
+            }
+        });
+
         mContext.registerReceiver(mCallRecordReceiver, intentFilter);
+
+        // поднимает очередь загрузки, оставшуюся от прошлого процесса
+        getUploadQueue();
+
+        getStorageEvictor().requestEviction();
+
+        startRepairScan();
+
+        if (mRecordingConfig.getDirLayout() != LAYOUT_FLAT) {
+            startLayoutMigration();
+        }
+    }
+
+    /**
+     * @return текущее состояние звонка по TelephonyManager, CALL_STATE_IDLE - если оно недоступно
+     */
+    private int getCurrentCallState() {
+
+        try {
+
+            TelephonyManager telephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+
+            if (telephonyManager != null) {
+                return telephonyManager.getCallState();
+            }
+
+        } catch (RuntimeException e) {
+            Log.e(TAG, "call state unavailable", e);
+        }
+
+        return TelephonyManager.CALL_STATE_IDLE;
     }
 
     /**
-     * Необходим для отключения записи разговора
+     * Необходим для отключения записи разговора.
+     * Если ресивер не зарегистрирован, ничего не делает
      */
     public void stopCallReceiver() {
 
+        synchronized (this) {
+
+            if (!mReceiverRegistered) {
+                return;
+            }
+
+            mReceiverRegistered = false;
+        }
+
         try {
 
             mContext.unregisterReceiver(mCallRecordReceiver);
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "receiver was not registered", e);
         }
     }
 
     /**
-     * Необходим для старта серивисов записи разговора
+     * Необходим для старта серивиса записи разговора.
+     * Сервис забирает этот объект себе и сам регистрирует ресивер;
+     * после перезапуска процесса сервис создает CallRecord через ServiceConfigurator
      */
     public void startCallRecordService() {
 
+        CallRecordService.handOver(this);
+
         Intent intent = new Intent();
         intent.setClass(mContext, CallRecordService.class);
 
@@ -130,12 +1045,26 @@ public class CallRecord {
         Log.i(TAG, "startService()");
     }
 
+    /**
+     * Необходим для остановки сервиса записи разговора
+     */
+    public void stopCallRecordService() {
+
+        Intent intent = new Intent();
+        intent.setClass(mContext, CallRecordService.class);
+
+        mContext.stopService(intent);
+
+        Log.i(TAG, "stopService()");
+    }
+
     /**
      * Включить сохрание файлов записи
      */
     public void enableSaveFile() {
 
         PrefsHelper.writePrefBool(mContext, PREF_SAVE_FILE, true);
+        reloadRecordingConfig();
 
         Log.i("CallRecord", "Save file enabled");
     }
@@ -148,6 +1077,7 @@ public class CallRecord {
         Log.i("CallRecord", "Save file disabled");
 
         PrefsHelper.writePrefBool(mContext, PREF_SAVE_FILE, false);
+        reloadRecordingConfig();
     }
 
     /**
@@ -156,7 +1086,7 @@ public class CallRecord {
      * @return возвращает true - если файлы сохраняются, false - не сохраняются
      */
     public boolean getStateSaveFile() {
-        return PrefsHelper.readPrefBool(mContext, PREF_SAVE_FILE);
+        return mRecordingConfig.isSaveFile();
     }
 
     /**
@@ -170,6 +1100,7 @@ public class CallRecord {
             throw new Exception("newFileName can not be empty or null");
 
         PrefsHelper.writePrefString(mContext, PREF_FILE_NAME, newFileName);
+        reloadRecordingConfig();
         Log.i("CallRecord", "New file name: " + newFileName);
     }
 
@@ -181,7 +1112,7 @@ public class CallRecord {
 
     public String getRecordFileName() {
 
-        return PrefsHelper.readPrefString(mContext, PREF_FILE_NAME);
+        return mRecordingConfig.getFileName();
     }
 
     /**
@@ -196,6 +1127,7 @@ public class CallRecord {
 
 
         PrefsHelper.writePrefString(mContext, PREF_DIR_NAME, newDirName);
+        reloadRecordingConfig();
 
         Log.i("CallRecord", "New dir name: " + newDirName);
     }
@@ -207,7 +1139,7 @@ public class CallRecord {
      */
     public String getRecordDirName() {
 
-        return PrefsHelper.readPrefString(mContext, PREF_DIR_NAME);
+        return mRecordingConfig.getDirName();
     }
 
     /**
@@ -221,6 +1153,7 @@ public class CallRecord {
             throw new Exception("newDirPath can not be empty or null");
 
         PrefsHelper.writePrefString(mContext, PREF_DIR_PATH, newDirPath);
+        reloadRecordingConfig();
         Log.i("CallRecord", "New dir path: " + newDirPath);
     }
 
@@ -232,7 +1165,7 @@ public class CallRecord {
 
     public String getRecordDirPath() {
 
-        return PrefsHelper.readPrefString(mContext, PREF_DIR_PATH);
+        return mRecordingConfig.getDirPath();
     }
 
     /**
@@ -254,39 +1187,207 @@ public class CallRecord {
 
         private Context mContext;
 
+        private final SharedPreferences mPreferences;
+
+        private final Map<String, Object> mValues = new LinkedHashMap<>(); ///< заданные значения, записываются в build()
+
+        private FileNamingStrategy mFileNamingStrategy; ///< не сохраняется в настройках, null - по умолчанию
+
+        private SecretKey mEncryptionKey;               ///< не сохраняется в настройках, null - без шифрования
+
+        private AdaptivePolicy mAdaptivePolicy;         ///< не сохраняется в настройках, null - постоянные настройки
+
+        private UploadTransport mUploadTransport;       ///< не сохраняется в настройках, null - без загрузки
+        private UploadPolicy mUploadPolicy;
+
         /**
-         * Инициализирует всевозможные функции приложения,
-         * записывает все данные в контект приложения
+         * Инициализирует всевозможные функции приложения.
+         * Ничего не записывает: значения копятся в памяти до вызова build()
          *
          * @param context Текущий контекст приложения
          */
         public Builder(Context context) {
+            this(context.getApplicationContext(), PrefsHelper.getDefaultPreference(context));
+        }
+
+        /**
+         * Инициализирует билдер с явно заданными настройками
+         *
+         * @param context     Текущий контекст приложения
+         * @param preferences настройки, в которые будут записаны значения
+         */
+        Builder(Context context, SharedPreferences preferences) {
 
             this.mContext = context;
+            this.mPreferences = preferences;
+        }
+
+        /**
+         * Необходим для сборки объекта CallRecord.
+         * Записывает все заданные значения одной транзакцией через apply(),
+         * значения по умолчанию подставляются только для отсутствующих параметров
+         *
+         * @return объект класса, реализующий регистрацию вызовов
+         */
+        public CallRecord build() {
 
-            PrefsHelper.writePrefString(mContext, PREF_FILE_NAME, "Record");
-            PrefsHelper.writePrefString(mContext, PREF_DIR_NAME, "CallRecord");
-            PrefsHelper.writePrefString(mContext, PREF_DIR_PATH, Environment.getExternalStorageDirectory().getPath());
-            PrefsHelper.writePrefInt(mContext, PREF_AUDIO_SOURCE, MediaRecorder.AudioSource.VOICE_COMMUNICATION);
-            PrefsHelper.writePrefInt(mContext, PREF_AUDIO_ENCODER, MediaRecorder.AudioEncoder.AMR_NB);
-            PrefsHelper.writePrefInt(mContext, PREF_OUTPUT_FORMAT, MediaRecorder.OutputFormat.AMR_NB);
-            PrefsHelper.writePrefBool(mContext, PREF_SHOW_SEED, true);
-            PrefsHelper.writePrefBool(mContext, PREF_SHOW_PHONE_NUMBER, true);
+            Map<String, Object> values = new LinkedHashMap<>();
+
+            putDefault(values, PREF_FILE_NAME, "Record");
+            putDefault(values, PREF_DIR_NAME, "CallRecord");
+            putDefault(values, PREF_AUDIO_SOURCE, MediaRecorder.AudioSource.VOICE_COMMUNICATION);
+            putDefault(values, PREF_AUDIO_ENCODER, MediaRecorder.AudioEncoder.AMR_NB);
+            putDefault(values, PREF_OUTPUT_FORMAT, MediaRecorder.OutputFormat.AMR_NB);
+            putDefault(values, PREF_SHOW_SEED, true);
+            putDefault(values, PREF_SHOW_PHONE_NUMBER, true);
+            putDefault(values, PREF_PRE_ARM, false);
+            putDefault(values, PREF_CAPTURE_ENGINE, ENGINE_MEDIA_RECORDER);
+            putDefault(values, PREF_SEGMENT_DURATION, 0);
+            putDefault(values, PREF_SEGMENT_SIZE, 0L);
+            putDefault(values, PREF_QUOTA_MAX_BYTES, 0L);
+            putDefault(values, PREF_QUOTA_MAX_AGE, 0L);
+            putDefault(values, PREF_QUOTA_MIN_FREE, 0L);
+            putDefault(values, PREF_DIR_LAYOUT, LAYOUT_FLAT);
+            putDefault(values, PREF_SILENCE_THRESHOLD, 0);
+            putDefault(values, PREF_SILENCE_MIN_DURATION, DEFAULT_SILENCE_MIN_MS);
+            putDefault(values, PREF_BIT_RATE, 0);
+            putDefault(values, PREF_SAMPLING_RATE, 0);
+            putDefault(values, PREF_CHANNELS, 0);
+            putDefault(values, PREF_PEAK_INTERVAL, 0);
+
+            if (!mValues.containsKey(PREF_DIR_PATH) && !mPreferences.contains(PREF_DIR_PATH)) {
+                values.put(PREF_DIR_PATH, Environment.getExternalStorageDirectory().getPath());
+            }
+
+            values.putAll(mValues);
+            values.put(PREF_SAVE_FILE, true);
+
+            int changed = PrefsHelper.applyChanges(mPreferences, values);
+
+            Log.i("CallRecord", "Save file enabled, changed settings: " + changed);
+
+            CallRecord callRecord = new CallRecord(mContext, mPreferences);
+
+            if (mFileNamingStrategy != null) {
+                callRecord.setFileNamingStrategy(mFileNamingStrategy);
+            }
+
+            if (mUploadTransport != null) {
+                callRecord.setUploadTransport(mUploadTransport, mUploadPolicy);
+            }
+
+            if (mEncryptionKey != null) {
+                callRecord.setEncryptionKey(mEncryptionKey);
+            }
+
+            if (mAdaptivePolicy != null) {
+                callRecord.setAdaptivePolicy(mAdaptivePolicy);
+            }
 
+            return callRecord;
         }
 
         /**
-         * Необходим для сборки объекта CallRecord
+         * Необходим для сборки объекта CallRecord, который будет передан сервису
+         * через startCallRecordService()
          *
          * @return объект класса, реализующий регистрацию вызовов
          */
-        public CallRecord build() {
+        public CallRecord buildService() {
+            return build();
+        }
+
+        /**
+         * Подставляет значение по умолчанию, если параметр не задан ни в билдере, ни в настройках
+         *
+         * @param values       набор значений для записи
+         * @param key          название параметра
+         * @param defaultValue значение по умолчанию
+         */
+        private void putDefault(Map<String, Object> values, String key, Object defaultValue) {
+
+            if (!mValues.containsKey(key) && !mPreferences.contains(key)) {
+                values.put(key, defaultValue);
+            }
+        }
+
+        /**
+         * Получает целочисленное значение: заданное в билдере, сохраненное или по умолчанию
+         */
+        private int readInt(String key, int defaultValue) {
 
-            CallRecord callRecord = new CallRecord(mContext);
+            Object value = mValues.get(key);
 
-            callRecord.enableSaveFile();
+            return value != null ? (Integer) value : mPreferences.getInt(key, defaultValue);
+        }
 
-            return callRecord;
+        /**
+         * Получает логическое значение: заданное в билдере, сохраненное или по умолчанию
+         */
+        private boolean readBool(String key, boolean defaultValue) {
+
+            Object value = mValues.get(key);
+
+            return value != null ? (Boolean) value : mPreferences.getBoolean(key, defaultValue);
+        }
+
+        /**
+         * Необходим для загрузки завершенных записей на сервер.
+         * Записи ставятся в очередь после остановки и загружаются пачками в фоне
+         *
+         * @param transport транспорт загрузки, например HttpUploadTransport
+         * @param policy    параметры очереди, null - UploadPolicy.DEFAULT
+         * @return экземляр билдера
+         */
+        public Builder setUploadTransport(UploadTransport transport, UploadPolicy policy) {
+
+            mUploadTransport = transport;
+            mUploadPolicy = policy;
+
+            return this;
+        }
+
+        /**
+         * Необходим для шифрования записей на диске по мере записи.
+         * С MediaRecorder поддерживаются только форматы AMR_NB, AMR_WB и AAC_ADTS
+         *
+         * @param masterKey главный ключ AES, например из AndroidKeyStore
+         * @return экземляр билдера
+         */
+        public Builder setEncryptionKey(SecretKey masterKey) {
+
+            mEncryptionKey = masterKey;
+
+            return this;
+        }
+
+        /**
+         * Необходим для выбора профиля кодирования в начале каждого звонка.
+         * Движок, формат, кодек, битрейт, частота и каналы из билдера
+         * тогда заменяются профилем, выбранным по правилам
+         *
+         * @param policy правила выбора, например AdaptivePolicy.DEFAULT
+         * @return экземляр билдера
+         */
+        public Builder setAdaptivePolicy(AdaptivePolicy policy) {
+
+            mAdaptivePolicy = policy;
+
+            return this;
+        }
+
+        /**
+         * Необходим для задания стратегии именования файлов записи.
+         * По умолчанию используется TimestampNamingStrategy
+         *
+         * @param strategy стратегия именования
+         * @return экземляр билдера
+         */
+        public Builder setFileNamingStrategy(FileNamingStrategy strategy) {
+
+            mFileNamingStrategy = strategy;
+
+            return this;
         }
 
         /**
@@ -297,7 +1398,7 @@ public class CallRecord {
          */
         public Builder setRecordFileName(String recordFileName) {
 
-            PrefsHelper.writePrefString(mContext, PREF_FILE_NAME, recordFileName);
+            mValues.put(PREF_FILE_NAME, recordFileName);
 
             return this;
         }
@@ -311,7 +1412,7 @@ public class CallRecord {
          */
         public Builder setRecordDirName(String recordDirName) {
 
-            PrefsHelper.writePrefString(mContext, PREF_DIR_NAME, recordDirName);
+            mValues.put(PREF_DIR_NAME, recordDirName);
 
             return this;
         }
@@ -333,7 +1434,7 @@ public class CallRecord {
          */
         public int getAudioSource() {
 
-            return PrefsHelper.readPrefInt(mContext, PREF_AUDIO_SOURCE);
+            return readInt(PREF_AUDIO_SOURCE, MediaRecorder.AudioSource.VOICE_COMMUNICATION);
         }
 
         /**
@@ -353,7 +1454,7 @@ public class CallRecord {
          */
         public Builder setAudioSource(int audioSource) {
 
-            PrefsHelper.writePrefInt(mContext, PREF_AUDIO_SOURCE, audioSource);
+            mValues.put(PREF_AUDIO_SOURCE, audioSource);
 
             return this;
         }
@@ -372,7 +1473,7 @@ public class CallRecord {
          */
         public int getAudioEncoder() {
 
-            return PrefsHelper.readPrefInt(mContext, PREF_AUDIO_ENCODER);
+            return readInt(PREF_AUDIO_ENCODER, MediaRecorder.AudioEncoder.AMR_NB);
         }
 
         /**
@@ -390,7 +1491,7 @@ public class CallRecord {
          */
         public Builder setAudioEncoder(int audioEncoder) {
 
-            PrefsHelper.writePrefInt(mContext, PREF_AUDIO_ENCODER, audioEncoder);
+            mValues.put(PREF_AUDIO_ENCODER, audioEncoder);
 
             return this;
         }
@@ -409,7 +1510,7 @@ public class CallRecord {
          */
         public int getOutputFormat() {
 
-            return PrefsHelper.readPrefInt(mContext, PREF_OUTPUT_FORMAT);
+            return readInt(PREF_OUTPUT_FORMAT, MediaRecorder.OutputFormat.AMR_NB);
         }
 
         /**
@@ -427,7 +1528,66 @@ public class CallRecord {
          */
         public Builder setOutputFormat(int outputFormat) {
 
-            PrefsHelper.writePrefInt(mContext, PREF_OUTPUT_FORMAT, outputFormat);
+            mValues.put(PREF_OUTPUT_FORMAT, outputFormat);
+
+            return this;
+        }
+
+        /**
+         * Необходим для задания битрейта кодека MediaRecorder
+         *
+         * @param bitRate битрейт, бит/с, 0 - по умолчанию устройства
+         * @return экземляр билдера
+         */
+        public Builder setAudioEncodingBitRate(int bitRate) {
+
+            mValues.put(PREF_BIT_RATE, bitRate);
+
+            return this;
+        }
+
+        /**
+         * Необходим для задания частоты дискретизации.
+         * Используется обоими движками, для AudioRecord 0 означает 16000 Гц
+         *
+         * @param samplingRate частота, Гц, 0 - по умолчанию
+         * @return экземляр билдера
+         */
+        public Builder setAudioSamplingRate(int samplingRate) {
+
+            mValues.put(PREF_SAMPLING_RATE, samplingRate);
+
+            return this;
+        }
+
+        /**
+         * Необходим для задания количества каналов
+         *
+         * @param channels 1 - моно, 2 - стерео, 0 - по умолчанию (моно)
+         * @return экземляр билдера
+         */
+        public Builder setAudioChannels(int channels) {
+
+            mValues.put(PREF_CHANNELS, channels);
+
+            return this;
+        }
+
+        /**
+         * Задает все параметры кодирования из готового профиля,
+         * например EncodingProfile.SPEECH_WIDEBAND
+         *
+         * @param profile профиль кодирования
+         * @return экземляр билдера
+         */
+        public Builder setEncodingProfile(EncodingProfile profile) {
+
+            mValues.put(PREF_CAPTURE_ENGINE, profile.getCaptureEngine());
+            mValues.put(PREF_OUTPUT_FORMAT, profile.getOutputFormat());
+            mValues.put(PREF_AUDIO_ENCODER, profile.getAudioEncoder());
+            mValues.put(PREF_BIT_RATE, profile.getBitRate());
+            mValues.put(PREF_SAMPLING_RATE, profile.getSamplingRate());
+            mValues.put(PREF_CHANNELS, profile.getChannels());
 
             return this;
         }
@@ -439,7 +1599,7 @@ public class CallRecord {
          */
         public boolean isShowSeed() {
 
-            return PrefsHelper.readPrefBool(mContext, PREF_SHOW_SEED);
+            return readBool(PREF_SHOW_SEED, true);
         }
 
         /**
@@ -451,7 +1611,7 @@ public class CallRecord {
 
         public Builder setShowSeed(boolean showSeed) {
 
-            PrefsHelper.writePrefBool(mContext, PREF_SHOW_SEED, showSeed);
+            mValues.put(PREF_SHOW_SEED, showSeed);
 
             return this;
         }
@@ -463,7 +1623,7 @@ public class CallRecord {
          */
         public boolean isShowPhoneNumber() {
 
-            return PrefsHelper.readPrefBool(mContext, PREF_SHOW_PHONE_NUMBER);
+            return readBool(PREF_SHOW_PHONE_NUMBER, true);
         }
 
         /**
@@ -474,7 +1634,7 @@ public class CallRecord {
          */
         public Builder setShowPhoneNumber(boolean showNumber) {
 
-            PrefsHelper.writePrefBool(mContext, PREF_SHOW_PHONE_NUMBER, showNumber);
+            mValues.put(PREF_SHOW_PHONE_NUMBER, showNumber);
 
             return this;
         }
@@ -488,10 +1648,156 @@ public class CallRecord {
          */
         public Builder setRecordDirPath(String recordDirPath) {
 
-            PrefsHelper.writePrefString(mContext, PREF_DIR_PATH, recordDirPath);
+            mValues.put(PREF_DIR_PATH, recordDirPath);
+
+            return this;
+        }
+
+
+        /**
+         * Необходим для проверки, подготавливается ли запись заранее
+         *
+         * @return true - запись подготавливается во время входящего звонка
+         */
+        public boolean isPreArm() {
+
+            return readBool(PREF_PRE_ARM, false);
+        }
+
+        /**
+         * Необходим для включения заранее подготовленной записи.
+         * Рекордер и файл создаются во время входящего звонка,
+         * а при ответе вызывается только start()
+         *
+         * @param preArm true - включить, false - выключить
+         * @return экземляр билдера
+         */
+        public Builder setPreArm(boolean preArm) {
+
+            mValues.put(PREF_PRE_ARM, preArm);
+
+            return this;
+        }
+
+        /**
+         * Необходим для получения движка захвата звука
+         *
+         * @return ENGINE_MEDIA_RECORDER или ENGINE_AUDIO_RECORD
+         */
+        public int getCaptureEngine() {
+
+            return readInt(PREF_CAPTURE_ENGINE, ENGINE_MEDIA_RECORDER);
+        }
+
+        /**
+         * Необходим для задания движка захвата звука
+         *
+         * @param captureEngine ENGINE_MEDIA_RECORDER - MediaRecorder (по умолчанию),
+         *                      ENGINE_AUDIO_RECORD - PCM через AudioRecord в WAV
+         * @return экземляр билдера
+         */
+        public Builder setCaptureEngine(int captureEngine) {
+
+            mValues.put(PREF_CAPTURE_ENGINE, captureEngine);
+
+            return this;
+        }
+
+        /**
+         * Необходим для задания максимальной длительности сегмента записи.
+         * По достижении длительности файл закрывается, а запись продолжается в следующий
+         *
+         * @param maxDurationMs длительность в миллисекундах, 0 - запись одним файлом
+         * @return экземляр билдера
+         */
+        public Builder setMaxSegmentDuration(int maxDurationMs) {
+
+            mValues.put(PREF_SEGMENT_DURATION, maxDurationMs);
+
+            return this;
+        }
+
+        /**
+         * Необходим для задания максимального размера сегмента записи
+         *
+         * @param maxBytes размер в байтах, 0 - запись одним файлом
+         * @return экземляр билдера
+         */
+        public Builder setMaxSegmentSize(long maxBytes) {
+
+            mValues.put(PREF_SEGMENT_SIZE, maxBytes);
+
+            return this;
+        }
+
+        /**
+         * Необходим для ограничения места, занимаемого записями.
+         * При нарушении ограничений самые старые записи удаляются в фоне
+         *
+         * @param quota ограничения, StorageQuota.NONE - без ограничений
+         * @return экземляр билдера
+         */
+        public Builder setStorageQuota(StorageQuota quota) {
+
+            mValues.put(PREF_QUOTA_MAX_BYTES, quota.getMaxBytes());
+            mValues.put(PREF_QUOTA_MAX_AGE, quota.getMaxAgeMs());
+            mValues.put(PREF_QUOTA_MIN_FREE, quota.getMinFreeBytes());
+
+            return this;
+        }
+
+        /**
+         * Необходим для задания раскладки директории записей.
+         * Записи, уже лежащие в директории, переносятся в новую раскладку в фоне
+         *
+         * @param layout LAYOUT_FLAT - одна директория (по умолчанию),
+         *               LAYOUT_DATE - поддиректории yyyy/MM/dd,
+         *               LAYOUT_HASH - 256 поддиректорий по хешу имени
+         * @return экземляр билдера
+         */
+        public Builder setDirectoryLayout(int layout) {
+
+            mValues.put(PREF_DIR_LAYOUT, layout);
+
+            return this;
+        }
+
+        /**
+         * Необходим для включения детектора тишины.
+         * MediaRecorder опрашивается по getMaxAmplitude() и отмечает участки тишины
+         * в файле recording.silence, движок AudioRecord вырезает их из записи
+         * и сохраняет в тот же файл их положение.
+         * С ключом шифрования файл участков не пишется, MediaRecorder тишину не отмечает
+         *
+         * @param threshold    уровень сигнала 0..32767, ниже которого звук считается тишиной,
+         *                     0 - детектор выключен (по умолчанию)
+         * @param minSilenceMs длительность тишины, после которой начинается участок, мс
+         * @return экземляр билдера
+         */
+        public Builder setSilenceDetection(int threshold, int minSilenceMs) {
+
+            mValues.put(PREF_SILENCE_THRESHOLD, threshold);
+            mValues.put(PREF_SILENCE_MIN_DURATION, minSilenceMs);
 
             return this;
         }
 
+        /**
+         * Необходим для сохранения пиков волны рядом с записью, в файле recording.peaks.
+         * Файл пишется во время захвата и читается через WaveformPeaks без декодирования звука.
+         * Движок AudioRecord считает минимум и максимум по отсчетам PCM,
+         * MediaRecorder - по getMaxAmplitude(), поэтому его пики симметричны.
+         * С ключом шифрования файл пиков не пишется, он лежал бы рядом с записью открытым
+         *
+         * @param intervalMs длительность одного отсчета на самом подробном уровне, мс,
+         *                   не меньше 10, 0 - файл пиков не пишется (по умолчанию)
+         * @return экземляр билдера
+         */
+        public Builder setWaveformPeaks(int intervalMs) {
+
+            mValues.put(PREF_PEAK_INTERVAL, intervalMs);
+
+            return this;
+        }
     }
 }
@@ -0,0 +1,183 @@
+package com.aykuttasil.callrecord.config;
+
+import com.aykuttasil.callrecord.CallRecord;
+import com.aykuttasil.callrecord.engine.MediaRecorderEngine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Правила выбора профиля кодирования в начале каждого звонка.
+ * Профили перебираются от лучшего к худшему, выбирается первый, запись с которым
+ * за прогнозируемую длительность звонка поместится на носитель с учетом резерва.
+ * При низком заряде без зарядки пропускаются профили AudioRecord и профили
+ * с битрейтом выше заданного. Если не подошел ни один, используется запасной
+ * профиль: запись становится хуже, но не пропадает.
+ */
+
+public final class AdaptivePolicy {
+
+    public static final AdaptivePolicy DEFAULT = new Builder().build();
+
+    private final List<EncodingProfile> profiles;   ///< профили от лучшего к худшему
+    private final EncodingProfile fallbackProfile;  ///< профиль, если не подошел ни один
+    private final long projectedCallMs;             ///< прогноз длительности звонка, если история короче, мс
+    private final long reserveBytes;                ///< свободное место, которое должно остаться после записи, байт
+    private final int lowBatteryPercent;            ///< заряд, ниже которого батарея считается разряженной, %
+    private final int lowBatteryMaxBitRate;         ///< максимальный битрейт при разряженной батарее, бит/с
+
+    private AdaptivePolicy(Builder builder) {
+
+        this.profiles = Collections.unmodifiableList(builder.profiles.isEmpty()
+                ? Arrays.asList(EncodingProfile.SPEECH_AAC, EncodingProfile.SPEECH_WIDEBAND, EncodingProfile.SPEECH_NARROWBAND)
+                : new ArrayList<>(builder.profiles));
+        this.fallbackProfile = builder.fallbackProfile;
+        this.projectedCallMs = builder.projectedCallMs;
+        this.reserveBytes = builder.reserveBytes;
+        this.lowBatteryPercent = builder.lowBatteryPercent;
+        this.lowBatteryMaxBitRate = builder.lowBatteryMaxBitRate;
+    }
+
+    /**
+     * Выбирает профиль для нового звонка
+     * @param freeBytes свободное место на носителе записей, байт
+     * @param batteryPercent заряд батареи 0..100, -1 - неизвестен
+     * @param charging true - если устройство заряжается
+     * @param projectedCallMs прогноз длительности звонка, мс
+     * @param streamableOnly true - если MediaRecorder пишет через шифрование и нужен потоковый формат
+     * @return выбранный профиль, не null
+     */
+    public EncodingProfile select(long freeBytes, int batteryPercent, boolean charging,
+                                  long projectedCallMs, boolean streamableOnly) {
+
+        boolean lowBattery = !charging && batteryPercent >= 0 && batteryPercent <= lowBatteryPercent;
+        long available = freeBytes - reserveBytes;
+
+        for (EncodingProfile profile : profiles) {
+
+            if (streamableOnly && profile.getCaptureEngine() == CallRecord.ENGINE_MEDIA_RECORDER
+                    && !MediaRecorderEngine.isStreamable(profile.getOutputFormat())) {
+                continue;
+            }
+
+            if (lowBattery && !isLowPower(profile)) {
+                continue;
+            }
+
+            if (StorageEstimator.bytesFor(profile, projectedCallMs) <= available) {
+                return profile;
+            }
+        }
+
+        return fallbackProfile;
+    }
+
+    /**
+     * @param historyMs самый длинный из прошлых звонков, мс, 0 - истории нет
+     * @return прогноз длительности звонка, мс
+     */
+    public long projectCallMs(long historyMs) {
+        return Math.max(projectedCallMs, historyMs);
+    }
+
+    /**
+     * Профили MediaRecorder кодируют в медиасервере, часто аппаратно,
+     * а низкий битрейт уменьшает запись на флеш-память
+     */
+    private boolean isLowPower(EncodingProfile profile) {
+
+        int bitRate = profile.getBitRate() > 0 ? profile.getBitRate() : StorageEstimator.DEFAULT_BIT_RATE;
+
+        return profile.getCaptureEngine() == CallRecord.ENGINE_MEDIA_RECORDER && bitRate <= lowBatteryMaxBitRate;
+    }
+
+    public List<EncodingProfile> getProfiles() {
+        return profiles;
+    }
+
+    public EncodingProfile getFallbackProfile() {
+        return fallbackProfile;
+    }
+
+    public long getProjectedCallMs() {
+        return projectedCallMs;
+    }
+
+    public long getReserveBytes() {
+        return reserveBytes;
+    }
+
+    public int getLowBatteryPercent() {
+        return lowBatteryPercent;
+    }
+
+    public int getLowBatteryMaxBitRate() {
+        return lowBatteryMaxBitRate;
+    }
+
+    /**
+     * Необходим для создания правил по частям
+     */
+    public static class Builder {
+
+        private final List<EncodingProfile> profiles = new ArrayList<>();
+        private EncodingProfile fallbackProfile = EncodingProfile.AMR_NB_LOW;
+        private long projectedCallMs = 30 * 60 * 1000;
+        private long reserveBytes = 50 * 1024 * 1024;
+        private int lowBatteryPercent = 15;
+        private int lowBatteryMaxBitRate = 12200;
+
+        /**
+         * Добавляет профиль в конец списка, первый добавленный - самый предпочтительный.
+         * Если не добавлено ни одного: SPEECH_AAC, SPEECH_WIDEBAND, SPEECH_NARROWBAND
+         * @param profile профиль кодирования
+         * @return экземляр билдера
+         */
+        public Builder addProfile(EncodingProfile profile) {
+            this.profiles.add(profile);
+            return this;
+        }
+
+        public Builder setFallbackProfile(EncodingProfile fallbackProfile) {
+            this.fallbackProfile = fallbackProfile;
+            return this;
+        }
+
+        public Builder setProjectedCallMs(long projectedCallMs) {
+            this.projectedCallMs = projectedCallMs;
+            return this;
+        }
+
+        public Builder setReserveBytes(long reserveBytes) {
+            this.reserveBytes = reserveBytes;
+            return this;
+        }
+
+        public Builder setLowBattery(int percent, int maxBitRate) {
+            this.lowBatteryPercent = percent;
+            this.lowBatteryMaxBitRate = maxBitRate;
+            return this;
+        }
+
+        /**
+         * @return неизменяемые правила
+         * @throws IllegalArgumentException если параметры противоречивы
+         */
+        public AdaptivePolicy build() {
+
+            if (fallbackProfile == null || projectedCallMs < 0 || reserveBytes < 0
+                    || lowBatteryPercent < 0 || lowBatteryPercent > 100 || lowBatteryMaxBitRate < 0) {
+                throw new IllegalArgumentException("invalid adaptive policy");
+            }
+
+            return new AdaptivePolicy(this);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.aykuttasil.callrecord.config;
+
+import android.media.MediaRecorder;
+
+import com.aykuttasil.callrecord.CallRecord;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Неизменяемый набор параметров кодирования: движок, формат, кодек,
+ * битрейт, частота дискретизации и количество каналов.
+ * Готовые профили подобраны для речи; 0 в числовом параметре означает
+ * значение по умолчанию устройства.
+ */
+
+public final class EncodingProfile {
+
+    /**
+     * AMR-NB 4.75 кбит/с, самый маленький файл, разборчивость на пределе
+     */
+    public static final EncodingProfile AMR_NB_LOW = new EncodingProfile("amr-nb-low",
+            CallRecord.ENGINE_MEDIA_RECORDER, MediaRecorder.OutputFormat.AMR_NB, MediaRecorder.AudioEncoder.AMR_NB,
+            4750, 8000, 1);
+
+    /**
+     * AMR-NB 12.2 кбит/с, качество обычного телефонного разговора
+     */
+    public static final EncodingProfile SPEECH_NARROWBAND = new EncodingProfile("speech-narrowband",
+            CallRecord.ENGINE_MEDIA_RECORDER, MediaRecorder.OutputFormat.AMR_NB, MediaRecorder.AudioEncoder.AMR_NB,
+            12200, 8000, 1);
+
+    /**
+     * AMR-WB 12.65 кбит/с, полоса 50..7000 Гц, как у HD Voice
+     */
+    public static final EncodingProfile SPEECH_WIDEBAND = new EncodingProfile("speech-wideband",
+            CallRecord.ENGINE_MEDIA_RECORDER, MediaRecorder.OutputFormat.AMR_WB, MediaRecorder.AudioEncoder.AMR_WB,
+            12650, 16000, 1);
+
+    /**
+     * AAC-LC 32 кбит/с, 16 кГц, моно в MPEG-4, воспроизводится любым плеером
+     */
+    public static final EncodingProfile SPEECH_AAC = new EncodingProfile("speech-aac",
+            CallRecord.ENGINE_MEDIA_RECORDER, MediaRecorder.OutputFormat.MPEG_4, MediaRecorder.AudioEncoder.AAC,
+            32000, 16000, 1);
+
+    /**
+     * AAC-LC 24 кбит/с, 16 кГц, моно в ADTS. Потоковый формат: пишется через
+     * шифрование и остается читаемым после обрыва записи
+     */
+    public static final EncodingProfile SPEECH_AAC_ADTS = new EncodingProfile("speech-aac-adts",
+            CallRecord.ENGINE_MEDIA_RECORDER, MediaRecorder.OutputFormat.AAC_ADTS, MediaRecorder.AudioEncoder.AAC,
+            24000, 16000, 1);
+
+    /**
+     * PCM 16 бит, 16 кГц, моно в WAV через AudioRecord, без потерь
+     */
+    public static final EncodingProfile SPEECH_PCM = new EncodingProfile("speech-pcm",
+            CallRecord.ENGINE_AUDIO_RECORD, MediaRecorder.OutputFormat.DEFAULT, MediaRecorder.AudioEncoder.DEFAULT,
+            0, 16000, 1);
+
+    private final String name;          ///< название профиля
+    private final int captureEngine;    ///< движок захвата звука
+    private final int outputFormat;     ///< формат выходного файла
+    private final int audioEncoder;     ///< аудио кодек
+    private final int bitRate;          ///< битрейт кодека, бит/с, 0 - по умолчанию
+    private final int samplingRate;     ///< частота дискретизации, Гц, 0 - по умолчанию
+    private final int channels;         ///< количество каналов, 0 - по умолчанию
+
+    /**
+     * Конструктор
+     * @param name название профиля
+     * @param captureEngine движок захвата, CallRecord.ENGINE_MEDIA_RECORDER или CallRecord.ENGINE_AUDIO_RECORD
+     * @param outputFormat формат выходного файла, как в MediaRecorder.OutputFormat
+     * @param audioEncoder аудио кодек, как в MediaRecorder.AudioEncoder
+     * @param bitRate битрейт кодека, бит/с, 0 - по умолчанию
+     * @param samplingRate частота дискретизации, Гц, 0 - по умолчанию
+     * @param channels количество каналов, 0 - по умолчанию
+     */
+    public EncodingProfile(String name, int captureEngine, int outputFormat, int audioEncoder,
+                           int bitRate, int samplingRate, int channels) {
+
+        if (bitRate < 0 || samplingRate < 0 || channels < 0 || channels > 2) {
+            throw new IllegalArgumentException("Invalid encoding parameters: " + bitRate + " bps, "
+                    + samplingRate + " Hz, " + channels + " ch");
+        }
+
+        this.name = name;
+        this.captureEngine = captureEngine;
+        this.outputFormat = outputFormat;
+        this.audioEncoder = audioEncoder;
+        this.bitRate = bitRate;
+        this.samplingRate = samplingRate;
+        this.channels = channels;
+    }
+
+    /**
+     * Собирает профиль из снимка настроек
+     * @param config настройки записи
+     * @return профиль с параметрами кодирования из настроек
+     */
+    public static EncodingProfile of(RecordingConfig config) {
+
+        return new EncodingProfile("custom", config.getCaptureEngine(), config.getOutputFormat(),
+                config.getAudioEncoder(), config.getBitRate(), config.getSamplingRate(), config.getChannels());
+    }
+
+    /**
+     * @return ожидаемый объем записи в минуту, байт
+     */
+    public long getBytesPerMinute() {
+        return StorageEstimator.bytesPerMinute(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCaptureEngine() {
+        return captureEngine;
+    }
+
+    public int getOutputFormat() {
+        return outputFormat;
+    }
+
+    public int getAudioEncoder() {
+        return audioEncoder;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
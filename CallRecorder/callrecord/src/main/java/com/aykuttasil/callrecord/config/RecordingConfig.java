@@ -0,0 +1,517 @@
+package com.aykuttasil.callrecord.config;
+
+import android.content.SharedPreferences;
+import android.media.MediaRecorder;
+
+import com.aykuttasil.callrecord.CallRecord;
+import com.aykuttasil.callrecord.storage.StorageQuota;
+
+import java.io.File;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Неизменяемый снимок настроек записи.
+ * Собирается один раз из SharedPreferences и пересобирается только
+ * при изменении настроек, поэтому на старте звонка не требуется
+ * ни одного обращения к SharedPreferences.
+ */
+
+public final class RecordingConfig {
+
+    private final boolean saveFile;         ///< сохранять ли файлы записи
+    private final String fileName;          ///< имя файла записи
+    private final String dirName;           ///< имя директории
+    private final String dirPath;           ///< путь до директории
+    private final boolean showSeed;         ///< добавлять ли направление звонка в имя файла
+    private final boolean showPhoneNumber;  ///< добавлять ли номер телефона в имя файла
+    private final int audioSource;          ///< источник записи
+    private final int audioEncoder;         ///< аудио кодек
+    private final int outputFormat;         ///< формат выходного файла
+    private final boolean preArm;           ///< подготавливать ли запись во время звонка
+    private final int captureEngine;        ///< движок захвата звука
+    private final int segmentDurationMs;    ///< максимальная длительность сегмента, мс, 0 - без ограничения
+    private final long segmentBytes;        ///< максимальный размер сегмента, байт, 0 - без ограничения
+    private final long quotaMaxBytes;       ///< максимальный объем записей, байт, 0 - без ограничения
+    private final long quotaMaxAgeMs;       ///< максимальный возраст записи, мс, 0 - без ограничения
+    private final long quotaMinFreeBytes;   ///< минимальное свободное место, байт, 0 - без ограничения
+    private final StorageQuota storageQuota; ///< ограничения на хранение записей
+    private final int dirLayout;            ///< раскладка директории записей
+    private final int silenceThreshold;     ///< уровень тишины 0..32767, 0 - без детектора тишины
+    private final int silenceMinMs;         ///< длительность тишины до начала участка, мс
+    private final int bitRate;              ///< битрейт кодека, бит/с, 0 - по умолчанию устройства
+    private final int samplingRate;         ///< частота дискретизации, Гц, 0 - по умолчанию
+    private final int channels;             ///< количество каналов, 0 - по умолчанию
+    private final int peakIntervalMs;       ///< длительность отсчета пиков волны, мс, 0 - без файла пиков
+    private final String fileSuffix;        ///< расширение файла, зависит от формата
+
+    /**
+     * Конструктор
+     *
+     * @param builder билдер с заданными значениями
+     */
+    private RecordingConfig(Builder builder) {
+
+        this.saveFile = builder.saveFile;
+        this.fileName = builder.fileName;
+        this.dirName = builder.dirName;
+        this.dirPath = builder.dirPath;
+        this.showSeed = builder.showSeed;
+        this.showPhoneNumber = builder.showPhoneNumber;
+        this.audioSource = builder.audioSource;
+        this.audioEncoder = builder.audioEncoder;
+        this.outputFormat = builder.outputFormat;
+        this.preArm = builder.preArm;
+        this.captureEngine = builder.captureEngine;
+        this.segmentDurationMs = builder.segmentDurationMs;
+        this.segmentBytes = builder.segmentBytes;
+        this.quotaMaxBytes = builder.quotaMaxBytes;
+        this.quotaMaxAgeMs = builder.quotaMaxAgeMs;
+        this.quotaMinFreeBytes = builder.quotaMinFreeBytes;
+        this.storageQuota = new StorageQuota(quotaMaxBytes, quotaMaxAgeMs, quotaMinFreeBytes);
+        this.dirLayout = builder.dirLayout;
+        this.silenceThreshold = builder.silenceThreshold;
+        this.silenceMinMs = builder.silenceMinMs;
+        this.bitRate = builder.bitRate;
+        this.samplingRate = builder.samplingRate;
+        this.channels = builder.channels;
+        this.peakIntervalMs = builder.peakIntervalMs;
+        this.fileSuffix = captureEngine == CallRecord.ENGINE_AUDIO_RECORD ? ".wav" : suffixFor(outputFormat);
+    }
+
+    /**
+     * Считывает все настройки записи из SharedPreferences
+     * Значения по умолчанию совпадают со значениями PrefsHelper
+     *
+     * @param preferences настройки приложения
+     * @return снимок настроек записи
+     */
+    public static RecordingConfig fromPreferences(SharedPreferences preferences) {
+
+        return new Builder()
+                .setSaveFile(preferences.getBoolean(CallRecord.PREF_SAVE_FILE, false))
+                .setFileName(preferences.getString(CallRecord.PREF_FILE_NAME, null))
+                .setDirName(preferences.getString(CallRecord.PREF_DIR_NAME, null))
+                .setDirPath(preferences.getString(CallRecord.PREF_DIR_PATH, null))
+                .setShowSeed(preferences.getBoolean(CallRecord.PREF_SHOW_SEED, false))
+                .setShowPhoneNumber(preferences.getBoolean(CallRecord.PREF_SHOW_PHONE_NUMBER, false))
+                .setAudioSource(preferences.getInt(CallRecord.PREF_AUDIO_SOURCE, 0))
+                .setAudioEncoder(preferences.getInt(CallRecord.PREF_AUDIO_ENCODER, 0))
+                .setOutputFormat(preferences.getInt(CallRecord.PREF_OUTPUT_FORMAT, 0))
+                .setPreArm(preferences.getBoolean(CallRecord.PREF_PRE_ARM, false))
+                .setCaptureEngine(preferences.getInt(CallRecord.PREF_CAPTURE_ENGINE, CallRecord.ENGINE_MEDIA_RECORDER))
+                .setSegmentDurationMs(preferences.getInt(CallRecord.PREF_SEGMENT_DURATION, 0))
+                .setSegmentBytes(preferences.getLong(CallRecord.PREF_SEGMENT_SIZE, 0))
+                .setQuotaMaxBytes(preferences.getLong(CallRecord.PREF_QUOTA_MAX_BYTES, 0))
+                .setQuotaMaxAgeMs(preferences.getLong(CallRecord.PREF_QUOTA_MAX_AGE, 0))
+                .setQuotaMinFreeBytes(preferences.getLong(CallRecord.PREF_QUOTA_MIN_FREE, 0))
+                .setDirLayout(preferences.getInt(CallRecord.PREF_DIR_LAYOUT, CallRecord.LAYOUT_FLAT))
+                .setSilenceThreshold(preferences.getInt(CallRecord.PREF_SILENCE_THRESHOLD, 0))
+                .setSilenceMinMs(preferences.getInt(CallRecord.PREF_SILENCE_MIN_DURATION, CallRecord.DEFAULT_SILENCE_MIN_MS))
+                .setBitRate(preferences.getInt(CallRecord.PREF_BIT_RATE, 0))
+                .setSamplingRate(preferences.getInt(CallRecord.PREF_SAMPLING_RATE, 0))
+                .setChannels(preferences.getInt(CallRecord.PREF_CHANNELS, 0))
+                .setPeakIntervalMs(preferences.getInt(CallRecord.PREF_PEAK_INTERVAL, 0))
+                .build();
+    }
+
+    /**
+     * Необходим для проверки, относится ли ключ к настройкам записи
+     *
+     * @param key название параметра
+     * @return true - если изменение ключа требует пересборки снимка
+     */
+    public static boolean isRecordingKey(String key) {
+
+        return CallRecord.PREF_SAVE_FILE.equals(key)
+                || CallRecord.PREF_FILE_NAME.equals(key)
+                || CallRecord.PREF_DIR_NAME.equals(key)
+                || CallRecord.PREF_DIR_PATH.equals(key)
+                || CallRecord.PREF_SHOW_SEED.equals(key)
+                || CallRecord.PREF_SHOW_PHONE_NUMBER.equals(key)
+                || CallRecord.PREF_AUDIO_SOURCE.equals(key)
+                || CallRecord.PREF_AUDIO_ENCODER.equals(key)
+                || CallRecord.PREF_OUTPUT_FORMAT.equals(key)
+                || CallRecord.PREF_PRE_ARM.equals(key)
+                || CallRecord.PREF_CAPTURE_ENGINE.equals(key)
+                || CallRecord.PREF_SEGMENT_DURATION.equals(key)
+                || CallRecord.PREF_SEGMENT_SIZE.equals(key)
+                || CallRecord.PREF_QUOTA_MAX_BYTES.equals(key)
+                || CallRecord.PREF_QUOTA_MAX_AGE.equals(key)
+                || CallRecord.PREF_QUOTA_MIN_FREE.equals(key)
+                || CallRecord.PREF_DIR_LAYOUT.equals(key)
+                || CallRecord.PREF_SILENCE_THRESHOLD.equals(key)
+                || CallRecord.PREF_SILENCE_MIN_DURATION.equals(key)
+                || CallRecord.PREF_BIT_RATE.equals(key)
+                || CallRecord.PREF_SAMPLING_RATE.equals(key)
+                || CallRecord.PREF_CHANNELS.equals(key)
+                || CallRecord.PREF_PEAK_INTERVAL.equals(key);
+    }
+
+    /**
+     * Определяет расширение файла по формату записи
+     *
+     * @param outputFormat формат выходного файла
+     * @return расширение файла
+     */
+    public static String suffixFor(int outputFormat) {
+
+        switch (outputFormat) {
+            case MediaRecorder.OutputFormat.AMR_NB:
+            case MediaRecorder.OutputFormat.AMR_WB:
+                return ".amr";
+            case MediaRecorder.OutputFormat.MPEG_4:
+                return ".mp4";
+            case MediaRecorder.OutputFormat.THREE_GPP:
+                return ".3gp";
+            case MediaRecorder.OutputFormat.AAC_ADTS:
+                return ".aac";
+            default:
+                return ".amr";
+        }
+    }
+
+    /**
+     * @return директория хранения записей
+     */
+    public File getRecordDir() {
+        return new File(dirPath + "/" + dirName);
+    }
+
+    public boolean isSaveFile() {
+        return saveFile;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getDirName() {
+        return dirName;
+    }
+
+    public String getDirPath() {
+        return dirPath;
+    }
+
+    public boolean isShowSeed() {
+        return showSeed;
+    }
+
+    public boolean isShowPhoneNumber() {
+        return showPhoneNumber;
+    }
+
+    public int getAudioSource() {
+        return audioSource;
+    }
+
+    public int getAudioEncoder() {
+        return audioEncoder;
+    }
+
+    public int getOutputFormat() {
+        return outputFormat;
+    }
+
+    public String getFileSuffix() {
+        return fileSuffix;
+    }
+
+    public boolean isPreArm() {
+        return preArm;
+    }
+
+    public int getCaptureEngine() {
+        return captureEngine;
+    }
+
+    public int getSegmentDurationMs() {
+        return segmentDurationMs;
+    }
+
+    public long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * @return true - если запись делится на сегменты
+     */
+    public boolean isSegmented() {
+        return segmentDurationMs > 0 || segmentBytes > 0;
+    }
+
+    public long getQuotaMaxBytes() {
+        return quotaMaxBytes;
+    }
+
+    public long getQuotaMaxAgeMs() {
+        return quotaMaxAgeMs;
+    }
+
+    public long getQuotaMinFreeBytes() {
+        return quotaMinFreeBytes;
+    }
+
+    public StorageQuota getStorageQuota() {
+        return storageQuota;
+    }
+
+    public int getDirLayout() {
+        return dirLayout;
+    }
+
+    public int getSilenceThreshold() {
+        return silenceThreshold;
+    }
+
+    public int getSilenceMinMs() {
+        return silenceMinMs;
+    }
+
+    /**
+     * @return true - если включен детектор тишины
+     */
+    public boolean isSilenceDetection() {
+        return silenceThreshold > 0;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getPeakIntervalMs() {
+        return peakIntervalMs;
+    }
+
+    /**
+     * @return true - если рядом с записью сохраняются пики волны
+     */
+    public boolean isPeakSidecar() {
+        return peakIntervalMs > 0;
+    }
+
+    /**
+     * Необходим для записи звонка с профилем, выбранным при его начале
+     *
+     * @param profile профиль кодирования
+     * @return снимок с теми же настройками и параметрами кодирования профиля
+     */
+    public RecordingConfig withProfile(EncodingProfile profile) {
+        return new Builder(this).setEncodingProfile(profile).build();
+    }
+
+    /**
+     * Необходим для создания снимка настроек по частям
+     */
+    public static class Builder {
+
+        private boolean saveFile;
+        private String fileName;
+        private String dirName;
+        private String dirPath;
+        private boolean showSeed;
+        private boolean showPhoneNumber;
+        private int audioSource;
+        private int audioEncoder;
+        private int outputFormat;
+        private boolean preArm;
+        private int captureEngine;
+        private int segmentDurationMs;
+        private long segmentBytes;
+        private long quotaMaxBytes;
+        private long quotaMaxAgeMs;
+        private long quotaMinFreeBytes;
+        private int dirLayout;
+        private int silenceThreshold;
+        private int silenceMinMs;
+        private int bitRate;
+        private int samplingRate;
+        private int channels;
+        private int peakIntervalMs;
+
+        public Builder() {
+        }
+
+        /**
+         * Конструктор для изменения части настроек готового снимка
+         * @param config исходный снимок
+         */
+        public Builder(RecordingConfig config) {
+
+            this.saveFile = config.saveFile;
+            this.fileName = config.fileName;
+            this.dirName = config.dirName;
+            this.dirPath = config.dirPath;
+            this.showSeed = config.showSeed;
+            this.showPhoneNumber = config.showPhoneNumber;
+            this.audioSource = config.audioSource;
+            this.audioEncoder = config.audioEncoder;
+            this.outputFormat = config.outputFormat;
+            this.preArm = config.preArm;
+            this.captureEngine = config.captureEngine;
+            this.segmentDurationMs = config.segmentDurationMs;
+            this.segmentBytes = config.segmentBytes;
+            this.quotaMaxBytes = config.quotaMaxBytes;
+            this.quotaMaxAgeMs = config.quotaMaxAgeMs;
+            this.quotaMinFreeBytes = config.quotaMinFreeBytes;
+            this.dirLayout = config.dirLayout;
+            this.silenceThreshold = config.silenceThreshold;
+            this.silenceMinMs = config.silenceMinMs;
+            this.bitRate = config.bitRate;
+            this.samplingRate = config.samplingRate;
+            this.channels = config.channels;
+            this.peakIntervalMs = config.peakIntervalMs;
+        }
+
+        /**
+         * Задает параметры кодирования из профиля
+         * @param profile профиль кодирования
+         * @return экземляр билдера
+         */
+        public Builder setEncodingProfile(EncodingProfile profile) {
+
+            this.captureEngine = profile.getCaptureEngine();
+            this.outputFormat = profile.getOutputFormat();
+            this.audioEncoder = profile.getAudioEncoder();
+            this.bitRate = profile.getBitRate();
+            this.samplingRate = profile.getSamplingRate();
+            this.channels = profile.getChannels();
+
+            return this;
+        }
+
+        public Builder setSaveFile(boolean saveFile) {
+            this.saveFile = saveFile;
+            return this;
+        }
+
+        public Builder setFileName(String fileName) {
+            this.fileName = fileName;
+            return this;
+        }
+
+        public Builder setDirName(String dirName) {
+            this.dirName = dirName;
+            return this;
+        }
+
+        public Builder setDirPath(String dirPath) {
+            this.dirPath = dirPath;
+            return this;
+        }
+
+        public Builder setShowSeed(boolean showSeed) {
+            this.showSeed = showSeed;
+            return this;
+        }
+
+        public Builder setShowPhoneNumber(boolean showPhoneNumber) {
+            this.showPhoneNumber = showPhoneNumber;
+            return this;
+        }
+
+        public Builder setAudioSource(int audioSource) {
+            this.audioSource = audioSource;
+            return this;
+        }
+
+        public Builder setAudioEncoder(int audioEncoder) {
+            this.audioEncoder = audioEncoder;
+            return this;
+        }
+
+        public Builder setOutputFormat(int outputFormat) {
+            this.outputFormat = outputFormat;
+            return this;
+        }
+
+        public Builder setPreArm(boolean preArm) {
+            this.preArm = preArm;
+            return this;
+        }
+
+        public Builder setCaptureEngine(int captureEngine) {
+            this.captureEngine = captureEngine;
+            return this;
+        }
+
+        public Builder setSegmentDurationMs(int segmentDurationMs) {
+            this.segmentDurationMs = segmentDurationMs;
+            return this;
+        }
+
+        public Builder setSegmentBytes(long segmentBytes) {
+            this.segmentBytes = segmentBytes;
+            return this;
+        }
+
+        public Builder setQuotaMaxBytes(long quotaMaxBytes) {
+            this.quotaMaxBytes = quotaMaxBytes;
+            return this;
+        }
+
+        public Builder setQuotaMaxAgeMs(long quotaMaxAgeMs) {
+            this.quotaMaxAgeMs = quotaMaxAgeMs;
+            return this;
+        }
+
+        public Builder setQuotaMinFreeBytes(long quotaMinFreeBytes) {
+            this.quotaMinFreeBytes = quotaMinFreeBytes;
+            return this;
+        }
+
+        public Builder setDirLayout(int dirLayout) {
+            this.dirLayout = dirLayout;
+            return this;
+        }
+
+        public Builder setSilenceThreshold(int silenceThreshold) {
+            this.silenceThreshold = silenceThreshold;
+            return this;
+        }
+
+        public Builder setSilenceMinMs(int silenceMinMs) {
+            this.silenceMinMs = silenceMinMs;
+            return this;
+        }
+
+        public Builder setBitRate(int bitRate) {
+            this.bitRate = bitRate;
+            return this;
+        }
+
+        public Builder setSamplingRate(int samplingRate) {
+            this.samplingRate = samplingRate;
+            return this;
+        }
+
+        public Builder setChannels(int channels) {
+            this.channels = channels;
+            return this;
+        }
+
+        public Builder setPeakIntervalMs(int peakIntervalMs) {
+            this.peakIntervalMs = peakIntervalMs;
+            return this;
+        }
+
+        /**
+         * @return неизменяемый снимок настроек
+         */
+        public RecordingConfig build() {
+            return new RecordingConfig(this);
+        }
+    }
+}
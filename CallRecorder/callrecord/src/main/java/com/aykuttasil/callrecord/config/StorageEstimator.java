@@ -0,0 +1,144 @@
+package com.aykuttasil.callrecord.config;
+
+import android.media.MediaRecorder;
+
+import com.aykuttasil.callrecord.CallRecord;
+import com.aykuttasil.callrecord.engine.AudioRecordEngine;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Оценивает объем записи по параметрам кодирования, без записи пробного файла.
+ * AMR считается по размеру кадра выбранного режима, AAC - по битрейту и накладным
+ * расходам контейнера на кадр, WAV - точно. Незаданные параметры заменяются
+ * значениями по умолчанию MediaRecorder: 8000 Гц, моно, 12200 бит/с.
+ * Заголовок файла и вырезанная тишина не учитываются.
+ */
+
+public final class StorageEstimator {
+
+    public static final int DEFAULT_SAMPLING_RATE = 8000;   ///< частота MediaRecorder по умолчанию, Гц
+    public static final int DEFAULT_BIT_RATE = 12200;       ///< битрейт MediaRecorder по умолчанию, бит/с
+
+    private static final int AMR_FRAMES_PER_SECOND = 50;    ///< кадр AMR - 20 мс
+    private static final int ADTS_HEADER_BYTES = 7;         ///< заголовок ADTS без CRC перед каждым кадром AAC
+    private static final int SAMPLE_TABLE_BYTES = 4;        ///< запись о размере кадра в таблице stsz MPEG-4/3GPP
+
+    private static final int[] AMR_NB_MODES = {4750, 5150, 5900, 6700, 7400, 7950, 10200, 12200};
+    private static final int[] AMR_NB_FRAME_BYTES = {13, 14, 16, 18, 20, 21, 27, 32};
+    private static final int[] AMR_WB_MODES = {6600, 8850, 12650, 14250, 15850, 18250, 19850, 23050, 23850};
+    private static final int[] AMR_WB_FRAME_BYTES = {18, 24, 33, 37, 41, 47, 51, 59, 61};
+
+    private StorageEstimator() {
+    }
+
+    /**
+     * @param config настройки записи
+     * @return ожидаемый объем записи в минуту, байт
+     */
+    public static long bytesPerMinute(RecordingConfig config) {
+        return bytesPerMinute(EncodingProfile.of(config));
+    }
+
+    /**
+     * @param profile параметры кодирования
+     * @return ожидаемый объем записи в минуту, байт
+     */
+    public static long bytesPerMinute(EncodingProfile profile) {
+
+        if (profile.getCaptureEngine() == CallRecord.ENGINE_AUDIO_RECORD) {
+
+            // движок AudioRecord пишет 16-битный PCM со своими значениями по умолчанию
+            int pcmRate = profile.getSamplingRate() > 0 ? profile.getSamplingRate() : AudioRecordEngine.DEFAULT_SAMPLE_RATE;
+            int pcmChannels = profile.getChannels() > 0 ? profile.getChannels() : AudioRecordEngine.DEFAULT_CHANNELS;
+
+            return 60L * pcmRate * pcmChannels * 2;
+        }
+
+        int samplingRate = profile.getSamplingRate() > 0 ? profile.getSamplingRate() : DEFAULT_SAMPLING_RATE;
+        int bitRate = profile.getBitRate() > 0 ? profile.getBitRate() : DEFAULT_BIT_RATE;
+
+        boolean sampleTable = profile.getOutputFormat() == MediaRecorder.OutputFormat.MPEG_4
+                || profile.getOutputFormat() == MediaRecorder.OutputFormat.THREE_GPP
+                || profile.getOutputFormat() == MediaRecorder.OutputFormat.DEFAULT;
+
+        switch (profile.getAudioEncoder()) {
+
+            case MediaRecorder.AudioEncoder.AAC:
+            case MediaRecorder.AudioEncoder.HE_AAC:
+            case MediaRecorder.AudioEncoder.AAC_ELD: {
+
+                long framesPerMinute = 60L * samplingRate / aacFrameSamples(profile.getAudioEncoder());
+                long frameOverhead = profile.getOutputFormat() == MediaRecorder.OutputFormat.AAC_ADTS
+                        ? ADTS_HEADER_BYTES : sampleTable ? SAMPLE_TABLE_BYTES : 0;
+
+                return 60L * bitRate / 8 + framesPerMinute * frameOverhead;
+            }
+
+            case MediaRecorder.AudioEncoder.AMR_WB:
+                return amrBytesPerMinute(AMR_WB_MODES, AMR_WB_FRAME_BYTES, bitRate, sampleTable);
+
+            case MediaRecorder.AudioEncoder.AMR_NB:
+            case MediaRecorder.AudioEncoder.DEFAULT:
+                return amrBytesPerMinute(AMR_NB_MODES, AMR_NB_FRAME_BYTES, bitRate, sampleTable);
+
+            default:
+                return 60L * bitRate / 8;
+        }
+    }
+
+    /**
+     * @param profile параметры кодирования
+     * @param durationMs длительность записи, мс
+     * @return ожидаемый объем записи, байт
+     */
+    public static long bytesFor(EncodingProfile profile, long durationMs) {
+        return bytesPerMinute(profile) * durationMs / 60000;
+    }
+
+    /**
+     * @param profile параметры кодирования
+     * @param bytes доступный объем, байт
+     * @return сколько минут записи поместится в заданный объем
+     */
+    public static long minutesFor(EncodingProfile profile, long bytes) {
+        return bytes / bytesPerMinute(profile);
+    }
+
+    /**
+     * Кодек AMR работает в ближайшем режиме не ниже запрошенного битрейта
+     */
+    private static long amrBytesPerMinute(int[] modes, int[] frameBytes, int bitRate, boolean sampleTable) {
+
+        int mode = modes.length - 1;
+
+        for (int i = 0; i < modes.length; i++) {
+            if (bitRate <= modes[i]) {
+                mode = i;
+                break;
+            }
+        }
+
+        int bytesPerFrame = frameBytes[mode] + (sampleTable ? SAMPLE_TABLE_BYTES : 0);
+
+        return 60L * AMR_FRAMES_PER_SECOND * bytesPerFrame;
+    }
+
+    /**
+     * @return количество отсчетов в кадре AAC на выходной частоте
+     */
+    private static int aacFrameSamples(int audioEncoder) {
+
+        switch (audioEncoder) {
+            case MediaRecorder.AudioEncoder.HE_AAC:
+                return 2048;    // SBR: базовый кодек работает на половинной частоте
+            case MediaRecorder.AudioEncoder.AAC_ELD:
+                return 512;
+            default:
+                return 1024;
+        }
+    }
+}
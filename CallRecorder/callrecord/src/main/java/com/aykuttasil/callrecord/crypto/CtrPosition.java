@@ -0,0 +1,62 @@
+package com.aykuttasil.callrecord.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Установка шифра AES-CTR на произвольную позицию потока.
+ * Счетчик блока - начальный вектор плюс номер блока,
+ * остаток внутри блока пропускается через шифр вхолостую
+ */
+
+final class CtrPosition {
+
+    static final int BLOCK_BYTES = 16;
+
+    private CtrPosition() {
+    }
+
+    /**
+     * @param cipher шифр AES/CTR/NoPadding
+     * @param key ключ файла
+     * @param iv начальный вектор файла, не изменяется
+     * @param counter буфер под счетчик, BLOCK_BYTES байт
+     * @param scratch буфер не меньше BLOCK_BYTES байт для пропуска остатка блока
+     * @param position позиция в открытом потоке
+     * @throws GeneralSecurityException если шифр не принял ключ
+     */
+    static void seek(Cipher cipher, SecretKey key, byte[] iv, byte[] counter, byte[] scratch, long position)
+            throws GeneralSecurityException {
+
+        long block = position / BLOCK_BYTES;
+        int carry = 0;
+
+        System.arraycopy(iv, 0, counter, 0, BLOCK_BYTES);
+
+        // 128-битное сложение счетчика с номером блока, big-endian
+        for (int i = BLOCK_BYTES - 1; i >= 0; i--) {
+
+            int sum = (counter[i] & 0xff) + (int) (block & 0xff) + carry;
+
+            counter[i] = (byte) sum;
+            carry = sum >>> 8;
+            block >>>= 8;
+        }
+
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+
+        int skip = (int) (position % BLOCK_BYTES);
+
+        if (skip > 0) {
+            cipher.update(scratch, 0, skip, scratch, 0);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.aykuttasil.callrecord.crypto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Чтение открытых данных зашифрованного файла с произвольной позиции,
+ * например для MediaDataSource при воспроизведении или для экспорта.
+ * Последовательное чтение не переставляет шифр. Не потокобезопасен.
+ */
+
+public class DecryptedReader implements Closeable {
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mHeaderBytes;
+
+    private final SecretKey mKey;
+    private final byte[] mIv;
+    private final byte[] mCounter = new byte[CtrPosition.BLOCK_BYTES];
+    private final byte[] mScratch = new byte[CtrPosition.BLOCK_BYTES];
+    private final Cipher mCipher;
+    private final ByteBuffer mIn = ByteBuffer.allocate(RecordingCipher.BUFFER_BYTES);
+
+    private long mCipherPosition = -1;     ///< позиция, на которой стоит шифр, -1 - не инициализирован
+
+    /**
+     * Создается через RecordingCipher.open()
+     */
+    DecryptedReader(RandomAccessFile file, long headerBytes, SecretKey key, byte[] iv) throws IOException {
+
+        try {
+            mCipher = Cipher.getInstance(RecordingCipher.CONTENT_TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(RecordingCipher.CONTENT_TRANSFORMATION + " is not available", e);
+        }
+
+        mFile = file;
+        mChannel = file.getChannel();
+        mHeaderBytes = headerBytes;
+        mKey = key;
+        mIv = iv;
+    }
+
+    /**
+     * @return размер открытых данных
+     * @throws IOException при ошибке чтения
+     */
+    public long size() throws IOException {
+        return Math.max(0, mChannel.size() - mHeaderBytes);
+    }
+
+    /**
+     * Читает открытые данные с позиции, не больше размера внутреннего буфера за вызов
+     * @param dst буфер, заполняется от position до limit
+     * @param position позиция в открытых данных
+     * @return количество прочитанных байт, -1 - позиция за концом данных
+     * @throws IOException при ошибке чтения
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+
+        long size = size();
+
+        if (position >= size) {
+            return -1;
+        }
+
+        int length = (int) Math.min(Math.min(dst.remaining(), mIn.capacity()), size - position);
+
+        mIn.clear();
+        mIn.limit(length);
+
+        while (mIn.hasRemaining()) {
+            if (mChannel.read(mIn, mHeaderBytes + position + mIn.position()) < 0) {
+                break;
+            }
+        }
+
+        mIn.flip();
+
+        int read = mIn.remaining();
+
+        try {
+
+            if (mCipherPosition != position) {
+                CtrPosition.seek(mCipher, mKey, mIv, mCounter, mScratch, position);
+            }
+
+            mCipherPosition = -1;
+            mCipher.update(mIn, dst);
+
+        } catch (GeneralSecurityException e) {
+            throw new IOException("decryption failed", e);
+        }
+
+        mCipherPosition = position + read;
+
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
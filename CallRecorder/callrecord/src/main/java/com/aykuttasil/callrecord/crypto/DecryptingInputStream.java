@@ -0,0 +1,76 @@
+package com.aykuttasil.callrecord.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Поток открытых данных поверх DecryptedReader.
+ * Обертка над массивом вызывающего переиспользуется, пока он читает в тот же массив
+ */
+
+class DecryptingInputStream extends InputStream {
+
+    private final DecryptedReader mReader;
+    private final byte[] mSingle = new byte[1];
+
+    private long mPosition;
+    private byte[] mWrappedArray;
+    private ByteBuffer mWrapped;
+
+    DecryptingInputStream(DecryptedReader reader) {
+        mReader = reader;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(mSingle, 0, 1) < 0 ? -1 : mSingle[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+
+        if (length == 0) {
+            return 0;
+        }
+
+        if (mWrappedArray != buffer) {
+            mWrappedArray = buffer;
+            mWrapped = ByteBuffer.wrap(buffer);
+        }
+
+        mWrapped.limit(offset + length).position(offset);
+
+        int read = mReader.read(mWrapped, mPosition);
+
+        if (read > 0) {
+            mPosition += read;
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+
+        long skipped = Math.max(0, Math.min(count, mReader.size() - mPosition));
+        mPosition += skipped;
+
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, mReader.size() - mPosition));
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+}
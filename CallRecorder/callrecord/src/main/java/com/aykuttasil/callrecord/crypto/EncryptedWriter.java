@@ -0,0 +1,144 @@
+package com.aykuttasil.callrecord.crypto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Запись открытых данных в зашифрованный файл.
+ * Данные шифруются через один переиспользуемый буфер по мере записи,
+ * второго прохода по файлу нет. Запись с позиции, отличной от конца
+ * предыдущей, переставляет счетчик CTR. Не потокобезопасен.
+ */
+
+public class EncryptedWriter implements Closeable {
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final long mHeaderBytes;
+
+    private final SecretKey mKey;
+    private final byte[] mIv;
+    private final byte[] mCounter = new byte[CtrPosition.BLOCK_BYTES];
+    private final byte[] mScratch = new byte[CtrPosition.BLOCK_BYTES];
+    private final Cipher mCipher;
+    private final ByteBuffer mOut = ByteBuffer.allocate(RecordingCipher.BUFFER_BYTES);
+
+    private long mCipherPosition = -1;     ///< позиция, на которой стоит шифр, -1 - не инициализирован
+    private long mSize;
+
+    /**
+     * Создается через RecordingCipher.create()
+     */
+    EncryptedWriter(File file, ByteBuffer header, SecretKey key, byte[] iv) throws IOException {
+
+        mKey = key;
+        mIv = iv;
+
+        try {
+            mCipher = Cipher.getInstance(RecordingCipher.CONTENT_TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(RecordingCipher.CONTENT_TRANSFORMATION + " is not available", e);
+        }
+
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        mHeaderBytes = header.remaining();
+
+        try {
+
+            while (header.hasRemaining()) {
+                mChannel.write(header);
+            }
+
+        } catch (IOException e) {
+            mStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Дописывает данные в конец
+     * @param src открытые данные от position до limit
+     * @throws IOException при ошибке записи
+     */
+    public void write(ByteBuffer src) throws IOException {
+        write(src, mSize);
+    }
+
+    /**
+     * Записывает данные с позиции, например для заголовка, который дописывается в конце
+     * @param src открытые данные от position до limit
+     * @param position позиция в открытых данных
+     * @throws IOException при ошибке записи
+     */
+    public void write(ByteBuffer src, long position) throws IOException {
+
+        int limit = src.limit();
+        long at = position;
+
+        try {
+
+            if (mCipherPosition != position) {
+                CtrPosition.seek(mCipher, mKey, mIv, mCounter, mScratch, position);
+            }
+
+            // при ошибке посередине шифр будет переставлен заново
+            mCipherPosition = -1;
+
+            while (src.hasRemaining()) {
+
+                src.limit(Math.min(limit, src.position() + mOut.capacity()));
+
+                mOut.clear();
+                mCipher.update(src, mOut);
+                mOut.flip();
+
+                while (mOut.hasRemaining()) {
+                    at += mChannel.write(mOut, mHeaderBytes + at);
+                }
+
+                src.limit(limit);
+            }
+
+        } catch (GeneralSecurityException e) {
+            throw new IOException("encryption failed", e);
+        } finally {
+            src.limit(limit);
+        }
+
+        mCipherPosition = at;
+        mSize = Math.max(mSize, at);
+    }
+
+    /**
+     * @return размер открытых данных
+     */
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * @return размер заголовка шифрования в файле
+     */
+    public long getHeaderBytes() {
+        return mHeaderBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+}
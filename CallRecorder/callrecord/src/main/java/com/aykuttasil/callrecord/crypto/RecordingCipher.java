@@ -0,0 +1,218 @@
+package com.aykuttasil.callrecord.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Шифрование записей при записи на диск.
+ * Каждый файл шифруется собственным случайным ключом AES-256 в режиме CTR,
+ * ключ файла хранится в заголовке, зашифрованный главным ключом приложения.
+ * CTR позволяет писать и читать с любой позиции, поэтому заголовок WAV
+ * дописывается на месте, а оборванная запись расшифровывается до места обрыва.
+ * <pre>
+ * int   MAGIC
+ * byte  VERSION
+ * byte  длина IV ключа, IV ключа
+ * short длина ключа файла, ключ файла под главным ключом (KEY_WRAP_TRANSFORMATION)
+ * 16    IV содержимого
+ * ...   содержимое AES/CTR/NoPadding
+ * </pre>
+ * Главный ключ должен подходить для KEY_WRAP_TRANSFORMATION и сам выбирать IV,
+ * например ключ AndroidKeyStore или SecretKeySpec.
+ */
+
+public class RecordingCipher {
+
+    public static final String FILE_SUFFIX = ".enc";    ///< добавляется к имени зашифрованной записи
+
+    public static final String KEY_WRAP_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    static final String CONTENT_TRANSFORMATION = "AES/CTR/NoPadding";
+
+    static final int BUFFER_BYTES = 16 * 1024;         ///< размер переиспользуемых буферов шифрования
+
+    private static final int MAGIC = 0x43524543;        // "CREC"
+    private static final int VERSION = 1;
+    private static final int FILE_KEY_BYTES = 32;
+    private static final int MAX_FIELD_BYTES = 256;
+
+    private final SecretKey mMasterKey;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    /**
+     * Конструктор
+     * @param masterKey главный ключ AES, которым шифруются ключи файлов
+     */
+    public RecordingCipher(SecretKey masterKey) {
+
+        if (masterKey == null) {
+            throw new IllegalArgumentException("masterKey == null");
+        }
+
+        mMasterKey = masterKey;
+    }
+
+    /**
+     * @param file файл записи
+     * @return true - если имя файла говорит о зашифрованной записи
+     */
+    public static boolean isEncrypted(File file) {
+        return file.getName().endsWith(FILE_SUFFIX);
+    }
+
+    /**
+     * Создает файл с новым ключом и открывает его на запись
+     * @param file файл записи, перезаписывается
+     * @return поток записи открытых данных
+     * @throws IOException при ошибке записи или шифрования
+     */
+    public EncryptedWriter create(File file) throws IOException {
+
+        byte[] fileKey = new byte[FILE_KEY_BYTES];
+        byte[] iv = new byte[CtrPosition.BLOCK_BYTES];
+
+        byte[] wrapIv;
+        byte[] wrappedKey;
+
+        synchronized (mRandom) {
+            mRandom.nextBytes(fileKey);
+            mRandom.nextBytes(iv);
+        }
+
+        try {
+
+            Cipher wrap = Cipher.getInstance(KEY_WRAP_TRANSFORMATION);
+            wrap.init(Cipher.ENCRYPT_MODE, mMasterKey, mRandom);
+
+            wrapIv = wrap.getIV();
+            wrappedKey = wrap.doFinal(fileKey);
+
+        } catch (GeneralSecurityException e) {
+            throw new IOException("file key wrap failed", e);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 1 + wrapIv.length + 2 + wrappedKey.length + iv.length);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) wrapIv.length);
+        header.put(wrapIv);
+        header.putShort((short) wrappedKey.length);
+        header.put(wrappedKey);
+        header.put(iv);
+        header.flip();
+
+        SecretKey key = new SecretKeySpec(fileKey, "AES");
+
+        return new EncryptedWriter(file, header, key, iv);
+    }
+
+    /**
+     * Открывает зашифрованный файл на чтение с произвольной позиции
+     * @param file зашифрованный файл
+     * @return чтение открытых данных
+     * @throws IOException если файл не зашифрован этим главным ключом или не читается
+     */
+    public DecryptedReader open(File file) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(4 + 1 + 1 + MAX_FIELD_BYTES + 2 + MAX_FIELD_BYTES
+                    + CtrPosition.BLOCK_BYTES);
+
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // заголовок короче буфера, файл может быть короче заголовка
+            }
+
+            header.flip();
+
+            byte[] iv = new byte[CtrPosition.BLOCK_BYTES];
+            SecretKey key = readHeader(header, iv);
+
+            DecryptedReader reader = new DecryptedReader(raf, header.position(), key, iv);
+            raf = null;
+
+            return reader;
+
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Открывает зашифрованный файл как поток открытых данных, например для экспорта
+     * @param file зашифрованный файл
+     * @return поток, закрывающий файл при close()
+     * @throws IOException если файл не зашифрован этим главным ключом или не читается
+     */
+    public InputStream openInputStream(File file) throws IOException {
+        return new DecryptingInputStream(open(file));
+    }
+
+    /**
+     * Разбирает заголовок и расшифровывает ключ файла
+     * @param header заголовок с начала файла, после вызова стоит на начале содержимого
+     * @param iv сюда читается IV содержимого
+     * @return ключ файла
+     * @throws IOException если заголовок поврежден или ключ не расшифровывается
+     */
+    private SecretKey readHeader(ByteBuffer header, byte[] iv) throws IOException {
+
+        try {
+
+            if (header.getInt() != MAGIC) {
+                throw new IOException("not an encrypted recording");
+            }
+
+            int version = header.get();
+
+            if (version != VERSION) {
+                throw new IOException("unsupported encrypted recording version: " + version);
+            }
+
+            byte[] wrapIv = new byte[header.get() & 0xff];
+            header.get(wrapIv);
+
+            byte[] wrappedKey = new byte[header.getShort() & 0xffff];
+            header.get(wrappedKey);
+
+            header.get(iv);
+
+            Cipher unwrap = Cipher.getInstance(KEY_WRAP_TRANSFORMATION);
+            unwrap.init(Cipher.DECRYPT_MODE, mMasterKey, new IvParameterSpec(wrapIv));
+
+            byte[] fileKey = unwrap.doFinal(wrappedKey);
+
+            if (fileKey.length != FILE_KEY_BYTES) {
+                throw new IOException("bad file key length: " + fileKey.length);
+            }
+
+            return new SecretKeySpec(fileKey, "AES");
+
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated encrypted recording header");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("file key unwrap failed, wrong master key?", e);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package com.aykuttasil.callrecord.engine;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+import com.aykuttasil.callrecord.waveform.PeakWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Движок захвата на основе AudioRecord.
+ * Поток захвата читает PCM в заранее выделенный кольцевой буфер,
+ * поток кодирования забирает фреймы и передает их кодировщику.
+ * Если кодировщик не успевает, фреймы отбрасываются и считаются,
+ * а чтение из источника не останавливается.
+ * В режиме сегментов поток кодирования закрывает текущий файл и открывает
+ * следующий между фреймами, поэтому переключение не теряет звук.
+ * Пики волны считаются по тем же фреймам, что попадают в файл, после вырезания тишины.
+ * Если кодировщик шифрует файл, пики и участки тишины рядом с записью не пишутся:
+ * открытые файлы показывали бы ход разговора. Тишина при этом все равно вырезается.
+ */
+
+public class AudioRecordEngine implements CaptureEngine {
+
+    private static final String TAG = AudioRecordEngine.class.getSimpleName();
+
+    public static final int DEFAULT_SAMPLE_RATE = 16000;   ///< частота дискретизации по умолчанию, Гц
+    public static final int DEFAULT_CHANNELS = 1;          ///< количество каналов по умолчанию
+    public static final int FRAME_MILLIS = 20;             ///< длительность одного фрейма, мс
+    public static final int DEFAULT_FRAME_COUNT = 100;     ///< количество фреймов в кольцевом буфере
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(FRAME_MILLIS / 2);
+
+    private final PcmSource mSource;
+    private final PcmEncoder mEncoder;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final PcmRingBuffer mRing;
+    private final ByteBuffer mOverflowFrame; ///< сюда читаются фреймы, когда буфер заполнен
+
+    private volatile boolean mRunning;
+    private volatile boolean mCapturing;
+    private volatile boolean mMetering;
+    private final AtomicInteger mPeak = new AtomicInteger();    ///< пик с прошлого readLevel()
+    private volatile long mDroppedFrames;
+    private volatile IOException mEncoderError;
+
+    private Thread mCaptureThread;
+    private Thread mEncoderThread;
+
+    private File mFirstFile;
+    private File mCurrentFile;
+    private int mSegmentIndex;
+    private long mSegmentLimitBytes;   ///< лимит PCM данных в сегменте, 0 - без ограничения
+    private long mSegmentDataBytes;    ///< PCM данных в текущем сегменте
+    private volatile SegmentListener mSegmentListener;
+    private SilenceDetector mSilence;  ///< вырезает тишину, null - детектор выключен
+    private long mCapturedBytes;       ///< PCM данных получено от источника, включая тишину
+    private PeakWriter mPeaks;         ///< пики волны, null - файл пиков не пишется
+
+    /**
+     * Конструктор
+     * @param source источник PCM
+     * @param encoder кодировщик
+     * @param sampleRate частота дискретизации, Гц
+     * @param channels количество каналов
+     * @param frameCount количество фреймов в кольцевом буфере
+     */
+    public AudioRecordEngine(PcmSource source, PcmEncoder encoder, int sampleRate, int channels, int frameCount) {
+
+        mSource = source;
+        mEncoder = encoder;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+
+        int frameBytes = sampleRate * channels * 2 * FRAME_MILLIS / 1000;
+
+        mRing = new PcmRingBuffer(frameBytes, frameCount);
+        mOverflowFrame = ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Конструктор с параметрами по умолчанию
+     * @param audioSource источник записи, как в MediaRecorder.AudioSource
+     */
+    public AudioRecordEngine(int audioSource) {
+        this(audioSource, null);
+    }
+
+    /**
+     * Конструктор с параметрами по умолчанию и шифрованием файла
+     * @param audioSource источник записи, как в MediaRecorder.AudioSource
+     * @param cipher шифрование файла, null - без шифрования
+     */
+    public AudioRecordEngine(int audioSource, RecordingCipher cipher) {
+        this(audioSource, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNELS, cipher);
+    }
+
+    /**
+     * Конструктор с заданным форматом PCM
+     * @param audioSource источник записи, как в MediaRecorder.AudioSource
+     * @param sampleRate частота дискретизации, Гц
+     * @param channels количество каналов, 1 или 2
+     * @param cipher шифрование файла, null - без шифрования
+     */
+    public AudioRecordEngine(int audioSource, int sampleRate, int channels, RecordingCipher cipher) {
+        this(new AudioRecordSource(audioSource), new WavEncoder(cipher), sampleRate, channels, DEFAULT_FRAME_COUNT);
+    }
+
+    @Override
+    public void prepare(RecordingConfig config, File outputFile) throws IOException {
+
+        mFirstFile = outputFile;
+        mCurrentFile = outputFile;
+        mSegmentIndex = 0;
+        mSegmentDataBytes = 0;
+        mSegmentLimitBytes = segmentLimitBytes(config);
+        mCapturedBytes = 0;
+        mSilence = config != null && config.isSilenceDetection()
+                ? new SilenceDetector(config.getSilenceThreshold(), config.getSilenceMinMs()) : null;
+
+        mSource.open(mSampleRate, mChannels);
+
+        try {
+            mEncoder.begin(outputFile, mSampleRate, mChannels);
+        } catch (IOException e) {
+            mSource.release();
+            throw e;
+        }
+
+        mPeaks = null;
+
+        if (config != null && config.isPeakSidecar() && !mEncoder.isEncrypted()) {
+            try {
+                mPeaks = new PeakWriter(SegmentFiles.peaksFile(outputFile), config.getPeakIntervalMs(),
+                        mSampleRate, mChannels);
+            } catch (IOException e) {
+                Log.e(TAG, "peaks sidecar open failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+
+        if (mRunning) {
+            throw new IllegalStateException("AudioRecordEngine is already started");
+        }
+
+        mRunning = true;
+        mCapturing = true;
+
+        mEncoderThread = new Thread(mEncodeLoop, "CallRecord-encoder");
+        mCaptureThread = new Thread(mCaptureLoop, "CallRecord-capture");
+
+        mSource.start();
+        mEncoderThread.start();
+        mCaptureThread.start();
+    }
+
+    @Override
+    public void stop() throws IOException {
+
+        if (!mRunning) {
+            return;
+        }
+
+        mRunning = false;
+        mSource.stop();
+
+        joinQuietly(mCaptureThread);
+        joinQuietly(mEncoderThread);
+
+        mEncoder.end();
+
+        if (mSegmentLimitBytes > 0 && mEncoderError == null) {
+            notifySegment(mCurrentFile, mSegmentIndex);
+        }
+
+        if (mSilence != null) {
+            writeSilence();
+        }
+
+        if (mPeaks != null) {
+            writePeaks();
+        }
+
+        if (mDroppedFrames > 0) {
+            Log.w(TAG, "dropped frames: " + mDroppedFrames);
+        }
+
+        if (mEncoderError != null) {
+            throw mEncoderError;
+        }
+    }
+
+    @Override
+    public void release() {
+
+        if (mRunning) {
+            try {
+                stop();
+            } catch (IOException e) {
+                Log.e(TAG, "stop on release failed", e);
+            }
+        }
+
+        try {
+            mEncoder.end();
+        } catch (IOException e) {
+            Log.e(TAG, "encoder end failed", e);
+        }
+
+        if (mPeaks != null) {
+            mPeaks.abort();
+            mPeaks = null;
+        }
+
+        mSource.release();
+    }
+
+    @Override
+    public void setSegmentListener(SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    @Override
+    public void setLevelMetering(boolean enabled) {
+        mMetering = enabled;
+    }
+
+    @Override
+    public int readLevel() {
+        return mRunning ? mPeak.getAndSet(0) : 0;
+    }
+
+    /**
+     * @return количество фреймов, отброшенных из-за переполнения буфера
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return расширение файла, которое создает кодировщик движка
+     */
+    public String getFileSuffix() {
+        return mEncoder.getFileSuffix();
+    }
+
+    private final Runnable mCaptureLoop = new Runnable() {
+        @Override
+        public void run() {
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+            int frameBytes = mRing.getFrameBytes();
+
+            try {
+
+                while (mRunning) {
+
+                    ByteBuffer slot = mRing.acquireWrite();
+                    boolean overflow = slot == null;
+
+                    int read = mSource.read(overflow ? mOverflowFrame : slot, frameBytes);
+
+                    if (read < 0) {
+                        Log.e(TAG, "PCM source error: " + read);
+                        break;
+                    }
+
+                    if (read == 0) {
+                        continue;
+                    }
+
+                    if (overflow) {
+                        mDroppedFrames = mDroppedFrames + 1;
+                        continue;
+                    }
+
+                    mRing.commitWrite(read);
+                    LockSupport.unpark(mEncoderThread);
+                }
+
+            } finally {
+                mCapturing = false;
+                LockSupport.unpark(mEncoderThread);
+            }
+        }
+    };
+
+    private final Runnable mEncodeLoop = new Runnable() {
+        @Override
+        public void run() {
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+            while (true) {
+
+                // Флаг читается до буфера, чтобы не потерять фреймы, записанные перед остановкой
+                boolean capturing = mCapturing;
+                ByteBuffer frame = mRing.acquireRead();
+
+                if (frame != null) {
+
+                    if (mEncoderError == null) {
+                        try {
+                            encodeFrame(frame);
+                        } catch (IOException e) {
+                            mEncoderError = e;
+                        }
+                    }
+
+                    mRing.releaseRead();
+                    continue;
+                }
+
+                if (!capturing) {
+                    break;
+                }
+
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    };
+
+    /**
+     * Кодирует фрейм, при необходимости переключаясь на следующий сегмент
+     * @param frame фрейм PCM
+     * @throws IOException при ошибке записи
+     */
+    private void encodeFrame(ByteBuffer frame) throws IOException {
+
+        int length = frame.remaining();
+
+        boolean metering = mMetering;
+
+        if (mSilence != null || metering) {
+
+            int level = SilenceDetector.peakLevel(frame);
+
+            if (metering) {
+                for (int peak = mPeak.get(); level > peak && !mPeak.compareAndSet(peak, level); peak = mPeak.get()) {
+                    // пик мог быть сброшен в readLevel()
+                }
+            }
+
+            if (mSilence != null) {
+
+                long timeMs = capturedMillis();
+                mCapturedBytes += length;
+
+                if (mSilence.onLevel(level, timeMs)) {
+                    return;
+                }
+            }
+        }
+
+        if (mSegmentLimitBytes > 0 && mSegmentDataBytes > 0
+                && mSegmentDataBytes + length > mSegmentLimitBytes) {
+
+            mEncoder.end();
+            notifySegment(mCurrentFile, mSegmentIndex);
+
+            mSegmentIndex++;
+            mSegmentDataBytes = 0;
+            mCurrentFile = SegmentFiles.segmentFile(mFirstFile, mSegmentIndex);
+
+            mEncoder.begin(mCurrentFile, mSampleRate, mChannels);
+        }
+
+        // кодировщик сдвигает позицию фрейма, поэтому пики считаются до него
+        if (mPeaks != null) {
+            try {
+                mPeaks.addPcm(frame);
+            } catch (IOException e) {
+                // запись продолжается без файла пиков
+                Log.e(TAG, "peaks sidecar write failed", e);
+                mPeaks.abort();
+                mPeaks = null;
+            }
+        }
+
+        mEncoder.encode(frame);
+        mSegmentDataBytes += length;
+    }
+
+    /**
+     * @return длительность полученного от источника звука, мс
+     */
+    private long capturedMillis() {
+        return mCapturedBytes * 1000 / ((long) mSampleRate * mChannels * 2);
+    }
+
+    /**
+     * Сохраняет положение вырезанной тишины рядом с записью
+     */
+    private void writeSilence() {
+
+        mSilence.finish(capturedMillis());
+
+        if (mEncoder.isEncrypted()) {
+            Log.i(TAG, "silence removed, ms: " + mSilence.getSilentMs());
+            return;
+        }
+
+        try {
+
+            if (mSilence.writeSidecar(mFirstFile, SilenceDetector.MODE_REMOVED) != null) {
+                Log.i(TAG, "silence removed, ms: " + mSilence.getSilentMs());
+            }
+
+        } catch (IOException e) {
+            Log.e(TAG, "silence sidecar write failed", e);
+        }
+    }
+
+    /**
+     * Завершает файл пиков волны рядом с записью
+     */
+    private void writePeaks() {
+
+        try {
+            mPeaks.finish();
+        } catch (IOException e) {
+            Log.e(TAG, "peaks sidecar write failed", e);
+            mPeaks.abort();
+        }
+
+        mPeaks = null;
+    }
+
+    /**
+     * Переводит ограничения сегмента из настроек в количество байт PCM
+     * @param config настройки записи
+     * @return лимит данных в сегменте, 0 - без ограничения
+     */
+    private long segmentLimitBytes(RecordingConfig config) {
+
+        if (config == null || !config.isSegmented()) {
+            return 0;
+        }
+
+        long limit = Long.MAX_VALUE;
+
+        if (config.getSegmentDurationMs() > 0) {
+            limit = (long) config.getSegmentDurationMs() * mSampleRate * mChannels * 2 / 1000;
+        }
+
+        if (config.getSegmentBytes() > 0) {
+            limit = Math.min(limit, config.getSegmentBytes() - mEncoder.getHeaderBytes());
+        }
+
+        return Math.max(limit, 1);
+    }
+
+    private void notifySegment(File segment, int index) {
+
+        Log.i(TAG, "segment completed: " + segment.getName());
+
+        SegmentListener listener = mSegmentListener;
+
+        if (listener != null) {
+            listener.onSegmentCompleted(segment, index);
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+
+        if (thread == null) {
+            return;
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
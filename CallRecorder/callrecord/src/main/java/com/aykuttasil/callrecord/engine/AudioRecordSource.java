@@ -0,0 +1,76 @@
+package com.aykuttasil.callrecord.engine;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Источник PCM звука на основе AudioRecord
+ */
+
+public class AudioRecordSource implements PcmSource {
+
+    private final int mAudioSource;
+    private AudioRecord mAudioRecord;
+
+    /**
+     * Конструктор
+     * @param audioSource источник записи, как в MediaRecorder.AudioSource
+     */
+    public AudioRecordSource(int audioSource) {
+        mAudioSource = audioSource;
+    }
+
+    @Override
+    public void open(int sampleRate, int channels) throws IOException {
+
+        int channelConfig = channels == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+
+        if (minBufferSize <= 0) {
+            throw new IOException("Unsupported PCM configuration: " + sampleRate + " Hz, " + channels + " ch");
+        }
+
+        mAudioRecord = new AudioRecord(mAudioSource, sampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, minBufferSize * 2);
+
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            release();
+            throw new IOException("AudioRecord is not initialized");
+        }
+    }
+
+    @Override
+    public void start() {
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int size) {
+        return mAudioRecord.read(buffer, size);
+    }
+
+    @Override
+    public void stop() {
+
+        if (mAudioRecord != null) {
+            mAudioRecord.stop();
+        }
+    }
+
+    @Override
+    public void release() {
+
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.aykuttasil.callrecord.engine;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Интерфейс движка захвата звука.
+ * Жизненный цикл: prepare() - start() - stop() - release().
+ * release() может быть вызван на любом этапе и освобождает все ресурсы.
+ */
+
+public interface CaptureEngine {
+
+    /**
+     * Подготавливает движок к записи в файл
+     * @param config настройки записи
+     * @param outputFile файл записи
+     * @throws IOException если не удалось открыть источник звука или файл
+     */
+    void prepare(RecordingConfig config, File outputFile) throws IOException;
+
+    /**
+     * Запускает запись
+     * @throws IllegalStateException если движок не подготовлен
+     */
+    void start();
+
+    /**
+     * Останавливает запись и дописывает файл
+     * @throws IOException если не удалось завершить файл
+     */
+    void stop() throws IOException;
+
+    /**
+     * Задает слушателя завершенных сегментов.
+     * Используется, только если в настройках задана длительность или размер сегмента
+     * @param listener слушатель или null
+     */
+    void setSegmentListener(SegmentListener listener);
+
+    /**
+     * Включает подсчет уровня сигнала для readLevel().
+     * Пока подсчет выключен, движок не тратит на него время
+     * @param enabled true - уровень нужен подписчикам
+     */
+    void setLevelMetering(boolean enabled);
+
+    /**
+     * Вызывается из потока опроса уровня, в том числе во время stop() и release()
+     * @return пиковый уровень сигнала 0..32767 с прошлого вызова, 0 - если запись не идет
+     */
+    int readLevel();
+
+    /**
+     * Освобождает все ресурсы движка
+     */
+    void release();
+}
@@ -0,0 +1,60 @@
+package com.aykuttasil.callrecord.engine;
+
+import com.aykuttasil.callrecord.CallRecord;
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Создает движок захвата по настройкам записи.
+ * Ресивер создает движки через экземпляр фабрики, поэтому в тестах
+ * ее можно заменить фабрикой поддельных движков
+ */
+
+public class CaptureEngineFactory {
+
+    public static final CaptureEngineFactory DEFAULT = new CaptureEngineFactory();
+
+    protected CaptureEngineFactory() {
+    }
+
+    /**
+     * @param config настройки записи
+     * @param cipher шифрование файлов записи, null - без шифрования
+     * @return новый движок захвата
+     */
+    public CaptureEngine newEngine(RecordingConfig config, RecordingCipher cipher) {
+        return create(config, cipher);
+    }
+
+    /**
+     * @param config настройки записи
+     * @return новый движок захвата
+     */
+    public static CaptureEngine create(RecordingConfig config) {
+        return create(config, null);
+    }
+
+    /**
+     * @param config настройки записи
+     * @param cipher шифрование файлов записи, null - без шифрования
+     * @return новый движок захвата
+     */
+    public static CaptureEngine create(RecordingConfig config, RecordingCipher cipher) {
+
+        switch (config.getCaptureEngine()) {
+            case CallRecord.ENGINE_AUDIO_RECORD:
+                return new AudioRecordEngine(config.getAudioSource(),
+                        config.getSamplingRate() > 0 ? config.getSamplingRate() : AudioRecordEngine.DEFAULT_SAMPLE_RATE,
+                        config.getChannels() > 0 ? config.getChannels() : AudioRecordEngine.DEFAULT_CHANNELS,
+                        cipher);
+            case CallRecord.ENGINE_MEDIA_RECORDER:
+            default:
+                return new MediaRecorderEngine(cipher);
+        }
+    }
+}
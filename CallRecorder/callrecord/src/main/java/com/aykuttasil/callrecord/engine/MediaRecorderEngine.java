@@ -0,0 +1,618 @@
+package com.aykuttasil.callrecord.engine;
+
+import android.media.MediaRecorder;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.crypto.EncryptedWriter;
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+import com.aykuttasil.callrecord.waveform.PeakWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Движок захвата на основе MediaRecorder, используется по умолчанию.
+ * В режиме сегментов MediaRecorder сам останавливается по setMaxDuration/setMaxFileSize,
+ * после чего движок переподготавливает его на следующий файл и сообщает
+ * о закрытом сегменте.
+ * Если включен детектор тишины, уровень опрашивается через getMaxAmplitude().
+ * MediaRecorder не сообщает уровень на паузе, поэтому pause() не позволил бы
+ * заметить начало речи: тишина остается в файле, а ее участки
+ * сохраняются рядом для последующей обрезки.
+ * Пики волны строятся по тому же опросу уровня с периодом отсчета пиков,
+ * поэтому они симметричны: MediaRecorder не отдает знак амплитуды.
+ * С RecordingCipher рекордер пишет в pipe, а поток шифрования перекладывает
+ * данные в зашифрованный файл. Через pipe можно писать только потоковые
+ * форматы без перемотки: AMR_NB, AMR_WB и AAC_ADTS.
+ * Пики и участки тишины пишутся рядом с записью открытыми файлами,
+ * поэтому с RecordingCipher они не пишутся, а уровень не опрашивается.
+ */
+
+public class MediaRecorderEngine implements CaptureEngine {
+
+    private static final String TAG = MediaRecorderEngine.class.getSimpleName();
+
+    private static final long LEVEL_INTERVAL_MS = 100;   ///< период опроса уровня для детектора тишины
+    private static final int PUMP_BUFFER_BYTES = 8 * 1024;
+
+    private MediaRecorder mRecorder;
+    private RecordingConfig mConfig;
+    private File mFirstFile;
+    private File mCurrentFile;
+    private int mSegmentIndex;
+    private volatile boolean mStarted;
+    private SegmentListener mSegmentListener;
+
+    private final Object mRecorderLock = new Object();  ///< опрос уровня идет в другом потоке
+    private SilenceDetector mSilence;
+    private PeakWriter mPeaks;                          ///< пики волны, пишутся в потоке опроса уровня
+    private volatile ScheduledExecutorService mLevelSampler;
+    private final AtomicInteger mPeak = new AtomicInteger();  ///< пик для readLevel(), пока уровень опрашивает детектор тишины
+    private long mStartedAtMs;
+
+    private final RecordingCipher mCipher;        ///< шифрование файла, null - пишется открытый файл
+    private ByteBuffer mPumpBuffer;               ///< общий для сегментов, поток шифрования работает один
+    private ParcelFileDescriptor mPipeWrite;      ///< конец pipe для рекордера, закрывается после prepare()
+    private Thread mPumpThread;
+    private EncryptingPump mPump;
+
+    /**
+     * Конструктор для записи без шифрования
+     */
+    public MediaRecorderEngine() {
+        this(null);
+    }
+
+    /**
+     * Конструктор
+     * @param cipher шифрование файла, null - без шифрования
+     */
+    public MediaRecorderEngine(RecordingCipher cipher) {
+        mCipher = cipher;
+    }
+
+    private final MediaRecorder.OnInfoListener mInfoListener = new MediaRecorder.OnInfoListener() {
+        @Override
+        public void onInfo(MediaRecorder mr, int what, int extra) {
+
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED
+                    || what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+                rollSegment();
+            }
+        }
+    };
+
+    @Override
+    public void prepare(RecordingConfig config, File outputFile) throws IOException {
+
+        mConfig = config;
+        mFirstFile = outputFile;
+        mCurrentFile = outputFile;
+        mSegmentIndex = 0;
+
+        if (mCipher != null && !isStreamable(config.getOutputFormat())) {
+            throw new IOException("encrypted recording needs AMR_NB, AMR_WB or AAC_ADTS output, got "
+                    + config.getOutputFormat());
+        }
+
+        mRecorder = new MediaRecorder();
+
+        try {
+            configure(mRecorder, mCurrentFile);
+            mRecorder.prepare();
+        } finally {
+            closePipeWriteEnd();
+        }
+    }
+
+    @Override
+    public void start() {
+
+        if (mRecorder == null) {
+            throw new IllegalStateException("MediaRecorder is not prepared");
+        }
+
+        mRecorder.start();
+        mStarted = true;
+
+        if (mCipher == null && (mConfig.isSilenceDetection() || mConfig.isPeakSidecar())) {
+            startLevelSampler();
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+
+        stopLevelSampler();
+
+        if (mRecorder != null && mStarted) {
+
+            synchronized (mRecorderLock) {
+
+                mStarted = false;
+
+                try {
+                    mRecorder.stop();
+                } finally {
+                    mRecorder.reset();
+                }
+            }
+
+            finishPump();
+
+            if (mConfig.isSegmented()) {
+                notifySegment(mCurrentFile, mSegmentIndex);
+            }
+
+            if (mSilence != null) {
+                writeSilence();
+            }
+
+            if (mPeaks != null) {
+                writePeaks();
+            }
+        }
+    }
+
+    @Override
+    public void setSegmentListener(SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    @Override
+    public void setLevelMetering(boolean enabled) {
+        // MediaRecorder сам считает пик между вызовами getMaxAmplitude()
+    }
+
+    /**
+     * getMaxAmplitude() сбрасывает пик при каждом вызове, поэтому при включенном
+     * детекторе тишины уровень берется из его измерений
+     */
+    @Override
+    public int readLevel() {
+
+        if (mLevelSampler != null) {
+            return mPeak.getAndSet(0);
+        }
+
+        synchronized (mRecorderLock) {
+
+            if (mRecorder == null || !mStarted) {
+                return 0;
+            }
+
+            try {
+                return mRecorder.getMaxAmplitude();
+            } catch (IllegalStateException e) {
+                return 0;
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+
+        stopLevelSampler();
+
+        if (mPeaks != null) {
+            mPeaks.abort();
+            mPeaks = null;
+        }
+
+        synchronized (mRecorderLock) {
+
+            if (mRecorder != null) {
+                mRecorder.reset();
+                mRecorder.release();
+                mRecorder = null;
+            }
+
+            mStarted = false;
+        }
+
+        closePipeWriteEnd();
+
+        try {
+            finishPump();
+        } catch (IOException e) {
+            Log.e(TAG, "encrypted output failed", e);
+        }
+    }
+
+    /**
+     * Настраивает рекордер на запись в файл
+     * @param recorder рекордер в начальном состоянии
+     * @param outputFile файл записи
+     */
+    private void configure(MediaRecorder recorder, File outputFile) throws IOException {
+
+        recorder.setAudioSource(mConfig.getAudioSource());
+        recorder.setOutputFormat(mConfig.getOutputFormat());
+        recorder.setAudioEncoder(mConfig.getAudioEncoder());
+
+        if (mConfig.getBitRate() > 0) {
+            recorder.setAudioEncodingBitRate(mConfig.getBitRate());
+        }
+
+        if (mConfig.getSamplingRate() > 0) {
+            recorder.setAudioSamplingRate(mConfig.getSamplingRate());
+        }
+
+        if (mConfig.getChannels() > 0) {
+            recorder.setAudioChannels(mConfig.getChannels());
+        }
+
+        if (mCipher != null) {
+            recorder.setOutputFile(openEncryptedOutput(outputFile));
+        } else {
+            recorder.setOutputFile(outputFile.getAbsolutePath());
+        }
+
+        if (mConfig.getSegmentDurationMs() > 0) {
+            recorder.setMaxDuration(mConfig.getSegmentDurationMs());
+        }
+
+        if (mConfig.getSegmentBytes() > 0) {
+            recorder.setMaxFileSize(mConfig.getSegmentBytes());
+        }
+
+        if (mConfig.isSegmented()) {
+            recorder.setOnInfoListener(mInfoListener);
+        }
+    }
+
+    /**
+     * Переключает запись на следующий сегмент.
+     * К этому моменту MediaRecorder уже остановился и закрыл файл
+     */
+    private void rollSegment() {
+
+        if (mRecorder == null || !mStarted) {
+            return;
+        }
+
+        File finished = mCurrentFile;
+        int finishedIndex = mSegmentIndex;
+
+        synchronized (mRecorderLock) {
+
+            try {
+
+                mRecorder.reset();
+                finishPump();
+
+                mSegmentIndex++;
+                mCurrentFile = SegmentFiles.segmentFile(mFirstFile, mSegmentIndex);
+
+                configure(mRecorder, mCurrentFile);
+                mRecorder.prepare();
+                closePipeWriteEnd();
+                mRecorder.start();
+
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "segment roll failed", e);
+                closePipeWriteEnd();
+                mStarted = false;
+            }
+        }
+
+        notifySegment(finished, finishedIndex);
+    }
+
+    /**
+     * Запускает опрос уровня сигнала для детектора тишины и пиков волны
+     */
+    private void startLevelSampler() {
+
+        mSilence = mConfig.isSilenceDetection()
+                ? new SilenceDetector(mConfig.getSilenceThreshold(), mConfig.getSilenceMinMs()) : null;
+        mPeaks = null;
+        mStartedAtMs = SystemClock.elapsedRealtime();
+
+        long intervalMs = LEVEL_INTERVAL_MS;
+
+        if (mConfig.isPeakSidecar()) {
+            try {
+                mPeaks = new PeakWriter(SegmentFiles.peaksFile(mFirstFile), mConfig.getPeakIntervalMs());
+                intervalMs = mPeaks.getIntervalMs();
+            } catch (IOException e) {
+                Log.e(TAG, "peaks sidecar open failed", e);
+            }
+        }
+
+        mLevelSampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "CallRecord-level");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        mLevelSampler.scheduleAtFixedRate(mLevelSample, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Останавливает опрос и дожидается последнего измерения,
+     * после этого детектор читается только в потоке записи
+     */
+    private void stopLevelSampler() {
+
+        ScheduledExecutorService sampler = mLevelSampler;
+
+        if (sampler == null) {
+            return;
+        }
+
+        mLevelSampler = null;
+        sampler.shutdownNow();
+
+        try {
+            sampler.awaitTermination(LEVEL_INTERVAL_MS * 10, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final Runnable mLevelSample = new Runnable() {
+        @Override
+        public void run() {
+
+            int level;
+
+            synchronized (mRecorderLock) {
+
+                if (mRecorder == null || !mStarted) {
+                    return;
+                }
+
+                try {
+                    level = mRecorder.getMaxAmplitude();
+                } catch (IllegalStateException e) {
+                    return;
+                }
+            }
+
+            if (mSilence != null) {
+                mSilence.onLevel(level, SystemClock.elapsedRealtime() - mStartedAtMs);
+            }
+
+            if (mPeaks != null) {
+                try {
+                    mPeaks.addLevel(level);
+                } catch (IOException e) {
+                    // запись продолжается без файла пиков
+                    Log.e(TAG, "peaks sidecar write failed", e);
+                    mPeaks.abort();
+                    mPeaks = null;
+                }
+            }
+
+            for (int peak = mPeak.get(); level > peak && !mPeak.compareAndSet(peak, level); peak = mPeak.get()) {
+                // пик мог измениться в readLevel()
+            }
+        }
+    };
+
+    /**
+     * Сохраняет участки тишины рядом с записью
+     */
+    private void writeSilence() {
+
+        mSilence.finish(SystemClock.elapsedRealtime() - mStartedAtMs);
+
+        try {
+
+            if (mSilence.writeSidecar(mFirstFile, SilenceDetector.MODE_MARKED) != null) {
+                Log.i(TAG, "silence marked, ms: " + mSilence.getSilentMs());
+            }
+
+        } catch (IOException e) {
+            Log.e(TAG, "silence sidecar write failed", e);
+        }
+
+        mSilence = null;
+    }
+
+    /**
+     * Завершает файл пиков волны рядом с записью
+     */
+    private void writePeaks() {
+
+        try {
+            mPeaks.finish();
+        } catch (IOException e) {
+            Log.e(TAG, "peaks sidecar write failed", e);
+            mPeaks.abort();
+        }
+
+        mPeaks = null;
+    }
+
+    /**
+     * Проверяет, можно ли писать формат в pipe
+     * @param outputFormat формат выходного файла
+     * @return true - формат не требует перемотки файла
+     */
+    public static boolean isStreamable(int outputFormat) {
+
+        switch (outputFormat) {
+            case MediaRecorder.OutputFormat.AMR_NB:
+            case MediaRecorder.OutputFormat.AMR_WB:
+            case MediaRecorder.OutputFormat.AAC_ADTS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Открывает зашифрованный файл и pipe к нему, запускает поток шифрования
+     * @param outputFile файл записи
+     * @return дескриптор для рекордера
+     * @throws IOException если не удалось создать файл или pipe
+     */
+    private FileDescriptor openEncryptedOutput(File outputFile) throws IOException {
+
+        if (mPumpBuffer == null) {
+            mPumpBuffer = ByteBuffer.allocate(PUMP_BUFFER_BYTES);
+        }
+
+        EncryptedWriter writer = mCipher.create(outputFile);
+        ParcelFileDescriptor[] pipe;
+
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            writer.close();
+            throw e;
+        }
+
+        mPipeWrite = pipe[1];
+        mPump = new EncryptingPump(new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]), writer, mPumpBuffer);
+        mPumpThread = new Thread(mPump, "CallRecord-encrypt");
+        mPumpThread.start();
+
+        return mPipeWrite.getFileDescriptor();
+    }
+
+    /**
+     * Закрывает свою копию конца pipe для записи: рекордер держит свою,
+     * и поток шифрования получит конец данных, когда рекордер ее закроет
+     */
+    private void closePipeWriteEnd() {
+
+        if (mPipeWrite == null) {
+            return;
+        }
+
+        try {
+            mPipeWrite.close();
+        } catch (IOException e) {
+            Log.e(TAG, "pipe close failed", e);
+        }
+
+        mPipeWrite = null;
+    }
+
+    /**
+     * Дожидается, пока поток шифрования допишет файл
+     * @throws IOException если файл не удалось записать
+     */
+    private void finishPump() throws IOException {
+
+        Thread thread = mPumpThread;
+
+        if (thread == null) {
+            return;
+        }
+
+        mPumpThread = null;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        IOException error = mPump.mError;
+        mPump = null;
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Перекладывает данные рекордера из pipe в зашифрованный файл.
+     * После ошибки записи pipe дочитывается впустую, чтобы рекордер не заблокировался
+     */
+    private static class EncryptingPump implements Runnable {
+
+        private final InputStream mIn;
+        private final EncryptedWriter mWriter;
+        private final ByteBuffer mBuffer;
+        private volatile IOException mError;
+
+        EncryptingPump(InputStream in, EncryptedWriter writer, ByteBuffer buffer) {
+            mIn = in;
+            mWriter = writer;
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void run() {
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+            byte[] array = mBuffer.array();
+
+            try {
+
+                int read;
+
+                while ((read = mIn.read(array)) >= 0) {
+
+                    if (mError != null) {
+                        continue;
+                    }
+
+                    mBuffer.clear();
+                    mBuffer.limit(read);
+
+                    try {
+                        mWriter.write(mBuffer);
+                    } catch (IOException e) {
+                        mError = e;
+                    }
+                }
+
+            } catch (IOException e) {
+                if (mError == null) {
+                    mError = e;
+                }
+            } finally {
+                closeQuietly(mIn);
+                closeQuietly(mWriter);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close failed", e);
+        }
+    }
+
+    private void notifySegment(File segment, int index) {
+
+        Log.i(TAG, "segment completed: " + segment.getName());
+
+        if (mSegmentListener != null) {
+            mSegmentListener.onSegmentCompleted(segment, index);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.aykuttasil.callrecord.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Потоковый кодировщик PCM звука в файл.
+ * Вызывается только из потока кодирования AudioRecordEngine
+ */
+
+public interface PcmEncoder {
+
+    /**
+     * Открывает файл и записывает заголовок
+     * @param outputFile файл записи
+     * @param sampleRate частота дискретизации, Гц
+     * @param channels количество каналов
+     * @throws IOException при ошибке записи
+     */
+    void begin(File outputFile, int sampleRate, int channels) throws IOException;
+
+    /**
+     * Кодирует очередной фрагмент от position до limit буфера
+     * @param pcm 16-битный PCM
+     * @throws IOException при ошибке записи
+     */
+    void encode(ByteBuffer pcm) throws IOException;
+
+    /**
+     * Дописывает файл и закрывает его. Повторный вызов ничего не делает
+     * @throws IOException при ошибке записи
+     */
+    void end() throws IOException;
+
+    /**
+     * @return размер служебных данных файла, не считая звука
+     */
+    int getHeaderBytes();
+
+    /**
+     * @return расширение файла, которое создает кодировщик
+     */
+    String getFileSuffix();
+
+    /**
+     * @return true - если файл шифруется, тогда движок не пишет открытые файлы рядом с записью
+     */
+    boolean isEncrypted();
+}
@@ -0,0 +1,122 @@
+package com.aykuttasil.callrecord.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Кольцевой буфер PCM фреймов для одного писателя и одного читателя.
+ * Вся память выделяется в конструкторе одним прямым буфером,
+ * каждый слот - заранее созданный срез, поэтому запись и чтение
+ * фреймов ничего не выделяют.
+ */
+
+public class PcmRingBuffer {
+
+    private final ByteBuffer[] mSlots;
+    private final int[] mLengths;
+    private final int mFrameBytes;
+
+    private volatile long mWriteIndex; ///< изменяется только писателем
+    private volatile long mReadIndex;  ///< изменяется только читателем
+
+    /**
+     * Конструктор
+     * @param frameBytes размер одного фрейма в байтах
+     * @param frameCount количество фреймов в буфере
+     */
+    public PcmRingBuffer(int frameBytes, int frameCount) {
+
+        if (frameBytes <= 0 || frameCount <= 0) {
+            throw new IllegalArgumentException("frameBytes and frameCount must be positive");
+        }
+
+        ByteBuffer storage = ByteBuffer.allocateDirect(frameBytes * frameCount).order(ByteOrder.LITTLE_ENDIAN);
+
+        mSlots = new ByteBuffer[frameCount];
+        mLengths = new int[frameCount];
+        mFrameBytes = frameBytes;
+
+        for (int i = 0; i < frameCount; i++) {
+            storage.limit((i + 1) * frameBytes);
+            storage.position(i * frameBytes);
+            mSlots[i] = storage.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Получает свободный слот для записи
+     * @return слот с позицией 0 и лимитом в размер фрейма, null - если буфер заполнен
+     */
+    public ByteBuffer acquireWrite() {
+
+        long writeIndex = mWriteIndex;
+
+        if (writeIndex - mReadIndex >= mSlots.length) {
+            return null;
+        }
+
+        ByteBuffer slot = mSlots[(int) (writeIndex % mSlots.length)];
+        slot.clear();
+
+        return slot;
+    }
+
+    /**
+     * Публикует записанный слот для читателя
+     * @param length количество записанных байт
+     */
+    public void commitWrite(int length) {
+
+        long writeIndex = mWriteIndex;
+
+        mLengths[(int) (writeIndex % mSlots.length)] = length;
+        mWriteIndex = writeIndex + 1;
+    }
+
+    /**
+     * Получает очередной записанный слот
+     * @return слот с лимитом в количество записанных байт, null - если буфер пуст
+     */
+    public ByteBuffer acquireRead() {
+
+        long readIndex = mReadIndex;
+
+        if (readIndex == mWriteIndex) {
+            return null;
+        }
+
+        int index = (int) (readIndex % mSlots.length);
+        ByteBuffer slot = mSlots[index];
+        slot.limit(mLengths[index]);
+        slot.position(0);
+
+        return slot;
+    }
+
+    /**
+     * Возвращает прочитанный слот писателю
+     */
+    public void releaseRead() {
+        mReadIndex = mReadIndex + 1;
+    }
+
+    /**
+     * @return количество фреймов, ожидающих чтения
+     */
+    public int size() {
+        return (int) (mWriteIndex - mReadIndex);
+    }
+
+    public int getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+}
@@ -0,0 +1,39 @@
+package com.aykuttasil.callrecord.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Источник 16-битного PCM звука для AudioRecordEngine
+ */
+
+public interface PcmSource {
+
+    /**
+     * Открывает источник
+     * @param sampleRate частота дискретизации, Гц
+     * @param channels количество каналов
+     * @throws IOException если источник недоступен
+     */
+    void open(int sampleRate, int channels) throws IOException;
+
+    void start();
+
+    /**
+     * Читает данные в начало буфера, блокируясь до их появления.
+     * Позиция буфера не изменяется
+     * @param buffer прямой буфер
+     * @param size максимальное количество байт
+     * @return количество прочитанных байт или отрицательный код ошибки
+     */
+    int read(ByteBuffer buffer, int size);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,136 @@
+package com.aykuttasil.callrecord.engine;
+
+import java.io.File;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Именование файлов сегментов записи
+ */
+
+public final class SegmentFiles {
+
+    public static final String SILENCE_SUFFIX = ".silence";  ///< расширение файла участков тишины
+    public static final String PEAKS_SUFFIX = ".peaks";      ///< расширение файла пиков волны
+
+    private SegmentFiles() {
+    }
+
+    /**
+     * Возвращает файл сегмента рядом с первым файлом записи.
+     * Первый сегмент - сам файл записи, следующие получают суффикс _partN
+     * @param first файл первого сегмента
+     * @param index номер сегмента, начиная с 0
+     * @return файл сегмента
+     */
+    public static File segmentFile(File first, int index) {
+
+        if (index == 0) {
+            return first;
+        }
+
+        String name = first.getName();
+        int dot = name.lastIndexOf('.');
+
+        String base = dot < 0 ? name : name.substring(0, dot);
+        String suffix = dot < 0 ? "" : name.substring(dot);
+
+        return new File(first.getParentFile(), base + "_part" + index + suffix);
+    }
+
+    /**
+     * Возвращает первый файл записи по файлу любого ее сегмента
+     * @param segment файл сегмента
+     * @return файл первого сегмента, сам segment - если это первый сегмент
+     */
+    public static File firstSegment(File segment) {
+
+        String name = segment.getName();
+        int dot = name.lastIndexOf('.');
+        int end = dot < 0 ? name.length() : dot;
+        int part = name.lastIndexOf("_part", end);
+
+        if (part < 0 || part + 5 == end) {
+            return segment;
+        }
+
+        for (int i = part + 5; i < end; i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return segment;
+            }
+        }
+
+        return new File(segment.getParentFile(), name.substring(0, part) + name.substring(end));
+    }
+
+    /**
+     * Возвращает файл участков тишины записи, он лежит рядом с первым сегментом
+     * @param first файл первого сегмента
+     * @return файл участков тишины
+     */
+    public static File silenceFile(File first) {
+        return new File(first.getPath() + SILENCE_SUFFIX);
+    }
+
+    /**
+     * Возвращает файл пиков волны записи, он лежит рядом с первым сегментом
+     * и покрывает все сегменты подряд
+     * @param first файл первого сегмента
+     * @return файл пиков
+     */
+    public static File peaksFile(File first) {
+        return new File(first.getPath() + PEAKS_SUFFIX);
+    }
+
+    /**
+     * Считает общий размер записи вместе со всеми ее сегментами
+     * @param first файл первого сегмента
+     * @return размер в байтах
+     */
+    public static long totalSize(File first) {
+
+        long size = first.length();
+
+        for (int index = 1; ; index++) {
+
+            File segment = segmentFile(first, index);
+
+            if (!segment.exists()) {
+                return size;
+            }
+
+            size += segment.length();
+        }
+    }
+
+    /**
+     * Удаляет запись вместе со всеми ее сегментами, файлами участков тишины и пиков
+     * @param first файл первого сегмента
+     * @return количество освобожденных байт
+     */
+    public static long delete(File first) {
+
+        long freed = 0;
+
+        silenceFile(first).delete();
+        peaksFile(first).delete();
+
+        for (int index = 0; ; index++) {
+
+            File segment = segmentFile(first, index);
+
+            if (!segment.exists()) {
+                return freed;
+            }
+
+            long length = segment.length();
+
+            if (segment.delete()) {
+                freed += length;
+            }
+        }
+    }
+}
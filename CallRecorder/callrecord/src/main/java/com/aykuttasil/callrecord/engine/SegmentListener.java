@@ -0,0 +1,25 @@
+package com.aykuttasil.callrecord.engine;
+
+import java.io.File;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Слушатель завершенных сегментов записи.
+ * Вызывается, когда очередной сегмент полностью записан и закрыт,
+ * в том числе для последнего сегмента при остановке записи.
+ * Для MediaRecorderEngine вызывается в потоке записи,
+ * для AudioRecordEngine - в потоке кодирования.
+ */
+
+public interface SegmentListener {
+
+    /**
+     * @param segment закрытый файл сегмента
+     * @param index номер сегмента, начиная с 0
+     */
+    void onSegmentCompleted(File segment, int index);
+}
@@ -0,0 +1,210 @@
+package com.aykuttasil.callrecord.engine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Детектор тишины по уровню сигнала.
+ * Тишиной считается все, что дольше minSilenceMs остается ниже порога:
+ * первые minSilenceMs остаются естественной паузой, а остальное
+ * попадает в участок тишины до первого громкого измерения.
+ * Участки хранятся в заранее выделенном массиве, который растет
+ * только при большом количестве пауз, поэтому измерение не выделяет память.
+ * Уровень - амплитуда 0..32767, как у MediaRecorder.getMaxAmplitude().
+ */
+
+public final class SilenceDetector {
+
+    public static final String SIDECAR_HEADER = "callrecord-silence 1"; ///< первая строка файла участков
+
+    public static final String MODE_MARKED = "marked";    ///< тишина осталась в файле записи
+    public static final String MODE_REMOVED = "removed";  ///< тишина вырезана из файла записи
+
+    private static final int INITIAL_REGIONS = 16;
+
+    private final int mThreshold;
+    private final int mMinSilenceMs;
+
+    private long[] mRegions = new long[INITIAL_REGIONS * 2]; ///< пары начало-конец, мс от начала записи
+    private int mRegionCount;
+
+    private long mQuietSinceMs = -1;    ///< начало текущего тихого отрезка, -1 - сейчас громко
+    private boolean mSilent;
+
+    /**
+     * Конструктор
+     * @param threshold уровень, ниже которого сигнал считается тишиной
+     * @param minSilenceMs длительность тишины, после которой начинается участок
+     */
+    public SilenceDetector(int threshold, int minSilenceMs) {
+
+        if (threshold <= 0 || minSilenceMs < 0) {
+            throw new IllegalArgumentException("threshold: " + threshold + ", minSilenceMs: " + minSilenceMs);
+        }
+
+        mThreshold = threshold;
+        mMinSilenceMs = minSilenceMs;
+    }
+
+    /**
+     * Учитывает очередное измерение уровня
+     * @param level уровень сигнала 0..32767
+     * @param timeMs время измерения от начала записи, мс, не убывает
+     * @return true - если измерение попало в участок тишины
+     */
+    public boolean onLevel(int level, long timeMs) {
+
+        if (level >= mThreshold) {
+
+            if (mSilent) {
+                closeRegion(timeMs);
+            }
+
+            mQuietSinceMs = -1;
+
+            return false;
+        }
+
+        if (mQuietSinceMs < 0) {
+            mQuietSinceMs = timeMs;
+        }
+
+        if (!mSilent && timeMs - mQuietSinceMs >= mMinSilenceMs) {
+            openRegion(timeMs);
+        }
+
+        return mSilent;
+    }
+
+    /**
+     * Закрывает открытый участок тишины в конце записи
+     * @param timeMs время окончания записи от ее начала, мс
+     */
+    public void finish(long timeMs) {
+
+        if (mSilent) {
+            closeRegion(timeMs);
+        }
+
+        mQuietSinceMs = -1;
+    }
+
+    public boolean isSilent() {
+        return mSilent;
+    }
+
+    public int getRegionCount() {
+        return mRegionCount;
+    }
+
+    public long getRegionStart(int index) {
+        return mRegions[index * 2];
+    }
+
+    public long getRegionEnd(int index) {
+        return mRegions[index * 2 + 1];
+    }
+
+    /**
+     * @return суммарная длительность закрытых участков тишины, мс
+     */
+    public long getSilentMs() {
+
+        long total = 0;
+
+        for (int i = 0; i < mRegionCount; i++) {
+            total += getRegionEnd(i) - getRegionStart(i);
+        }
+
+        return total;
+    }
+
+    /**
+     * Записывает участки тишины рядом с записью, чтобы их можно было вырезать позже.
+     * Формат текстовый: заголовок, режим, затем строки "начало конец" в мс от начала записи
+     * @param recording первый файл записи
+     * @param mode MODE_MARKED или MODE_REMOVED
+     * @return файл участков или null, если тишины не было
+     * @throws IOException при ошибке записи
+     */
+    public File writeSidecar(File recording, String mode) throws IOException {
+
+        if (mRegionCount == 0) {
+            return null;
+        }
+
+        File sidecar = SegmentFiles.silenceFile(recording);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(sidecar), "UTF-8");
+
+        try {
+
+            writer.write(SIDECAR_HEADER);
+            writer.write('\n');
+            writer.write(mode);
+            writer.write('\n');
+
+            for (int i = 0; i < mRegionCount; i++) {
+                writer.write(Long.toString(getRegionStart(i)));
+                writer.write(' ');
+                writer.write(Long.toString(getRegionEnd(i)));
+                writer.write('\n');
+            }
+
+        } finally {
+            writer.close();
+        }
+
+        return sidecar;
+    }
+
+    /**
+     * Находит пиковую амплитуду фрейма PCM 16 бит little-endian
+     * @param frame фрейм, позиция и лимит не меняются
+     * @return амплитуда 0..32767
+     */
+    public static int peakLevel(ByteBuffer frame) {
+
+        int peak = 0;
+        int end = frame.limit() - 1;
+
+        for (int i = frame.position(); i < end; i += 2) {
+
+            int sample = (short) ((frame.get(i) & 0xff) | (frame.get(i + 1) << 8));
+            int level = sample < 0 ? -sample : sample;
+
+            if (level > peak) {
+                peak = level;
+            }
+        }
+
+        return Math.min(peak, Short.MAX_VALUE);
+    }
+
+    private void openRegion(long timeMs) {
+
+        if (mRegionCount * 2 == mRegions.length) {
+            long[] grown = new long[mRegions.length * 2];
+            System.arraycopy(mRegions, 0, grown, 0, mRegions.length);
+            mRegions = grown;
+        }
+
+        mRegions[mRegionCount * 2] = timeMs;
+        mSilent = true;
+    }
+
+    private void closeRegion(long timeMs) {
+
+        mRegions[mRegionCount * 2 + 1] = timeMs;
+        mRegionCount++;
+        mSilent = false;
+    }
+}
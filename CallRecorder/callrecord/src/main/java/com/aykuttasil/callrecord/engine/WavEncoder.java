@@ -0,0 +1,164 @@
+package com.aykuttasil.callrecord.engine;
+
+import com.aykuttasil.callrecord.crypto.EncryptedWriter;
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Кодировщик PCM в WAV. Данные пишутся в файл по мере поступления,
+ * размеры в заголовке дописываются при завершении.
+ * С RecordingCipher файл шифруется на лету, в том числе дописываемые размеры
+ */
+
+public class WavEncoder implements PcmEncoder {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final RecordingCipher mCipher;
+    private FileOutputStream mStream;
+    private FileChannel mChannel;
+    private EncryptedWriter mWriter;       ///< вместо mChannel, если файл шифруется
+    private long mDataBytes;
+
+    /**
+     * Конструктор для записи без шифрования
+     */
+    public WavEncoder() {
+        this(null);
+    }
+
+    /**
+     * Конструктор
+     * @param cipher шифрование файла, null - без шифрования
+     */
+    public WavEncoder(RecordingCipher cipher) {
+        mCipher = cipher;
+    }
+
+    @Override
+    public void begin(File outputFile, int sampleRate, int channels) throws IOException {
+
+        if (mCipher != null) {
+            mWriter = mCipher.create(outputFile);
+        } else {
+            mStream = new FileOutputStream(outputFile);
+            mChannel = mStream.getChannel();
+        }
+
+        mDataBytes = 0;
+
+        int blockAlign = channels * 2;
+
+        mHeader.clear();
+        mHeader.putInt(0x46464952);             // "RIFF"
+        mHeader.putInt(0);                      // размер файла, дописывается в end()
+        mHeader.putInt(0x45564157);             // "WAVE"
+        mHeader.putInt(0x20746d66);             // "fmt "
+        mHeader.putInt(16);
+        mHeader.putShort((short) 1);            // PCM
+        mHeader.putShort((short) channels);
+        mHeader.putInt(sampleRate);
+        mHeader.putInt(sampleRate * blockAlign);
+        mHeader.putShort((short) blockAlign);
+        mHeader.putShort((short) 16);
+        mHeader.putInt(0x61746164);             // "data"
+        mHeader.putInt(0);                      // размер данных, дописывается в end()
+        mHeader.flip();
+
+        if (mWriter != null) {
+            mWriter.write(mHeader);
+            return;
+        }
+
+        while (mHeader.hasRemaining()) {
+            mChannel.write(mHeader);
+        }
+    }
+
+    @Override
+    public void encode(ByteBuffer pcm) throws IOException {
+
+        mDataBytes += pcm.remaining();
+
+        if (mWriter != null) {
+            mWriter.write(pcm);
+            return;
+        }
+
+        while (pcm.hasRemaining()) {
+            mChannel.write(pcm);
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+
+        if (mChannel == null && mWriter == null) {
+            return;
+        }
+
+        try {
+
+            mHeader.clear();
+            mHeader.putInt((int) (mDataBytes + HEADER_SIZE - 8));
+            mHeader.flip();
+            writeFully(mHeader, 4);
+
+            mHeader.clear();
+            mHeader.putInt((int) mDataBytes);
+            mHeader.flip();
+            writeFully(mHeader, 40);
+
+        } finally {
+
+            if (mWriter != null) {
+                mWriter.close();
+            } else {
+                mStream.close();
+            }
+
+            mStream = null;
+            mChannel = null;
+            mWriter = null;
+        }
+    }
+
+    @Override
+    public int getHeaderBytes() {
+        return HEADER_SIZE;
+    }
+
+    @Override
+    public String getFileSuffix() {
+        return ".wav";
+    }
+
+    @Override
+    public boolean isEncrypted() {
+        return mCipher != null;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+
+        if (mWriter != null) {
+            mWriter.write(buffer, position);
+            return;
+        }
+
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.aykuttasil.callrecord.export;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Дописывает файлы в архив без сжатия. Архив открыт на запись с конца,
+ * для заголовков и копирования используется один буфер постоянного размера,
+ * поэтому память не зависит ни от размера файлов, ни от их количества
+ */
+
+abstract class ArchiveWriter {
+
+    static final int BUFFER_BYTES = 64 * 1024;             ///< буфер заголовков и копирования
+    static final long TRANSFER_CHUNK = 1024 * 1024;        ///< между частями проверяется отмена
+
+    final FileChannel mArchive;
+    final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Конструктор
+     * @param archive канал архива, позиция - конец уже записанной части
+     */
+    ArchiveWriter(FileChannel archive) {
+        mArchive = archive;
+    }
+
+    /**
+     * Добавляет файл в архив
+     * @param name имя в архиве, через '/'
+     * @param file файл
+     * @param task задача, отмена прерывает копирование
+     * @return false - если задачу отменили, архив тогда оборван посреди файла
+     * @throws IOException при ошибке чтения или записи
+     */
+    abstract boolean putEntry(String name, File file, ExportTask task) throws IOException;
+
+    /**
+     * Дописывает окончание архива
+     * @throws IOException при ошибке записи
+     */
+    abstract void finish() throws IOException;
+
+    /**
+     * @return длина записанной части архива, байт
+     */
+    long position() throws IOException {
+        return mArchive.position();
+    }
+
+    /**
+     * Записывает содержимое буфера от 0 до позиции в конец архива
+     */
+    void writeBuffer() throws IOException {
+
+        mBuffer.flip();
+
+        while (mBuffer.hasRemaining()) {
+            mArchive.write(mBuffer);
+        }
+
+        mBuffer.clear();
+    }
+
+    /**
+     * Копирует файл в архив средствами FileChannel, без промежуточного буфера
+     * @param file файл
+     * @param size сколько байт копировать
+     * @param task задача, отмена проверяется между частями
+     * @return false - если задачу отменили
+     */
+    boolean transfer(File file, long size, ExportTask task) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+
+            FileChannel source = in.getChannel();
+            long position = 0;
+
+            while (position < size) {
+
+                if (task.isCancelled()) {
+                    return false;
+                }
+
+                long count = source.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), mArchive);
+
+                if (count <= 0) {
+                    throw new EOFException("file shrank while exporting: " + file);
+                }
+
+                position += count;
+            }
+
+            return true;
+
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.aykuttasil.callrecord.export;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Состояние выгрузки после последней целиком добавленной записи.
+ * Пишется во временный файл и переименовывается, поэтому гибель процесса
+ * оставляет либо прежнее, либо новое состояние. При возобновлении архив
+ * и вспомогательные файлы обрезаются до сохраненных длин
+ */
+
+final class ExportCheckpoint {
+
+    private static final int VERSION = 1;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    final int format;               ///< формат архива
+    final String filterKey;         ///< фильтры запроса, RecordingQuery.getFilterKey()
+    long lastId = -1;               ///< идентификатор последней добавленной записи
+    long archiveLength;             ///< длина архива, байт
+    long centralLength;             ///< длина центрального каталога ZIP, байт
+    long manifestLength;            ///< длина манифеста, байт
+    long entryCount;                ///< файлов в архиве ZIP
+    int recordings;                 ///< записей в архиве
+
+    ExportCheckpoint(int format, String filterKey) {
+
+        this.format = format;
+        this.filterKey = filterKey;
+    }
+
+    /**
+     * @param file файл состояния
+     * @return сохраненное состояние или null, если его нет или оно повреждено
+     */
+    static ExportCheckpoint read(File file) {
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+
+            in = new DataInputStream(new FileInputStream(file));
+
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+
+            ExportCheckpoint checkpoint = new ExportCheckpoint(in.readInt(), in.readUTF());
+            checkpoint.lastId = in.readLong();
+            checkpoint.archiveLength = in.readLong();
+            checkpoint.centralLength = in.readLong();
+            checkpoint.manifestLength = in.readLong();
+            checkpoint.entryCount = in.readLong();
+            checkpoint.recordings = in.readInt();
+
+            return checkpoint;
+
+        } catch (IOException e) {
+            return null;
+        } finally {
+
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @param file файл состояния
+     * @throws IOException при ошибке записи
+     */
+    void write(File file) throws IOException {
+
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(format);
+            out.writeUTF(filterKey);
+            out.writeLong(lastId);
+            out.writeLong(archiveLength);
+            out.writeLong(centralLength);
+            out.writeLong(manifestLength);
+            out.writeLong(entryCount);
+            out.writeInt(recordings);
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException("checkpoint rename failed: " + file);
+        }
+    }
+
+    /**
+     * @return true - если состояние относится к выгрузке с тем же форматом и фильтром
+     */
+    boolean matches(int format, String filterKey) {
+        return this.format == format && this.filterKey.equals(filterKey);
+    }
+}
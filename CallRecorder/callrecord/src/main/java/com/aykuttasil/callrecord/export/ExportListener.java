@@ -0,0 +1,30 @@
+package com.aykuttasil.callrecord.export;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Получатель хода выгрузки записей в архив.
+ * Вызывается в фоновом потоке выгрузки
+ */
+
+public interface ExportListener {
+
+    /**
+     * Вызывается после каждой записи, добавленной в архив
+     * @param task задача выгрузки
+     * @param recordings записей в архиве, включая выгруженные до возобновления
+     * @param bytes длина архива, байт
+     */
+    void onExportProgress(ExportTask task, int recordings, long bytes);
+
+    /**
+     * @param task задача выгрузки
+     * @param recordings записей в архиве
+     * @param complete true - архив готов; false - выгрузка отменена или прервана ошибкой,
+     *                 повторный запуск с тем же архивом и фильтром продолжит ее
+     */
+    void onExportFinished(ExportTask task, int recordings, boolean complete);
+}
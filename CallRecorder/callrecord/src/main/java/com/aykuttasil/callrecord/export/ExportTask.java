@@ -0,0 +1,72 @@
+package com.aykuttasil.callrecord.export;
+
+import com.aykuttasil.callrecord.index.RecordingQuery;
+
+import java.io.File;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Выгрузка отобранных записей в один архив. Отмена оставляет архив
+ * и файл состояния, поэтому новая задача с тем же архивом, форматом
+ * и фильтром продолжит выгрузку с записи, на которой остановилась эта
+ */
+
+public class ExportTask {
+
+    private final File mArchive;
+    private final int mFormat;
+    private final RecordingQuery mFilter;
+    private final File mRecordDir;
+
+    private volatile boolean mCancelled;
+
+    /**
+     * Конструктор
+     * @param archive файл архива
+     * @param format RecordingExporter.FORMAT_ZIP или RecordingExporter.FORMAT_TAR
+     * @param filter фильтры по дате, номеру и направлению; сортировка и страница не используются
+     * @param recordDir директория записей, пути в архиве строятся относительно нее
+     */
+    public ExportTask(File archive, int format, RecordingQuery filter, File recordDir) {
+
+        if (format != RecordingExporter.FORMAT_ZIP && format != RecordingExporter.FORMAT_TAR) {
+            throw new IllegalArgumentException("Unsupported archive format: " + format);
+        }
+
+        mArchive = archive;
+        mFormat = format;
+        mFilter = filter;
+        mRecordDir = recordDir;
+    }
+
+    /**
+     * Останавливает выгрузку после текущей части файла
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public File getArchive() {
+        return mArchive;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public RecordingQuery getFilter() {
+        return mFilter;
+    }
+
+    public File getRecordDir() {
+        return mRecordDir;
+    }
+}
@@ -0,0 +1,432 @@
+package com.aykuttasil.callrecord.export;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+import com.aykuttasil.callrecord.engine.SegmentFiles;
+import com.aykuttasil.callrecord.index.Recording;
+import com.aykuttasil.callrecord.index.RecordingIndex;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Выгружает отобранные записи в один архив ZIP или TAR без перекодирования.
+ * Записи читаются из индекса страницами по идентификатору, файлы копируются
+ * через FileChannel, манифест и центральный каталог ZIP копятся во вспомогательных
+ * файлах рядом с архивом, поэтому память не растет с числом записей.
+ * После каждой записи сохраняется состояние, выгрузку можно отменить
+ * или потерять вместе с процессом и продолжить с того же места.
+ *
+ * В архиве: recordings/путь относительно директории записей (все сегменты,
+ * файлы участков тишины и пиков волны) и manifest.jsonl - по строке JSON на запись.
+ * Зашифрованные записи выгружаются как есть, в манифесте у них "encrypted":true
+ */
+
+public class RecordingExporter {
+
+    private static final String TAG = RecordingExporter.class.getSimpleName();
+
+    public static final int FORMAT_ZIP = 0;     ///< ZIP без сжатия, с ZIP64 для больших архивов
+    public static final int FORMAT_TAR = 1;     ///< TAR ustar
+
+    public static final String ENTRY_DIR = "recordings/";
+    public static final String MANIFEST_NAME = "manifest.jsonl";
+
+    static final String STATE_SUFFIX = ".export";
+    static final String MANIFEST_SUFFIX = ".manifest";
+    static final String CENTRAL_SUFFIX = ".central";
+
+    private static final int PAGE_SIZE = 100;
+
+    private final RecordingIndex mIndex;
+    private final ExecutorService mExecutor;
+
+    /**
+     * Конструктор
+     * @param index индекс записей
+     */
+    public RecordingExporter(RecordingIndex index) {
+
+        mIndex = index;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "CallRecord-export");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Запускает выгрузку в фоновом потоке. Задачи выполняются по очереди
+     * @param task задача выгрузки
+     * @param listener получатель хода выгрузки или null
+     */
+    public void requestExport(final ExportTask task, final ExportListener listener) {
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                boolean complete = false;
+                int[] recordings = new int[1];
+
+                try {
+                    complete = export(task, listener, recordings);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "export failed: " + task.getArchive(), e);
+                }
+
+                Log.i(TAG, "exported recordings: " + recordings[0] + ", complete: " + complete);
+
+                if (listener != null) {
+                    listener.onExportFinished(task, recordings[0], complete);
+                }
+            }
+        });
+    }
+
+    /**
+     * Выгружает записи в текущем потоке, продолжая прерванную выгрузку в тот же архив
+     * @param task задача выгрузки
+     * @param listener получатель хода выгрузки или null
+     * @param recordings [0] - записей в архиве
+     * @return true - если архив готов, false - если задачу отменили
+     * @throws IOException при ошибке чтения записи или записи архива; состояние сохраняется
+     */
+    public boolean export(ExportTask task, ExportListener listener, int[] recordings) throws IOException {
+
+        File archive = task.getArchive();
+        File stateFile = sibling(archive, STATE_SUFFIX);
+        File manifestFile = sibling(archive, MANIFEST_SUFFIX);
+        File centralFile = sibling(archive, CENTRAL_SUFFIX);
+        String filterKey = task.getFilter().getFilterKey();
+
+        ExportCheckpoint checkpoint = ExportCheckpoint.read(stateFile);
+
+        // архив или вспомогательные файлы удалены или обрезаны после сохранения состояния
+        if (checkpoint != null && (archive.length() < checkpoint.archiveLength
+                || manifestFile.length() < checkpoint.manifestLength
+                || centralFile.length() < checkpoint.centralLength)) {
+            checkpoint = null;
+        }
+
+        if (checkpoint == null || !checkpoint.matches(task.getFormat(), filterKey)) {
+            checkpoint = new ExportCheckpoint(task.getFormat(), filterKey);
+        } else {
+            Log.i(TAG, "resuming export after record " + checkpoint.lastId + ": " + archive);
+        }
+
+        recordings[0] = checkpoint.recordings;
+
+        RandomAccessFile archiveFile = null;
+        RandomAccessFile manifest = null;
+        RandomAccessFile central = null;
+        boolean complete = false;
+
+        try {
+
+            archiveFile = open(archive, checkpoint.archiveLength);
+            manifest = open(manifestFile, checkpoint.manifestLength);
+
+            ArchiveWriter writer;
+            ZipWriter zipWriter = null;
+
+            if (task.getFormat() == FORMAT_ZIP) {
+                central = open(centralFile, checkpoint.centralLength);
+                writer = zipWriter = new ZipWriter(archiveFile.getChannel(), central.getChannel(),
+                        checkpoint.entryCount);
+            } else {
+                writer = new TarWriter(archiveFile.getChannel());
+            }
+
+            checkpoint.write(stateFile);
+
+            StringBuilder line = new StringBuilder();
+
+            while (true) {
+
+                List<Recording> page = mIndex.queryAfter(task.getFilter(), checkpoint.lastId, PAGE_SIZE);
+
+                if (page.isEmpty()) {
+                    break;
+                }
+
+                for (Recording recording : page) {
+
+                    if (task.isCancelled()) {
+                        return false;
+                    }
+
+                    File first = new File(recording.getPath());
+
+                    // незавершенные и удаленные записи пропускаются
+                    if (recording.isFinished() && first.isFile()) {
+
+                        line.setLength(0);
+
+                        if (!putRecording(writer, task, recording, first, line)) {
+                            return false;
+                        }
+
+                        manifest.getChannel().write(ByteBuffer.wrap(line.toString().getBytes("UTF-8")));
+
+                        checkpoint.recordings++;
+                    }
+
+                    checkpoint.lastId = recording.getId();
+                    checkpoint.archiveLength = writer.position();
+                    checkpoint.manifestLength = manifest.getChannel().position();
+
+                    if (zipWriter != null) {
+                        checkpoint.centralLength = central.getChannel().position();
+                        checkpoint.entryCount = zipWriter.getEntryCount();
+                    }
+
+                    checkpoint.write(stateFile);
+
+                    recordings[0] = checkpoint.recordings;
+
+                    if (listener != null) {
+                        listener.onExportProgress(task, checkpoint.recordings, checkpoint.archiveLength);
+                    }
+                }
+            }
+
+            if (!writer.putEntry(MANIFEST_NAME, manifestFile, task)) {
+                return false;
+            }
+
+            writer.finish();
+            archiveFile.getChannel().force(false);
+
+            complete = true;
+
+        } finally {
+
+            closeQuietly(archiveFile);
+            closeQuietly(manifest);
+            closeQuietly(central);
+
+            if (complete) {
+                stateFile.delete();
+                manifestFile.delete();
+                centralFile.delete();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Прерывает выгрузки и останавливает фоновый поток; состояние выгрузок сохраняется
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Добавляет файлы записи в архив и собирает строку манифеста
+     * @return false - если задачу отменили
+     */
+    private static boolean putRecording(ArchiveWriter writer, ExportTask task, Recording recording, File first,
+                                        StringBuilder line) throws IOException {
+
+        line.append("{\"id\":").append(recording.getId());
+        line.append(",\"number\":");
+        appendJson(line, recording.getNumber());
+        line.append(",\"direction\":");
+        appendJson(line, recording.getDirection());
+        line.append(",\"start\":").append(recording.getStartTime());
+        line.append(",\"end\":").append(recording.getEndTime());
+        line.append(",\"duration\":").append(recording.getDuration());
+        line.append(",\"size\":").append(recording.getSize());
+        line.append(",\"format\":");
+        appendJson(line, recording.getFormat());
+        line.append(",\"profile\":");
+        appendJson(line, recording.getProfile());
+        line.append(",\"encrypted\":").append(first.getName().endsWith(RecordingCipher.FILE_SUFFIX));
+        line.append(",\"files\":[");
+
+        for (int index = 0; ; index++) {
+
+            File segment = SegmentFiles.segmentFile(first, index);
+
+            if (!segment.isFile()) {
+                break;
+            }
+
+            String name = entryName(task.getRecordDir(), segment, recording.getId());
+
+            if (!writer.putEntry(name, segment, task)) {
+                return false;
+            }
+
+            if (index > 0) {
+                line.append(',');
+            }
+
+            appendJson(line, name);
+        }
+
+        line.append("],\"silence\":");
+
+        if (!putSidecar(writer, task, recording, SegmentFiles.silenceFile(first), line)) {
+            return false;
+        }
+
+        line.append(",\"peaks\":");
+
+        if (!putSidecar(writer, task, recording, SegmentFiles.peaksFile(first), line)) {
+            return false;
+        }
+
+        line.append("}\n");
+
+        return true;
+    }
+
+    /**
+     * Добавляет файл рядом с записью, если он есть, и его имя в строку манифеста
+     * @return false - если задачу отменили
+     */
+    private static boolean putSidecar(ArchiveWriter writer, ExportTask task, Recording recording, File sidecar,
+                                      StringBuilder line) throws IOException {
+
+        if (!sidecar.isFile()) {
+            line.append("null");
+            return true;
+        }
+
+        String name = entryName(task.getRecordDir(), sidecar, recording.getId());
+
+        if (!writer.putEntry(name, sidecar, task)) {
+            return false;
+        }
+
+        appendJson(line, name);
+
+        return true;
+    }
+
+    /**
+     * @param root директория записей
+     * @param file файл записи
+     * @param id идентификатор записи, для файлов вне директории записей
+     * @return имя файла в архиве
+     */
+    static String entryName(File root, File file, long id) {
+
+        String rootPath = root != null ? root.getAbsolutePath() + File.separator : null;
+        String path = file.getAbsolutePath();
+        String relative = rootPath != null && path.startsWith(rootPath)
+                ? path.substring(rootPath.length()) : id + "/" + file.getName();
+
+        return ENTRY_DIR + relative.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Дописывает строку JSON в кавычках или null
+     */
+    static void appendJson(StringBuilder line, String value) {
+
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+
+        line.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+
+        line.append('"');
+    }
+
+    /**
+     * Открывает файл на запись с конца, предварительно обрезав до заданной длины
+     */
+    private static RandomAccessFile open(File file, long length) throws IOException {
+
+        File dir = file.getAbsoluteFile().getParentFile();
+
+        if (dir != null && !dir.isDirectory()) {
+            dir.mkdirs();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+
+            FileChannel channel = raf.getChannel();
+            channel.truncate(length);
+            channel.position(length);
+
+            return raf;
+
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static File sibling(File archive, String suffix) {
+        return new File(archive.getPath() + suffix);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.aykuttasil.callrecord.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Архив TAR (ustar). Размер файла известен заранее, поэтому заголовок пишется
+ * перед данными, а данные копируются FileChannel.transferTo() без чтения в память.
+ * Имена длиннее полей ustar передаются расширенным заголовком PAX
+ */
+
+final class TarWriter extends ArchiveWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BLOCK = 512;
+    private static final int NAME_BYTES = 100;
+    private static final int PREFIX_BYTES = 155;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;  ///< больше - в двоичном виде GNU
+    private static final byte[] MAGIC = {'u', 's', 't', 'a', 'r', 0, '0', '0'};
+    private static final byte[] ZEROS = new byte[BLOCK * 2];
+
+    /**
+     * Конструктор
+     * @param archive канал архива, позиция - конец последнего файла
+     */
+    TarWriter(FileChannel archive) {
+        super(archive);
+    }
+
+    @Override
+    boolean putEntry(String name, File file, ExportTask task) throws IOException {
+
+        long size = file.length();
+        long mtime = file.lastModified() / 1000;
+        byte[] nameBytes = name.getBytes(UTF_8);
+        int split = splitName(nameBytes);
+
+        if (split < -1) {
+
+            byte[] record = paxRecord("path", nameBytes);
+
+            writeHeader(trimName(nameBytes), -1, record.length, mtime, (byte) 'x');
+            mBuffer.put(record);
+            pad(record.length);
+            writeBuffer();
+
+            writeHeader(trimName(nameBytes), -1, size, mtime, (byte) '0');
+
+        } else {
+            writeHeader(nameBytes, split, size, mtime, (byte) '0');
+        }
+
+        writeBuffer();
+
+        if (!transfer(file, size, task)) {
+            return false;
+        }
+
+        pad(size);
+        writeBuffer();
+
+        return true;
+    }
+
+    @Override
+    void finish() throws IOException {
+
+        mBuffer.put(ZEROS);
+        writeBuffer();
+    }
+
+    /**
+     * Добавляет в буфер заголовок ustar
+     * @param name имя в UTF-8
+     * @param split индекс '/', по которому имя делится на prefix и name, -1 - не делится
+     */
+    private void writeHeader(byte[] name, int split, long size, long mtime, byte type) {
+
+        int start = mBuffer.position();
+
+        mBuffer.put(ZEROS, 0, BLOCK);
+
+        if (split >= 0) {
+            put(start + 345, name, 0, split);
+            put(start + 0, name, split + 1, name.length - split - 1);
+        } else {
+            put(start + 0, name, 0, name.length);
+        }
+
+        putOctal(start + 100, 8, 0644);
+        putOctal(start + 108, 8, 0);
+        putOctal(start + 116, 8, 0);
+
+        if (size <= MAX_OCTAL_SIZE) {
+            putOctal(start + 124, 12, size);
+        } else {
+
+            mBuffer.put(start + 124, (byte) 0x80);
+
+            for (int i = 0; i < 8; i++) {
+                mBuffer.put(start + 135 - i, (byte) (size >>> (8 * i)));
+            }
+        }
+
+        putOctal(start + 136, 12, mtime);
+        mBuffer.put(start + 156, type);
+        put(start + 257, MAGIC, 0, MAGIC.length);
+
+        // контрольная сумма считается с пробелами на своем месте
+        for (int i = 0; i < 8; i++) {
+            mBuffer.put(start + 148 + i, (byte) ' ');
+        }
+
+        long checksum = 0;
+
+        for (int i = 0; i < BLOCK; i++) {
+            checksum += mBuffer.get(start + i) & 0xFF;
+        }
+
+        putOctal(start + 148, 7, checksum);
+    }
+
+    /**
+     * Дополняет данные нулями до границы блока
+     */
+    private void pad(long size) {
+
+        int tail = (int) (size % BLOCK);
+
+        if (tail != 0) {
+            mBuffer.put(ZEROS, 0, BLOCK - tail);
+        }
+    }
+
+    private void put(int offset, byte[] bytes, int from, int length) {
+
+        for (int i = 0; i < length; i++) {
+            mBuffer.put(offset + i, bytes[from + i]);
+        }
+    }
+
+    /**
+     * Восьмеричное число с ведущими нулями и завершающим нулевым байтом
+     */
+    private void putOctal(int offset, int length, long value) {
+
+        String octal = Long.toOctalString(value);
+
+        for (int i = 0; i < length - 1; i++) {
+
+            int digit = i - (length - 1 - octal.length());
+
+            mBuffer.put(offset + i, (byte) (digit >= 0 ? octal.charAt(digit) : '0'));
+        }
+
+        mBuffer.put(offset + length - 1, (byte) 0);
+    }
+
+    /**
+     * @return -1 - имя помещается в поле name, индекс '/' для деления на prefix и name,
+     * -2 - нужен заголовок PAX
+     */
+    static int splitName(byte[] name) {
+
+        if (name.length <= NAME_BYTES) {
+            return -1;
+        }
+
+        for (int i = Math.max(0, name.length - NAME_BYTES - 1); i < name.length && i <= PREFIX_BYTES; i++) {
+            if (name[i] == '/') {
+                return i;
+            }
+        }
+
+        return -2;
+    }
+
+    /**
+     * @return последние байты имени, которые видят читатели без поддержки PAX
+     */
+    private static byte[] trimName(byte[] name) {
+
+        int from = name.length - NAME_BYTES;
+
+        // не начинать с середины символа UTF-8
+        while ((name[from] & 0xC0) == 0x80) {
+            from++;
+        }
+
+        byte[] trimmed = new byte[name.length - from];
+        System.arraycopy(name, from, trimmed, 0, trimmed.length);
+
+        return trimmed;
+    }
+
+    /**
+     * @return запись PAX "длина ключ=значение\n", длина включает собственные цифры
+     */
+    static byte[] paxRecord(String key, byte[] value) {
+
+        int body = 1 + key.length() + 1 + value.length + 1;
+        int length = body + String.valueOf(body).length();
+
+        if (String.valueOf(length).length() != String.valueOf(body).length()) {
+            length++;
+        }
+
+        byte[] head = (length + " " + key + "=").getBytes(UTF_8);
+        byte[] record = new byte[length];
+
+        System.arraycopy(head, 0, record, 0, head.length);
+        System.arraycopy(value, 0, record, head.length, value.length);
+        record[length - 1] = '\n';
+
+        return record;
+    }
+}
@@ -0,0 +1,287 @@
+package com.aykuttasil.callrecord.export;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Архив ZIP без сжатия (STORED). CRC32 известна только после чтения файла,
+ * поэтому локальный заголовок пишется с нулевой суммой и дописывается
+ * на место после копирования. Центральный каталог копится не в памяти,
+ * а во вспомогательном файле и переносится в архив в finish().
+ * Для архивов больше 4 ГБ и 65535 файлов используются записи ZIP64
+ */
+
+final class ZipWriter extends ArchiveWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+
+    private static final short ZIP64_EXTRA = 0x0001;
+    private static final short VERSION = 20;
+    private static final short VERSION_ZIP64 = 45;
+    private static final short FLAG_UTF8 = 0x0800;
+    private static final short METHOD_STORED = 0;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    private final FileChannel mCentral;     ///< центральный каталог, дописывается по мере добавления файлов
+    private final ByteBuffer mCentralBuffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 mCrc = new CRC32();
+    private long mEntryCount;
+
+    /**
+     * Конструктор
+     * @param archive канал архива, позиция - конец последнего файла
+     * @param central канал центрального каталога, позиция - конец последней записи
+     * @param entryCount количество файлов, уже записанных в архив
+     */
+    ZipWriter(FileChannel archive, FileChannel central, long entryCount) {
+
+        super(archive);
+
+        mCentral = central;
+        mEntryCount = entryCount;
+    }
+
+    @Override
+    boolean putEntry(String name, File file, ExportTask task) throws IOException {
+
+        long size = file.length();
+        long offset = mArchive.position();
+        int dosTime = dosTime(file.lastModified());
+        byte[] nameBytes = name.getBytes(UTF_8);
+        boolean zip64Size = size >= MAX_32;
+
+        mBuffer.putInt(LOCAL_HEADER);
+        mBuffer.putShort(zip64Size ? VERSION_ZIP64 : VERSION);
+        mBuffer.putShort(FLAG_UTF8);
+        mBuffer.putShort(METHOD_STORED);
+        mBuffer.putInt(dosTime);
+        mBuffer.putInt(0);                                  // CRC32, дописывается после данных
+        mBuffer.putInt((int) (zip64Size ? MAX_32 : size));
+        mBuffer.putInt((int) (zip64Size ? MAX_32 : size));
+        mBuffer.putShort((short) nameBytes.length);
+        mBuffer.putShort((short) (zip64Size ? 20 : 0));
+        mBuffer.put(nameBytes);
+
+        if (zip64Size) {
+            mBuffer.putShort(ZIP64_EXTRA);
+            mBuffer.putShort((short) 16);
+            mBuffer.putLong(size);
+            mBuffer.putLong(size);
+        }
+
+        writeBuffer();
+
+        if (!copy(file, size, task)) {
+            return false;
+        }
+
+        int crc = (int) mCrc.getValue();
+
+        mBuffer.putInt(crc);
+        mBuffer.flip();
+
+        while (mBuffer.hasRemaining()) {
+            mArchive.write(mBuffer, offset + 14 + 4 - mBuffer.remaining());
+        }
+
+        mBuffer.clear();
+
+        writeCentral(nameBytes, size, offset, dosTime, crc);
+        mEntryCount++;
+
+        return true;
+    }
+
+    @Override
+    void finish() throws IOException {
+
+        long centralOffset = mArchive.position();
+        long centralSize = mCentral.position();
+        long position = 0;
+
+        while (position < centralSize) {
+            position += mCentral.transferTo(position, centralSize - position, mArchive);
+        }
+
+        if (mEntryCount >= MAX_16 || centralSize >= MAX_32 || centralOffset >= MAX_32) {
+
+            long zip64End = mArchive.position();
+
+            mBuffer.putInt(ZIP64_END_OF_CENTRAL);
+            mBuffer.putLong(44);
+            mBuffer.putShort(VERSION_ZIP64);
+            mBuffer.putShort(VERSION_ZIP64);
+            mBuffer.putInt(0);
+            mBuffer.putInt(0);
+            mBuffer.putLong(mEntryCount);
+            mBuffer.putLong(mEntryCount);
+            mBuffer.putLong(centralSize);
+            mBuffer.putLong(centralOffset);
+
+            mBuffer.putInt(ZIP64_LOCATOR);
+            mBuffer.putInt(0);
+            mBuffer.putLong(zip64End);
+            mBuffer.putInt(1);
+        }
+
+        mBuffer.putInt(END_OF_CENTRAL);
+        mBuffer.putShort((short) 0);
+        mBuffer.putShort((short) 0);
+        mBuffer.putShort((short) Math.min(mEntryCount, MAX_16));
+        mBuffer.putShort((short) Math.min(mEntryCount, MAX_16));
+        mBuffer.putInt((int) Math.min(centralSize, MAX_32));
+        mBuffer.putInt((int) Math.min(centralOffset, MAX_32));
+        mBuffer.putShort((short) 0);
+
+        writeBuffer();
+    }
+
+    /**
+     * @return количество файлов в архиве
+     */
+    long getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Копирует файл через буфер постоянного размера, считая CRC32
+     * @return false - если задачу отменили
+     */
+    private boolean copy(File file, long size, ExportTask task) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+        byte[] array = mBuffer.array();
+
+        mCrc.reset();
+
+        try {
+
+            FileChannel source = in.getChannel();
+            long remaining = size;
+
+            while (remaining > 0) {
+
+                if (task.isCancelled()) {
+                    return false;
+                }
+
+                mBuffer.limit((int) Math.min(mBuffer.capacity(), remaining));
+
+                int read = source.read(mBuffer);
+
+                if (read < 0) {
+                    throw new EOFException("file shrank while exporting: " + file);
+                }
+
+                mCrc.update(array, mBuffer.position() - read, read);
+
+                if (!mBuffer.hasRemaining()) {
+                    remaining -= mBuffer.position();
+                    writeBuffer();
+                }
+            }
+
+            return true;
+
+        } finally {
+            mBuffer.clear();
+            in.close();
+        }
+    }
+
+    /**
+     * Дописывает запись центрального каталога
+     */
+    private void writeCentral(byte[] name, long size, long offset, int dosTime, int crc) throws IOException {
+
+        boolean zip64Size = size >= MAX_32;
+        boolean zip64Offset = offset >= MAX_32;
+        int extra = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+
+        ByteBuffer buffer = mCentralBuffer;
+
+        buffer.putInt(CENTRAL_HEADER);
+        buffer.putShort(VERSION_ZIP64);
+        buffer.putShort(extra > 0 ? VERSION_ZIP64 : VERSION);
+        buffer.putShort(FLAG_UTF8);
+        buffer.putShort(METHOD_STORED);
+        buffer.putInt(dosTime);
+        buffer.putInt(crc);
+        buffer.putInt((int) (zip64Size ? MAX_32 : size));
+        buffer.putInt((int) (zip64Size ? MAX_32 : size));
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) (extra > 0 ? extra + 4 : 0));
+        buffer.putShort((short) 0);                         // комментарий
+        buffer.putShort((short) 0);                         // номер диска
+        buffer.putShort((short) 0);                         // внутренние атрибуты
+        buffer.putInt(0);                                   // внешние атрибуты
+        buffer.putInt((int) (zip64Offset ? MAX_32 : offset));
+        buffer.put(name);
+
+        if (extra > 0) {
+
+            buffer.putShort(ZIP64_EXTRA);
+            buffer.putShort((short) extra);
+
+            if (zip64Size) {
+                buffer.putLong(size);
+                buffer.putLong(size);
+            }
+
+            if (zip64Offset) {
+                buffer.putLong(offset);
+            }
+        }
+
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            mCentral.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    /**
+     * @param time время в мс
+     * @return время и дата MS-DOS в местном часовом поясе, как у java.util.zip
+     */
+    static int dosTime(long time) {
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+
+        int year = calendar.get(Calendar.YEAR);
+
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+}
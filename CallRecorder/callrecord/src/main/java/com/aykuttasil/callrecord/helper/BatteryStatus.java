@@ -0,0 +1,56 @@
+package com.aykuttasil.callrecord.helper;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Заряд батареи на момент вызова. Читается из закрепленного
+ * широковещательного сообщения ACTION_BATTERY_CHANGED без регистрации ресивера
+ */
+
+public final class BatteryStatus {
+
+    private final int percent;          ///< заряд 0..100, -1 - неизвестен
+    private final boolean charging;     ///< true - если устройство заряжается или заряжено
+
+    private BatteryStatus(int percent, boolean charging) {
+
+        this.percent = percent;
+        this.charging = charging;
+    }
+
+    /**
+     * @param context контекст приложения
+     * @return текущее состояние батареи
+     */
+    public static BatteryStatus read(Context context) {
+
+        Intent intent = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+        if (intent == null) {
+            return new BatteryStatus(-1, false);
+        }
+
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+
+        return new BatteryStatus(level >= 0 && scale > 0 ? level * 100 / scale : -1,
+                status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL);
+    }
+
+    public int getPercent() {
+        return percent;
+    }
+
+    public boolean isCharging() {
+        return charging;
+    }
+}
@@ -6,6 +6,8 @@ import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.Map;
+
 /**
  * \brief Регистрация звонков.
  * \author WonderWorcer
@@ -114,6 +116,58 @@ public class PrefsHelper {
     }
     //
 
+    /**
+     * Записывает набор значений одной транзакцией через асинхронный apply().
+     * Ключи, значение которых не изменилось, пропускаются;
+     * если изменений нет, транзакция не создается вовсе
+     * @param pref настройки, в которые производится запись
+     * @param values значения (String, Integer, Long или Boolean) по названиям параметров
+     * @return количество записанных параметров
+     */
+    public static int applyChanges(SharedPreferences pref, Map<String, ?> values) {
+
+        Map<String, ?> current = pref.getAll();
+        SharedPreferences.Editor editor = null;
+        int changed = 0;
+
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+
+            String key = entry.getKey();
+            Object value = entry.getValue();
+
+            if (current != null && current.containsKey(key)
+                    && (value == null ? current.get(key) == null : value.equals(current.get(key)))) {
+                continue;
+            }
+
+            if (editor == null) {
+                editor = pref.edit();
+            }
+
+            if (value == null) {
+                editor.remove(key);
+            } else if (value instanceof String) {
+                editor.putString(key, (String) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else {
+                throw new IllegalArgumentException("Unsupported value type for key " + key);
+            }
+
+            changed++;
+        }
+
+        if (editor != null) {
+            editor.apply();
+        }
+
+        return changed;
+    }
+
     /**
      * Отчищает контекст от пользовательских настроек
      * @param context текущий контект приложения
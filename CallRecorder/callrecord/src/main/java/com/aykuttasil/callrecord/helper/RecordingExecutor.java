@@ -0,0 +1,72 @@
+package com.aykuttasil.callrecord.helper;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Однопоточный исполнитель для всех операций записи.
+ * Задачи выполняются строго в порядке поступления, поэтому старт
+ * и остановка записи не могут поменяться местами, а главный поток
+ * не выполняет ни создания файлов, ни подготовки рекордера.
+ */
+
+public class RecordingExecutor implements Executor {
+
+    private static final String THREAD_NAME = "CallRecord-recording";
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /**
+     * Конструктор
+     * Запускает поток записи
+     */
+    public RecordingExecutor() {
+
+        mThread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_AUDIO);
+        mThread.start();
+
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Ставит задачу в очередь потока записи
+     * @param command задача
+     */
+    @Override
+    public void execute(Runnable command) {
+
+        if (!mHandler.post(command)) {
+            throw new IllegalStateException("Recording executor is shut down");
+        }
+    }
+
+    /**
+     * Необходим для проверки, выполняется ли код в потоке записи
+     * @return true - если текущий поток является потоком записи
+     */
+    public boolean isRecordingThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Завершает поток после выполнения уже поставленных задач
+     */
+    public void shutdown() {
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            mThread.quitSafely();
+        } else {
+            mThread.quit();
+        }
+    }
+}
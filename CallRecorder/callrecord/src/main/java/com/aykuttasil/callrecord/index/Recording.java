@@ -0,0 +1,91 @@
+package com.aykuttasil.callrecord.index;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Запись индекса: сведения об одном записанном звонке
+ */
+
+public class Recording {
+
+    private final long id;              ///< идентификатор записи в индексе
+    private final String number;        ///< номер телефона
+    private final String direction;     ///< направление звонка: incoming или outgoing
+    private final long startTime;       ///< время начала записи, мс
+    private final long endTime;         ///< время окончания звонка, мс, 0 - запись не завершена
+    private final long duration;        ///< длительность, мс
+    private final String path;          ///< путь до файла записи
+    private final long size;            ///< размер записи в байтах, вместе с сегментами
+    private final String format;        ///< расширение файла без точки
+    private final String profile;       ///< профиль кодирования, выбранный для звонка, null - постоянные настройки
+
+    public Recording(long id, String number, String direction, long startTime, long endTime,
+                     long duration, String path, long size, String format) {
+        this(id, number, direction, startTime, endTime, duration, path, size, format, null);
+    }
+
+    public Recording(long id, String number, String direction, long startTime, long endTime,
+                     long duration, String path, long size, String format, String profile) {
+
+        this.id = id;
+        this.number = number;
+        this.direction = direction;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.duration = duration;
+        this.path = path;
+        this.size = size;
+        this.format = format;
+        this.profile = profile;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getNumber() {
+        return number;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return true - если запись завершена
+     */
+    public boolean isFinished() {
+        return endTime > 0;
+    }
+}
@@ -0,0 +1,313 @@
+package com.aykuttasil.callrecord.index;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Индекс записей на основе SQLite.
+ * Строка добавляется при старте записи и дополняется при окончании звонка,
+ * поэтому список записей не требует обхода директории и разбора имен файлов.
+ */
+
+public class RecordingIndex extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "callrecord_index.db";
+    static final int DATABASE_VERSION = 2;
+
+    static final String TABLE = "recordings";
+
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_NUMBER = "number";
+    public static final String COLUMN_DIRECTION = "direction";
+    public static final String COLUMN_START = "start_time";
+    public static final String COLUMN_END = "end_time";
+    public static final String COLUMN_DURATION = "duration";
+    public static final String COLUMN_PATH = "path";
+    public static final String COLUMN_SIZE = "size";
+    public static final String COLUMN_FORMAT = "format";
+    public static final String COLUMN_PROFILE = "profile";
+
+    private static final String[] COLUMNS = {
+            COLUMN_ID, COLUMN_NUMBER, COLUMN_DIRECTION, COLUMN_START, COLUMN_END,
+            COLUMN_DURATION, COLUMN_PATH, COLUMN_SIZE, COLUMN_FORMAT, COLUMN_PROFILE
+    };
+
+    /**
+     * Конструктор
+     * @param context текущий контекст приложения
+     */
+    public RecordingIndex(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Конструктор с отдельной базой, для тестов
+     * @param context текущий контекст приложения
+     * @param name имя файла базы
+     */
+    RecordingIndex(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_NUMBER + " TEXT, "
+                + COLUMN_DIRECTION + " TEXT, "
+                + COLUMN_START + " INTEGER NOT NULL, "
+                + COLUMN_END + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_DURATION + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_PATH + " TEXT NOT NULL UNIQUE, "
+                + COLUMN_SIZE + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_FORMAT + " TEXT, "
+                + COLUMN_PROFILE + " TEXT)");
+
+        db.execSQL("CREATE INDEX idx_" + TABLE + "_start ON " + TABLE + " (" + COLUMN_START + ")");
+        db.execSQL("CREATE INDEX idx_" + TABLE + "_number ON " + TABLE + " (" + COLUMN_NUMBER + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_PROFILE + " TEXT");
+        }
+    }
+
+    /**
+     * Добавляет запись при старте
+     * @param number номер телефона
+     * @param direction направление звонка
+     * @param startTime время начала записи, мс
+     * @param path путь до файла записи
+     * @param format расширение файла без точки
+     * @return идентификатор записи или -1 при ошибке
+     */
+    public long insertStarted(String number, String direction, long startTime, String path, String format) {
+        return insertStarted(number, direction, startTime, path, format, null);
+    }
+
+    /**
+     * Добавляет запись при старте вместе с профилем кодирования
+     * @param number номер телефона
+     * @param direction направление звонка
+     * @param startTime время начала записи, мс
+     * @param path путь до файла записи
+     * @param format расширение файла без точки
+     * @param profile название профиля, выбранного для звонка, null - постоянные настройки
+     * @return идентификатор записи или -1 при ошибке
+     */
+    public long insertStarted(String number, String direction, long startTime, String path, String format,
+                              String profile) {
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NUMBER, number);
+        values.put(COLUMN_DIRECTION, direction);
+        values.put(COLUMN_START, startTime);
+        values.put(COLUMN_PATH, path);
+        values.put(COLUMN_FORMAT, format);
+        values.put(COLUMN_PROFILE, profile);
+
+        return getWritableDatabase().insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Дополняет запись при окончании звонка
+     * @param id идентификатор записи
+     * @param endTime время окончания звонка, мс
+     * @param size размер записи в байтах
+     * @return true - если запись найдена
+     */
+    public boolean updateFinished(long id, long endTime, long size) {
+
+        Recording recording = get(id);
+
+        if (recording == null) {
+            return false;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_END, endTime);
+        values.put(COLUMN_DURATION, Math.max(0, endTime - recording.getStartTime()));
+        values.put(COLUMN_SIZE, size);
+
+        return getWritableDatabase().update(TABLE, values, COLUMN_ID + " = ?",
+                new String[]{String.valueOf(id)}) > 0;
+    }
+
+    /**
+     * Меняет размер записи, например после исправления оборванного файла
+     * @param id идентификатор записи
+     * @param size размер записи в байтах
+     * @return true - если запись найдена
+     */
+    public boolean updateSize(long id, long size) {
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_SIZE, size);
+
+        return getWritableDatabase().update(TABLE, values, COLUMN_ID + " = ?",
+                new String[]{String.valueOf(id)}) > 0;
+    }
+
+    /**
+     * Удаляет запись из индекса
+     * @param id идентификатор записи
+     */
+    public void delete(long id) {
+        getWritableDatabase().delete(TABLE, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+    }
+
+    /**
+     * @return суммарный размер всех записей в индексе, байт
+     */
+    public long totalSize() {
+
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT SUM(" + COLUMN_SIZE + ") FROM " + TABLE, null);
+
+        try {
+            return cursor.moveToNext() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param id идентификатор записи
+     * @return запись или null
+     */
+    public Recording get(long id) {
+
+        Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, COLUMN_ID + " = ?",
+                new String[]{String.valueOf(id)}, null, null, null, "1");
+
+        try {
+            return cursor.moveToNext() ? read(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param path путь до файла записи
+     * @return запись или null
+     */
+    public Recording getByPath(String path) {
+
+        Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, COLUMN_PATH + " = ?",
+                new String[]{path}, null, null, null, "1");
+
+        try {
+            return cursor.moveToNext() ? read(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Меняет путь записи после переноса файла
+     * @param oldPath прежний путь
+     * @param newPath новый путь
+     * @return true - если запись найдена
+     */
+    public boolean updatePath(String oldPath, String newPath) {
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, newPath);
+
+        return getWritableDatabase().update(TABLE, values, COLUMN_PATH + " = ?", new String[]{oldPath}) > 0;
+    }
+
+    /**
+     * Выполняет запрос к индексу
+     * @param query фильтры, сортировка и страница
+     * @return записи текущей страницы
+     */
+    public List<Recording> query(RecordingQuery query) {
+
+        Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, query.getSelection(),
+                query.getSelectionArgs(), null, null, query.getOrderBy(), query.getLimit());
+
+        try {
+
+            List<Recording> result = new ArrayList<>(cursor.getCount());
+
+            while (cursor.moveToNext()) {
+                result.add(read(cursor));
+            }
+
+            return result;
+
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Постраничный обход по возрастанию идентификатора. Следующая страница
+     * начинается после последней записи предыдущей, поэтому добавление и удаление
+     * записей во время обхода не сдвигает страницы
+     * @param query фильтры; сортировка и страница запроса не используются
+     * @param afterId идентификатор последней полученной записи, -1 - с начала
+     * @param limit размер страницы
+     * @return записи с идентификатором больше afterId
+     */
+    public List<Recording> queryAfter(RecordingQuery query, long afterId, int limit) {
+
+        String selection = query.getSelection();
+        String[] queryArgs = query.getSelectionArgs();
+        String[] args = new String[queryArgs != null ? queryArgs.length + 1 : 1];
+
+        if (queryArgs != null) {
+            System.arraycopy(queryArgs, 0, args, 0, queryArgs.length);
+        }
+
+        args[args.length - 1] = String.valueOf(afterId);
+
+        Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS,
+                (selection != null ? selection + " AND " : "") + COLUMN_ID + " > ?",
+                args, null, null, COLUMN_ID + " ASC", String.valueOf(limit));
+
+        try {
+
+            List<Recording> result = new ArrayList<>(cursor.getCount());
+
+            while (cursor.moveToNext()) {
+                result.add(read(cursor));
+            }
+
+            return result;
+
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Recording read(Cursor cursor) {
+
+        return new Recording(
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_ID)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_NUMBER)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DIRECTION)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_START)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_END)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_DURATION)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_PATH)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_SIZE)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FORMAT)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_PROFILE)));
+    }
+}
@@ -0,0 +1,222 @@
+package com.aykuttasil.callrecord.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Запрос к индексу записей: фильтры, сортировка и постраничная выборка.
+ * Сортировка задается только константами ORDER_BY_*, поэтому в SQL
+ * не попадает пользовательский текст.
+ */
+
+public class RecordingQuery {
+
+    public static final String DIRECTION_INCOMING = "incoming";
+    public static final String DIRECTION_OUTGOING = "outgoing";
+
+    public static final String ORDER_BY_START = RecordingIndex.COLUMN_START;
+    public static final String ORDER_BY_DURATION = RecordingIndex.COLUMN_DURATION;
+    public static final String ORDER_BY_SIZE = RecordingIndex.COLUMN_SIZE;
+    public static final String ORDER_BY_NUMBER = RecordingIndex.COLUMN_NUMBER;
+
+    private String number;
+    private String direction;
+    private long startFrom = -1;
+    private long startTo = -1;
+    private boolean finishedOnly;
+    private String orderBy = ORDER_BY_START;
+    private boolean descending = true;
+    private int limit = 100;
+    private int offset;
+
+    /**
+     * @param number номер телефона, null - любой
+     * @return экземпляр запроса
+     */
+    public RecordingQuery setNumber(String number) {
+        this.number = number;
+        return this;
+    }
+
+    /**
+     * @param direction DIRECTION_INCOMING, DIRECTION_OUTGOING или null - любое
+     * @return экземпляр запроса
+     */
+    public RecordingQuery setDirection(String direction) {
+        this.direction = direction;
+        return this;
+    }
+
+    /**
+     * @param from начало интервала по времени начала записи, мс включительно, -1 - без ограничения
+     * @param to конец интервала, мс не включительно, -1 - без ограничения
+     * @return экземпляр запроса
+     */
+    public RecordingQuery setStartBetween(long from, long to) {
+        this.startFrom = from;
+        this.startTo = to;
+        return this;
+    }
+
+    /**
+     * @param finishedOnly true - только завершенные записи
+     * @return экземпляр запроса
+     */
+    public RecordingQuery setFinishedOnly(boolean finishedOnly) {
+        this.finishedOnly = finishedOnly;
+        return this;
+    }
+
+    /**
+     * @param orderBy одна из констант ORDER_BY_*
+     * @param descending true - по убыванию
+     * @return экземпляр запроса
+     */
+    public RecordingQuery setOrderBy(String orderBy, boolean descending) {
+
+        if (!ORDER_BY_START.equals(orderBy) && !ORDER_BY_DURATION.equals(orderBy)
+                && !ORDER_BY_SIZE.equals(orderBy) && !ORDER_BY_NUMBER.equals(orderBy)) {
+            throw new IllegalArgumentException("Unsupported order: " + orderBy);
+        }
+
+        this.orderBy = orderBy;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * @param offset количество пропускаемых записей
+     * @param limit размер страницы
+     * @return экземпляр запроса
+     */
+    public RecordingQuery setPage(int offset, int limit) {
+
+        if (offset < 0 || limit <= 0) {
+            throw new IllegalArgumentException("offset must be >= 0 and limit > 0");
+        }
+
+        this.offset = offset;
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @return количество пропускаемых записей
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return размер страницы
+     */
+    public int getPageSize() {
+        return limit;
+    }
+
+    /**
+     * @return фильтры запроса одной строкой, без сортировки и страницы; равны у запросов с одинаковой выборкой
+     */
+    public String getFilterKey() {
+
+        StringBuilder key = new StringBuilder();
+        key.append(getSelection());
+
+        String[] args = getSelectionArgs();
+
+        if (args != null) {
+            for (String arg : args) {
+                key.append('\n').append(arg);
+            }
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * @return условие WHERE с параметрами ?, null - без условия
+     */
+    String getSelection() {
+
+        StringBuilder selection = new StringBuilder();
+
+        if (number != null) {
+            append(selection, RecordingIndex.COLUMN_NUMBER + " = ?");
+        }
+
+        if (direction != null) {
+            append(selection, RecordingIndex.COLUMN_DIRECTION + " = ?");
+        }
+
+        if (startFrom >= 0) {
+            append(selection, RecordingIndex.COLUMN_START + " >= ?");
+        }
+
+        if (startTo >= 0) {
+            append(selection, RecordingIndex.COLUMN_START + " < ?");
+        }
+
+        if (finishedOnly) {
+            append(selection, RecordingIndex.COLUMN_END + " > 0");
+        }
+
+        return selection.length() == 0 ? null : selection.toString();
+    }
+
+    /**
+     * @return значения параметров условия в порядке их следования
+     */
+    String[] getSelectionArgs() {
+
+        List<String> args = new ArrayList<>();
+
+        if (number != null) {
+            args.add(number);
+        }
+
+        if (direction != null) {
+            args.add(direction);
+        }
+
+        if (startFrom >= 0) {
+            args.add(String.valueOf(startFrom));
+        }
+
+        if (startTo >= 0) {
+            args.add(String.valueOf(startTo));
+        }
+
+        return args.isEmpty() ? null : args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * @return выражение ORDER BY, с идентификатором для стабильного порядка страниц
+     */
+    String getOrderBy() {
+
+        String order = descending ? " DESC" : " ASC";
+
+        return orderBy + order + ", " + RecordingIndex.COLUMN_ID + order;
+    }
+
+    /**
+     * @return выражение LIMIT со смещением
+     */
+    String getLimit() {
+        return offset + "," + limit;
+    }
+
+    private static void append(StringBuilder selection, String condition) {
+
+        if (selection.length() > 0) {
+            selection.append(" AND ");
+        }
+
+        selection.append(condition);
+    }
+}
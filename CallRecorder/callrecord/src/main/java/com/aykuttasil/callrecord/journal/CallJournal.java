@@ -0,0 +1,628 @@
+package com.aykuttasil.callrecord.journal;
+
+import android.util.Log;
+
+import com.aykuttasil.callrecord.state.CallStateMachine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Журнал событий звонка, в который только дописываются записи.
+ * Хранит смены состояния звонка, старт и остановку записи, чтобы после
+ * гибели процесса посреди звонка восстановить состояние и завершить
+ * незакрытые записи.
+ *
+ * Формат записи: длина (int), тип (byte), состояние (byte), системное время (long),
+ * монотонное время (long), id в индексе (long), номер, направление, путь
+ * (short длина + UTF-8, -1 для null), CRC32 (int).
+ * Оборванная последняя запись при чтении отбрасывается.
+ */
+
+public class CallJournal {
+
+    private static final String TAG = CallJournal.class.getSimpleName();
+
+    public static final String FILE_NAME = "callrecord.journal";   ///< имя файла журнала в getFilesDir()
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024;        ///< размер, после которого журнал сжимается
+
+    private static final byte TYPE_STATE = 1;       ///< смена состояния звонка
+    private static final byte TYPE_START = 2;       ///< запись начата
+    private static final byte TYPE_STOP = 3;        ///< запись остановлена
+
+    private static final int BUFFER_BYTES = 4096;
+    private static final long BOOT_TOLERANCE_MS = 60 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final CallStateMachine.Listener NO_LISTENER = new CallStateMachine.Listener() {
+        @Override
+        public void onIncomingCallReceived(String number, long startNanos) {
+        }
+
+        @Override
+        public void onIncomingCallAnswered(String number, long startNanos) {
+        }
+
+        @Override
+        public void onIncomingCallEnded(String number, long startNanos, long endNanos) {
+        }
+
+        @Override
+        public void onOutgoingCallStarted(String number, long startNanos) {
+        }
+
+        @Override
+        public void onOutgoingCallEnded(String number, long startNanos, long endNanos) {
+        }
+
+        @Override
+        public void onMissedCall(String number, long startNanos) {
+        }
+    };
+
+    /**
+     * Пути журналов, уже восстановленных в текущем процессе
+     */
+    private static final Set<String> sRecoveredFiles = new HashSet<>();
+
+    private final File mFile;
+    private final CallStateMachine.Clock mClock;
+    private final long mMaxBytes;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Записи, начатые в текущем процессе и еще не остановленные.
+     * Переносятся в журнал при сжатии
+     */
+    private final Map<String, Entry> mOpenEntries = new LinkedHashMap<>();
+
+    /**
+     * Смены состояния текущего звонка, начиная с последнего IDLE.
+     * Переносятся в журнал при сжатии, чтобы чтение восстановило то же состояние
+     * машины: направление, номер и время начала звонка.
+     * Заполняются при записи и при чтении журнала
+     */
+    private final List<StateRecord> mCallStates = new ArrayList<>();
+
+    private FileChannel mChannel;
+
+    /**
+     * Конструктор
+     * @param file файл журнала
+     * @param clock монотонные часы, те же, что у машины состояний звонка
+     */
+    public CallJournal(File file, CallStateMachine.Clock clock) {
+        this(file, clock, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Конструктор
+     * @param file файл журнала
+     * @param clock монотонные часы
+     * @param maxBytes размер, после которого журнал сжимается
+     */
+    CallJournal(File file, CallStateMachine.Clock clock, long maxBytes) {
+
+        mFile = file;
+        mClock = clock;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Записывает смену состояния звонка
+     * @param state новое состояние
+     * @param number номер телефона или null
+     */
+    public synchronized void appendState(int state, String number) {
+
+        long wallMs = System.currentTimeMillis();
+        long elapsedNanos = mClock.elapsedNanos();
+
+        addCallState(mCallStates, new StateRecord(state, number, wallMs, elapsedNanos));
+
+        append(TYPE_STATE, state, wallMs, elapsedNanos, -1, number, null, null);
+    }
+
+    /**
+     * Записывает старт записи звонка
+     * @param recordId id записи в индексе, -1 если записи нет в индексе
+     * @param direction направление звонка
+     * @param number номер телефона
+     * @param path путь до файла записи
+     */
+    public synchronized void appendStart(long recordId, String direction, String number, String path) {
+
+        Entry entry = new Entry(recordId, direction, number, path,
+                System.currentTimeMillis(), mClock.elapsedNanos());
+
+        mOpenEntries.put(path, entry);
+
+        append(TYPE_START, 0, entry.startWallMs, entry.startElapsedNanos,
+                recordId, number, direction, path);
+    }
+
+    /**
+     * Записывает остановку записи звонка
+     * @param path путь до файла записи
+     */
+    public synchronized void appendStop(String path) {
+
+        mOpenEntries.remove(path);
+
+        append(TYPE_STOP, 0, System.currentTimeMillis(), mClock.elapsedNanos(), -1, null, null, path);
+    }
+
+    /**
+     * Отмечает, что журнал восстанавливается в текущем процессе.
+     * Ресивер регистрируется повторно после stopCallReceiver() и при смене
+     * CallRecord в сервисе, но записи, идущие в это время, сиротами не являются,
+     * поэтому восстановление выполняется один раз на процесс
+     * @return true - если журнал в этом процессе еще не восстанавливался
+     */
+    public boolean claimRecovery() {
+
+        synchronized (sRecoveredFiles) {
+            return sRecoveredFiles.add(mFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Читает журнал целиком через отображение файла в память
+     * и восстанавливает последнее состояние звонка и незакрытые записи.
+     * Записи, начатые в текущем процессе и еще не остановленные, незакрытыми не считаются.
+     * Смены состояния текущего звонка запоминаются для следующего сжатия
+     * @return результат чтения, пустой - если журнала нет или он не читается
+     */
+    public synchronized Replay replay() {
+
+        ReplayClock replayClock = new ReplayClock();
+        List<StateRecord> callStates = new ArrayList<>();
+        CallStateMachine machine = new CallStateMachine(NO_LISTENER, replayClock);
+        Map<String, Entry> open = new LinkedHashMap<>();
+
+        long lastWallMs = 0;
+        long lastElapsedNanos = 0;
+        int records = 0;
+
+        if (mFile.length() > 0) {
+
+            RandomAccessFile file = null;
+
+            try {
+
+                file = new RandomAccessFile(mFile, "r");
+                MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+                byte[] payload = new byte[BUFFER_BYTES];
+
+                while (map.remaining() >= 4) {
+
+                    int length = map.getInt();
+
+                    if (length <= 0 || length + 4 > map.remaining()) {
+                        Log.w(TAG, "torn record at " + (map.position() - 4));
+                        break;
+                    }
+
+                    if (payload.length < length) {
+                        payload = new byte[length];
+                    }
+
+                    map.get(payload, 0, length);
+                    int crc = map.getInt();
+
+                    mCrc.reset();
+                    mCrc.update(payload, 0, length);
+
+                    if ((int) mCrc.getValue() != crc) {
+                        Log.w(TAG, "corrupt record at " + (map.position() - length - 8));
+                        break;
+                    }
+
+                    ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+
+                    byte type = record.get();
+                    int state = record.get();
+                    long wallMs = record.getLong();
+                    long elapsedNanos = record.getLong();
+                    long recordId = record.getLong();
+                    String number = getString(record);
+                    String direction = getString(record);
+                    String path = getString(record);
+
+                    switch (type) {
+                        case TYPE_STATE:
+                            replayClock.now = elapsedNanos;
+                            machine.onEvent(state, number);
+                            addCallState(callStates, new StateRecord(state, number, wallMs, elapsedNanos));
+                            break;
+                        case TYPE_START:
+                            open.put(path, new Entry(recordId, direction, number, path, wallMs, elapsedNanos));
+                            break;
+                        case TYPE_STOP:
+                            open.remove(path);
+                            break;
+                        default:
+                            break;
+                    }
+
+                    lastWallMs = wallMs;
+                    lastElapsedNanos = elapsedNanos;
+                    records++;
+                }
+
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "journal replay failed", e);
+            } finally {
+                closeQuietly(file);
+            }
+        }
+
+        boolean sameBoot = records > 0 && isSameBoot(lastWallMs, lastElapsedNanos);
+
+        open.keySet().removeAll(mOpenEntries.keySet());
+
+        mCallStates.clear();
+        mCallStates.addAll(callStates);
+
+        return new Replay(machine.getState(), machine.isIncoming(), machine.getNumber(),
+                machine.getCallStartNanos(), sameBoot, new ArrayList<>(open.values()));
+    }
+
+    /**
+     * Переписывает журнал, оставляя только смены состояния текущего звонка
+     * и записи, начатые в текущем процессе и еще не остановленные.
+     * После replay() состояние звонка из прочитанного журнала сохраняется
+     */
+    public synchronized void compact() {
+
+        closeChannel();
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile file = null;
+
+        try {
+
+            file = new RandomAccessFile(tmp, "rw");
+            file.setLength(0);
+            mChannel = file.getChannel();
+
+            for (StateRecord record : mCallStates) {
+                writeRecord(TYPE_STATE, record.state, record.wallMs, record.elapsedNanos, -1, record.number, null, null);
+            }
+
+            for (Entry entry : mOpenEntries.values()) {
+                writeRecord(TYPE_START, 0, entry.startWallMs, entry.startElapsedNanos,
+                        entry.recordId, entry.number, entry.direction, entry.path);
+            }
+
+            mChannel.force(true);
+
+        } catch (IOException e) {
+            Log.e(TAG, "journal compaction failed", e);
+            closeChannel();
+            tmp.delete();
+            return;
+        }
+
+        closeChannel();
+
+        if (!tmp.renameTo(mFile)) {
+            Log.e(TAG, "journal rename failed");
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return размер файла журнала, байт
+     */
+    public synchronized long size() {
+        return mFile.length();
+    }
+
+    /**
+     * Закрывает файл журнала. Следующая запись откроет его снова
+     */
+    public synchronized void close() {
+        closeChannel();
+    }
+
+    private void append(byte type, int state, long wallMs, long elapsedNanos,
+                        long recordId, String number, String direction, String path) {
+
+        try {
+
+            if (mChannel == null) {
+                RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+                mChannel = file.getChannel();
+                mChannel.position(mChannel.size());
+            }
+
+            writeRecord(type, state, wallMs, elapsedNanos, recordId, number, direction, path);
+
+            if (mChannel.size() > mMaxBytes) {
+                compact();
+            }
+
+        } catch (IOException e) {
+            Log.e(TAG, "journal append failed", e);
+            closeChannel();
+        }
+    }
+
+    private void writeRecord(byte type, int state, long wallMs, long elapsedNanos,
+                             long recordId, String number, String direction, String path) throws IOException {
+
+        byte[] numberBytes = number != null ? number.getBytes(UTF_8) : null;
+        byte[] directionBytes = direction != null ? direction.getBytes(UTF_8) : null;
+        byte[] pathBytes = path != null ? path.getBytes(UTF_8) : null;
+
+        int length = 1 + 1 + 8 + 8 + 8
+                + stringBytes(numberBytes) + stringBytes(directionBytes) + stringBytes(pathBytes);
+
+        ByteBuffer buffer = length + 8 <= mBuffer.capacity() ? mBuffer : ByteBuffer.allocate(length + 8);
+
+        buffer.clear();
+        buffer.putInt(length);
+        buffer.put(type);
+        buffer.put((byte) state);
+        buffer.putLong(wallMs);
+        buffer.putLong(elapsedNanos);
+        buffer.putLong(recordId);
+        putString(buffer, numberBytes);
+        putString(buffer, directionBytes);
+        putString(buffer, pathBytes);
+
+        mCrc.reset();
+        mCrc.update(buffer.array(), 4, length);
+        buffer.putInt((int) mCrc.getValue());
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    /**
+     * Добавляет смену состояния к звонку. IDLE завершает звонок:
+     * от него остается только сама смена на IDLE
+     * @param callStates смены состояния текущего звонка
+     * @param record смена состояния
+     */
+    private static void addCallState(List<StateRecord> callStates, StateRecord record) {
+
+        if (record.state == CallStateMachine.STATE_IDLE) {
+            callStates.clear();
+        }
+
+        callStates.add(record);
+    }
+
+    private static int stringBytes(byte[] bytes) {
+        return 2 + (bytes != null ? bytes.length : 0);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+
+        if (bytes == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+
+        int length = buffer.getShort();
+
+        if (length < 0) {
+            return null;
+        }
+
+        String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+
+        return value;
+    }
+
+    /**
+     * Сравнивает время загрузки устройства, вычисленное по записи журнала и по текущим часам
+     * @param wallMs системное время записи
+     * @param elapsedNanos монотонное время записи
+     * @return true - если запись сделана после последней загрузки устройства
+     */
+    private boolean isSameBoot(long wallMs, long elapsedNanos) {
+
+        long nowElapsedNanos = mClock.elapsedNanos();
+
+        if (elapsedNanos > nowElapsedNanos) {
+            return false;
+        }
+
+        long bootThen = wallMs - elapsedNanos / 1000000;
+        long bootNow = System.currentTimeMillis() - nowElapsedNanos / 1000000;
+
+        return Math.abs(bootNow - bootThen) < BOOT_TOLERANCE_MS;
+    }
+
+    private void closeChannel() {
+
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "journal close failed", e);
+            }
+            mChannel = null;
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Часы, возвращающие время текущей записи журнала
+     */
+    private static class ReplayClock implements CallStateMachine.Clock {
+
+        long now;
+
+        @Override
+        public long elapsedNanos() {
+            return now;
+        }
+    }
+
+    /**
+     * Смена состояния звонка
+     */
+    private static final class StateRecord {
+
+        final int state;
+        final String number;
+        final long wallMs;
+        final long elapsedNanos;
+
+        StateRecord(int state, String number, long wallMs, long elapsedNanos) {
+
+            this.state = state;
+            this.number = number;
+            this.wallMs = wallMs;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    /**
+     * Запись звонка, начатая и не остановленная
+     */
+    public static final class Entry {
+
+        private final long recordId;
+        private final String direction;
+        private final String number;
+        private final String path;
+        private final long startWallMs;
+        private final long startElapsedNanos;
+
+        Entry(long recordId, String direction, String number, String path, long startWallMs, long startElapsedNanos) {
+
+            this.recordId = recordId;
+            this.direction = direction;
+            this.number = number;
+            this.path = path;
+            this.startWallMs = startWallMs;
+            this.startElapsedNanos = startElapsedNanos;
+        }
+
+        public long getRecordId() {
+            return recordId;
+        }
+
+        public String getDirection() {
+            return direction;
+        }
+
+        public String getNumber() {
+            return number;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getStartWallMs() {
+            return startWallMs;
+        }
+
+        public long getStartElapsedNanos() {
+            return startElapsedNanos;
+        }
+    }
+
+    /**
+     * Результат чтения журнала
+     */
+    public static final class Replay {
+
+        private final int state;
+        private final boolean incoming;
+        private final String number;
+        private final long callStartNanos;
+        private final boolean sameBoot;
+        private final List<Entry> orphans;
+
+        Replay(int state, boolean incoming, String number, long callStartNanos, boolean sameBoot, List<Entry> orphans) {
+
+            this.state = state;
+            this.incoming = incoming;
+            this.number = number;
+            this.callStartNanos = callStartNanos;
+            this.sameBoot = sameBoot;
+            this.orphans = Collections.unmodifiableList(orphans);
+        }
+
+        /**
+         * @return последнее состояние звонка по журналу
+         */
+        public int getState() {
+            return state;
+        }
+
+        public boolean isIncoming() {
+            return incoming;
+        }
+
+        public String getNumber() {
+            return number;
+        }
+
+        public long getCallStartNanos() {
+            return callStartNanos;
+        }
+
+        /**
+         * @return true - если журнал записан после последней загрузки устройства
+         * и монотонное время в нем сравнимо с текущим
+         */
+        public boolean isSameBoot() {
+            return sameBoot;
+        }
+
+        /**
+         * @return записи, начатые и не остановленные до гибели процесса
+         */
+        public List<Entry> getOrphans() {
+            return orphans;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.aykuttasil.callrecord.level;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Получатель уведомлений о новых уровнях сигнала.
+ * Вызывается в Executor подписки; повторные уведомления,
+ * пока предыдущее не обработано, объединяются.
+ */
+
+public interface LevelListener {
+
+    /**
+     * В подписке появились новые измерения, их нужно забрать через poll()
+     * @param subscription подписка с новыми измерениями
+     */
+    void onLevelsAvailable(LevelSubscription subscription);
+}
@@ -0,0 +1,229 @@
+package com.aykuttasil.callrecord.level;
+
+import com.aykuttasil.callrecord.session.RecordingSession;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Публикует уровни сигнала идущих записей подписчикам.
+ * Все записи опрашивает один общий поток с частотой самой частой подписки,
+ * каждая подписка получает измерения со своей частотой.
+ * Пока подписчиков нет, поток опроса не создается, а движки
+ * не считают уровень, поэтому без подписок функция ничего не стоит.
+ */
+
+public class LevelMeter {
+
+    public static final int MIN_RATE = 1;               ///< минимальная частота измерений, Гц
+    public static final int MAX_RATE = 50;              ///< максимальная частота измерений, Гц
+    public static final int DEFAULT_CAPACITY = 64;      ///< размер буфера подписки по умолчанию
+
+    private final ConcurrentHashMap<RecordingSession, Long> mSources = new ConcurrentHashMap<>(); ///< запись -> время старта, нс
+    private final CopyOnWriteArrayList<LevelSubscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    private ScheduledExecutorService mSampler;  ///< создается с первой подпиской
+    private ScheduledFuture<?> mSampleTask;
+    private volatile long mSamplePeriodNanos;
+
+    /**
+     * Подписывает на уровни сигнала
+     * @param samplesPerSecond частота измерений, MIN_RATE..MAX_RATE
+     * @param capacity размер буфера измерений
+     * @param listener получатель уведомлений или null, если измерения забираются опросом
+     * @param executor поток доставки уведомлений, например главный поток через Handler
+     * @return подписка
+     */
+    public synchronized LevelSubscription subscribe(int samplesPerSecond, int capacity,
+                                                    LevelListener listener, Executor executor) {
+
+        if (samplesPerSecond < MIN_RATE || samplesPerSecond > MAX_RATE) {
+            throw new IllegalArgumentException("samplesPerSecond: " + samplesPerSecond);
+        }
+
+        LevelSubscription subscription = new LevelSubscription(this, samplesPerSecond, capacity, listener, executor);
+
+        if (mSubscriptions.isEmpty()) {
+            setMetering(true);
+        }
+
+        mSubscriptions.add(subscription);
+        reschedule();
+
+        return subscription;
+    }
+
+    /**
+     * Отменяет подписку, вызывается из LevelSubscription.cancel()
+     * @param subscription подписка
+     */
+    synchronized void unsubscribe(LevelSubscription subscription) {
+
+        if (!mSubscriptions.remove(subscription)) {
+            return;
+        }
+
+        if (mSubscriptions.isEmpty()) {
+            setMetering(false);
+        }
+
+        reschedule();
+    }
+
+    /**
+     * Начинает публиковать уровень записи, вызывается после старта записи
+     * @param session сессия записи
+     */
+    public synchronized void addSource(RecordingSession session) {
+
+        mSources.put(session, System.nanoTime());
+
+        if (!mSubscriptions.isEmpty()) {
+            session.setLevelMetering(true);
+        }
+    }
+
+    /**
+     * Прекращает публиковать уровень записи, вызывается перед остановкой записи
+     * @param session сессия записи
+     */
+    public synchronized void removeSource(RecordingSession session) {
+
+        if (mSources.remove(session) != null) {
+            session.setLevelMetering(false);
+        }
+    }
+
+    /**
+     * @return true - если поток опроса запущен
+     */
+    public synchronized boolean isSampling() {
+        return mSampler != null;
+    }
+
+    /**
+     * Отменяет все подписки и останавливает поток опроса
+     */
+    public synchronized void shutdown() {
+
+        for (LevelSubscription subscription : mSubscriptions) {
+            subscription.cancel();
+        }
+
+        mSources.clear();
+    }
+
+    /**
+     * Опрашивает все записи и раздает измерения подпискам, которым пора их получить.
+     * Вызывается потоком опроса
+     */
+    void sample() {
+
+        long now = System.nanoTime();
+        // подписка получает измерения, если ее время ближе к этому опросу, чем к следующему
+        long dueBy = now + mSamplePeriodNanos / 2;
+        boolean due = false;
+
+        for (LevelSubscription subscription : mSubscriptions) {
+            due |= subscription.isDue(dueBy);
+        }
+
+        if (!due) {
+            return;
+        }
+
+        for (Map.Entry<RecordingSession, Long> source : mSources.entrySet()) {
+
+            RecordingSession session = source.getKey();
+            int level = session.readLevel();
+            long timeMs = TimeUnit.NANOSECONDS.toMillis(now - source.getValue());
+
+            for (LevelSubscription subscription : mSubscriptions) {
+                if (subscription.isDue(dueBy)) {
+                    subscription.offer(session.getRecordId(), level, timeMs);
+                }
+            }
+        }
+
+        for (LevelSubscription subscription : mSubscriptions) {
+            if (subscription.isDue(dueBy)) {
+                subscription.onSampled(now);
+                subscription.signal();
+            }
+        }
+    }
+
+    private void setMetering(boolean enabled) {
+
+        for (RecordingSession session : mSources.keySet()) {
+            session.setLevelMetering(enabled);
+        }
+    }
+
+    /**
+     * Подстраивает период опроса под самую частую подписку,
+     * останавливает поток, когда подписок не осталось
+     */
+    private void reschedule() {
+
+        long period = Long.MAX_VALUE;
+
+        for (LevelSubscription subscription : mSubscriptions) {
+            period = Math.min(period, subscription.getPeriodNanos());
+        }
+
+        if (period == Long.MAX_VALUE) {
+
+            if (mSampler != null) {
+                mSampler.shutdownNow();
+                mSampler = null;
+                mSampleTask = null;
+            }
+
+            return;
+        }
+
+        if (mSampler == null) {
+            mSampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "CallRecord-level-meter");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+        }
+
+        if (mSampleTask != null && mSamplePeriodNanos == period) {
+            return;
+        }
+
+        if (mSampleTask != null) {
+            mSampleTask.cancel(false);
+        }
+
+        mSamplePeriodNanos = period;
+        mSampleTask = mSampler.scheduleAtFixedRate(mSampleRunnable, 0, period, TimeUnit.NANOSECONDS);
+    }
+
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+        }
+    };
+}
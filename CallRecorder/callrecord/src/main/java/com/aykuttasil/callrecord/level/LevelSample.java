@@ -0,0 +1,31 @@
+package com.aykuttasil.callrecord.level;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Измерение уровня сигнала идущей записи.
+ * Объект изменяемый и заполняется в LevelSubscription.poll(),
+ * чтобы чтение уровней не выделяло память.
+ */
+
+public final class LevelSample {
+
+    long recordId;  ///< идентификатор записи в индексе, -1 - запись не попала в индекс
+    int level;      ///< пиковый уровень 0..32767 за период опроса
+    long timeMs;    ///< время измерения от начала записи, мс
+
+    public long getRecordId() {
+        return recordId;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getTimeMs() {
+        return timeMs;
+    }
+}
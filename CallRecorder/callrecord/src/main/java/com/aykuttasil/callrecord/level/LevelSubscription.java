@@ -0,0 +1,187 @@
+package com.aykuttasil.callrecord.level;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Подписка на уровни сигнала идущих записей.
+ * Измерения складываются в кольцевой буфер фиксированного размера
+ * без блокировок: один писатель - поток опроса LevelMeter, один читатель -
+ * подписчик. Если подписчик не успевает забирать измерения, новые
+ * отбрасываются и считаются, поток опроса никогда не ждет.
+ * poll() должен вызываться из одного потока за раз.
+ */
+
+public final class LevelSubscription {
+
+    private final LevelMeter mMeter;
+    private final long mPeriodNanos;
+    private final LevelListener mListener;
+    private final Executor mExecutor;
+
+    private final int mMask;
+    private final long[] mRecordIds;
+    private final int[] mLevels;
+    private final long[] mTimes;
+
+    private final AtomicLong mHead = new AtomicLong();  ///< следующее измерение для чтения
+    private final AtomicLong mTail = new AtomicLong();  ///< следующее место для записи
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicBoolean mDeliveryPending = new AtomicBoolean();
+
+    private long mNextSampleNanos;  ///< используется только потоком опроса
+    private boolean mSampled;       ///< используется только потоком опроса
+    private volatile boolean mCancelled;
+
+    private final Runnable mDelivery = new Runnable() {
+        @Override
+        public void run() {
+
+            mDeliveryPending.set(false);
+
+            if (!mCancelled) {
+                mListener.onLevelsAvailable(LevelSubscription.this);
+            }
+        }
+    };
+
+    /**
+     * Конструктор
+     * @param meter источник измерений
+     * @param samplesPerSecond частота измерений
+     * @param capacity размер буфера, округляется вверх до степени двойки
+     * @param listener получатель уведомлений или null, если измерения забираются опросом
+     * @param executor поток доставки уведомлений
+     */
+    LevelSubscription(LevelMeter meter, int samplesPerSecond, int capacity, LevelListener listener, Executor executor) {
+
+        if (listener != null && executor == null) {
+            throw new IllegalArgumentException("executor == null");
+        }
+
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        mMeter = meter;
+        mPeriodNanos = TimeUnit.SECONDS.toNanos(1) / samplesPerSecond;
+        mListener = listener;
+        mExecutor = executor;
+        mMask = size - 1;
+        mRecordIds = new long[size];
+        mLevels = new int[size];
+        mTimes = new long[size];
+    }
+
+    /**
+     * Забирает самое старое измерение
+     * @param sample объект, в который копируется измерение
+     * @return false - если новых измерений нет
+     */
+    public boolean poll(LevelSample sample) {
+
+        long head = mHead.get();
+
+        if (head == mTail.get()) {
+            return false;
+        }
+
+        int index = (int) head & mMask;
+
+        sample.recordId = mRecordIds[index];
+        sample.level = mLevels[index];
+        sample.timeMs = mTimes[index];
+
+        mHead.lazySet(head + 1);
+
+        return true;
+    }
+
+    /**
+     * @return количество измерений, отброшенных из-за заполненного буфера
+     */
+    public long getDroppedSamples() {
+        return mDropped.get();
+    }
+
+    public long getPeriodNanos() {
+        return mPeriodNanos;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Отменяет подписку. Когда подписок не остается, опрос уровня останавливается
+     */
+    public void cancel() {
+
+        mCancelled = true;
+        mMeter.unsubscribe(this);
+    }
+
+    /**
+     * Вызывается потоком опроса
+     * @param dueByNanos граница, до которой измерение считается своевременным
+     * @return true - если подписке пора получить измерения этого опроса
+     */
+    boolean isDue(long dueByNanos) {
+        return !mSampled || dueByNanos - mNextSampleNanos >= 0;
+    }
+
+    /**
+     * Вызывается потоком опроса после записи всех измерений опроса.
+     * Следующее время отсчитывается от предыдущего, чтобы частота не плыла;
+     * после долгой задержки опроса отсчет начинается заново
+     * @param nowNanos текущее время опроса
+     */
+    void onSampled(long nowNanos) {
+
+        mNextSampleNanos += mPeriodNanos;
+
+        if (!mSampled || nowNanos - mNextSampleNanos >= mPeriodNanos) {
+            mNextSampleNanos = nowNanos + mPeriodNanos;
+            mSampled = true;
+        }
+    }
+
+    /**
+     * Записывает измерение, вызывается только потоком опроса
+     * @return false - если буфер заполнен и измерение отброшено
+     */
+    boolean offer(long recordId, int level, long timeMs) {
+
+        long tail = mTail.get();
+
+        if (tail - mHead.get() > mMask) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+
+        int index = (int) tail & mMask;
+
+        mRecordIds[index] = recordId;
+        mLevels[index] = level;
+        mTimes[index] = timeMs;
+
+        mTail.lazySet(tail + 1);
+
+        return true;
+    }
+
+    /**
+     * Ставит уведомление подписчика, если оно еще не стоит в очереди
+     */
+    void signal() {
+
+        if (mListener != null && !mCancelled && mDeliveryPending.compareAndSet(false, true)) {
+            mExecutor.execute(mDelivery);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.aykuttasil.callrecord.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Гистограмма с фиксированными корзинами.
+ * Запись значения не берет блокировок и ничего не выделяет в памяти.
+ * Последняя корзина принимает все значения больше последней границы.
+ */
+
+public final class Histogram {
+
+    private final long[] mBounds;           ///< верхние границы корзин, включительно, по возрастанию
+    private final AtomicLongArray mBuckets; ///< количество значений в корзинах
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Конструктор
+     * @param bounds верхние границы корзин по возрастанию
+     */
+    public Histogram(long... bounds) {
+
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Bounds must be ascending");
+            }
+        }
+
+        mBounds = bounds.clone();
+        mBuckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Учитывает значение
+     * @param value значение в единицах границ
+     */
+    public void record(long value) {
+
+        mBuckets.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * @param value значение
+     * @return номер корзины, в которую попадает значение
+     */
+    int bucketOf(long value) {
+
+        int low = 0;
+        int high = mBounds.length;
+
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+
+            if (value <= mBounds[mid]) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * @return количество корзин, включая корзину переполнения
+     */
+    public int getBucketCount() {
+        return mBuckets.length();
+    }
+
+    /**
+     * @param bucket номер корзины
+     * @return верхняя граница корзины, Long.MAX_VALUE для корзины переполнения
+     */
+    public long getBound(int bucket) {
+        return bucket < mBounds.length ? mBounds[bucket] : Long.MAX_VALUE;
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    /**
+     * @return наибольшее значение, 0 - если значений не было
+     */
+    public long getMax() {
+        return mCount.get() == 0 ? 0 : mMax.get();
+    }
+
+    /**
+     * Копирует состояние в снимок без выделения памяти.
+     * Корзины копируются по одной, поэтому при параллельной записи
+     * снимок может отставать на несколько значений
+     * @param snapshot снимок, созданный для этой гистограммы
+     */
+    public void copyTo(Snapshot snapshot) {
+
+        long[] buckets = snapshot.buckets;
+
+        if (buckets.length != mBuckets.length()) {
+            throw new IllegalArgumentException("Snapshot has " + buckets.length + " buckets");
+        }
+
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+
+        snapshot.count = getCount();
+        snapshot.sum = getSum();
+        snapshot.max = getMax();
+    }
+
+    /**
+     * @return новый снимок подходящего размера
+     */
+    public Snapshot newSnapshot() {
+        return new Snapshot(mBounds, mBuckets.length());
+    }
+
+    /**
+     * Снимок гистограммы. Создается один раз и переиспользуется
+     */
+    public static final class Snapshot {
+
+        private final long[] bounds;
+        private final long[] buckets;
+        private long count;
+        private long sum;
+        private long max;
+
+        Snapshot(long[] bounds, int bucketCount) {
+            this.bounds = bounds;
+            this.buckets = new long[bucketCount];
+        }
+
+        public int getBucketCount() {
+            return buckets.length;
+        }
+
+        /**
+         * @param bucket номер корзины
+         * @return верхняя граница корзины, Long.MAX_VALUE для корзины переполнения
+         */
+        public long getBound(int bucket) {
+            return bucket < bounds.length ? bounds[bucket] : Long.MAX_VALUE;
+        }
+
+        public long getBucket(int bucket) {
+            return buckets[bucket];
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return среднее значение, 0 - если значений не было
+         */
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+    }
+}
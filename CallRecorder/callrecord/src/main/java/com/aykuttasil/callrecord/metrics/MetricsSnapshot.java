@@ -0,0 +1,80 @@
+package com.aykuttasil.callrecord.metrics;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Снимок метрик записи. Создается один раз через RecordingMetrics.newSnapshot()
+ * и заполняется заново при каждом вызове RecordingMetrics.snapshot().
+ */
+
+public final class MetricsSnapshot {
+
+    final Histogram.Snapshot startLatency;
+    final Histogram.Snapshot prepareDuration;
+    final Histogram.Snapshot stopDuration;
+    final Histogram.Snapshot bytesPerCall;
+    final long[] failures = new long[RecordingMetrics.FAILURE_CAUSES];
+
+    long recordingsStarted;
+    long recordingsStopped;
+    long missedCalls;
+
+    MetricsSnapshot(RecordingMetrics metrics) {
+
+        startLatency = metrics.getStartLatency().newSnapshot();
+        prepareDuration = metrics.getPrepareDuration().newSnapshot();
+        stopDuration = metrics.getStopDuration().newSnapshot();
+        bytesPerCall = metrics.getBytesPerCall().newSnapshot();
+    }
+
+    /**
+     * @return задержка от события звонка до старта записи, нс
+     */
+    public Histogram.Snapshot getStartLatency() {
+        return startLatency;
+    }
+
+    /**
+     * @return длительность подготовки записи, нс
+     */
+    public Histogram.Snapshot getPrepareDuration() {
+        return prepareDuration;
+    }
+
+    /**
+     * @return длительность остановки записи, нс
+     */
+    public Histogram.Snapshot getStopDuration() {
+        return stopDuration;
+    }
+
+    /**
+     * @return размер записи одного звонка, байт
+     */
+    public Histogram.Snapshot getBytesPerCall() {
+        return bytesPerCall;
+    }
+
+    public long getRecordingsStarted() {
+        return recordingsStarted;
+    }
+
+    public long getRecordingsStopped() {
+        return recordingsStopped;
+    }
+
+    public long getMissedCalls() {
+        return missedCalls;
+    }
+
+    /**
+     * @param cause одна из констант RecordingMetrics.FAILURE_*
+     * @return количество ошибок по причине
+     */
+    public long getFailures(int cause) {
+        return failures[cause];
+    }
+}
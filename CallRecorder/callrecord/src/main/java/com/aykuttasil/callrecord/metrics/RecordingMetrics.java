@@ -0,0 +1,156 @@
+package com.aykuttasil.callrecord.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Метрики записи звонков: счетчики и гистограммы задержек и размеров.
+ * Все методы записи не берут блокировок и ничего не выделяют в памяти,
+ * поэтому вызываются прямо из потока записи.
+ * Для чтения используется MetricsSnapshot, который создается один раз.
+ */
+
+public class RecordingMetrics {
+
+    public static final int FAILURE_PREPARE_IO = 0;     ///< не удалось создать файл или подготовить движок
+    public static final int FAILURE_PREPARE_STATE = 1;  ///< движок в недопустимом состоянии при подготовке
+    public static final int FAILURE_START = 2;          ///< start() выбросил исключение
+    public static final int FAILURE_STOP = 3;           ///< stop() выбросил исключение
+    public static final int FAILURE_INDEX = 4;          ///< не удалось обновить индекс записей
+    public static final int FAILURE_CAUSES = 5;         ///< количество причин
+
+    private static final long MS = 1000000L;
+
+    /**
+     * Границы корзин задержек, нс: от 1 мс до 10 с
+     */
+    static final long[] LATENCY_BOUNDS_NANOS = {
+            MS, 2 * MS, 5 * MS, 10 * MS, 20 * MS, 50 * MS, 100 * MS, 200 * MS,
+            500 * MS, 1000 * MS, 2000 * MS, 5000 * MS, 10000 * MS
+    };
+
+    /**
+     * Границы корзин размера записи, байт: от 16 КБ до 256 МБ
+     */
+    static final long[] SIZE_BOUNDS_BYTES = {
+            16L << 10, 64L << 10, 256L << 10, 1L << 20, 4L << 20, 16L << 20, 64L << 20, 256L << 20
+    };
+
+    private final Histogram mStartLatency = new Histogram(LATENCY_BOUNDS_NANOS);
+    private final Histogram mPrepareDuration = new Histogram(LATENCY_BOUNDS_NANOS);
+    private final Histogram mStopDuration = new Histogram(LATENCY_BOUNDS_NANOS);
+    private final Histogram mBytesPerCall = new Histogram(SIZE_BOUNDS_BYTES);
+
+    private final AtomicLong mRecordingsStarted = new AtomicLong();
+    private final AtomicLong mRecordingsStopped = new AtomicLong();
+    private final AtomicLong mMissedCalls = new AtomicLong();
+    private final AtomicLongArray mFailures = new AtomicLongArray(FAILURE_CAUSES);
+
+    /**
+     * Учитывает начатую запись
+     * @param latencyNanos время от получения события звонка до start(), нс
+     */
+    public void onRecordingStarted(long latencyNanos) {
+
+        mRecordingsStarted.incrementAndGet();
+        mStartLatency.record(latencyNanos);
+    }
+
+    /**
+     * Учитывает остановленную запись
+     * @param stopNanos длительность stop(), нс
+     * @param bytes размер записи вместе с сегментами, байт
+     */
+    public void onRecordingStopped(long stopNanos, long bytes) {
+
+        mRecordingsStopped.incrementAndGet();
+        mStopDuration.record(stopNanos);
+        mBytesPerCall.record(bytes);
+    }
+
+    /**
+     * @param prepareNanos длительность создания файла и подготовки движка, нс
+     */
+    public void onPrepared(long prepareNanos) {
+        mPrepareDuration.record(prepareNanos);
+    }
+
+    public void onMissedCall() {
+        mMissedCalls.incrementAndGet();
+    }
+
+    /**
+     * @param cause одна из констант FAILURE_*
+     */
+    public void onFailure(int cause) {
+        mFailures.incrementAndGet(cause);
+    }
+
+    public Histogram getStartLatency() {
+        return mStartLatency;
+    }
+
+    public Histogram getPrepareDuration() {
+        return mPrepareDuration;
+    }
+
+    public Histogram getStopDuration() {
+        return mStopDuration;
+    }
+
+    public Histogram getBytesPerCall() {
+        return mBytesPerCall;
+    }
+
+    public long getRecordingsStarted() {
+        return mRecordingsStarted.get();
+    }
+
+    public long getRecordingsStopped() {
+        return mRecordingsStopped.get();
+    }
+
+    public long getMissedCalls() {
+        return mMissedCalls.get();
+    }
+
+    /**
+     * @param cause одна из констант FAILURE_*
+     * @return количество ошибок по причине
+     */
+    public long getFailures(int cause) {
+        return mFailures.get(cause);
+    }
+
+    /**
+     * @return новый снимок, который затем переиспользуется в snapshot()
+     */
+    public MetricsSnapshot newSnapshot() {
+        return new MetricsSnapshot(this);
+    }
+
+    /**
+     * Копирует текущие значения в снимок без выделения памяти
+     * @param snapshot снимок, созданный newSnapshot()
+     */
+    public void snapshot(MetricsSnapshot snapshot) {
+
+        mStartLatency.copyTo(snapshot.startLatency);
+        mPrepareDuration.copyTo(snapshot.prepareDuration);
+        mStopDuration.copyTo(snapshot.stopDuration);
+        mBytesPerCall.copyTo(snapshot.bytesPerCall);
+
+        snapshot.recordingsStarted = mRecordingsStarted.get();
+        snapshot.recordingsStopped = mRecordingsStopped.get();
+        snapshot.missedCalls = mMissedCalls.get();
+
+        for (int i = 0; i < FAILURE_CAUSES; i++) {
+            snapshot.failures[i] = mFailures.get(i);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.aykuttasil.callrecord.naming;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Стратегия именования файлов записи.
+ * Вызывается в потоке записи на каждый звонок, поэтому не должна
+ * обращаться к файловой системе. Имена разных записей не должны совпадать.
+ */
+
+public interface FileNamingStrategy {
+
+    /**
+     * @param config текущие настройки записи
+     * @param direction направление звонка: incoming или outgoing
+     * @param number номер телефона, может быть null
+     * @param startTimeMs время начала записи по системным часам
+     * @return имя файла вместе с расширением config.getFileSuffix()
+     */
+    String buildFileName(RecordingConfig config, String direction, String number, long startTimeMs);
+}
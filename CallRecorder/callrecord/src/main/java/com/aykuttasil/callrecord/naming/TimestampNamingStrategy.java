@@ -0,0 +1,111 @@
+package com.aykuttasil.callrecord.naming;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+
+import java.util.Calendar;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Стратегия именования по умолчанию:
+ * <pre>Record_20170307-180113-042_0_incoming_79001234567.amr</pre>
+ * Время идет сразу после имени, поэтому записи сортируются по имени.
+ * Счетчик различает записи, начатые в одну миллисекунду, а время
+ * никогда не идет назад, даже если системные часы перевели.
+ * Номер телефона очищается от символов, недопустимых в именах файлов.
+ * Имя собирается в переиспользуемом буфере, файловая система не проверяется.
+ */
+
+public class TimestampNamingStrategy implements FileNamingStrategy {
+
+    static final int MAX_NUMBER_LENGTH = 32;           ///< длина номера в имени файла
+    static final String UNKNOWN_NUMBER = "unknown";    ///< подставляется вместо скрытого номера
+
+    private final StringBuilder mBuffer = new StringBuilder(96);
+    private final Calendar mCalendar = Calendar.getInstance();
+
+    private long mLastTimeMs = Long.MIN_VALUE;
+    private int mSequence;
+
+    @Override
+    public synchronized String buildFileName(RecordingConfig config, String direction, String number, long startTimeMs) {
+
+        if (startTimeMs > mLastTimeMs) {
+            mLastTimeMs = startTimeMs;
+            mSequence = 0;
+        } else {
+            mSequence++;
+        }
+
+        mCalendar.setTimeInMillis(mLastTimeMs);
+
+        StringBuilder name = mBuffer;
+        name.setLength(0);
+
+        name.append(config.getFileName()).append('_');
+
+        appendPadded(name, mCalendar.get(Calendar.YEAR), 4);
+        appendPadded(name, mCalendar.get(Calendar.MONTH) + 1, 2);
+        appendPadded(name, mCalendar.get(Calendar.DAY_OF_MONTH), 2);
+        name.append('-');
+        appendPadded(name, mCalendar.get(Calendar.HOUR_OF_DAY), 2);
+        appendPadded(name, mCalendar.get(Calendar.MINUTE), 2);
+        appendPadded(name, mCalendar.get(Calendar.SECOND), 2);
+        name.append('-');
+        appendPadded(name, mCalendar.get(Calendar.MILLISECOND), 3);
+        name.append('_').append(mSequence);
+
+        if (config.isShowSeed()) {
+            name.append('_').append(direction);
+        }
+
+        if (config.isShowPhoneNumber()) {
+            name.append('_');
+            appendSanitizedNumber(name, number);
+        }
+
+        name.append(config.getFileSuffix());
+
+        return name.toString();
+    }
+
+    /**
+     * Добавляет номер телефона, оставляя только цифры, латинские буквы, '+' и '-'
+     * @param name буфер имени
+     * @param number номер телефона или null
+     */
+    static void appendSanitizedNumber(StringBuilder name, String number) {
+
+        int start = name.length();
+
+        if (number != null) {
+
+            for (int i = 0; i < number.length() && name.length() - start < MAX_NUMBER_LENGTH; i++) {
+
+                char c = number.charAt(i);
+
+                if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '+' || c == '-') {
+                    name.append(c);
+                }
+            }
+        }
+
+        if (name.length() == start) {
+            name.append(UNKNOWN_NUMBER);
+        }
+    }
+
+    private static void appendPadded(StringBuilder name, int value, int width) {
+
+        for (int limit = 10, digits = 1; digits < width; limit *= 10, digits++) {
+            if (value < limit) {
+                name.append('0');
+            }
+        }
+
+        name.append(value);
+    }
+}
@@ -1,15 +1,34 @@
 package com.aykuttasil.callrecord.receiver;
 
 import android.content.Context;
-import android.media.MediaRecorder;
+import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import com.aykuttasil.callrecord.CallRecord;
-import com.aykuttasil.callrecord.helper.PrefsHelper;
+import com.aykuttasil.callrecord.config.AdaptivePolicy;
+import com.aykuttasil.callrecord.config.EncodingProfile;
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.engine.CaptureEngine;
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+import com.aykuttasil.callrecord.engine.SegmentFiles;
+import com.aykuttasil.callrecord.helper.BatteryStatus;
+import com.aykuttasil.callrecord.index.Recording;
+import com.aykuttasil.callrecord.index.RecordingQuery;
+import com.aykuttasil.callrecord.journal.CallJournal;
+import com.aykuttasil.callrecord.metrics.RecordingMetrics;
+import com.aykuttasil.callrecord.repair.RepairReport;
+import com.aykuttasil.callrecord.session.RecordingSession;
+import com.aykuttasil.callrecord.session.RecordingSessionRegistry;
+import com.aykuttasil.callrecord.storage.DirectoryLayout;
+import com.aykuttasil.callrecord.storage.StorageEvictor;
+import com.aykuttasil.callrecord.upload.UploadQueue;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * \brief Регистрация звонков.
@@ -29,9 +48,12 @@ public class CallRecordReceiver extends PhoneCallReceiver {
     public static final String ACTION_OUT = "android.intent.action.NEW_OUTGOING_CALL";
     public static final String EXTRA_PHONE_NUMBER = "android.intent.extra.PHONE_NUMBER";
 
-    private static MediaRecorder recorder;
-    private File audiofile;
-    private boolean isRecordStarted = false; ///< флаг запуска записи
+    private static final int MAX_CREATED_DIRS = 512;
+    private static final int HISTORY_CALLS = 20;    ///< столько прошлых звонков с номером учитывается в прогнозе длительности
+
+    private volatile long lastStartLatencyNanos = -1; ///< время от снятия трубки до start() последней записи
+    private final Set<String> mCreatedDirs = new HashSet<>(); ///< директории, уже созданные в потоке записи
+    private DirectoryLayout mDirectoryLayout;         ///< раскладка директории, используется только в потоке записи
 
     /**
      * Конструктор
@@ -43,16 +65,26 @@ public class CallRecordReceiver extends PhoneCallReceiver {
     }
 
     /**
-     * Вызывается при принятии входящего вызова
-     * На данный момент не работает
+     * Вызывается при поступлении входящего вызова.
+     * Если включен режим предварительной подготовки, создает и подготавливает
+     * рекордер и файл записи, чтобы при ответе оставалось вызвать только start().
+     * Номер при звонке может быть неизвестен, поэтому сессия хранится
+     * под ключом подготовки и переносится на номер при ответе
      * @param ctx контект приложения
      * @param number номер телефона
-     * @param start время принятия вызова
-     * На данный момент не работает
+     * @param start время поступления вызова
      */
     @Override
     protected void onIncomingCallReceived(Context ctx, String number, Date start) {
 
+        if (getCallRecord().getRecordingConfig().isPreArm()) {
+
+            RecordingSession session = getCallRecord().getSessionRegistry().openPending(number, "incoming");
+
+            if (session.getState() == RecordingSession.STATE_NEW) {
+                prepareRecord(ctx, session);
+            }
+        }
     }
 
     /**
@@ -75,17 +107,7 @@ public class CallRecordReceiver extends PhoneCallReceiver {
      */
     @Override
     protected void onIncomingCallEnded(Context ctx, String number, Date start, Date end) {
-
-        if (recorder != null && isRecordStarted) {
-
-            recorder.stop();
-            recorder.reset();
-            recorder.release();
-
-            isRecordStarted = false;
-
-            Log.i(TAG, "record stop");
-        }
+        stopRecord(end);
     }
 
     /**
@@ -108,22 +130,12 @@ public class CallRecordReceiver extends PhoneCallReceiver {
      */
     @Override
     protected void onOutgoingCallEnded(Context ctx, String number, Date start, Date end) {
-
-        if (recorder != null && isRecordStarted) {
-
-            recorder.stop();
-            recorder.reset();
-            recorder.release();
-
-            isRecordStarted = false;
-
-            Log.i(TAG, "record stop");
-        }
+        stopRecord(end);
     }
 
     /**
      * Возникает при пропуске звонка
-     * На данный момент не работает
+     * Удаляет заранее подготовленный рекордер и пустой файл записи
      * @param ctx контект приложения
      * @param number номер телефона
      * @param start время принятия вызова
@@ -131,101 +143,455 @@ public class CallRecordReceiver extends PhoneCallReceiver {
     @Override
     protected void onMissedCall(Context ctx, String number, Date start) {
 
+        getCallRecord().getMetrics().onMissedCall();
+
+        stopRecord(null);
     }
 
     /**
-     *
+     * Необходим для получения задержки старта последней записи
+     * @return время от получения события снятия трубки до вызова start() в наносекундах, -1 если записи не было
+     */
+    public long getLastStartLatencyNanos() {
+        return lastStartLatencyNanos;
+    }
+
+    /**
+     * Запускает запись разговора. Если сессия звонка была подготовлена
+     * во время входящего звонка, вызывается только start()
      * @param context контект приложения
-     * @param seed
+     * @param seed направление звонка
      * @param phoneNumber номер телефона
      */
     private void startRecord(Context context, String seed, String phoneNumber) {
 
+        long offHookTime = getEventNanos();
+
+        RecordingSessionRegistry registry = getCallRecord().getSessionRegistry();
+        RecordingSession session = "incoming".equals(seed) ? registry.adoptPending(phoneNumber) : null;
+
+        if (session == null) {
+            session = registry.open(phoneNumber, seed);
+        }
+
+        if (session.getState() == RecordingSession.STATE_NEW) {
+
+            session = prepareRecord(context, session);
+
+            if (session == null) {
+                return;
+            }
+        }
+
+        try {
+
+            session.start(offHookTime);
+
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "record start failed", e);
+            getCallRecord().getMetrics().onFailure(RecordingMetrics.FAILURE_START);
+            registry.remove(session);
+            return;
+        }
+
+        getCallRecord().getStorageEvictor().addActiveRecording(session.getFile().getAbsolutePath());
+        getCallRecord().getLevelMeter().addSource(session);
+
+        lastStartLatencyNanos = session.getStartLatencyNanos();
+        getCallRecord().getMetrics().onRecordingStarted(lastStartLatencyNanos);
+
+        Log.i(TAG, "record start, latency ms: " + lastStartLatencyNanos / 1000000);
+
+        indexStarted(session);
+
+        getCallRecord().getCallJournal().appendStart(session.getRecordId(), seed, phoneNumber,
+                session.getFile().getAbsolutePath());
+    }
+
+    /**
+     * Создает файл записи и подготавливает движок сессии
+     * @param context контект приложения
+     * @param session новая сессия звонка
+     * @return подготовленная сессия или null, если запись не ведется
+     */
+    private RecordingSession prepareRecord(Context context, RecordingSession session) {
+        return prepareRecord(context, session, null);
+    }
+
+    /**
+     * Создает файл записи и подготавливает движок сессии.
+     * Если профиль, выбранный по правилам, не удалось подготовить,
+     * звонок записывается с запасным профилем в новой сессии
+     * @param context контект приложения
+     * @param session новая сессия звонка
+     * @param forcedProfile профиль без выбора по правилам, null - выбрать
+     * @return подготовленная сессия или null, если запись не ведется
+     */
+    private RecordingSession prepareRecord(Context context, RecordingSession session, EncodingProfile forcedProfile) {
+
+        AdaptivePolicy policy = getCallRecord().getAdaptivePolicy();
+
         try {
 
-            boolean isSaveFile = PrefsHelper.readPrefBool(context, CallRecord.PREF_SAVE_FILE);
+            RecordingConfig config = getCallRecord().getRecordingConfig();
+
+            boolean isSaveFile = config.isSaveFile();
             Log.i(TAG, "isSaveFile: " + isSaveFile);
 
 
             if (!isSaveFile) {
-                return;
+                getCallRecord().getSessionRegistry().remove(session);
+                return null;
             }
 
-            String file_name = PrefsHelper.readPrefString(context, CallRecord.PREF_FILE_NAME);
-            String dir_path = PrefsHelper.readPrefString(context, CallRecord.PREF_DIR_PATH);
-            String dir_name = PrefsHelper.readPrefString(context, CallRecord.PREF_DIR_NAME);
-            boolean show_seed = PrefsHelper.readPrefBool(context, CallRecord.PREF_SHOW_SEED);
-            boolean show_phone_number = PrefsHelper.readPrefBool(context, CallRecord.PREF_SHOW_PHONE_NUMBER);
-            int output_format = PrefsHelper.readPrefInt(context, CallRecord.PREF_OUTPUT_FORMAT);
-            int audio_source = PrefsHelper.readPrefInt(context, CallRecord.PREF_AUDIO_SOURCE);
-            int audio_encoder = PrefsHelper.readPrefInt(context, CallRecord.PREF_AUDIO_ENCODER);
+            getCallRecord().getStorageEvictor().requestEviction();
 
-            File sampleDir = new File(dir_path + "/" + dir_name);
+            if (policy != null) {
 
-            if (!sampleDir.exists()) {
-                sampleDir.mkdirs();
+                EncodingProfile profile = forcedProfile != null
+                        ? forcedProfile : selectProfile(context, policy, config, session.getNumber());
+
+                Log.i(TAG, "encoding profile: " + profile);
+
+                session.setProfile(profile);
+                config = config.withProfile(profile);
             }
 
+            long prepareStart = System.nanoTime();
 
-            StringBuilder fileNameBuilder = new StringBuilder();
-            fileNameBuilder.append(file_name);
-            fileNameBuilder.append("_");
+            long startTime = System.currentTimeMillis();
 
-            if (show_seed) {
-                fileNameBuilder.append(seed);
-                fileNameBuilder.append("_");
+            String file_name = getCallRecord().getFileNamingStrategy().buildFileName(config,
+                    session.getDirection(), session.getNumber(), startTime);
+
+            RecordingCipher cipher = getCallRecord().getRecordingCipher();
+
+            if (cipher != null) {
+                file_name += RecordingCipher.FILE_SUFFIX;
             }
 
-            if (show_phone_number) {
-                fileNameBuilder.append(phoneNumber);
-                fileNameBuilder.append("_");
+            if (mDirectoryLayout == null || mDirectoryLayout.getLayout() != config.getDirLayout()) {
+                mDirectoryLayout = new DirectoryLayout(config.getDirLayout());
             }
 
+            File sampleDir = mDirectoryLayout.resolve(config.getRecordDir(), startTime, file_name);
 
-            file_name = fileNameBuilder.toString();
+            if (mCreatedDirs.add(sampleDir.getPath())) {
 
-            String suffix = "";
-            switch (output_format) {
-                case MediaRecorder.OutputFormat.AMR_NB: {
-                    suffix = ".amr";
-                    break;
+                if (mCreatedDirs.size() > MAX_CREATED_DIRS) {
+                    mCreatedDirs.clear();
+                    mCreatedDirs.add(sampleDir.getPath());
                 }
-                case MediaRecorder.OutputFormat.AMR_WB: {
-                    suffix = ".amr";
-                    break;
-                }
-                case MediaRecorder.OutputFormat.MPEG_4: {
-                    suffix = ".mp4";
-                    break;
-                }
-                case MediaRecorder.OutputFormat.THREE_GPP: {
-                    suffix = ".3gp";
-                    break;
+
+                sampleDir.mkdirs();
+            }
+
+            File audiofile = new File(sampleDir, file_name);
+
+            CaptureEngine engine = getCallRecord().getCaptureEngineFactory().newEngine(config, cipher);
+            engine.setSegmentListener(getCallRecord().getSegmentListener());
+
+            session.prepare(config, audiofile, engine);
+
+            getCallRecord().getMetrics().onPrepared(System.nanoTime() - prepareStart);
+
+            return session;
+
+        } catch (IllegalStateException | IOException e) {
+            Log.e(TAG, "record prepare failed", e);
+            mCreatedDirs.clear();
+            getCallRecord().getMetrics().onFailure(e instanceof IOException
+                    ? RecordingMetrics.FAILURE_PREPARE_IO : RecordingMetrics.FAILURE_PREPARE_STATE);
+            session.discard();
+            getCallRecord().getSessionRegistry().remove(session);
+
+            if (policy != null && e instanceof IOException && forcedProfile == null
+                    && session.getProfile() != policy.getFallbackProfile()) {
+
+                RecordingSessionRegistry registry = getCallRecord().getSessionRegistry();
+                RecordingSession retry = RecordingSessionRegistry.isPending(session)
+                        ? registry.openPending(session.getNumber(), session.getDirection())
+                        : registry.open(session.getNumber(), session.getDirection());
+
+                return prepareRecord(context, retry, policy.getFallbackProfile());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Выбирает профиль кодирования для звонка. Прогноз длительности -
+     * самый длинный из последних звонков с этим номером, но не меньше прогноза правил
+     * @param context контект приложения
+     * @param policy правила выбора
+     * @param config постоянные настройки записи
+     * @param number номер телефона
+     * @return выбранный профиль
+     */
+    private EncodingProfile selectProfile(Context context, AdaptivePolicy policy, RecordingConfig config,
+                                          String number) {
+
+        long historyMs = 0;
+
+        if (number != null) {
+
+            try {
+
+                List<Recording> recent = getCallRecord().getRecordingIndex().query(new RecordingQuery()
+                        .setNumber(number)
+                        .setFinishedOnly(true)
+                        .setOrderBy(RecordingQuery.ORDER_BY_START, true)
+                        .setPage(0, HISTORY_CALLS));
+
+                for (Recording recording : recent) {
+                    historyMs = Math.max(historyMs, recording.getDuration());
                 }
-                default: {
-                    suffix = ".amr";
+
+            } catch (RuntimeException e) {
+                Log.e(TAG, "call history query failed", e);
+            }
+        }
+
+        BatteryStatus battery = BatteryStatus.read(context);
+
+        long freeBytes = config.getDirPath() != null
+                ? StorageEvictor.freeBytes(new File(config.getDirPath())) - config.getQuotaMinFreeBytes()
+                : Long.MAX_VALUE;
+
+        return policy.select(freeBytes, battery.getPercent(), battery.isCharging(),
+                policy.projectCallMs(historyMs), getCallRecord().getRecordingCipher() != null);
+    }
+
+    /**
+     * Добавляет начатую запись в индекс
+     * @param session сессия звонка
+     */
+    private void indexStarted(RecordingSession session) {
+
+        String suffix = session.getConfig().getFileSuffix();
+        EncodingProfile profile = session.getProfile();
+
+        try {
+            session.setRecordId(getCallRecord().getRecordingIndex().insertStarted(session.getNumber(),
+                    session.getDirection(), session.getStartTime(),
+                    session.getFile().getAbsolutePath(), suffix.substring(1),
+                    profile != null ? profile.getName() : null));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "index insert failed", e);
+            getCallRecord().getMetrics().onFailure(RecordingMetrics.FAILURE_INDEX);
+        }
+    }
+
+    /**
+     * Дополняет запись в индексе после остановки и учитывает ее размер в квоте
+     * @param session остановленная сессия
+     * @param end время окончания звонка
+     * @return размер записи вместе с сегментами, байт
+     */
+    private long indexFinished(RecordingSession session, Date end) {
+
+        File file = session.getFile();
+        long size = SegmentFiles.totalSize(file);
+
+        if (session.getRecordId() >= 0) {
+
+            try {
+                getCallRecord().getRecordingIndex().updateFinished(session.getRecordId(),
+                        end != null ? end.getTime() : System.currentTimeMillis(), size);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "index update failed", e);
+                getCallRecord().getMetrics().onFailure(RecordingMetrics.FAILURE_INDEX);
+            }
+        }
+
+        StorageEvictor evictor = getCallRecord().getStorageEvictor();
+        evictor.removeActiveRecording(file.getAbsolutePath());
+        evictor.onRecordingFinished(size);
+
+        return size;
+    }
+
+    /**
+     * Останавливает записи звонков, освобождает движки и дополняет индекс.
+     * Вызывается при переходе в IDLE, когда закончились все звонки,
+     * поэтому завершаются все сессии реестра, а не только сессия номера.
+     * Если запись так и не началась, сессия отменяется
+     * @param end время окончания звонка, null - текущее время
+     */
+    private void stopRecord(Date end) {
+
+        for (RecordingSession session : getCallRecord().getSessionRegistry().removeAll()) {
+            finishRecord(session, end);
+        }
+    }
+
+    /**
+     * Останавливает запись сессии, уже убранной из реестра
+     * @param session сессия звонка
+     * @param end время окончания звонка
+     */
+    private void finishRecord(RecordingSession session, Date end) {
+
+        getCallRecord().getLevelMeter().removeSource(session);
+
+        boolean stopped = false;
+        long stopStart = System.nanoTime();
+
+        try {
+
+            stopped = session.stop();
+
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "record stop failed", e);
+            getCallRecord().getMetrics().onFailure(RecordingMetrics.FAILURE_STOP);
+            stopped = true;
+        } finally {
+
+            if (!stopped) {
+                session.discard();
+            }
+        }
+
+        if (stopped) {
+
+            long stopNanos = System.nanoTime() - stopStart;
+
+            Log.i(TAG, "record stop");
+
+            // в очередь до снятия отметки записываемого файла, чтобы удаление по квоте его не тронуло
+            enqueueUpload(session.getFile(), session.getRecordId(), session.getNumber(),
+                    session.getDirection(), session.getStartTime());
+
+            getCallRecord().getMetrics().onRecordingStopped(stopNanos, indexFinished(session, end));
+
+            getCallRecord().getCallJournal().appendStop(session.getFile().getAbsolutePath());
+        }
+    }
+
+    /**
+     * Ставит завершенную запись со всеми сегментами в очередь загрузки, если она настроена
+     * @param first файл первого сегмента
+     * @param recordId идентификатор в индексе или -1
+     * @param number номер телефона
+     * @param direction направление звонка
+     * @param startTime время начала записи, мс
+     */
+    private void enqueueUpload(File first, long recordId, String number, String direction, long startTime) {
+
+        UploadQueue queue = getCallRecord().getUploadQueue();
+
+        if (queue == null) {
+            return;
+        }
+
+        try {
+
+            for (int index = 0; ; index++) {
+
+                File segment = SegmentFiles.segmentFile(first, index);
+
+                if (!segment.isFile() || segment.length() == 0) {
                     break;
                 }
+
+                queue.enqueue(segment, recordId, number, direction, startTime);
             }
 
-            audiofile = File.createTempFile(file_name, suffix, sampleDir);
+        } catch (IOException e) {
+            Log.e(TAG, "upload enqueue failed", e);
+        }
+    }
+
+    /**
+     * Восстанавливает состояние после гибели процесса посреди звонка:
+     * завершает в индексе записи, начатые и не остановленные предыдущим процессом,
+     * удаляет пустые файлы и сжимает журнал.
+     * Если звонок еще идет, состояние звонка восстанавливается из журнала,
+     * чтобы следующее событие обработалось как продолжение этого звонка.
+     * Вызывается в потоке записи до первого события звонка; повторные вызовы
+     * в том же процессе ничего не делают, см. CallJournal.claimRecovery()
+     * @param journal журнал событий звонка
+     * @param currentState текущее состояние звонка по TelephonyManager
+     */
+    public void recover(CallJournal journal, int currentState) {
+
+        if (!journal.claimRecovery()) {
+            return;
+        }
 
-            recorder = new MediaRecorder();
-            recorder.setAudioSource(audio_source);
-            recorder.setOutputFormat(output_format);
-            recorder.setAudioEncoder(audio_encoder);
-            recorder.setOutputFile(audiofile.getAbsolutePath());
-            recorder.prepare();
+        CallJournal.Replay replay = journal.replay();
 
-        } catch (IllegalStateException | IOException e) {
-            e.printStackTrace();
+        for (CallJournal.Entry entry : replay.getOrphans()) {
+            finishOrphan(entry);
+        }
+
+        journal.compact();
+
+        if (replay.isSameBoot()
+                && replay.getState() != TelephonyManager.CALL_STATE_IDLE
+                && replay.getState() == currentState) {
+
+            restoreState(replay.getState(), replay.isIncoming(), replay.getNumber(), replay.getCallStartNanos());
+
+            Log.i(TAG, "call state restored: " + replay.getState());
+        }
+    }
+
+    /**
+     * Завершает запись, оставшуюся незакрытой после гибели процесса.
+     * Файл исправляется здесь же, до индексации и загрузки, чтобы в индекс
+     * и в очередь загрузки попал уже окончательный размер
+     * @param entry запись из журнала
+     */
+    private void finishOrphan(CallJournal.Entry entry) {
+
+        File file = new File(entry.getPath());
+
+        RepairReport report = getCallRecord().getRecordingRepairer().repairRecording(file,
+                getCallRecord().getRecordingConfig().getAudioEncoder());
+
+        if (report.getRepaired() > 0) {
+            Log.i(TAG, "orphaned record repaired: " + file.getName() + ", " + report);
         }
 
-        recorder.start();
+        long size = SegmentFiles.totalSize(file);
+        long recordId = entry.getRecordId();
+
+        Log.i(TAG, "orphaned record: " + file.getName() + ", size: " + size);
+
+        try {
+
+            if (size == 0) {
+
+                SegmentFiles.delete(file);
+
+                if (recordId >= 0) {
+                    getCallRecord().getRecordingIndex().delete(recordId);
+                }
+
+                return;
+            }
+
+            if (recordId < 0) {
+
+                String name = file.getName();
+
+                recordId = getCallRecord().getRecordingIndex().insertStarted(entry.getNumber(),
+                        entry.getDirection(), entry.getStartWallMs(), entry.getPath(),
+                        name.substring(name.lastIndexOf('.') + 1));
+            }
+
+            getCallRecord().getRecordingIndex().updateFinished(recordId,
+                    Math.max(file.lastModified(), entry.getStartWallMs()), size);
+
+        } catch (RuntimeException e) {
+            Log.e(TAG, "orphan index update failed", e);
+        }
 
-        isRecordStarted = true;
+        enqueueUpload(file, recordId, entry.getNumber(), entry.getDirection(), entry.getStartWallMs());
 
-        Log.i(TAG, "record start");
+        getCallRecord().getStorageEvictor().onRecordingFinished(size);
     }
 
 }
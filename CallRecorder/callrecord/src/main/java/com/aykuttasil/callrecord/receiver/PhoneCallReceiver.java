@@ -3,9 +3,11 @@ package com.aykuttasil.callrecord.receiver;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 
 import com.aykuttasil.callrecord.CallRecord;
+import com.aykuttasil.callrecord.state.CallStateMachine;
 
 import java.util.Date;
 
@@ -23,10 +25,20 @@ import java.util.Date;
 public abstract class PhoneCallReceiver extends BroadcastReceiver {
 
 
-    private static int lastState = TelephonyManager.CALL_STATE_IDLE;
-    private static Date callStartTime;
-    private static boolean isIncoming;
-    private static String savedNumber;
+    /**
+     * Монотонные часы устройства, учитывают время в глубоком сне
+     */
+    public static final CallStateMachine.Clock ELAPSED_CLOCK = new CallStateMachine.Clock() {
+        @Override
+        public long elapsedNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    // Машина состояний принадлежит экземпляру ресивера, события в нее передаются только из потока записи
+    private final CallStateMachine mStateMachine = new CallStateMachine(new StateListener(), ELAPSED_CLOCK);
+    private Context mContext; ///< контекст последнего события, используется в обработчиках
+    private long mEventNanos; ///< время получения последнего события по System.nanoTime()
     private CallRecord mCallRecord;
 
     /**
@@ -37,42 +49,85 @@ public abstract class PhoneCallReceiver extends BroadcastReceiver {
         this.mCallRecord = callRecord;
     }
 
+    /**
+     * Необходим для получения объекта регистрации вызовов
+     * @return объект, которому принадлежит ресивер
+     */
+    protected CallRecord getCallRecord() {
+        return mCallRecord;
+    }
+
     /**
      * Необходимо для проверки есть ли новый исходящий вызов,
      * если таковой имеется запишем номер, иначе запишем номер
-     * текущего вызова, его статус
+     * текущего вызова, его статус.
+     * В главном потоке только разбирается интент, обработка события
+     * передается в поток записи через goAsync(), чтобы сохранить порядок событий
      * @param context Текущий контект приложения
      * @param intent описывает операцию, которую требуется запустить, а также содержит все остальные необходимые данные.
      */
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(final Context context, Intent intent) {
+
+        final long receivedNanos = System.nanoTime();
 
         //We listen to two intents.  The new outgoing call only tells us of an outgoing call.  We use it to get the number.
         if (intent.getAction().equals(CallRecordReceiver.ACTION_OUT)) {
 
-            savedNumber = intent.getExtras().getString(CallRecordReceiver.EXTRA_PHONE_NUMBER);
+            final String outgoingNumber = intent.getExtras().getString(CallRecordReceiver.EXTRA_PHONE_NUMBER);
+
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    mStateMachine.onOutgoingNumber(outgoingNumber);
+                }
+            });
 
         } else {
 
             String stateStr = intent.getExtras().getString(TelephonyManager.EXTRA_STATE);
 
-            String number = intent.getExtras().getString(TelephonyManager.EXTRA_INCOMING_NUMBER);
+            final String number = intent.getExtras().getString(TelephonyManager.EXTRA_INCOMING_NUMBER);
 
-            savedNumber = number;
+            final int callState = parseState(stateStr);
 
-            int state = 0;
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
 
-            if (stateStr.equals(TelephonyManager.EXTRA_STATE_IDLE)) {
-                state = TelephonyManager.CALL_STATE_IDLE;
-            } else if (stateStr.equals(TelephonyManager.EXTRA_STATE_OFFHOOK)) {
-                state = TelephonyManager.CALL_STATE_OFFHOOK;
-            } else if (stateStr.equals(TelephonyManager.EXTRA_STATE_RINGING)) {
-                state = TelephonyManager.CALL_STATE_RINGING;
-            }
+                    handleStateChange(context, callState, number, receivedNanos);
+                }
+            });
+        }
+    }
 
+    /**
+     * Передает событие в поток записи, удерживая широковещательное сообщение
+     * через goAsync() до окончания его обработки
+     * @param event обработчик события
+     */
+    private void dispatch(final Runnable event) {
 
-            onCallStateChanged(context, state, number);
+        if (mCallRecord == null) {
+            event.run();
+            return;
         }
+
+        final PendingResult pendingResult = goAsync();
+
+        mCallRecord.getRecordingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    event.run();
+                } finally {
+                    if (pendingResult != null) {
+                        pendingResult.finish();
+                    }
+                }
+            }
+        });
     }
 
     /**
@@ -140,61 +195,118 @@ public abstract class PhoneCallReceiver extends BroadcastReceiver {
      * @param number номер телефона
      */
     public void onCallStateChanged(Context context, int state, String number) {
+        handleStateChange(context, state, number, System.nanoTime());
+    }
 
-        if (lastState == state) {
-            //No change, debounce extras
-            return;
-        }
-
-        switch (state) {
-            case TelephonyManager.CALL_STATE_RINGING:
+    /**
+     * Передает смену статуса звонка в машину состояний
+     * @param context текущий контекст приложения
+     * @param state статус звонка
+     * @param number номер телефона
+     * @param eventNanos время получения события по System.nanoTime()
+     */
+    private void handleStateChange(Context context, int state, String number, long eventNanos) {
 
-                isIncoming = true;
-                callStartTime = new Date();
-                savedNumber = number;
+        mContext = context;
+        mEventNanos = eventNanos;
 
-                onIncomingCallReceived(context, number, callStartTime);
+        if (mCallRecord != null && state != mStateMachine.getState()) {
+            mCallRecord.getCallJournal().appendState(state, number);
+        }
 
-                break;
-            case TelephonyManager.CALL_STATE_OFFHOOK:
-                //Transition of ringing->offhook are pickups of incoming calls.  Nothing done on them
-                if (lastState != TelephonyManager.CALL_STATE_RINGING) {
+        mStateMachine.onEvent(state, number);
+    }
 
-                    isIncoming = false;
-                    callStartTime = new Date();
+    /**
+     * Необходим для измерения задержки от широковещательного сообщения до старта записи
+     * @return время получения обрабатываемого события по System.nanoTime()
+     */
+    protected long getEventNanos() {
+        return mEventNanos;
+    }
 
-                    onOutgoingCallStarted(context, savedNumber, callStartTime);
+    /**
+     * Восстанавливает состояние звонка после перезапуска процесса, не вызывая обработчиков
+     * @param state состояние звонка
+     * @param incoming true - если звонок входящий
+     * @param number номер телефона
+     * @param startNanos время начала звонка по ELAPSED_CLOCK
+     */
+    public void restoreState(int state, boolean incoming, String number, long startNanos) {
+        mStateMachine.restore(state, incoming, number, startNanos);
+    }
 
-                } else {
+    /**
+     * Переводит строковое состояние из интента в код TelephonyManager.CALL_STATE_*
+     * Строки сравниваются только после совпадения первого символа
+     * @param stateStr значение TelephonyManager.EXTRA_STATE
+     * @return код состояния, CallStateMachine.STATE_UNKNOWN - если состояние неизвестно
+     */
+    static int parseState(String stateStr) {
 
-                    isIncoming = true;
-                    callStartTime = new Date();
+        if (stateStr == null || stateStr.isEmpty()) {
+            return CallStateMachine.STATE_UNKNOWN;
+        }
 
-                    onIncomingCallAnswered(context, savedNumber, callStartTime);
+        switch (stateStr.charAt(0)) {
+            case 'I':
+                return TelephonyManager.EXTRA_STATE_IDLE.equals(stateStr)
+                        ? TelephonyManager.CALL_STATE_IDLE : CallStateMachine.STATE_UNKNOWN;
+            case 'O':
+                return TelephonyManager.EXTRA_STATE_OFFHOOK.equals(stateStr)
+                        ? TelephonyManager.CALL_STATE_OFFHOOK : CallStateMachine.STATE_UNKNOWN;
+            case 'R':
+                return TelephonyManager.EXTRA_STATE_RINGING.equals(stateStr)
+                        ? TelephonyManager.CALL_STATE_RINGING : CallStateMachine.STATE_UNKNOWN;
+            default:
+                return CallStateMachine.STATE_UNKNOWN;
+        }
+    }
 
-                }
+    /**
+     * Переводит монотонное время события во время по системным часам
+     * @param eventNanos время события по ELAPSED_CLOCK
+     * @return дата события
+     */
+    private static Date toDate(long eventNanos) {
 
-                break;
-            case TelephonyManager.CALL_STATE_IDLE:
+        long ageMillis = (ELAPSED_CLOCK.elapsedNanos() - eventNanos) / 1000000;
+        return new Date(System.currentTimeMillis() - ageMillis);
+    }
 
-                //Went to idle-  this is the end of a call.  What type depends on previous state(s)
-                if (lastState == TelephonyManager.CALL_STATE_RINGING) {
-                    //Ring but no pickup-  a miss
+    /**
+     * Переводит события машины состояний в обработчики ресивера
+     */
+    private class StateListener implements CallStateMachine.Listener {
 
-                    onMissedCall(context, savedNumber, callStartTime);
+        @Override
+        public void onIncomingCallReceived(String number, long startNanos) {
+            PhoneCallReceiver.this.onIncomingCallReceived(mContext, number, toDate(startNanos));
+        }
 
-                } else if (isIncoming) {
+        @Override
+        public void onIncomingCallAnswered(String number, long startNanos) {
+            PhoneCallReceiver.this.onIncomingCallAnswered(mContext, number, toDate(startNanos));
+        }
 
-                    onIncomingCallEnded(context, savedNumber, callStartTime, new Date());
+        @Override
+        public void onIncomingCallEnded(String number, long startNanos, long endNanos) {
+            PhoneCallReceiver.this.onIncomingCallEnded(mContext, number, toDate(startNanos), toDate(endNanos));
+        }
 
-                } else {
+        @Override
+        public void onOutgoingCallStarted(String number, long startNanos) {
+            PhoneCallReceiver.this.onOutgoingCallStarted(mContext, number, toDate(startNanos));
+        }
 
-                    onOutgoingCallEnded(context, savedNumber, callStartTime, new Date());
-                    
-                }
-                break;
+        @Override
+        public void onOutgoingCallEnded(String number, long startNanos, long endNanos) {
+            PhoneCallReceiver.this.onOutgoingCallEnded(mContext, number, toDate(startNanos), toDate(endNanos));
         }
 
-        lastState = state;
+        @Override
+        public void onMissedCall(String number, long startNanos) {
+            PhoneCallReceiver.this.onMissedCall(mContext, number, toDate(startNanos));
+        }
     }
-}
\ No newline at end of file
+}
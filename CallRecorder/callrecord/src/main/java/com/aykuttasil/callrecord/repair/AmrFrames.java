@@ -0,0 +1,121 @@
+package com.aykuttasil.callrecord.repair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Разбор кадров AMR-NB/AMR-WB в формате хранения (RFC 4867, раздел 5.3).
+ * Каждый кадр начинается с байта заголовка, по которому известен его размер,
+ * поэтому поток кадров можно пройти последовательно, не загружая файл целиком.
+ */
+
+final class AmrFrames {
+
+    static final int MAX_FRAME_BYTES = 61;          ///< самый длинный кадр вместе с заголовком (AMR-WB 23.85)
+    static final int SAMPLES_PER_FRAME_NB = 160;    ///< 20 мс при 8 кГц
+    static final int SAMPLES_PER_FRAME_WB = 320;    ///< 20 мс при 16 кГц
+
+    private static final int[] PAYLOAD_NB = {12, 13, 15, 17, 19, 20, 26, 31, 5, -1, -1, -1, -1, -1, -1, 0};
+    private static final int[] PAYLOAD_WB = {17, 23, 32, 36, 40, 46, 50, 58, 60, 5, -1, -1, -1, -1, 0, 0};
+
+    /**
+     * Получает размеры кадров при проходе по потоку
+     */
+    interface FrameVisitor {
+
+        void onFrame(int bytes) throws IOException;
+    }
+
+    private AmrFrames() {
+    }
+
+    /**
+     * @param header байт заголовка кадра
+     * @param wideband true - AMR-WB, false - AMR-NB
+     * @return размер кадра вместе с заголовком, -1 - если заголовок недопустим
+     */
+    static int frameBytes(int header, boolean wideband) {
+
+        if ((header & 0x83) != 0) {
+            return -1;
+        }
+
+        int payload = (wideband ? PAYLOAD_WB : PAYLOAD_NB)[(header >> 3) & 0x0F];
+
+        return payload < 0 ? -1 : payload + 1;
+    }
+
+    /**
+     * Проходит по кадрам в диапазоне файла
+     * @param channel файл
+     * @param start смещение первого кадра
+     * @param end конец данных
+     * @param wideband true - AMR-WB, false - AMR-NB
+     * @param buffer буфер чтения, не меньше MAX_FRAME_BYTES
+     * @param visitor получатель размеров кадров или null
+     * @return смещение конца последнего целого кадра
+     * @throws IOException при ошибке чтения
+     */
+    static long walk(FileChannel channel, long start, long end, boolean wideband,
+                     ByteBuffer buffer, FrameVisitor visitor) throws IOException {
+
+        long frameEnd = start;
+        long readPos = start;
+        boolean eof = false;
+
+        buffer.clear();
+
+        while (true) {
+
+            while (buffer.hasRemaining() && readPos < end && !eof) {
+
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), end - readPos));
+
+                int read = channel.read(buffer, readPos);
+
+                buffer.limit(limit);
+
+                if (read <= 0) {
+                    eof = true;
+                } else {
+                    readPos += read;
+                }
+            }
+
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+
+                int bytes = frameBytes(buffer.get(buffer.position()) & 0xFF, wideband);
+
+                if (bytes < 0) {
+                    return frameEnd;
+                }
+
+                if (buffer.remaining() < bytes) {
+                    break;
+                }
+
+                buffer.position(buffer.position() + bytes);
+                frameEnd += bytes;
+
+                if (visitor != null) {
+                    visitor.onFrame(bytes);
+                }
+            }
+
+            if (readPos >= end || eof) {
+                return frameEnd;
+            }
+
+            buffer.compact();
+        }
+    }
+}
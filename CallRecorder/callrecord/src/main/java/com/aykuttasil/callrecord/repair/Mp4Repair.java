@@ -0,0 +1,378 @@
+package com.aykuttasil.callrecord.repair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Восстановление MP4/3GP, запись которых оборвалась до вызова stop():
+ * атом moov в таком файле отсутствует, а размер mdat не записан.
+ * Если в mdat лежат кадры AMR, границы отсчетов восстанавливаются по заголовкам кадров,
+ * и в конец файла дописывается moov с одной звуковой дорожкой.
+ * Таблица размеров отсчетов пишется потоково, за два прохода по mdat,
+ * поэтому память не зависит от длины записи.
+ * Кадры AAC не содержат своей длины, такие файлы не восстанавливаются.
+ */
+
+final class Mp4Repair {
+
+    private static final int TYPE_FTYP = fourCc("ftyp");
+    private static final int TYPE_MOOV = fourCc("moov");
+    private static final int TYPE_MDAT = fourCc("mdat");
+
+    private static final int MOVIE_TIMESCALE = 1000;
+
+    private Mp4Repair() {
+    }
+
+    /**
+     * Проверяет файл и при необходимости восстанавливает moov
+     * @param channel файл, открытый на чтение и запись
+     * @param widebandHint true - если запись, скорее всего, в AMR-WB
+     * @param readBuffer буфер чтения
+     * @param writeBuffer буфер записи
+     * @return результат из RepairReport
+     * @throws IOException при ошибке ввода-вывода
+     */
+    static int repair(FileChannel channel, boolean widebandHint,
+                      ByteBuffer readBuffer, ByteBuffer writeBuffer) throws IOException {
+
+        long size = channel.size();
+        long pos = 0;
+        long mdatStart = -1;
+        int mdatHeader = 0;
+        long mdatEnd = 0;
+        boolean hasFtyp = false;
+
+        ByteBuffer header = ByteBuffer.allocate(16);
+
+        while (pos + 8 <= size) {
+
+            header.clear();
+            readFully(channel, header, pos);
+            header.flip();
+
+            long boxSize = header.getInt() & 0xFFFFFFFFL;
+            int type = header.getInt();
+            int headerBytes = 8;
+
+            if (boxSize == 1) {
+                boxSize = header.remaining() >= 8 ? header.getLong() : 0;
+                headerBytes = 16;
+            }
+
+            if (boxSize == 0) {
+                // размер не записан: бокс продолжается до конца файла
+                boxSize = size - pos;
+            }
+
+            if (type == TYPE_FTYP) {
+                hasFtyp = true;
+            } else if (type == TYPE_MOOV) {
+                return RepairReport.RESULT_OK;
+            } else if (type == TYPE_MDAT) {
+                mdatStart = pos;
+                mdatHeader = headerBytes;
+                mdatEnd = Math.min(pos + boxSize, size);
+            }
+
+            if (boxSize < headerBytes || pos + boxSize > size) {
+                break;
+            }
+
+            pos += boxSize;
+        }
+
+        if (!hasFtyp) {
+            return RepairReport.RESULT_FAILED;
+        }
+
+        if (mdatStart < 0) {
+            return RepairReport.RESULT_FAILED;
+        }
+
+        long dataStart = mdatStart + mdatHeader;
+
+        if (dataStart > 0xFFFFFFFFL) {
+            return RepairReport.RESULT_UNSUPPORTED;
+        }
+
+        boolean wideband = widebandHint;
+        long dataEnd = AmrFrames.walk(channel, dataStart, mdatEnd, wideband, readBuffer, null);
+
+        if (mdatEnd - dataEnd >= AmrFrames.MAX_FRAME_BYTES) {
+
+            wideband = !widebandHint;
+            dataEnd = AmrFrames.walk(channel, dataStart, mdatEnd, wideband, readBuffer, null);
+
+            if (mdatEnd - dataEnd >= AmrFrames.MAX_FRAME_BYTES) {
+                return RepairReport.RESULT_UNSUPPORTED;
+            }
+        }
+
+        FrameCounter counter = new FrameCounter();
+        AmrFrames.walk(channel, dataStart, dataEnd, wideband, readBuffer, counter);
+
+        if (counter.frames == 0) {
+            return RepairReport.RESULT_FAILED;
+        }
+
+        channel.truncate(dataEnd);
+        patchMdatSize(channel, mdatStart, mdatHeader, dataEnd - mdatStart);
+
+        writeMoov(channel, dataStart, dataEnd, counter.frames, wideband, readBuffer, writeBuffer);
+
+        return RepairReport.RESULT_INDEX_REBUILT;
+    }
+
+    private static void patchMdatSize(FileChannel channel, long mdatStart, int mdatHeader, long mdatSize) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+
+        if (mdatHeader == 16) {
+            buffer.putInt(1);
+            buffer.putInt(TYPE_MDAT);
+            buffer.putLong(mdatSize);
+        } else if (mdatSize <= 0xFFFFFFFFL) {
+            buffer.putInt((int) mdatSize);
+            buffer.putInt(TYPE_MDAT);
+        } else {
+            // 32-битный размер не помещается, оставляем 0 - "до конца файла" нельзя, moov идет после
+            throw new IOException("mdat is too large for a 32-bit header");
+        }
+
+        buffer.flip();
+        writeFully(channel, buffer, mdatStart);
+    }
+
+    /**
+     * Дописывает moov с одной дорожкой AMR в конец файла.
+     * Все кадры лежат в одном чанке, начинающемся с dataStart
+     */
+    private static void writeMoov(final FileChannel channel, long dataStart, long dataEnd, int frames,
+                                  boolean wideband, ByteBuffer readBuffer, final ByteBuffer out) throws IOException {
+
+        int timescale = wideband ? 16000 : 8000;
+        int delta = wideband ? AmrFrames.SAMPLES_PER_FRAME_WB : AmrFrames.SAMPLES_PER_FRAME_NB;
+        long mediaDuration = (long) frames * delta;
+        long movieDuration = mediaDuration * MOVIE_TIMESCALE / timescale;
+
+        long stsz = 20 + 4L * frames;
+        long stbl = 8 + 69 + 24 + 28 + stsz + 20;
+        long minf = 8 + 16 + 36 + stbl;
+        long mdia = 8 + 32 + 44 + minf;
+        long trak = 8 + 92 + mdia;
+        long moov = 8 + 108 + trak;
+
+        final long[] writePos = {dataEnd};
+
+        out.clear();
+
+        box(out, moov, "moov");
+
+        box(out, 108, "mvhd");
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(MOVIE_TIMESCALE);
+        out.putInt((int) movieDuration);
+        out.putInt(0x00010000);
+        out.putShort((short) 0x0100);
+        zeros(out, 10);
+        matrix(out);
+        zeros(out, 24);
+        out.putInt(2);
+
+        box(out, trak, "trak");
+
+        box(out, 92, "tkhd");
+        out.putInt(0x00000007);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(1);
+        out.putInt(0);
+        out.putInt((int) movieDuration);
+        zeros(out, 8);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0x0100);
+        out.putShort((short) 0);
+        matrix(out);
+        out.putInt(0);
+        out.putInt(0);
+
+        box(out, mdia, "mdia");
+
+        box(out, 32, "mdhd");
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(timescale);
+        out.putInt((int) mediaDuration);
+        out.putShort((short) 0x55C4);
+        out.putShort((short) 0);
+
+        box(out, 44, "hdlr");
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(fourCc("soun"));
+        zeros(out, 12);
+        out.put("SoundHandle".getBytes("US-ASCII"));
+        out.put((byte) 0);
+
+        box(out, minf, "minf");
+
+        box(out, 16, "smhd");
+        out.putInt(0);
+        out.putInt(0);
+
+        box(out, 36, "dinf");
+        box(out, 28, "dref");
+        out.putInt(0);
+        out.putInt(1);
+        box(out, 12, "url ");
+        out.putInt(1);
+
+        box(out, stbl, "stbl");
+
+        box(out, 69, "stsd");
+        out.putInt(0);
+        out.putInt(1);
+        box(out, 53, wideband ? "sawb" : "samr");
+        zeros(out, 6);
+        out.putShort((short) 1);
+        zeros(out, 8);
+        out.putShort((short) 1);
+        out.putShort((short) 16);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putInt(timescale << 16);
+        box(out, 17, "damr");
+        out.putInt(0);
+        out.put((byte) 0);
+        out.putShort((short) 0);
+        out.put((byte) 0);
+        out.put((byte) 1);
+
+        box(out, 24, "stts");
+        out.putInt(0);
+        out.putInt(1);
+        out.putInt(frames);
+        out.putInt(delta);
+
+        box(out, 28, "stsc");
+        out.putInt(0);
+        out.putInt(1);
+        out.putInt(1);
+        out.putInt(frames);
+        out.putInt(1);
+
+        box(out, stsz, "stsz");
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(frames);
+
+        AmrFrames.walk(channel, dataStart, dataEnd, wideband, readBuffer, new AmrFrames.FrameVisitor() {
+            @Override
+            public void onFrame(int bytes) throws IOException {
+
+                if (out.remaining() < 4) {
+                    writePos[0] = flush(channel, out, writePos[0]);
+                }
+
+                out.putInt(bytes);
+            }
+        });
+
+        if (out.remaining() < 20) {
+            writePos[0] = flush(channel, out, writePos[0]);
+        }
+
+        box(out, 20, "stco");
+        out.putInt(0);
+        out.putInt(1);
+        out.putInt((int) dataStart);
+
+        flush(channel, out, writePos[0]);
+        channel.force(false);
+    }
+
+    private static long flush(FileChannel channel, ByteBuffer out, long position) throws IOException {
+
+        out.flip();
+
+        int length = out.remaining();
+        writeFully(channel, out, position);
+        out.clear();
+
+        return position + length;
+    }
+
+    private static void box(ByteBuffer out, long size, String type) {
+        out.putInt((int) size);
+        out.putInt(fourCc(type));
+    }
+
+    private static void matrix(ByteBuffer out) {
+
+        out.putInt(0x00010000);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x00010000);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x40000000);
+    }
+
+    private static void zeros(ByteBuffer out, int count) {
+
+        for (int i = 0; i < count; i++) {
+            out.put((byte) 0);
+        }
+    }
+
+    private static int fourCc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+
+            int read = channel.read(buffer, position);
+
+            if (read <= 0) {
+                return;
+            }
+
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Считает кадры при первом проходе
+     */
+    private static class FrameCounter implements AmrFrames.FrameVisitor {
+
+        int frames;
+
+        @Override
+        public void onFrame(int bytes) {
+            frames++;
+        }
+    }
+}
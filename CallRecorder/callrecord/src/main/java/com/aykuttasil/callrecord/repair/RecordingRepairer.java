@@ -0,0 +1,290 @@
+package com.aykuttasil.callrecord.repair;
+
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+import com.aykuttasil.callrecord.engine.SegmentFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Проверяет директорию записей в фоне и исправляет файлы,
+ * запись которых оборвалась без вызова stop():
+ * AMR обрезается до последнего целого кадра, в MP4/3GP восстанавливается moov.
+ * Файлы читаются через буферы постоянного размера, поэтому одновременно
+ * исправляется только один файл: запись, оставшаяся от прошлого процесса,
+ * ждет не всю фоновую проверку, а только текущий файл.
+ */
+
+public class RecordingRepairer {
+
+    private static final String TAG = RecordingRepairer.class.getSimpleName();
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_DEPTH = 3;
+
+    private static final byte[] AMR_NB_MAGIC = {'#', '!', 'A', 'M', 'R', '\n'};
+    private static final byte[] AMR_WB_MAGIC = {'#', '!', 'A', 'M', 'R', '-', 'W', 'B', '\n'};
+
+    private final ExecutorService mExecutor;
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFFER_BYTES);
+
+    /**
+     * Конструктор
+     */
+    public RecordingRepairer() {
+
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "CallRecord-repair");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Запускает проверку директории в фоновом потоке
+     * @param dir директория записей
+     * @param modifiedFrom проверяются файлы, измененные не раньше этого времени
+     * @param modifiedBefore и раньше этого времени; более свежие файлы могут еще записываться
+     * @param audioEncoder кодек из настроек, подсказка для MP4/3GP
+     * @param listener получатель отчета или null
+     */
+    public void requestScan(final File dir, final long modifiedFrom, final long modifiedBefore,
+                            final int audioEncoder, final RepairListener listener) {
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                RepairReport report = scan(dir, modifiedFrom, modifiedBefore, audioEncoder);
+
+                Log.i(TAG, "repair scan finished, " + report);
+
+                if (listener != null) {
+                    listener.onRepairFinished(report);
+                }
+            }
+        });
+    }
+
+    /**
+     * Проверяет директорию в текущем потоке
+     * @param dir директория записей
+     * @param modifiedFrom проверяются файлы, измененные не раньше этого времени
+     * @param modifiedBefore и раньше этого времени
+     * @param audioEncoder кодек из настроек, подсказка для MP4/3GP
+     * @return отчет о проверке
+     */
+    public RepairReport scan(File dir, long modifiedFrom, long modifiedBefore, int audioEncoder) {
+
+        RepairReport report = new RepairReport();
+
+        scanDir(dir, modifiedFrom, modifiedBefore, audioEncoder == MediaRecorder.AudioEncoder.AMR_WB, 0, report);
+
+        return report;
+    }
+
+    /**
+     * Проверяет и исправляет одну запись со всеми сегментами в текущем потоке,
+     * независимо от времени изменения файлов. Используется для записей,
+     * оставшихся незакрытыми после гибели процесса, до их индексации и загрузки
+     * @param first файл первого сегмента
+     * @param audioEncoder кодек из настроек, подсказка для MP4/3GP
+     * @return отчет о проверке
+     */
+    public RepairReport repairRecording(File first, int audioEncoder) {
+
+        RepairReport report = new RepairReport();
+        boolean wideband = audioEncoder == MediaRecorder.AudioEncoder.AMR_WB;
+
+        for (int index = 0; ; index++) {
+
+            File segment = SegmentFiles.segmentFile(first, index);
+
+            if (!segment.isFile()) {
+                return report;
+            }
+
+            repairByName(segment, wideband, report);
+        }
+    }
+
+    /**
+     * Проверяет файлы директории и ее поддиректорий раскладки DirectoryLayout
+     * @param depth глубина вложенности, yyyy/MM/dd - самая глубокая раскладка
+     */
+    private void scanDir(File dir, long modifiedFrom, long modifiedBefore, boolean wideband, int depth,
+                         RepairReport report) {
+
+        File[] files = dir.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+
+            if (file.isDirectory()) {
+
+                if (depth < MAX_DEPTH && !file.getName().startsWith(".")) {
+                    scanDir(file, modifiedFrom, modifiedBefore, wideband, depth + 1, report);
+                }
+
+                continue;
+            }
+
+            long modified = file.lastModified();
+
+            if (!file.isFile() || modified < modifiedFrom || modified >= modifiedBefore) {
+                continue;
+            }
+
+            repairByName(file, wideband, report);
+        }
+    }
+
+    /**
+     * Исправляет файл, если его формат известен по расширению.
+     * Зашифрованные записи не проверяются
+     */
+    private void repairByName(File file, boolean wideband, RepairReport report) {
+
+        String name = file.getName();
+
+        if (name.endsWith(".amr")) {
+            repairFile(file, true, wideband, report);
+        } else if (name.endsWith(".mp4") || name.endsWith(".3gp")) {
+            repairFile(file, false, wideband, report);
+        }
+    }
+
+    /**
+     * Проверяет и при необходимости исправляет один файл
+     * @param file файл записи
+     * @param amr true - AMR, false - MP4/3GP
+     * @param wideband подсказка о кодеке для MP4/3GP
+     * @param report отчет
+     */
+    private synchronized void repairFile(File file, boolean amr, boolean wideband, RepairReport report) {
+
+        long sizeBefore = file.length();
+        int result;
+
+        if (sizeBefore == 0) {
+            return;
+        }
+
+        RandomAccessFile raf = null;
+
+        try {
+
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+
+            result = amr ? repairAmr(channel) : Mp4Repair.repair(channel, wideband, mReadBuffer, mWriteBuffer);
+
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "repair failed: " + file.getName(), e);
+            result = RepairReport.RESULT_FAILED;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        if (result != RepairReport.RESULT_OK) {
+            Log.i(TAG, "repair " + file.getName() + ": " + result);
+        }
+
+        report.onScanned(file, result, sizeBefore, file.length());
+    }
+
+    /**
+     * Обрезает AMR до последнего целого кадра.
+     * Если недопустимый кадр встретился не в самом конце файла,
+     * файл поврежден иначе и не изменяется
+     * @param channel файл
+     * @return результат из RepairReport
+     * @throws IOException при ошибке ввода-вывода
+     */
+    private int repairAmr(FileChannel channel) throws IOException {
+
+        ByteBuffer magic = ByteBuffer.allocate(AMR_WB_MAGIC.length);
+        channel.read(magic, 0);
+
+        boolean wideband;
+        int start;
+
+        if (startsWith(magic, AMR_WB_MAGIC)) {
+            wideband = true;
+            start = AMR_WB_MAGIC.length;
+        } else if (startsWith(magic, AMR_NB_MAGIC)) {
+            wideband = false;
+            start = AMR_NB_MAGIC.length;
+        } else {
+            return RepairReport.RESULT_FAILED;
+        }
+
+        long size = channel.size();
+        long end = AmrFrames.walk(channel, start, size, wideband, mReadBuffer, null);
+
+        if (end == size) {
+            return RepairReport.RESULT_OK;
+        }
+
+        if (size - end >= AmrFrames.MAX_FRAME_BYTES) {
+            return RepairReport.RESULT_FAILED;
+        }
+
+        channel.truncate(end);
+
+        return RepairReport.RESULT_AMR_TRUNCATED;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+
+        if (buffer.position() < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(i) != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Останавливает фоновый поток проверки
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
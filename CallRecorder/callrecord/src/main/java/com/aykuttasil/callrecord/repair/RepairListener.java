@@ -0,0 +1,19 @@
+package com.aykuttasil.callrecord.repair;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Слушатель окончания проверки директории записей.
+ * Вызывается в фоновом потоке проверки.
+ */
+
+public interface RepairListener {
+
+    /**
+     * @param report отчет о проверенных и исправленных файлах
+     */
+    void onRepairFinished(RepairReport report);
+}
@@ -0,0 +1,115 @@
+package com.aykuttasil.callrecord.repair;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Отчет о проверке директории записей.
+ * Содержит только файлы, которые пришлось исправить или не удалось исправить.
+ */
+
+public class RepairReport {
+
+    public static final int RESULT_OK = 0;              ///< файл цел
+    public static final int RESULT_AMR_TRUNCATED = 1;   ///< AMR обрезан до последнего целого кадра
+    public static final int RESULT_INDEX_REBUILT = 2;   ///< в MP4/3GP восстановлен атом moov
+    public static final int RESULT_UNSUPPORTED = 3;     ///< файл поврежден, но кодек не позволяет его восстановить
+    public static final int RESULT_FAILED = 4;          ///< файл поврежден и не исправлен
+
+    private final List<Entry> mEntries = new ArrayList<>();
+    private int mScanned;
+
+    void onScanned(File file, int result, long sizeBefore, long sizeAfter) {
+
+        mScanned++;
+
+        if (result != RESULT_OK) {
+            mEntries.add(new Entry(file, result, sizeBefore, sizeAfter));
+        }
+    }
+
+    /**
+     * @return количество проверенных файлов
+     */
+    public int getScanned() {
+        return mScanned;
+    }
+
+    /**
+     * @return количество исправленных файлов
+     */
+    public int getRepaired() {
+
+        int repaired = 0;
+
+        for (Entry entry : mEntries) {
+            if (entry.isRepaired()) {
+                repaired++;
+            }
+        }
+
+        return repaired;
+    }
+
+    /**
+     * @return исправленные и неисправленные файлы
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    @Override
+    public String toString() {
+        return "scanned: " + mScanned + ", repaired: " + getRepaired()
+                + ", not repaired: " + (mEntries.size() - getRepaired());
+    }
+
+    /**
+     * Результат проверки одного файла
+     */
+    public static final class Entry {
+
+        private final File file;
+        private final int result;
+        private final long sizeBefore;
+        private final long sizeAfter;
+
+        Entry(File file, int result, long sizeBefore, long sizeAfter) {
+
+            this.file = file;
+            this.result = result;
+            this.sizeBefore = sizeBefore;
+            this.sizeAfter = sizeAfter;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public int getResult() {
+            return result;
+        }
+
+        public long getSizeBefore() {
+            return sizeBefore;
+        }
+
+        public long getSizeAfter() {
+            return sizeAfter;
+        }
+
+        /**
+         * @return true - если файл исправлен
+         */
+        public boolean isRepaired() {
+            return result == RESULT_AMR_TRUNCATED || result == RESULT_INDEX_REBUILT;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.aykuttasil.callrecord.service;
+
+import android.os.Binder;
+
+import com.aykuttasil.callrecord.CallRecord;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Управление сервисом записи из того же процесса, возвращается из onBind().
+ * Методы вызываются из главного потока
+ */
+
+public class CallRecordBinder extends Binder {
+
+    private final CallRecordService mService;
+
+    CallRecordBinder(CallRecordService service) {
+        mService = service;
+    }
+
+    /**
+     * @return CallRecord, которым владеет сервис, null - если сервис уже остановлен
+     */
+    public CallRecord getCallRecord() {
+        return mService.getCallRecord();
+    }
+
+    /**
+     * @return true - если ресивер зарегистрирован и звонки записываются
+     */
+    public boolean isReceiving() {
+
+        CallRecord callRecord = mService.getCallRecord();
+
+        return callRecord != null && callRecord.isCallReceiverStarted();
+    }
+
+    /**
+     * Возобновляет запись звонков, не останавливая сервис
+     */
+    public void startReceiving() {
+
+        CallRecord callRecord = mService.getCallRecord();
+
+        if (callRecord != null) {
+            callRecord.startCallReceiver();
+        }
+    }
+
+    /**
+     * Приостанавливает запись звонков, процесс и движок остаются готовыми
+     */
+    public void stopReceiving() {
+
+        CallRecord callRecord = mService.getCallRecord();
+
+        if (callRecord != null) {
+            callRecord.stopCallReceiver();
+        }
+    }
+
+    /**
+     * @return количество идущих записей
+     */
+    public int getActiveRecordings() {
+
+        CallRecord callRecord = mService.getCallRecord();
+
+        return callRecord != null ? callRecord.getSessionRegistry().size() : 0;
+    }
+
+    /**
+     * Останавливает сервис; он не будет перезапущен системой
+     */
+    public void stopService() {
+        mService.stopSelf();
+    }
+}
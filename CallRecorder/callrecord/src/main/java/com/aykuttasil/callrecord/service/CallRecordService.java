@@ -3,11 +3,9 @@ package com.aykuttasil.callrecord.service;
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
-import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.aykuttasil.callrecord.CallRecord;
-import com.aykuttasil.callrecord.helper.PrefsHelper;
 
 /**
  * \brief Регистрация звонков.
@@ -15,27 +13,144 @@ import com.aykuttasil.callrecord.helper.PrefsHelper;
  * \version 0.5
  * \date 7 марта 2017 года
  *
- * Класс, реализующий сервис записи разговора
- * На данный момент не работает
+ * Сервис записи разговоров. Работает на переднем плане и перезапускается
+ * системой (START_STICKY), поэтому процесс уже готов к первому событию звонка.
+ * Владеет объектом CallRecord и регистрацией ресивера, заранее открывает
+ * индекс и журнал. Управление из процесса приложения - через CallRecordBinder.
  */
 
-
 public class CallRecordService extends Service {
 
     private static final String TAG = CallRecordService.class.getSimpleName();
 
-    CallRecord mCallRecord;
+    public static final String ACTION_STOP = "com.aykuttasil.callrecord.action.STOP_SERVICE";
+    public static final int NOTIFICATION_ID = 0x4352;   ///< идентификатор уведомления переднего плана
 
+    private static volatile ServiceConfigurator sConfigurator = new ServiceConfigurator();
+
+    /**
+     * CallRecord из startCallRecordService(), который сервис заберет при следующем запуске
+     */
+    private static CallRecord sPendingCallRecord;
+
+    private final CallRecordBinder mBinder = new CallRecordBinder(this);
+
+    private volatile CallRecord mCallRecord;
 
-    @Override
     /**
-     * Дефолтный метод, на данный момент не используется
+     * Задает создание CallRecord и уведомления. Вызывается из Application.onCreate(),
+     * чтобы сервис, перезапущенный системой, собрал CallRecord так же, как приложение
+     *
+     * @param configurator создатель CallRecord и уведомления
      */
+    public static void setConfigurator(ServiceConfigurator configurator) {
+
+        if (configurator == null) {
+            throw new IllegalArgumentException("configurator == null");
+        }
+
+        sConfigurator = configurator;
+    }
+
+    /**
+     * Передает сервису готовый CallRecord, используется в CallRecord.startCallRecordService()
+     *
+     * @param callRecord объект, которым будет владеть сервис
+     */
+    public static synchronized void handOver(CallRecord callRecord) {
+        sPendingCallRecord = callRecord;
+    }
+
+    private static synchronized CallRecord takePending() {
+
+        CallRecord callRecord = sPendingCallRecord;
+        sPendingCallRecord = null;
+
+        return callRecord;
+    }
+
+    @Override
+    public void onCreate() {
+
+        super.onCreate();
+
+        startForeground(NOTIFICATION_ID, sConfigurator.createNotification(this));
+
+        CallRecord callRecord = takePending();
+
+        if (callRecord == null) {
+            callRecord = sConfigurator.createCallRecord(this);
+        }
+
+        adopt(callRecord);
+
+        Log.i(TAG, "service created");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+
+            stopSelf();
+
+            return START_NOT_STICKY;
+        }
+
+        // приложение передало новый CallRecord, пока сервис уже работал
+        CallRecord callRecord = takePending();
+
+        if (callRecord != null && callRecord != mCallRecord) {
+
+            CallRecord previous = mCallRecord;
+            adopt(callRecord);
+
+            if (previous != null) {
+                previous.release();
+            }
+        }
+
+        return START_STICKY;
+    }
+
+    @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
     }
 
+    @Override
+    public void onDestroy() {
 
+        CallRecord callRecord = mCallRecord;
+        mCallRecord = null;
 
+        if (callRecord != null) {
+            callRecord.release();
+        }
 
+        stopForeground(true);
+
+        Log.i(TAG, "service destroyed");
+
+        super.onDestroy();
+    }
+
+    /**
+     * @return CallRecord, которым владеет сервис, null - если сервис остановлен
+     */
+    CallRecord getCallRecord() {
+        return mCallRecord;
+    }
+
+    /**
+     * Регистрирует ресивер объекта и готовит его к первому звонку
+     * @param callRecord объект, которым теперь владеет сервис
+     */
+    private void adopt(CallRecord callRecord) {
+
+        mCallRecord = callRecord;
+
+        callRecord.startCallReceiver();
+        callRecord.warmUp();
+    }
 }
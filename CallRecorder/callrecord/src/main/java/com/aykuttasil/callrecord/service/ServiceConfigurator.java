@@ -0,0 +1,78 @@
+package com.aykuttasil.callrecord.service;
+
+import android.app.Notification;
+import android.content.Context;
+
+import com.aykuttasil.callrecord.CallRecord;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Создает то, что сервису записи нужно без участия приложения:
+ * CallRecord после перезапуска процесса системой и уведомление переднего плана.
+ * Задается через CallRecordService.setConfigurator() в Application.onCreate(),
+ * так как при перезапуске сервиса активности приложения не создаются.
+ * Текст уведомления передается приложением, например из его ресурсов:
+ * классы библиотеки не обращаются к R, чтобы собираться и без ресурсов Android
+ */
+
+public class ServiceConfigurator {
+
+    public static final String DEFAULT_TEXT = "Call recording is on";  ///< текст уведомления по умолчанию
+
+    private final CharSequence mTitle;     ///< заголовок уведомления, null - название приложения
+    private final CharSequence mText;      ///< текст уведомления
+
+    /**
+     * Конструктор с уведомлением по умолчанию: название приложения и DEFAULT_TEXT
+     */
+    public ServiceConfigurator() {
+        this(null, DEFAULT_TEXT);
+    }
+
+    /**
+     * Конструктор
+     *
+     * @param title заголовок уведомления, null - название приложения
+     * @param text  текст уведомления
+     */
+    public ServiceConfigurator(CharSequence title, CharSequence text) {
+
+        mTitle = title;
+        mText = text;
+    }
+
+    /**
+     * Создает CallRecord, если сервису не передали готовый объект.
+     * Объектные параметры билдера (шифрование, загрузка, именование, выбор профиля) не хранятся
+     * в настройках, их нужно задать здесь
+     *
+     * @param context контекст сервиса
+     * @return объект, реализующий регистрацию вызовов
+     */
+    public CallRecord createCallRecord(Context context) {
+        return CallRecord.restore(context);
+    }
+
+    /**
+     * Создает уведомление, с которым сервис работает на переднем плане
+     *
+     * @param context контекст сервиса
+     * @return уведомление
+     */
+    public Notification createNotification(Context context) {
+
+        CharSequence title = mTitle != null
+                ? mTitle : context.getApplicationInfo().loadLabel(context.getPackageManager());
+
+        return new Notification.Builder(context)
+                .setContentTitle(title)
+                .setContentText(mText)
+                .setSmallIcon(android.R.drawable.ic_btn_speak_now)
+                .setOngoing(true)
+                .build();
+    }
+}
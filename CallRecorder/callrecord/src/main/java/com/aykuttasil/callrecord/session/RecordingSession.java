@@ -0,0 +1,306 @@
+package com.aykuttasil.callrecord.session;
+
+import android.util.Log;
+
+import com.aykuttasil.callrecord.config.EncodingProfile;
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.engine.CaptureEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Сессия записи одного звонка: файл, движок захвата и состояние.
+ * Переходы между состояниями выполняются атомарно, поэтому каждое действие
+ * (старт, остановка, отмена) выполняется над сессией не более одного раза.
+ * Остановка и отмена всегда освобождают движок, даже если предыдущий шаг завершился ошибкой.
+ */
+
+public class RecordingSession {
+
+    private static final String TAG = RecordingSession.class.getSimpleName();
+
+    public static final int STATE_NEW = 0;          ///< создана, движок не подготовлен
+    public static final int STATE_PREPARED = 1;     ///< движок подготовлен, запись не идет
+    public static final int STATE_RECORDING = 2;    ///< идет запись
+    public static final int STATE_STOPPED = 3;      ///< запись остановлена, файл сохранен
+    public static final int STATE_DISCARDED = 4;    ///< сессия отменена, файл удален
+
+    private volatile String mCallKey;
+    private final String mDirection;
+    private volatile String mNumber;
+    private final AtomicInteger mState = new AtomicInteger(STATE_NEW);
+
+    private volatile File mFile;
+    private volatile RecordingConfig mConfig;
+    private volatile EncodingProfile mProfile;
+    private volatile CaptureEngine mEngine;
+    private volatile long mRecordId = -1;
+    private volatile long mStartLatencyNanos = -1;
+    private volatile long mStartTime;
+
+    /**
+     * Конструктор
+     * @param callKey ключ звонка в реестре
+     * @param direction направление звонка: incoming или outgoing
+     * @param number номер телефона
+     */
+    public RecordingSession(String callKey, String direction, String number) {
+
+        mCallKey = callKey;
+        mDirection = direction;
+        mNumber = number;
+    }
+
+    /**
+     * Подготавливает движок к записи в файл.
+     * При ошибке движок освобождается, файл удаляется, а сессия отменяется
+     * @param config настройки записи
+     * @param file файл записи
+     * @param engine движок захвата
+     * @throws IOException если движок не удалось подготовить
+     */
+    public void prepare(RecordingConfig config, File file, CaptureEngine engine) throws IOException {
+
+        if (mState.get() != STATE_NEW) {
+            throw new IllegalStateException("Session is not new: " + mState.get());
+        }
+
+        mFile = file;
+        mConfig = config;
+        mEngine = engine;
+
+        try {
+            engine.prepare(config, file);
+        } catch (IOException | RuntimeException e) {
+            discard();
+            throw e;
+        }
+
+        if (!mState.compareAndSet(STATE_NEW, STATE_PREPARED)) {
+            // Сессию отменили во время подготовки
+            releaseEngine();
+            deleteFile();
+        }
+    }
+
+    /**
+     * Запускает запись. При ошибке сессия отменяется
+     * @param offHookNanos время снятия трубки по System.nanoTime()
+     * @throws IllegalStateException если сессия не подготовлена или движок не запустился
+     */
+    public void start(long offHookNanos) {
+
+        if (!mState.compareAndSet(STATE_PREPARED, STATE_RECORDING)) {
+            throw new IllegalStateException("Session is not prepared: " + mState.get());
+        }
+
+        try {
+            mEngine.start();
+        } catch (RuntimeException e) {
+            mState.set(STATE_DISCARDED);
+            releaseEngine();
+            deleteFile();
+            throw e;
+        }
+
+        mStartLatencyNanos = System.nanoTime() - offHookNanos;
+        mStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Останавливает запись и освобождает движок
+     * @return true - если запись шла и была остановлена этим вызовом
+     * @throws IOException если файл не удалось завершить; движок при этом освобожден
+     */
+    public boolean stop() throws IOException {
+
+        if (!mState.compareAndSet(STATE_RECORDING, STATE_STOPPED)) {
+            return false;
+        }
+
+        try {
+            mEngine.stop();
+        } finally {
+            releaseEngine();
+        }
+
+        return true;
+    }
+
+    /**
+     * Отменяет сессию, которая еще не начала запись:
+     * освобождает движок и удаляет пустой файл
+     * @return true - если сессия была отменена этим вызовом
+     */
+    public boolean discard() {
+
+        while (true) {
+
+            int state = mState.get();
+
+            if (state != STATE_NEW && state != STATE_PREPARED) {
+                return false;
+            }
+
+            if (mState.compareAndSet(state, STATE_DISCARDED)) {
+                break;
+            }
+        }
+
+        releaseEngine();
+        deleteFile();
+
+        return true;
+    }
+
+    /**
+     * Завершает сессию в любом состоянии, не выбрасывая исключений
+     */
+    public void close() {
+
+        try {
+            if (!stop()) {
+                discard();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "session close failed", e);
+        }
+    }
+
+    /**
+     * Включает подсчет уровня сигнала в движке сессии
+     * @param enabled true - уровень нужен подписчикам
+     */
+    public void setLevelMetering(boolean enabled) {
+
+        CaptureEngine engine = mEngine;
+
+        if (engine != null) {
+            engine.setLevelMetering(enabled);
+        }
+    }
+
+    /**
+     * @return пиковый уровень сигнала 0..32767 с прошлого вызова, 0 - если запись не идет
+     */
+    public int readLevel() {
+
+        CaptureEngine engine = mEngine;
+
+        return engine != null && mState.get() == STATE_RECORDING ? engine.readLevel() : 0;
+    }
+
+    private void releaseEngine() {
+
+        CaptureEngine engine = mEngine;
+
+        if (engine != null) {
+            try {
+                engine.release();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "engine release failed", e);
+            }
+        }
+    }
+
+    private void deleteFile() {
+
+        File file = mFile;
+
+        if (file != null && file.delete()) {
+            Log.i(TAG, "prepared record discarded");
+        }
+    }
+
+    /**
+     * Переносит сессию на ключ звонка, например подготовленную во время звонка
+     * сессию на номер из события ответа
+     * @param callKey новый ключ звонка в реестре
+     * @param number номер телефона, заменяет номер сессии, если тот был неизвестен
+     */
+    void adopt(String callKey, String number) {
+
+        mCallKey = callKey;
+
+        if ((mNumber == null || mNumber.isEmpty()) && number != null) {
+            mNumber = number;
+        }
+    }
+
+    public String getCallKey() {
+        return mCallKey;
+    }
+
+    public String getDirection() {
+        return mDirection;
+    }
+
+    public String getNumber() {
+        return mNumber;
+    }
+
+    public int getState() {
+        return mState.get();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return настройки, с которыми подготовлена запись, null - сессия не подготовлена
+     */
+    public RecordingConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * @return профиль кодирования, выбранный для звонка, null - постоянные настройки
+     */
+    public EncodingProfile getProfile() {
+        return mProfile;
+    }
+
+    public void setProfile(EncodingProfile profile) {
+        mProfile = profile;
+    }
+
+    public long getRecordId() {
+        return mRecordId;
+    }
+
+    public void setRecordId(long recordId) {
+        mRecordId = recordId;
+    }
+
+    /**
+     * @return время начала записи по системным часам, мс, 0 - запись не начата
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return время от снятия трубки до старта записи, нс, -1 - запись не начата
+     */
+    public long getStartLatencyNanos() {
+        return mStartLatencyNanos;
+    }
+
+    /**
+     * @return true - если сессия еще не остановлена и не отменена
+     */
+    public boolean isActive() {
+
+        int state = mState.get();
+
+        return state == STATE_NEW || state == STATE_PREPARED || state == STATE_RECORDING;
+    }
+}
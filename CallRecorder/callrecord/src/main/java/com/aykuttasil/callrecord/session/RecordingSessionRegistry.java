@@ -0,0 +1,179 @@
+package com.aykuttasil.callrecord.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Реестр сессий записи, по одной на звонок.
+ * Ключ звонка строится по номеру телефона, поэтому параллельные звонки
+ * (ожидание вызова, переключение между звонками) не мешают друг другу.
+ * Сессия, подготовленная во время звонка, хранится под отдельным ключом:
+ * номер при звонке может быть неизвестен, поэтому при ответе она переносится
+ * на номер звонка, а при пропуске отменяется вместе с остальными сессиями.
+ */
+
+public class RecordingSessionRegistry {
+
+    private static final String UNKNOWN_CALL_KEY = "unknown";
+    private static final String PENDING_CALL_KEY = "ringing";    ///< сессия, подготовленная до ответа
+
+    private final ConcurrentHashMap<String, RecordingSession> mSessions = new ConcurrentHashMap<>();
+
+    /**
+     * @param number номер телефона, может быть null для скрытого номера
+     * @return ключ звонка
+     */
+    public static String callKey(String number) {
+        return number == null || number.isEmpty() ? UNKNOWN_CALL_KEY : number;
+    }
+
+    /**
+     * Возвращает активную сессию звонка или атомарно создает новую
+     * @param number номер телефона
+     * @param direction направление звонка
+     * @return сессия звонка
+     */
+    public RecordingSession open(String number, String direction) {
+        return open(callKey(number), direction, number);
+    }
+
+    /**
+     * Возвращает сессию, подготавливаемую до ответа на звонок, или атомарно создает новую
+     * @param number номер телефона, может быть неизвестен до ответа
+     * @param direction направление звонка
+     * @return сессия звонка
+     */
+    public RecordingSession openPending(String number, String direction) {
+        return open(PENDING_CALL_KEY, direction, number);
+    }
+
+    /**
+     * Переносит сессию, подготовленную до ответа, на номер звонка.
+     * Если у номера уже есть активная сессия, подготовленная отменяется
+     * вместе с пустым файлом и возвращается существующая
+     * @param number номер телефона из события ответа
+     * @return сессия звонка или null, если подготовленной сессии нет
+     */
+    public RecordingSession adoptPending(String number) {
+
+        RecordingSession pending = mSessions.remove(PENDING_CALL_KEY);
+
+        if (pending == null || !pending.isActive()) {
+            return null;
+        }
+
+        String key = callKey(number);
+        pending.adopt(key, number);
+
+        while (true) {
+
+            RecordingSession existing = mSessions.putIfAbsent(key, pending);
+
+            if (existing == null) {
+                return pending;
+            }
+
+            if (existing.isActive()) {
+                pending.discard();
+                return existing;
+            }
+
+            if (mSessions.replace(key, existing, pending)) {
+                return pending;
+            }
+        }
+    }
+
+    /**
+     * @param session сессия
+     * @return true - если сессия подготавливается до ответа на звонок
+     */
+    public static boolean isPending(RecordingSession session) {
+        return PENDING_CALL_KEY.equals(session.getCallKey());
+    }
+
+    private RecordingSession open(String key, String direction, String number) {
+
+        RecordingSession created = new RecordingSession(key, direction, number);
+
+        while (true) {
+
+            RecordingSession existing = mSessions.putIfAbsent(key, created);
+
+            if (existing == null) {
+                return created;
+            }
+
+            if (existing.isActive()) {
+                return existing;
+            }
+
+            if (mSessions.replace(key, existing, created)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * @param number номер телефона
+     * @return сессия звонка или null
+     */
+    public RecordingSession get(String number) {
+        return mSessions.get(callKey(number));
+    }
+
+    /**
+     * Убирает из реестра конкретную сессию
+     * @param session сессия
+     * @return true - если сессия была в реестре
+     */
+    public boolean remove(RecordingSession session) {
+        return mSessions.remove(session.getCallKey(), session);
+    }
+
+    /**
+     * @return снимок текущих сессий
+     */
+    public Collection<RecordingSession> getSessions() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    /**
+     * Убирает из реестра все сессии, например когда телефон вернулся в IDLE
+     * и закончились все звонки, в том числе параллельные
+     * @return убранные сессии
+     */
+    public List<RecordingSession> removeAll() {
+
+        List<RecordingSession> removed = new ArrayList<>();
+
+        for (RecordingSession session : mSessions.values()) {
+            if (remove(session)) {
+                removed.add(session);
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Завершает и убирает все сессии
+     */
+    public void closeAll() {
+
+        for (RecordingSession session : removeAll()) {
+            session.close();
+        }
+    }
+
+    public int size() {
+        return mSessions.size();
+    }
+}
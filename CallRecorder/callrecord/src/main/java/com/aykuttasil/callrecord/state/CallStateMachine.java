@@ -0,0 +1,224 @@
+package com.aykuttasil.callrecord.state;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Машина состояний звонка без зависимостей от Android.
+ * Состояния кодируются целыми числами (совпадают с TelephonyManager.CALL_STATE_*),
+ * время берется из монотонных часов в наносекундах.
+ * onEvent() ничего не выделяет в памяти и может вызываться из любого потока.
+ *
+ * Ожидание вызова (RINGING посреди разговора) не начинает новый звонок:
+ * номер и время начала текущего звонка сохраняются, а переход в IDLE
+ * завершает звонок, который был начат.
+ */
+
+public final class CallStateMachine {
+
+    public static final int STATE_IDLE = 0;     ///< нет звонка
+    public static final int STATE_RINGING = 1;  ///< входящий звонок
+    public static final int STATE_OFFHOOK = 2;  ///< разговор
+    public static final int STATE_UNKNOWN = -1; ///< неизвестное состояние, игнорируется
+
+    /**
+     * Монотонные часы
+     */
+    public interface Clock {
+
+        /**
+         * @return время в наносекундах, не зависящее от смены системного времени
+         */
+        long elapsedNanos();
+    }
+
+    /**
+     * Часы на основе System.nanoTime()
+     */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedNanos() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Слушатель событий звонка. Вызывается в потоке, из которого пришло событие
+     */
+    public interface Listener {
+
+        void onIncomingCallReceived(String number, long startNanos);
+
+        void onIncomingCallAnswered(String number, long startNanos);
+
+        void onIncomingCallEnded(String number, long startNanos, long endNanos);
+
+        void onOutgoingCallStarted(String number, long startNanos);
+
+        void onOutgoingCallEnded(String number, long startNanos, long endNanos);
+
+        void onMissedCall(String number, long startNanos);
+    }
+
+    private final Listener mListener;
+    private final Clock mClock;
+
+    private int lastState = STATE_IDLE;
+    private long callStartNanos;
+    private boolean isIncoming;
+    private String savedNumber;
+    private boolean inCall;     ///< звонок начат и еще не завершен
+
+    /**
+     * Конструктор
+     * @param listener слушатель событий звонка
+     * @param clock монотонные часы
+     */
+    public CallStateMachine(Listener listener, Clock clock) {
+        mListener = listener;
+        mClock = clock;
+    }
+
+    /**
+     * Конструктор с системными часами
+     * @param listener слушатель событий звонка
+     */
+    public CallStateMachine(Listener listener) {
+        this(listener, SYSTEM_CLOCK);
+    }
+
+    /**
+     * Запоминает номер исходящего звонка, пришедший до смены состояния
+     * @param number номер телефона
+     */
+    public synchronized void onOutgoingNumber(String number) {
+
+        if (!inCall) {
+            savedNumber = number;
+        }
+    }
+
+    /**
+     * Обрабатывает смену состояния звонка
+     * @param state STATE_IDLE, STATE_RINGING или STATE_OFFHOOK
+     * @param number номер телефона, null - если система его не сообщила
+     */
+    public synchronized void onEvent(int state, String number) {
+
+        if (number != null && !inCall) {
+            savedNumber = number;
+        }
+
+        if (lastState == state || state == STATE_UNKNOWN) {
+            //No change, debounce extras
+            return;
+        }
+
+        long now = mClock.elapsedNanos();
+
+        switch (state) {
+            case STATE_RINGING:
+
+                if (inCall) {
+                    //Call waiting-  the active call keeps its number and recording
+                    break;
+                }
+
+                isIncoming = true;
+                callStartNanos = now;
+
+                mListener.onIncomingCallReceived(savedNumber, callStartNanos);
+
+                break;
+            case STATE_OFFHOOK:
+
+                if (inCall) {
+                    //Waiting call picked up or rejected-  the active call goes on
+                    break;
+                }
+
+                //Transition of ringing->offhook are pickups of incoming calls.
+                inCall = true;
+                isIncoming = lastState == STATE_RINGING;
+                callStartNanos = now;
+
+                if (isIncoming) {
+                    mListener.onIncomingCallAnswered(savedNumber, callStartNanos);
+                } else {
+                    mListener.onOutgoingCallStarted(savedNumber, callStartNanos);
+                }
+
+                break;
+            case STATE_IDLE:
+
+                //Went to idle-  this is the end of a call.  What type depends on previous state(s)
+                if (inCall) {
+
+                    inCall = false;
+
+                    if (isIncoming) {
+                        mListener.onIncomingCallEnded(savedNumber, callStartNanos, now);
+                    } else {
+                        mListener.onOutgoingCallEnded(savedNumber, callStartNanos, now);
+                    }
+
+                } else if (lastState == STATE_RINGING) {
+                    //Ring but no pickup-  a miss
+                    mListener.onMissedCall(savedNumber, callStartNanos);
+                }
+
+                break;
+            default:
+                return;
+        }
+
+        lastState = state;
+    }
+
+    /**
+     * Восстанавливает состояние без вызова слушателя,
+     * например после перезапуска процесса посреди звонка
+     * @param state последнее состояние звонка
+     * @param incoming true - если звонок входящий
+     * @param number номер телефона
+     * @param startNanos время начала звонка по часам машины
+     */
+    public synchronized void restore(int state, boolean incoming, String number, long startNanos) {
+
+        lastState = state;
+        inCall = state == STATE_OFFHOOK;
+        isIncoming = incoming;
+        savedNumber = number;
+        callStartNanos = startNanos;
+    }
+
+    /**
+     * @return последнее обработанное состояние
+     */
+    public synchronized int getState() {
+        return lastState;
+    }
+
+    /**
+     * @return true - если текущий или последний звонок входящий
+     */
+    public synchronized boolean isIncoming() {
+        return isIncoming;
+    }
+
+    /**
+     * @return номер текущего или последнего звонка
+     */
+    public synchronized String getNumber() {
+        return savedNumber;
+    }
+
+    /**
+     * @return время начала текущего или последнего звонка, нс
+     */
+    public synchronized long getCallStartNanos() {
+        return callStartNanos;
+    }
+}
@@ -0,0 +1,125 @@
+package com.aykuttasil.callrecord.storage;
+
+import com.aykuttasil.callrecord.CallRecord;
+
+import java.io.File;
+import java.util.Calendar;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Раскладка записей по поддиректориям, чтобы в одной директории
+ * не накапливались десятки тысяч файлов.
+ * LAYOUT_DATE раскладывает по дате начала записи (yyyy/MM/dd),
+ * LAYOUT_HASH - по хешу имени файла в одну из 256 директорий.
+ * Путь собирается в переиспользуемом буфере, поэтому объект
+ * не потокобезопасен: у каждого потока свой экземпляр.
+ */
+
+public final class DirectoryLayout {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int mLayout;
+    private final StringBuilder mPath = new StringBuilder(16);
+    private final Calendar mCalendar;
+
+    /**
+     * Конструктор
+     * @param layout CallRecord.LAYOUT_FLAT, LAYOUT_DATE или LAYOUT_HASH
+     */
+    public DirectoryLayout(int layout) {
+
+        if (layout != CallRecord.LAYOUT_FLAT && layout != CallRecord.LAYOUT_DATE
+                && layout != CallRecord.LAYOUT_HASH) {
+            throw new IllegalArgumentException("unknown layout: " + layout);
+        }
+
+        mLayout = layout;
+        mCalendar = layout == CallRecord.LAYOUT_DATE ? Calendar.getInstance() : null;
+    }
+
+    public int getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * @return true - если записи лежат прямо в корневой директории
+     */
+    public boolean isFlat() {
+        return mLayout == CallRecord.LAYOUT_FLAT;
+    }
+
+    /**
+     * Определяет директорию записи
+     * @param root директория записей из настроек
+     * @param startTimeMs время начала записи
+     * @param fileName имя первого файла записи, сегменты лежат рядом с ним
+     * @return директория, в которой должен лежать файл
+     */
+    public File resolve(File root, long startTimeMs, String fileName) {
+
+        if (isFlat()) {
+            return root;
+        }
+
+        return new File(root, relativePath(startTimeMs, fileName));
+    }
+
+    /**
+     * @param startTimeMs время начала записи
+     * @param fileName имя первого файла записи
+     * @return путь поддиректории относительно корня, пустой для LAYOUT_FLAT
+     */
+    String relativePath(long startTimeMs, String fileName) {
+
+        StringBuilder path = mPath;
+        path.setLength(0);
+
+        if (mLayout == CallRecord.LAYOUT_DATE) {
+
+            mCalendar.setTimeInMillis(startTimeMs);
+
+            appendPadded(path, mCalendar.get(Calendar.YEAR), 4);
+            path.append(File.separatorChar);
+            appendPadded(path, mCalendar.get(Calendar.MONTH) + 1, 2);
+            path.append(File.separatorChar);
+            appendPadded(path, mCalendar.get(Calendar.DAY_OF_MONTH), 2);
+
+        } else if (mLayout == CallRecord.LAYOUT_HASH) {
+
+            int bucket = bucketOf(fileName);
+
+            path.append(HEX[bucket >>> 4]).append(HEX[bucket & 0xf]);
+        }
+
+        return path.toString();
+    }
+
+    /**
+     * String.hashCode() одинаков на всех версиях Java, поэтому директория
+     * файла не меняется между запусками
+     * @param fileName имя файла
+     * @return номер директории 0..255
+     */
+    static int bucketOf(String fileName) {
+
+        int hash = fileName.hashCode();
+
+        return (hash ^ (hash >>> 8) ^ (hash >>> 16) ^ (hash >>> 24)) & 0xff;
+    }
+
+    private static void appendPadded(StringBuilder path, int value, int width) {
+
+        for (int limit = 10, digits = 1; digits < width; limit *= 10, digits++) {
+            if (value < limit) {
+                path.append('0');
+            }
+        }
+
+        path.append(value);
+    }
+}
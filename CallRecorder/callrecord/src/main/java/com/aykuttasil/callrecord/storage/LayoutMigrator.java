@@ -0,0 +1,363 @@
+package com.aykuttasil.callrecord.storage;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.aykuttasil.callrecord.engine.SegmentFiles;
+import com.aykuttasil.callrecord.index.Recording;
+import com.aykuttasil.callrecord.index.RecordingIndex;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Переносит записи из корневой директории в поддиректории DirectoryLayout.
+ * Работает в фоне по одной записи: перед переносом путь записывается
+ * в файл-метку, файлы переименовываются, путь в индексе обновляется,
+ * и метка удаляется. Если процесс погиб посреди переноса, следующий
+ * запуск сначала завершает перенос по метке, поэтому его можно прерывать
+ * в любой момент. Записываемые, недавно измененные и ожидающие загрузки
+ * файлы не трогаются, см. StorageEvictor.isInUse().
+ */
+
+public class LayoutMigrator {
+
+    private static final String TAG = LayoutMigrator.class.getSimpleName();
+
+    static final String MARKER_NAME = ".callrecord-migration";  ///< метка незавершенного переноса
+    static final long SETTLE_MS = 60 * 1000;                    ///< более свежие файлы могут еще записываться
+
+    private final RecordingIndex mIndex;
+    private final StorageEvictor mEvictor;
+    private final ExecutorService mExecutor;
+
+    private final AtomicInteger mGeneration = new AtomicInteger();   ///< меняется при отмене, перенос идет, пока его поколение текущее
+    private volatile boolean mShutdown;
+
+    /**
+     * Конструктор
+     * @param index индекс записей, в нем обновляются пути
+     * @param evictor знает, какие файлы сейчас записываются или еще нужны
+     */
+    public LayoutMigrator(RecordingIndex index, StorageEvictor evictor) {
+
+        mIndex = index;
+        mEvictor = evictor;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "CallRecord-migration");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Запускает перенос в фоновом потоке
+     * @param root директория записей
+     * @param layout раскладка, в которую переносятся записи
+     * @param listener получатель результата или null
+     */
+    public void requestMigration(final File root, final int layout, final MigrationListener listener) {
+
+        final int generation = mGeneration.get();
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                int[] moved = new int[1];
+                boolean complete = false;
+
+                try {
+                    complete = migrate(root, layout, System.currentTimeMillis() - SETTLE_MS, moved, generation);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "migration failed", e);
+                }
+
+                Log.i(TAG, "migrated recordings: " + moved[0] + ", complete: " + complete);
+
+                if (listener != null) {
+                    listener.onMigrationFinished(moved[0], complete);
+                }
+            }
+        });
+    }
+
+    /**
+     * Переносит записи в текущем потоке
+     * @param root директория записей
+     * @param layout раскладка, в которую переносятся записи
+     * @param modifiedBefore переносятся только файлы, измененные раньше этого времени
+     * @param moved [0] увеличивается на количество перенесенных записей
+     * @return true - если в корне не осталось записей для переноса
+     */
+    public boolean migrate(File root, int layout, long modifiedBefore, int[] moved) {
+        return migrate(root, layout, modifiedBefore, moved, mGeneration.get());
+    }
+
+    /**
+     * Переносит записи в текущем потоке, пока перенос не отменен
+     * @param generation поколение на момент запроса
+     */
+    private synchronized boolean migrate(File root, int layout, long modifiedBefore, int[] moved, int generation) {
+
+        File marker = new File(root, MARKER_NAME);
+
+        if (marker.exists() && !resume(marker, moved)) {
+            return false;
+        }
+
+        DirectoryLayout directoryLayout = new DirectoryLayout(layout);
+
+        if (directoryLayout.isFlat()) {
+            return true;
+        }
+
+        String[] names = root.list();
+
+        if (names == null) {
+            return true;
+        }
+
+        boolean complete = true;
+
+        for (String name : names) {
+
+            if (isCancelled(generation)) {
+                return false;
+            }
+
+            if (name.startsWith(".") || name.endsWith(SegmentFiles.SILENCE_SUFFIX)
+                    || name.endsWith(SegmentFiles.PEAKS_SUFFIX) || isSegmentName(name)) {
+                continue;
+            }
+
+            File file = new File(root, name);
+
+            if (!file.isFile()) {
+                continue;
+            }
+
+            String path = file.getAbsolutePath();
+
+            if (mEvictor.isInUse(path) || file.lastModified() >= modifiedBefore) {
+                complete = false;
+                continue;
+            }
+
+            Recording recording = mIndex.getByPath(path);
+            long startTime = recording != null ? recording.getStartTime() : file.lastModified();
+
+            File target = new File(directoryLayout.resolve(root, startTime, name), name);
+
+            if (target.exists()) {
+                Log.w(TAG, "migration target exists: " + target);
+                complete = false;
+                continue;
+            }
+
+            try {
+                writeMarker(marker, file, target);
+            } catch (IOException e) {
+                Log.e(TAG, "migration marker write failed", e);
+                return false;
+            }
+
+            if (!move(file, target)) {
+                return false;
+            }
+
+            marker.delete();
+            moved[0]++;
+        }
+
+        return complete;
+    }
+
+    /**
+     * Прерывает текущий перенос и запросы, сделанные до отмены;
+     * уже перенесенные записи остаются на новом месте.
+     * Следующий запрос переноса снова переносит записи
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Прерывает перенос и останавливает фоновый поток
+     */
+    public void shutdown() {
+        mShutdown = true;
+        mGeneration.incrementAndGet();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @param generation поколение на момент запроса
+     * @return true - если перенос отменен после запроса или поток остановлен
+     */
+    private boolean isCancelled(int generation) {
+        return mShutdown || generation != mGeneration.get() || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Завершает перенос, прерванный гибелью процесса
+     * @param marker файл-метка
+     * @param moved [0] увеличивается, если запись перенесена
+     * @return true - если перенос завершен
+     */
+    private boolean resume(File marker, int[] moved) {
+
+        String source;
+        String target;
+        BufferedReader reader = null;
+
+        try {
+
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(marker), "UTF-8"));
+            source = reader.readLine();
+            target = reader.readLine();
+
+        } catch (IOException e) {
+            Log.e(TAG, "migration marker read failed", e);
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+
+        // метка оборвана до записи обоих путей - ни один файл еще не переносился
+        if (source != null && target != null) {
+
+            if (!move(new File(source), new File(target))) {
+                return false;
+            }
+
+            moved[0]++;
+        }
+
+        return marker.delete();
+    }
+
+    /**
+     * Переименовывает запись вместе с сегментами и обновляет путь в индексе.
+     * Повторный вызов после прерывания доносит оставшиеся сегменты
+     * @param source прежний файл первого сегмента
+     * @param target новый файл первого сегмента
+     * @return true - если все сегменты перенесены
+     */
+    private boolean move(File source, File target) {
+
+        File dir = target.getParentFile();
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "migration mkdirs failed: " + dir);
+            return false;
+        }
+
+        for (int index = 0; ; index++) {
+
+            File from = SegmentFiles.segmentFile(source, index);
+            File to = SegmentFiles.segmentFile(target, index);
+
+            if (from.exists()) {
+
+                if (!from.renameTo(to)) {
+                    Log.e(TAG, "migration rename failed: " + from);
+                    return false;
+                }
+
+            } else if (!to.exists()) {
+                break;
+            }
+        }
+
+        File silence = SegmentFiles.silenceFile(source);
+
+        if (silence.exists() && !silence.renameTo(SegmentFiles.silenceFile(target))) {
+            Log.e(TAG, "migration rename failed: " + silence);
+            return false;
+        }
+
+        File peaks = SegmentFiles.peaksFile(source);
+
+        if (peaks.exists() && !peaks.renameTo(SegmentFiles.peaksFile(target))) {
+            Log.e(TAG, "migration rename failed: " + peaks);
+            return false;
+        }
+
+        try {
+            mIndex.updatePath(source.getAbsolutePath(), target.getAbsolutePath());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "migration index update failed", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static void writeMarker(File marker, File source, File target) throws IOException {
+
+        FileOutputStream stream = new FileOutputStream(marker);
+        Writer writer = new OutputStreamWriter(stream, "UTF-8");
+
+        try {
+            writer.write(source.getAbsolutePath());
+            writer.write('\n');
+            writer.write(target.getAbsolutePath());
+            writer.write('\n');
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * @param name имя файла
+     * @return true - если это второй или последующий сегмент записи, он переносится вместе с первым
+     */
+    static boolean isSegmentName(String name) {
+
+        int dot = name.lastIndexOf('.');
+        int end = dot < 0 ? name.length() : dot;
+        int digits = end;
+
+        while (digits > 0 && Character.isDigit(name.charAt(digits - 1))) {
+            digits--;
+        }
+
+        return digits < end && name.startsWith("_part", digits - 5);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.aykuttasil.callrecord.storage;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Получатель результата переноса записей в новую раскладку директории.
+ * Вызывается в фоновом потоке переноса
+ */
+
+public interface MigrationListener {
+
+    /**
+     * @param moved количество перенесенных записей
+     * @param complete true - в корневой директории не осталось записей для переноса
+     */
+    void onMigrationFinished(int moved, boolean complete);
+}
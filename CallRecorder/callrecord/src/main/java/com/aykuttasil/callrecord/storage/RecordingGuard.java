@@ -0,0 +1,23 @@
+package com.aykuttasil.callrecord.storage;
+
+import java.io.File;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Сообщает, что записи еще нужны по исходному пути, например ждут загрузки.
+ * Такие записи StorageEvictor не удаляет, а LayoutMigrator не переносит.
+ * Вызывается в фоновых потоках удаления и переноса
+ */
+
+public interface RecordingGuard {
+
+    /**
+     * @param first файл первого сегмента записи
+     * @return true - если запись нельзя удалять или переносить
+     */
+    boolean isInUse(File first);
+}
@@ -0,0 +1,282 @@
+package com.aykuttasil.callrecord.storage;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.StatFs;
+import android.util.Log;
+
+import com.aykuttasil.callrecord.engine.SegmentFiles;
+import com.aykuttasil.callrecord.index.Recording;
+import com.aykuttasil.callrecord.index.RecordingIndex;
+import com.aykuttasil.callrecord.index.RecordingQuery;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Удаляет старые записи, когда нарушены ограничения StorageQuota.
+ * Записи удаляются от самых старых к новым в фоновом потоке.
+ * Объем записей считается один раз по индексу и дальше поддерживается
+ * счетчиком, поэтому директория записей не сканируется.
+ * Незавершенные записи, текущий файл записи и записи, которые RecordingGuard
+ * отмечает как используемые, никогда не удаляются.
+ */
+
+public class StorageEvictor {
+
+    private static final String TAG = StorageEvictor.class.getSimpleName();
+
+    private static final int PAGE_SIZE = 100;
+
+    private final RecordingIndex mIndex;
+    private final ExecutorService mExecutor;
+    private final AtomicBoolean mPending = new AtomicBoolean();
+    private final AtomicLong mUsedBytes = new AtomicLong(-1);   ///< -1 - еще не подсчитан
+
+    private volatile StorageQuota mQuota = StorageQuota.NONE;
+    private volatile File mStorageDir;
+    private final Set<String> mActivePaths =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile RecordingGuard mGuard;     ///< записи, которые еще нужны, например ждут загрузки
+
+    /**
+     * Конструктор
+     * @param index индекс записей
+     */
+    public StorageEvictor(RecordingIndex index) {
+
+        mIndex = index;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "CallRecord-eviction");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Задает текущие ограничения и директорию записей
+     * @param quota ограничения
+     * @param storageDir директория записей, по ней считается свободное место
+     */
+    public void setQuota(StorageQuota quota, File storageDir) {
+        mQuota = quota;
+        mStorageDir = storageDir;
+    }
+
+    /**
+     * Отмечает файл, который сейчас записывается, чтобы он не был удален
+     * @param path путь до файла
+     */
+    public void addActiveRecording(String path) {
+        mActivePaths.add(path);
+    }
+
+    /**
+     * Снимает отметку записываемого файла
+     * @param path путь до файла
+     */
+    public void removeActiveRecording(String path) {
+        mActivePaths.remove(path);
+    }
+
+    /**
+     * Задает проверку записей, которые нельзя удалять и переносить, кроме записываемых
+     * @param guard проверка или null
+     */
+    public void setGuard(RecordingGuard guard) {
+        mGuard = guard;
+    }
+
+    /**
+     * @param path путь до первого сегмента записи
+     * @return true - если запись сейчас записывается или еще нужна по этому пути
+     */
+    public boolean isInUse(String path) {
+
+        if (mActivePaths.contains(path)) {
+            return true;
+        }
+
+        RecordingGuard guard = mGuard;
+
+        return guard != null && guard.isInUse(new File(path));
+    }
+
+    /**
+     * Учитывает завершенную запись и запускает проверку ограничений
+     * @param size размер записи, байт
+     */
+    public void onRecordingFinished(long size) {
+
+        if (mUsedBytes.get() >= 0) {
+            mUsedBytes.addAndGet(size);
+        }
+
+        requestEviction();
+    }
+
+    /**
+     * Учитывает изменение размера уже учтенной записи, например после исправления файла
+     * @param delta новый размер минус прежний, байт
+     */
+    public void onRecordingResized(long delta) {
+
+        if (mUsedBytes.get() >= 0) {
+            mUsedBytes.addAndGet(delta);
+        }
+
+        if (delta > 0) {
+            requestEviction();
+        }
+    }
+
+    /**
+     * Запускает проверку ограничений в фоне.
+     * Повторные запросы, пока проверка не началась, объединяются.
+     * После shutdown() запросы игнорируются
+     */
+    public void requestEviction() {
+
+        if (!mQuota.isEnabled() || !mPending.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    mPending.set(false);
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                    try {
+                        evict();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "eviction failed", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mPending.set(false);
+            Log.w(TAG, "eviction is shut down");
+        }
+    }
+
+    /**
+     * @return объем записей по индексу, байт, -1 - еще не подсчитан
+     */
+    public long getUsedBytes() {
+        return mUsedBytes.get();
+    }
+
+    /**
+     * Останавливает фоновый поток
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Ждет окончания начатой проверки после shutdown()
+     * @param timeoutMs сколько ждать, мс
+     * @return true - если поток остановился
+     * @throws InterruptedException если ожидание прервано
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void evict() {
+
+        StorageQuota quota = mQuota;
+        long now = System.currentTimeMillis();
+
+        if (mUsedBytes.get() < 0) {
+            mUsedBytes.compareAndSet(-1, mIndex.totalSize());
+        }
+
+        int skipped = 0;
+        int evicted = 0;
+
+        while (true) {
+
+            List<Recording> page = mIndex.query(new RecordingQuery()
+                    .setFinishedOnly(true)
+                    .setOrderBy(RecordingQuery.ORDER_BY_START, false)
+                    .setPage(skipped, PAGE_SIZE));
+
+            if (page.isEmpty()) {
+                break;
+            }
+
+            for (Recording recording : page) {
+
+                if (!quota.isExpired(recording.getStartTime(), now)
+                        && !quota.isExceeded(mUsedBytes.get(), freeBytes())) {
+
+                    Log.i(TAG, "evicted recordings: " + evicted);
+                    return;
+                }
+
+                if (isInUse(recording.getPath())) {
+                    skipped++;
+                    continue;
+                }
+
+                SegmentFiles.delete(new File(recording.getPath()));
+                mIndex.delete(recording.getId());
+                mUsedBytes.addAndGet(-recording.getSize());
+                evicted++;
+            }
+        }
+
+        Log.i(TAG, "evicted recordings: " + evicted);
+    }
+
+    /**
+     * @return свободное место на носителе записей, байт
+     */
+    long freeBytes() {
+        return freeBytes(mStorageDir);
+    }
+
+    /**
+     * @param dir директория на носителе
+     * @return свободное место на носителе, байт, Long.MAX_VALUE - если директории нет
+     */
+    @SuppressWarnings("deprecation")
+    public static long freeBytes(File dir) {
+
+        if (dir == null || !dir.exists()) {
+            return Long.MAX_VALUE;
+        }
+
+        StatFs statFs = new StatFs(dir.getPath());
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return statFs.getAvailableBytes();
+        }
+
+        return (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+    }
+}
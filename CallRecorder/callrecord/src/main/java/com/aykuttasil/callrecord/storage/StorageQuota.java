@@ -0,0 +1,77 @@
+package com.aykuttasil.callrecord.storage;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Ограничения на хранение записей.
+ * Любое ограничение, равное 0, не используется.
+ */
+
+public final class StorageQuota {
+
+    public static final StorageQuota NONE = new StorageQuota(0, 0, 0); ///< без ограничений
+
+    private final long maxBytes;        ///< максимальный объем записей, байт
+    private final long maxAgeMs;        ///< максимальный возраст записи, мс
+    private final long minFreeBytes;    ///< минимальное свободное место на носителе, байт
+
+    /**
+     * Конструктор
+     * @param maxBytes максимальный объем записей, байт
+     * @param maxAgeMs максимальный возраст записи, мс
+     * @param minFreeBytes минимальное свободное место на носителе, байт
+     */
+    public StorageQuota(long maxBytes, long maxAgeMs, long minFreeBytes) {
+
+        if (maxBytes < 0 || maxAgeMs < 0 || minFreeBytes < 0) {
+            throw new IllegalArgumentException("Quota limits can not be negative");
+        }
+
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    /**
+     * @return true - если задано хотя бы одно ограничение
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0 || maxAgeMs > 0 || minFreeBytes > 0;
+    }
+
+    /**
+     * Проверяет, превышены ли ограничения по объему
+     * @param usedBytes объем записей, байт
+     * @param freeBytes свободное место на носителе, байт
+     * @return true - если нужно освобождать место
+     */
+    public boolean isExceeded(long usedBytes, long freeBytes) {
+        return (maxBytes > 0 && usedBytes > maxBytes)
+                || (minFreeBytes > 0 && freeBytes < minFreeBytes);
+    }
+
+    /**
+     * Проверяет, устарела ли запись
+     * @param startTime время начала записи, мс
+     * @param now текущее время, мс
+     * @return true - если запись старше допустимого возраста
+     */
+    public boolean isExpired(long startTime, long now) {
+        return maxAgeMs > 0 && now - startTime > maxAgeMs;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+
+    public long getMinFreeBytes() {
+        return minFreeBytes;
+    }
+}
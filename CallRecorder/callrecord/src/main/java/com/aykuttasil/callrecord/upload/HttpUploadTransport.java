@@ -0,0 +1,207 @@
+package com.aykuttasil.callrecord.upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Транспорт загрузки по HTTP с продолжением оборванной загрузки:
+ * <pre>
+ * HEAD base/uploadId                       -> 200 и Upload-Offset, 404 - загрузки нет
+ * PUT  base/uploadId, Upload-Offset: n     -> 200/204 и Upload-Offset после части,
+ *                                             409 и текущий Upload-Offset при расхождении
+ * POST base/uploadId?complete, Upload-Length и Recording-* с данными записи -> 2xx
+ * </pre>
+ * Ответы 4xx, кроме 408, 409 и 429, считаются окончательным отказом.
+ */
+
+public class HttpUploadTransport implements UploadTransport {
+
+    public static final String HEADER_OFFSET = "Upload-Offset";
+    public static final String HEADER_LENGTH = "Upload-Length";
+    public static final String HEADER_NAME = "Recording-Name";
+    public static final String HEADER_NUMBER = "Recording-Number";
+    public static final String HEADER_DIRECTION = "Recording-Direction";
+    public static final String HEADER_START = "Recording-Start";
+
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+
+    private final String mBaseUrl;
+
+    /**
+     * Конструктор
+     * @param baseUrl адрес, к которому добавляется идентификатор загрузки
+     */
+    public HttpUploadTransport(String baseUrl) {
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    }
+
+    @Override
+    public long queryOffset(UploadItem item) throws IOException {
+
+        HttpURLConnection connection = open(item, "", "HEAD");
+
+        try {
+
+            int code = connection.getResponseCode();
+
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                return 0;
+            }
+
+            checkResponse(connection, code);
+
+            return readOffset(connection);
+
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public long sendChunk(UploadItem item, FileChannel channel, long offset, int length, ByteBuffer buffer)
+            throws IOException {
+
+        buffer.clear();
+        buffer.limit(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("recording shrank: " + item.getPath());
+            }
+        }
+
+        HttpURLConnection connection = open(item, "", "PUT");
+
+        try {
+
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "application/offset+octet-stream");
+            connection.setRequestProperty(HEADER_OFFSET, Long.toString(offset));
+
+            OutputStream out = connection.getOutputStream();
+
+            try {
+                out.write(buffer.array(), buffer.arrayOffset(), length);
+            } finally {
+                out.close();
+            }
+
+            int code = connection.getResponseCode();
+
+            // сервер принял другое количество байт - продолжаем с его смещения
+            if (code == HttpURLConnection.HTTP_CONFLICT) {
+                return readOffset(connection);
+            }
+
+            checkResponse(connection, code);
+
+            return readOffset(connection);
+
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void complete(UploadItem item, long size) throws IOException {
+
+        HttpURLConnection connection = open(item, "?complete", "POST");
+
+        try {
+
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(0);
+            connection.setRequestProperty(HEADER_LENGTH, Long.toString(size));
+            connection.setRequestProperty(HEADER_NAME, new File(item.getPath()).getName());
+            connection.setRequestProperty(HEADER_START, Long.toString(item.getStartTime()));
+
+            if (item.getNumber() != null) {
+                connection.setRequestProperty(HEADER_NUMBER, item.getNumber());
+            }
+
+            if (item.getDirection() != null) {
+                connection.setRequestProperty(HEADER_DIRECTION, item.getDirection());
+            }
+
+            connection.getOutputStream().close();
+
+            checkResponse(connection, connection.getResponseCode());
+
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(UploadItem item, String query, String method) throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl + item.getUploadId() + query)
+                .openConnection();
+
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setUseCaches(false);
+
+        return connection;
+    }
+
+    private static long readOffset(HttpURLConnection connection) throws IOException {
+
+        String value = connection.getHeaderField(HEADER_OFFSET);
+
+        if (value == null) {
+            throw new IOException("response without " + HEADER_OFFSET);
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("bad " + HEADER_OFFSET + ": " + value);
+        }
+    }
+
+    /**
+     * Проверяет код ответа и дочитывает тело ошибки, чтобы соединение могло быть переиспользовано
+     */
+    private static void checkResponse(HttpURLConnection connection, int code) throws IOException {
+
+        if (code >= 200 && code < 300) {
+            return;
+        }
+
+        InputStream error = connection.getErrorStream();
+
+        if (error != null) {
+            try {
+                byte[] skip = new byte[512];
+                while (error.read(skip) >= 0) {
+                    // тело ошибки не нужно
+                }
+            } finally {
+                error.close();
+            }
+        }
+
+        String message = "HTTP " + code + " for " + connection.getURL();
+
+        if (code >= 400 && code < 500 && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                && code != HttpURLConnection.HTTP_CONFLICT && code != 429) {
+            throw new UploadRejectedException(message);
+        }
+
+        throw new IOException(message);
+    }
+}
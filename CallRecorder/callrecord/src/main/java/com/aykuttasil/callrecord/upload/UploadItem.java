@@ -0,0 +1,99 @@
+package com.aykuttasil.callrecord.upload;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Запись в очереди загрузки.
+ * Идентификатор загрузки создается при постановке в очередь и не меняется,
+ * по нему сервер продолжает оборванную загрузку.
+ */
+
+public final class UploadItem {
+
+    public static final int STATE_PENDING = 0;  ///< ждет загрузки или повтора
+    public static final int STATE_FAILED = 1;   ///< попытки исчерпаны или сервер отказал
+
+    private final String uploadId;
+    private final String path;
+    private final long recordId;        ///< идентификатор в индексе, -1 - нет в индексе
+    private final String number;
+    private final String direction;
+    private final long startTime;       ///< время начала записи, мс
+    private final long enqueuedAt;      ///< время постановки в очередь, мс
+
+    private int state;
+    private int attempts;
+    private long nextAttemptAt;         ///< время следующей попытки, мс
+
+    UploadItem(String uploadId, String path, long recordId, String number, String direction,
+               long startTime, long enqueuedAt) {
+
+        this.uploadId = uploadId;
+        this.path = path;
+        this.recordId = recordId;
+        this.number = number;
+        this.direction = direction;
+        this.startTime = startTime;
+        this.enqueuedAt = enqueuedAt;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getRecordId() {
+        return recordId;
+    }
+
+    public String getNumber() {
+        return number;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    public synchronized long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    synchronized void setState(int state) {
+        this.state = state;
+    }
+
+    synchronized void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    synchronized void setNextAttemptAt(long nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadItem{" + uploadId + ", " + path + ", attempts=" + getAttempts() + "}";
+    }
+}
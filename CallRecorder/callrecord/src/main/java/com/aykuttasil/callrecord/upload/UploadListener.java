@@ -0,0 +1,29 @@
+package com.aykuttasil.callrecord.upload;
+
+import java.io.IOException;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Получатель результатов загрузки, вызывается в потоке загрузки
+ */
+
+public interface UploadListener {
+
+    /**
+     * Запись загружена и удалена из очереди
+     * @param item загруженная запись
+     */
+    void onUploadFinished(UploadItem item);
+
+    /**
+     * Запись не загружена после всех попыток или отклонена сервером.
+     * Она остается в очереди и может быть повторена через UploadQueue.retryFailed()
+     * @param item запись
+     * @param error последняя ошибка
+     */
+    void onUploadFailed(UploadItem item, IOException error);
+}
@@ -0,0 +1,138 @@
+package com.aykuttasil.callrecord.upload;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Параметры очереди загрузки: размер пачки, число одновременных загрузок,
+ * размер части и задержки повторов
+ */
+
+public final class UploadPolicy {
+
+    public static final UploadPolicy DEFAULT = new Builder().build();
+
+    private final int maxConcurrent;        ///< одновременных загрузок
+    private final int batchSize;            ///< столько записей запускают загрузку сразу
+    private final long batchDelayMs;        ///< меньшая пачка ждет не дольше этого, мс
+    private final int chunkBytes;           ///< размер части файла, байт
+    private final long initialBackoffMs;    ///< задержка перед первым повтором, мс
+    private final long maxBackoffMs;        ///< максимальная задержка повтора, мс
+    private final int maxAttempts;          ///< попыток до перевода записи в STATE_FAILED
+
+    private UploadPolicy(Builder builder) {
+
+        this.maxConcurrent = builder.maxConcurrent;
+        this.batchSize = builder.batchSize;
+        this.batchDelayMs = builder.batchDelayMs;
+        this.chunkBytes = builder.chunkBytes;
+        this.initialBackoffMs = builder.initialBackoffMs;
+        this.maxBackoffMs = builder.maxBackoffMs;
+        this.maxAttempts = builder.maxAttempts;
+    }
+
+    /**
+     * Задержка перед повтором растет вдвое с каждой попыткой
+     * @param attempts количество неудачных попыток, от 1
+     * @return задержка без случайной добавки, мс
+     */
+    public long backoffMs(int attempts) {
+
+        long delay = initialBackoffMs;
+
+        for (int i = 1; i < attempts && delay < maxBackoffMs; i++) {
+            delay *= 2;
+        }
+
+        return Math.min(delay, maxBackoffMs);
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchDelayMs() {
+        return batchDelayMs;
+    }
+
+    public int getChunkBytes() {
+        return chunkBytes;
+    }
+
+    public long getInitialBackoffMs() {
+        return initialBackoffMs;
+    }
+
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Необходим для создания параметров по частям
+     */
+    public static class Builder {
+
+        private int maxConcurrent = 2;
+        private int batchSize = 5;
+        private long batchDelayMs = 30 * 1000;
+        private int chunkBytes = 256 * 1024;
+        private long initialBackoffMs = 5 * 1000;
+        private long maxBackoffMs = 30 * 60 * 1000;
+        private int maxAttempts = 10;
+
+        public Builder setMaxConcurrent(int maxConcurrent) {
+            this.maxConcurrent = maxConcurrent;
+            return this;
+        }
+
+        public Builder setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder setBatchDelayMs(long batchDelayMs) {
+            this.batchDelayMs = batchDelayMs;
+            return this;
+        }
+
+        public Builder setChunkBytes(int chunkBytes) {
+            this.chunkBytes = chunkBytes;
+            return this;
+        }
+
+        public Builder setBackoff(long initialBackoffMs, long maxBackoffMs) {
+            this.initialBackoffMs = initialBackoffMs;
+            this.maxBackoffMs = maxBackoffMs;
+            return this;
+        }
+
+        public Builder setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * @return неизменяемые параметры
+         * @throws IllegalArgumentException если параметры противоречивы
+         */
+        public UploadPolicy build() {
+
+            if (maxConcurrent < 1 || batchSize < 1 || batchDelayMs < 0 || chunkBytes < 1
+                    || initialBackoffMs < 1 || maxBackoffMs < initialBackoffMs || maxAttempts < 1) {
+                throw new IllegalArgumentException("invalid upload policy");
+            }
+
+            return new UploadPolicy(this);
+        }
+    }
+}
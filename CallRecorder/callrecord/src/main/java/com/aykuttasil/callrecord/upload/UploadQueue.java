@@ -0,0 +1,557 @@
+package com.aykuttasil.callrecord.upload;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.aykuttasil.callrecord.engine.SegmentFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Очередь загрузки завершенных записей.
+ * Записи копятся до размера пачки или до истечения задержки пачки,
+ * затем загружаются не более чем в maxConcurrent потоков частями через
+ * UploadTransport. При ошибке запись повторяется с экспоненциально растущей
+ * задержкой. Очередь хранится на диске, после гибели процесса start()
+ * поднимает ее, и оборванные загрузки продолжаются со смещения, которое
+ * сообщает сервер.
+ */
+
+public class UploadQueue {
+
+    private static final String TAG = UploadQueue.class.getSimpleName();
+
+    private final UploadStore mStore;
+    private final UploadTransport mTransport;
+    private final UploadPolicy mPolicy;
+    private final Random mJitter = new Random();
+
+    private final Map<String, UploadItem> mItems = new LinkedHashMap<>();  ///< все записи очереди по uploadId
+    private final Map<String, UploadItem> mInFlight = new LinkedHashMap<>();
+
+    private final ScheduledExecutorService mScheduler;
+    private final ExecutorService mWorkers;
+    private final ThreadLocal<ByteBuffer> mBuffers;
+    private final CountDownLatch mRestored = new CountDownLatch(1);
+
+    private ScheduledFuture<?> mDispatchTask;
+    private long mDispatchAt;           ///< время запланированной раздачи, мс
+    private boolean mStarted;
+    private volatile boolean mShutdown;
+    private volatile UploadListener mListener;
+
+    /**
+     * Конструктор
+     * @param storeDir директория, в которой хранится очередь
+     * @param transport транспорт загрузки
+     * @param policy параметры очереди
+     */
+    public UploadQueue(File storeDir, UploadTransport transport, UploadPolicy policy) {
+
+        mStore = new UploadStore(storeDir);
+        mTransport = transport;
+        mPolicy = policy;
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(newThreadFactory("CallRecord-upload"));
+        mWorkers = Executors.newFixedThreadPool(policy.getMaxConcurrent(), newThreadFactory("CallRecord-upload-worker"));
+
+        final int chunkBytes = policy.getChunkBytes();
+
+        mBuffers = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate(chunkBytes);
+            }
+        };
+    }
+
+    /**
+     * Запускает очередь. Сохраненная очередь читается с диска в потоке очереди,
+     * поэтому метод можно вызывать из главного потока
+     */
+    public synchronized void start() {
+
+        if (mStarted) {
+            return;
+        }
+
+        mStarted = true;
+
+        try {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    restore();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "upload queue is shut down");
+        }
+    }
+
+    /**
+     * Поднимает сохраненную очередь и запускает загрузку ожидающих записей.
+     * Записи, поставленные в очередь до окончания чтения, не заменяются
+     */
+    private void restore() {
+
+        List<UploadItem> stored;
+
+        // чтение удаляет недописанные файлы, поэтому не пересекается с записью новых
+        synchronized (mStore) {
+            stored = mStore.loadAll();
+        }
+
+        synchronized (this) {
+
+            int restored = 0;
+
+            for (UploadItem item : stored) {
+                if (!mItems.containsKey(item.getUploadId())) {
+                    mItems.put(item.getUploadId(), item);
+                    restored++;
+                }
+            }
+
+            Log.i(TAG, "restored uploads: " + restored);
+
+            if (restored > 0) {
+                scheduleDispatch(0);
+            }
+        }
+
+        mRestored.countDown();
+    }
+
+    /**
+     * Ждет, пока start() поднимет сохраненную очередь
+     * @param timeoutMs сколько ждать, мс
+     * @return true - если очередь поднята
+     * @throws InterruptedException если ожидание прервано
+     */
+    public boolean awaitRestored(long timeoutMs) throws InterruptedException {
+        return mRestored.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void setListener(UploadListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Ставит файл записи в очередь
+     * @param file файл записи
+     * @param recordId идентификатор в индексе или -1
+     * @param number номер телефона
+     * @param direction направление звонка
+     * @param startTime время начала записи, мс
+     * @return запись очереди
+     * @throws IOException если очередь не удалось сохранить
+     */
+    public UploadItem enqueue(File file, long recordId, String number, String direction, long startTime)
+            throws IOException {
+
+        UploadItem item = new UploadItem(UUID.randomUUID().toString(), file.getAbsolutePath(), recordId,
+                number, direction, startTime, System.currentTimeMillis());
+
+        synchronized (mStore) {
+            mStore.save(item);
+        }
+
+        synchronized (this) {
+
+            mItems.put(item.getUploadId(), item);
+
+            if (mStarted) {
+                scheduleDispatch(readyCount(System.currentTimeMillis()) >= mPolicy.getBatchSize()
+                        ? 0 : mPolicy.getBatchDelayMs());
+            }
+        }
+
+        return item;
+    }
+
+    /**
+     * Запускает загрузку ожидающих записей, не дожидаясь задержки пачки
+     */
+    public synchronized void flush() {
+
+        if (mStarted) {
+            scheduleDispatch(0);
+        }
+    }
+
+    /**
+     * Возвращает в очередь записи, загрузка которых не удалась
+     * @return количество возвращенных записей
+     */
+    public int retryFailed() {
+
+        List<UploadItem> failed = new ArrayList<>();
+
+        synchronized (this) {
+            for (UploadItem item : mItems.values()) {
+                if (item.getState() == UploadItem.STATE_FAILED) {
+                    failed.add(item);
+                }
+            }
+        }
+
+        for (UploadItem item : failed) {
+
+            item.setState(UploadItem.STATE_PENDING);
+            item.setAttempts(0);
+            item.setNextAttemptAt(0);
+            saveQuietly(item);
+        }
+
+        flush();
+
+        return failed.size();
+    }
+
+    /**
+     * @return записи очереди, включая неудавшиеся
+     */
+    public synchronized List<UploadItem> getItems() {
+        return new ArrayList<>(mItems.values());
+    }
+
+    /**
+     * Проверяет, нужен ли файл записи очереди. Неудавшиеся загрузки тоже
+     * учитываются, их может вернуть retryFailed(). Пока сохраненная очередь
+     * не поднята, считается, что нужен любой файл
+     * @param first файл первого сегмента записи
+     * @return true - если какой-либо сегмент записи стоит в очереди
+     */
+    public synchronized boolean isQueued(File first) {
+
+        if (mStarted && mRestored.getCount() > 0) {
+            return true;
+        }
+
+        String path = first.getAbsolutePath();
+
+        for (UploadItem item : mItems.values()) {
+            if (SegmentFiles.firstSegment(new File(item.getPath())).getAbsolutePath().equals(path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return количество записей, ожидающих загрузки
+     */
+    public synchronized int getPendingCount() {
+
+        int count = 0;
+
+        for (UploadItem item : mItems.values()) {
+            if (item.getState() == UploadItem.STATE_PENDING) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Останавливает загрузку. Очередь остается на диске и продолжится после start()
+     */
+    public void shutdown() {
+
+        mShutdown = true;
+        mScheduler.shutdownNow();
+        mWorkers.shutdownNow();
+    }
+
+    /**
+     * Ждет остановки потоков загрузки после shutdown()
+     * @param timeoutMs сколько ждать, мс
+     * @return true - если потоки остановились
+     * @throws InterruptedException если ожидание прервано
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        return mScheduler.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)
+                && mWorkers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Планирует раздачу, если раньше она не запланирована
+     * @param delayMs задержка, мс
+     */
+    private void scheduleDispatch(long delayMs) {
+
+        if (mShutdown) {
+            return;
+        }
+
+        long at = System.currentTimeMillis() + delayMs;
+
+        if (mDispatchTask != null && !mDispatchTask.isDone() && mDispatchAt <= at) {
+            return;
+        }
+
+        if (mDispatchTask != null) {
+            mDispatchTask.cancel(false);
+        }
+
+        try {
+            mDispatchTask = mScheduler.schedule(mDispatch, delayMs, TimeUnit.MILLISECONDS);
+            mDispatchAt = at;
+        } catch (RejectedExecutionException e) {
+            // очередь остановлена
+            mDispatchTask = null;
+        }
+    }
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * Раздает готовые записи потокам загрузки в порядке постановки в очередь
+     * и планирует следующую раздачу к ближайшему повтору
+     */
+    private synchronized void dispatch() {
+
+        mDispatchTask = null;
+
+        long now = System.currentTimeMillis();
+        long nextAttempt = Long.MAX_VALUE;
+
+        for (final UploadItem item : mItems.values()) {
+
+            if (item.getState() != UploadItem.STATE_PENDING || mInFlight.containsKey(item.getUploadId())) {
+                continue;
+            }
+
+            if (item.getNextAttemptAt() > now) {
+                nextAttempt = Math.min(nextAttempt, item.getNextAttemptAt());
+                continue;
+            }
+
+            if (mInFlight.size() >= mPolicy.getMaxConcurrent()) {
+                break;
+            }
+
+            try {
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        upload(item);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // очередь остановлена
+                return;
+            }
+
+            mInFlight.put(item.getUploadId(), item);
+        }
+
+        // свободный поток загрузки снова вызовет раздачу
+        if (nextAttempt != Long.MAX_VALUE && mInFlight.size() < mPolicy.getMaxConcurrent()) {
+            scheduleDispatch(nextAttempt - now);
+        }
+    }
+
+    /**
+     * Загружает одну запись, вызывается в потоке загрузки
+     * @param item запись
+     */
+    private void upload(UploadItem item) {
+
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        try {
+
+            transfer(item);
+            onUploaded(item);
+
+        } catch (IOException e) {
+            onUploadError(item, e);
+        } catch (RuntimeException e) {
+            onUploadError(item, new IOException(e));
+        } finally {
+
+            synchronized (this) {
+                mInFlight.remove(item.getUploadId());
+                scheduleDispatch(0);
+            }
+        }
+    }
+
+    /**
+     * Передает файл частями, начиная со смещения, которое уже принял сервер
+     * @param item запись
+     * @throws IOException при ошибке
+     */
+    private void transfer(UploadItem item) throws IOException {
+
+        File file = new File(item.getPath());
+
+        if (!file.isFile()) {
+            throw new UploadRejectedException("recording is missing: " + item.getPath());
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long offset = mTransport.queryOffset(item);
+
+            if (offset < 0 || offset > size) {
+                throw new UploadRejectedException("server offset " + offset + " of " + size);
+            }
+
+            ByteBuffer buffer = mBuffers.get();
+
+            while (offset < size) {
+
+                if (mShutdown) {
+                    throw new IOException("upload queue is shut down");
+                }
+
+                int length = (int) Math.min(mPolicy.getChunkBytes(), size - offset);
+                long accepted = mTransport.sendChunk(item, channel, offset, length, buffer);
+
+                if (accepted <= offset || accepted > size) {
+                    throw new IOException("server accepted " + accepted + " at " + offset);
+                }
+
+                offset = accepted;
+            }
+
+            mTransport.complete(item, size);
+
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void onUploaded(UploadItem item) {
+
+        synchronized (this) {
+            mItems.remove(item.getUploadId());
+        }
+
+        mStore.delete(item);
+
+        Log.i(TAG, "uploaded: " + item.getPath());
+
+        UploadListener listener = mListener;
+
+        if (listener != null) {
+            listener.onUploadFinished(item);
+        }
+    }
+
+    private void onUploadError(UploadItem item, IOException error) {
+
+        int attempts = item.getAttempts() + 1;
+        item.setAttempts(attempts);
+
+        if (mShutdown) {
+            saveQuietly(item);
+            return;
+        }
+
+        if (error instanceof UploadRejectedException || attempts >= mPolicy.getMaxAttempts()) {
+
+            Log.e(TAG, "upload failed: " + item.getPath(), error);
+
+            item.setState(UploadItem.STATE_FAILED);
+            saveQuietly(item);
+
+            UploadListener listener = mListener;
+
+            if (listener != null) {
+                listener.onUploadFailed(item, error);
+            }
+
+            return;
+        }
+
+        long backoff = mPolicy.backoffMs(attempts);
+        long jitter;
+
+        synchronized (mJitter) {
+            jitter = (long) (mJitter.nextDouble() * backoff / 4);
+        }
+
+        Log.w(TAG, "upload retry in " + (backoff + jitter) + " ms: " + item.getPath() + ", " + error);
+
+        item.setNextAttemptAt(System.currentTimeMillis() + backoff + jitter);
+        saveQuietly(item);
+    }
+
+    private void saveQuietly(UploadItem item) {
+
+        try {
+            mStore.save(item);
+        } catch (IOException e) {
+            Log.e(TAG, "upload entry save failed", e);
+        }
+    }
+
+    private int readyCount(long now) {
+
+        int count = 0;
+
+        for (UploadItem item : mItems.values()) {
+            if (item.getState() == UploadItem.STATE_PENDING && item.getNextAttemptAt() <= now
+                    && !mInFlight.containsKey(item.getUploadId())) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+
+        final AtomicInteger counter = new AtomicInteger();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        };
+    }
+}
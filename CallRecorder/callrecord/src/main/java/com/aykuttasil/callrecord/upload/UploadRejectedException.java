@@ -0,0 +1,21 @@
+package com.aykuttasil.callrecord.upload;
+
+import java.io.IOException;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Сервер окончательно отказался принимать запись, повторять загрузку бессмысленно
+ */
+
+public class UploadRejectedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UploadRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,182 @@
+package com.aykuttasil.callrecord.upload;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Хранит очередь загрузки на диске, по файлу на запись.
+ * Файл пишется во временный и переименовывается, поэтому гибель процесса
+ * оставляет либо прежнее, либо новое состояние записи.
+ * Смещение загрузки не хранится: после перезапуска его сообщает сервер.
+ */
+
+final class UploadStore {
+
+    private static final String TAG = UploadStore.class.getSimpleName();
+
+    static final String SUFFIX = ".upload";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int VERSION = 1;
+
+    private final File mDir;
+
+    /**
+     * Конструктор
+     * @param dir директория очереди
+     */
+    UploadStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Считывает очередь. Поврежденные и недописанные файлы удаляются
+     * @return записи в порядке постановки в очередь
+     */
+    List<UploadItem> loadAll() {
+
+        List<UploadItem> items = new ArrayList<>();
+        File[] files = mDir.listFiles();
+
+        if (files == null) {
+            return items;
+        }
+
+        for (File file : files) {
+
+            String name = file.getName();
+
+            if (name.endsWith(TMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+
+            try {
+                items.add(read(file));
+            } catch (IOException e) {
+                Log.e(TAG, "corrupt upload entry: " + name, e);
+                file.delete();
+            }
+        }
+
+        Collections.sort(items, new Comparator<UploadItem>() {
+            @Override
+            public int compare(UploadItem left, UploadItem right) {
+                return left.getEnqueuedAt() < right.getEnqueuedAt() ? -1
+                        : left.getEnqueuedAt() > right.getEnqueuedAt() ? 1 : 0;
+            }
+        });
+
+        return items;
+    }
+
+    /**
+     * Сохраняет запись
+     * @param item запись
+     * @throws IOException при ошибке записи
+     */
+    void save(UploadItem item) throws IOException {
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("can't create " + mDir);
+        }
+
+        File file = fileOf(item);
+        File tmp = new File(mDir, file.getName() + TMP_SUFFIX);
+
+        FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(stream);
+
+        try {
+
+            out.writeInt(VERSION);
+            out.writeUTF(item.getUploadId());
+            out.writeUTF(item.getPath());
+            out.writeLong(item.getRecordId());
+            writeNullable(out, item.getNumber());
+            writeNullable(out, item.getDirection());
+            out.writeLong(item.getStartTime());
+            out.writeLong(item.getEnqueuedAt());
+            out.writeInt(item.getState());
+            out.writeInt(item.getAttempts());
+            out.writeLong(item.getNextAttemptAt());
+            out.flush();
+            stream.getFD().sync();
+
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp);
+        }
+    }
+
+    /**
+     * Удаляет запись из очереди
+     * @param item запись
+     */
+    void delete(UploadItem item) {
+        fileOf(item).delete();
+    }
+
+    private File fileOf(UploadItem item) {
+        return new File(mDir, item.getUploadId() + SUFFIX);
+    }
+
+    private static UploadItem read(File file) throws IOException {
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+        try {
+
+            if (in.readInt() != VERSION) {
+                throw new IOException("unknown version");
+            }
+
+            UploadItem item = new UploadItem(in.readUTF(), in.readUTF(), in.readLong(),
+                    readNullable(in), readNullable(in), in.readLong(), in.readLong());
+
+            item.setState(in.readInt());
+            item.setAttempts(in.readInt());
+            item.setNextAttemptAt(in.readLong());
+
+            return item;
+
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
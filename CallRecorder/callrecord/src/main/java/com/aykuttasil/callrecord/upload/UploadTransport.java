@@ -0,0 +1,51 @@
+package com.aykuttasil.callrecord.upload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Транспорт загрузки записей.
+ * Файл передается частями, сервер запоминает, сколько байт уже принято,
+ * поэтому оборванная загрузка продолжается с того же места.
+ * Методы вызываются из нескольких потоков загрузки одновременно,
+ * но для одной записи - всегда последовательно.
+ * IOException означает временную ошибку, загрузка будет повторена;
+ * UploadRejectedException - окончательный отказ.
+ */
+
+public interface UploadTransport {
+
+    /**
+     * @param item запись
+     * @return сколько байт записи сервер уже принял, 0 - загрузка не начиналась
+     * @throws IOException при ошибке
+     */
+    long queryOffset(UploadItem item) throws IOException;
+
+    /**
+     * Передает часть файла
+     * @param item запись
+     * @param channel файл записи, открыт на чтение
+     * @param offset смещение части в файле
+     * @param length длина части
+     * @param buffer буфер потока загрузки, его емкость не меньше length
+     * @return сколько байт записи сервер принял после этой части
+     * @throws IOException при ошибке
+     */
+    long sendChunk(UploadItem item, FileChannel channel, long offset, int length, ByteBuffer buffer)
+            throws IOException;
+
+    /**
+     * Завершает загрузку после передачи всех частей
+     * @param item запись
+     * @param size размер файла
+     * @throws IOException при ошибке
+     */
+    void complete(UploadItem item, long size) throws IOException;
+}
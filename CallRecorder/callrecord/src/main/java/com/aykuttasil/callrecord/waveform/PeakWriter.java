@@ -0,0 +1,361 @@
+package com.aykuttasil.callrecord.waveform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Пишет файл пиков волны во время захвата.
+ * Самый подробный уровень - пара минимум/максимум на каждые intervalMs,
+ * каждый следующий уровень объединяет ZOOM_FACTOR отсчетов предыдущего.
+ * Подробный уровень сразу дописывается в файл, остальные в ZOOM_FACTOR раз
+ * меньше и копятся в памяти до finish(). Пока файл не завершен, в заголовке
+ * ноль уровней, и WaveformPeaks его не откроет.
+ *
+ * Формат, little-endian:
+ * "CRPK", int версия, int количество уровней, int длительность, мс,
+ * MAX_LEVELS записей уровней {int intervalMs, int количество отсчетов, int смещение},
+ * затем данные уровней: по два байта min, max на отсчет, амплитуда в 8 бит со знаком.
+ */
+
+public final class PeakWriter {
+
+    public static final int MIN_INTERVAL_MS = 10;   ///< меньше - файл пиков сравним с самой записью
+    public static final int ZOOM_FACTOR = 8;        ///< отсчетов уровня в одном отсчете следующего
+    public static final int MAX_LEVELS = 6;
+
+    static final byte[] MAGIC = {'C', 'R', 'P', 'K'};
+    static final int VERSION = 1;
+    static final int LEVEL_ENTRY_BYTES = 12;
+    static final int HEADER_BYTES = 16 + MAX_LEVELS * LEVEL_ENTRY_BYTES;
+
+    private static final int BUFFER_BYTES = 4096;
+    private static final int INITIAL_LEVEL_BYTES = 256;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccess;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final int mIntervalMs;
+    private final int mSamplesPerPeak;  ///< отсчетов PCM во всех каналах на пару, 0 - пики по уровню
+    private final int mBytesPerSecond;  ///< PCM, для длительности
+
+    private int mSampleFill;
+    private int mSampleMin;
+    private int mSampleMax;
+    private long mPcmBytes;
+
+    private int mBaseCount;
+    private final byte[][] mLevels = new byte[MAX_LEVELS][];   ///< уровни с 1, пары min, max
+    private final int[] mLevelCount = new int[MAX_LEVELS];
+    private final int[] mFill = new int[MAX_LEVELS];           ///< отсчетов в незаконченной паре уровня
+    private final int[] mMin = new int[MAX_LEVELS];
+    private final int[] mMax = new int[MAX_LEVELS];
+
+    private boolean mClosed;
+
+    /**
+     * Конструктор для пиков по PCM 16 бит
+     * @param sidecar файл пиков, перезаписывается
+     * @param intervalMs длительность отсчета подробного уровня, не меньше MIN_INTERVAL_MS
+     * @param sampleRate частота дискретизации, Гц, 0 - пики по уровню через addLevel()
+     * @param channels количество каналов, пики общие для всех каналов
+     * @throws IOException если файл не удалось создать
+     */
+    public PeakWriter(File sidecar, int intervalMs, int sampleRate, int channels) throws IOException {
+
+        mFile = sidecar;
+        mIntervalMs = Math.max(intervalMs, MIN_INTERVAL_MS);
+        mSamplesPerPeak = (int) ((long) sampleRate * channels * mIntervalMs / 1000);
+        mBytesPerSecond = sampleRate * channels * 2;
+
+        for (int level = 1; level < MAX_LEVELS; level++) {
+            mLevels[level] = new byte[INITIAL_LEVEL_BYTES];
+        }
+
+        mRandomAccess = new RandomAccessFile(sidecar, "rw");
+        mChannel = mRandomAccess.getChannel();
+
+        try {
+            mRandomAccess.setLength(0);
+            writeHeader(0, 0, null);
+            mChannel.position(HEADER_BYTES);
+        } catch (IOException e) {
+            mRandomAccess.close();
+            throw e;
+        }
+
+        resetSamples();
+    }
+
+    /**
+     * Конструктор для пиков по уровню сигнала
+     * @param sidecar файл пиков, перезаписывается
+     * @param intervalMs длительность отсчета подробного уровня, не меньше MIN_INTERVAL_MS
+     * @throws IOException если файл не удалось создать
+     */
+    public PeakWriter(File sidecar, int intervalMs) throws IOException {
+        this(sidecar, intervalMs, 0, 0);
+    }
+
+    /**
+     * @return длительность отсчета подробного уровня, мс
+     */
+    public int getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    /**
+     * Учитывает фрейм PCM 16 бит little-endian. Не выделяет память
+     * @param frame фрейм, позиция и лимит не меняются
+     * @throws IOException при ошибке записи файла
+     */
+    public void addPcm(ByteBuffer frame) throws IOException {
+
+        int end = frame.limit() - 1;
+
+        for (int i = frame.position(); i < end; i += 2) {
+
+            int sample = (short) ((frame.get(i) & 0xff) | (frame.get(i + 1) << 8));
+
+            if (sample < mSampleMin) {
+                mSampleMin = sample;
+            }
+
+            if (sample > mSampleMax) {
+                mSampleMax = sample;
+            }
+
+            if (++mSampleFill == mSamplesPerPeak) {
+                addPeak(mSampleMin >> 8, mSampleMax >> 8);
+                resetSamples();
+            }
+        }
+
+        mPcmBytes += frame.remaining();
+    }
+
+    /**
+     * Добавляет отсчет подробного уровня по амплитуде, как у MediaRecorder.getMaxAmplitude()
+     * @param level амплитуда 0..32767 за последние intervalMs
+     * @throws IOException при ошибке записи файла
+     */
+    public void addLevel(int level) throws IOException {
+
+        int peak = Math.min(level, Short.MAX_VALUE) >> 8;
+
+        addPeak(-peak, peak);
+    }
+
+    /**
+     * Дописывает незаконченные отсчеты и грубые уровни, затем заголовок
+     * @return файл пиков
+     * @throws IOException при ошибке записи; файл остается незавершенным
+     */
+    public File finish() throws IOException {
+
+        try {
+
+            if (mSampleFill > 0) {
+                addPeak(mSampleMin >> 8, mSampleMax >> 8);
+            }
+
+            for (int level = 1; level < MAX_LEVELS; level++) {
+                if (mFill[level] > 0) {
+                    closePeak(level);
+                }
+            }
+
+            // уровень из одного отсчета ничего не добавляет к предыдущему
+            int levels = 1;
+
+            while (levels < MAX_LEVELS && countOf(levels) > 1) {
+                levels++;
+            }
+
+            int[] offsets = new int[levels];
+            offsets[0] = HEADER_BYTES;
+
+            flush();
+
+            for (int level = 1; level < levels; level++) {
+
+                offsets[level] = (int) mChannel.position();
+
+                ByteBuffer data = ByteBuffer.wrap(mLevels[level], 0, mLevelCount[level] * 2);
+
+                while (data.hasRemaining()) {
+                    mChannel.write(data);
+                }
+            }
+
+            long durationMs = mSamplesPerPeak > 0
+                    ? mPcmBytes * 1000 / mBytesPerSecond : (long) mBaseCount * mIntervalMs;
+
+            writeHeader(levels, (int) Math.min(durationMs, Integer.MAX_VALUE), offsets);
+            mChannel.force(false);
+
+        } finally {
+            close();
+        }
+
+        return mFile;
+    }
+
+    /**
+     * Закрывает и удаляет незавершенный файл
+     */
+    public void abort() {
+
+        close();
+        mFile.delete();
+    }
+
+    private void addPeak(int min, int max) throws IOException {
+
+        if (mBuffer.remaining() < 2) {
+            flush();
+        }
+
+        mBuffer.put((byte) min);
+        mBuffer.put((byte) max);
+        mBaseCount++;
+
+        addToLevel(1, min, max);
+    }
+
+    /**
+     * Учитывает отсчет в незаконченной паре уровня
+     */
+    private void addToLevel(int level, int min, int max) {
+
+        if (level >= MAX_LEVELS) {
+            return;
+        }
+
+        if (mFill[level] == 0 || min < mMin[level]) {
+            mMin[level] = min;
+        }
+
+        if (mFill[level] == 0 || max > mMax[level]) {
+            mMax[level] = max;
+        }
+
+        if (++mFill[level] == ZOOM_FACTOR) {
+            closePeak(level);
+        }
+    }
+
+    /**
+     * Сохраняет пару уровня и передает ее следующему уровню
+     */
+    private void closePeak(int level) {
+
+        byte[] data = mLevels[level];
+        int index = mLevelCount[level] * 2;
+
+        if (index + 2 > data.length) {
+            byte[] grown = new byte[data.length * 2];
+            System.arraycopy(data, 0, grown, 0, data.length);
+            mLevels[level] = data = grown;
+        }
+
+        data[index] = (byte) mMin[level];
+        data[index + 1] = (byte) mMax[level];
+        mLevelCount[level]++;
+        mFill[level] = 0;
+
+        addToLevel(level + 1, mMin[level], mMax[level]);
+    }
+
+    private int countOf(int level) {
+        return level == 0 ? mBaseCount : mLevelCount[level];
+    }
+
+    private void resetSamples() {
+
+        mSampleFill = 0;
+        mSampleMin = Short.MAX_VALUE;
+        mSampleMax = Short.MIN_VALUE;
+    }
+
+    /**
+     * Дописывает буфер подробного уровня в конец файла
+     */
+    private void flush() throws IOException {
+
+        mBuffer.flip();
+
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+
+        mBuffer.clear();
+    }
+
+    /**
+     * Пишет заголовок в начало файла
+     * @param offsets смещения данных уровней
+     */
+    private void writeHeader(int levels, int durationMs, int[] offsets) throws IOException {
+
+        mBuffer.clear();
+        mBuffer.put(MAGIC);
+        mBuffer.putInt(VERSION);
+        mBuffer.putInt(levels);
+        mBuffer.putInt(durationMs);
+
+        for (int level = 0; level < MAX_LEVELS; level++) {
+
+            boolean used = level < levels;
+
+            mBuffer.putInt(used ? mIntervalMs * pow(level) : 0);
+            mBuffer.putInt(used ? countOf(level) : 0);
+            mBuffer.putInt(used ? offsets[level] : 0);
+        }
+
+        mBuffer.flip();
+
+        long position = 0;
+
+        while (mBuffer.hasRemaining()) {
+            position += mChannel.write(mBuffer, position);
+        }
+
+        mBuffer.clear();
+    }
+
+    private void close() {
+
+        if (mClosed) {
+            return;
+        }
+
+        mClosed = true;
+
+        try {
+            mRandomAccess.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static int pow(int level) {
+
+        int factor = 1;
+
+        for (int i = 0; i < level; i++) {
+            factor *= ZOOM_FACTOR;
+        }
+
+        return factor;
+    }
+}
@@ -0,0 +1,210 @@
+package com.aykuttasil.callrecord.waveform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * \brief Регистрация звонков.
+ * \author WonderWorcer
+ * \version 0.5
+ * \date 7 марта 2017 года
+ *
+ * Чтение файла пиков волны, записанного PeakWriter.
+ * Файл отображается в память целиком, пики читаются без декодирования звука
+ * и без выделения памяти: для любого отрезка времени выбирается самый грубый
+ * уровень, у которого на столбец изображения приходится хотя бы один отсчет.
+ * Методы чтения можно вызывать из нескольких потоков.
+ */
+
+public final class WaveformPeaks {
+
+    private final ByteBuffer mMap;
+    private final int mDurationMs;
+    private final int mLevelCount;
+    private final int[] mIntervalMs;
+    private final int[] mCount;
+    private final int[] mOffset;
+
+    private WaveformPeaks(ByteBuffer map, int durationMs, int levelCount) {
+
+        mMap = map;
+        mDurationMs = durationMs;
+        mLevelCount = levelCount;
+        mIntervalMs = new int[levelCount];
+        mCount = new int[levelCount];
+        mOffset = new int[levelCount];
+    }
+
+    /**
+     * Отображает файл пиков в память
+     * @param sidecar файл пиков, SegmentFiles.peaksFile() для записи
+     * @return пики записи
+     * @throws IOException если файла нет, он не дописан или поврежден
+     */
+    public static WaveformPeaks open(File sidecar) throws IOException {
+
+        RandomAccessFile file = new RandomAccessFile(sidecar, "r");
+        ByteBuffer map;
+
+        try {
+            // отображение остается действительным после закрытия файла
+            map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            file.close();
+        }
+
+        if (map.capacity() < PeakWriter.HEADER_BYTES) {
+            throw new IOException("peaks file is too short: " + sidecar);
+        }
+
+        for (int i = 0; i < PeakWriter.MAGIC.length; i++) {
+            if (map.get(i) != PeakWriter.MAGIC[i]) {
+                throw new IOException("not a peaks file: " + sidecar);
+            }
+        }
+
+        int version = map.getInt(4);
+        int levelCount = map.getInt(8);
+
+        if (version != PeakWriter.VERSION) {
+            throw new IOException("unsupported peaks version " + version + ": " + sidecar);
+        }
+
+        if (levelCount <= 0 || levelCount > PeakWriter.MAX_LEVELS) {
+            throw new IOException("peaks file is not finished: " + sidecar);
+        }
+
+        WaveformPeaks peaks = new WaveformPeaks(map, map.getInt(12), levelCount);
+
+        for (int level = 0; level < levelCount; level++) {
+
+            int entry = 16 + level * PeakWriter.LEVEL_ENTRY_BYTES;
+
+            peaks.mIntervalMs[level] = map.getInt(entry);
+            peaks.mCount[level] = map.getInt(entry + 4);
+            peaks.mOffset[level] = map.getInt(entry + 8);
+
+            if (peaks.mIntervalMs[level] <= 0 || peaks.mCount[level] < 0 || peaks.mOffset[level] < 0
+                    || (long) peaks.mOffset[level] + peaks.mCount[level] * 2L > map.capacity()) {
+                throw new IOException("peaks level " + level + " is corrupt: " + sidecar);
+            }
+        }
+
+        return peaks;
+    }
+
+    /**
+     * @return длительность записи в файле, мс
+     */
+    public int getDurationMs() {
+        return mDurationMs;
+    }
+
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    /**
+     * @param level уровень, 0 - самый подробный
+     * @return длительность отсчета уровня, мс
+     */
+    public int getIntervalMs(int level) {
+        return mIntervalMs[level];
+    }
+
+    /**
+     * @param level уровень, 0 - самый подробный
+     * @return количество отсчетов уровня
+     */
+    public int getPeakCount(int level) {
+        return mCount[level];
+    }
+
+    /**
+     * @return минимум отсчета, -128..127
+     */
+    public int getMin(int level, int index) {
+        return mMap.get(mOffset[level] + index * 2);
+    }
+
+    /**
+     * @return максимум отсчета, -128..127
+     */
+    public int getMax(int level, int index) {
+        return mMap.get(mOffset[level] + index * 2 + 1);
+    }
+
+    /**
+     * Выбирает уровень для отрисовки отрезка
+     * @param rangeMs длительность отрезка, мс
+     * @param width количество столбцов
+     * @return самый грубый уровень, у которого отсчет не длиннее столбца
+     */
+    public int selectLevel(long rangeMs, int width) {
+
+        long columnMs = rangeMs / Math.max(width, 1);
+        int level = 0;
+
+        while (level + 1 < mLevelCount && mIntervalMs[level + 1] <= columnMs) {
+            level++;
+        }
+
+        return level;
+    }
+
+    /**
+     * Заполняет пики отрезка времени, по паре min, max на столбец
+     * @param fromMs начало отрезка от начала записи, мс
+     * @param toMs конец отрезка, мс
+     * @param width количество столбцов
+     * @param peaks массив не короче width * 2, амплитуды -128..127
+     * @return количество заполненных столбцов, меньше width, если отрезок выходит за конец записи
+     */
+    public int getPeaks(long fromMs, long toMs, int width, byte[] peaks) {
+
+        if (fromMs < 0 || toMs < fromMs || peaks.length < width * 2) {
+            throw new IllegalArgumentException("from: " + fromMs + ", to: " + toMs + ", width: " + width);
+        }
+
+        long rangeMs = toMs - fromMs;
+
+        if (rangeMs == 0 || width <= 0) {
+            return 0;
+        }
+
+        int level = selectLevel(rangeMs, width);
+        long intervalMs = mIntervalMs[level];
+        int count = mCount[level];
+        int offset = mOffset[level];
+
+        for (int column = 0; column < width; column++) {
+
+            long start = fromMs + rangeMs * column / width;
+            long end = fromMs + rangeMs * (column + 1) / width;
+            long first = start / intervalMs;
+
+            if (first >= count) {
+                return column;
+            }
+
+            int last = (int) Math.min(Math.max(first, (end - 1) / intervalMs), count - 1);
+            byte min = Byte.MAX_VALUE;
+            byte max = Byte.MIN_VALUE;
+
+            for (int index = (int) first; index <= last; index++) {
+                min = (byte) Math.min(min, mMap.get(offset + index * 2));
+                max = (byte) Math.max(max, mMap.get(offset + index * 2 + 1));
+            }
+
+            peaks[column * 2] = min;
+            peaks[column * 2 + 1] = max;
+        }
+
+        return width;
+    }
+}
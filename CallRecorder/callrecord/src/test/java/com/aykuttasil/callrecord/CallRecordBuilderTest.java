@@ -0,0 +1,102 @@
+package com.aykuttasil.callrecord;
+
+import android.media.MediaRecorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверяет, что билдер записывает настройки одной транзакцией
+ * только при вызове build()
+ */
+public class CallRecordBuilderTest {
+
+    private FakeSharedPreferences preferences;
+
+    @Before
+    public void setUp() throws Exception {
+
+        preferences = new FakeSharedPreferences();
+        preferences.edit().putString(CallRecord.PREF_DIR_PATH, "/sdcard").commit();
+        preferences.resetCounters();
+    }
+
+    @Test
+    public void setters_doNotWriteUntilBuild() throws Exception {
+
+        CallRecord.Builder builder = new CallRecord.Builder(null, preferences)
+                .setRecordFileName("Name")
+                .setRecordDirName("Dir")
+                .setAudioSource(MediaRecorder.AudioSource.MIC)
+                .setShowSeed(false);
+
+        assertEquals(0, preferences.writtenKeys);
+        assertEquals(0, preferences.commitCount);
+        assertEquals(0, preferences.applyCount);
+
+        builder.build();
+
+        assertEquals(0, preferences.commitCount);
+        assertEquals(1, preferences.applyCount);
+    }
+
+    @Test
+    public void build_skipsUnchangedKeys() throws Exception {
+
+        new CallRecord.Builder(null, preferences).setRecordFileName("Name").build();
+        preferences.resetCounters();
+
+        new CallRecord.Builder(null, preferences).setRecordFileName("Name").build();
+
+        assertEquals(0, preferences.writtenKeys);
+        assertEquals(0, preferences.applyCount);
+    }
+
+    @Test
+    public void build_doesNotOverwriteUserSettingsWithDefaults() throws Exception {
+
+        preferences.edit().putString(CallRecord.PREF_FILE_NAME, "UserName").commit();
+
+        CallRecord callRecord = new CallRecord.Builder(null, preferences).build();
+
+        assertEquals("UserName", callRecord.getRecordFileName());
+        assertEquals("CallRecord", callRecord.getRecordDirName());
+        assertTrue(callRecord.getStateSaveFile());
+    }
+
+    @Test
+    public void restore_keepsSavedSettings() throws Exception {
+
+        new CallRecord.Builder(null, preferences).setRecordFileName("Name").build();
+        preferences.edit().putBoolean(CallRecord.PREF_SAVE_FILE, false).commit();
+        preferences.resetCounters();
+
+        CallRecord callRecord = CallRecord.restore(null, preferences);
+
+        assertEquals(0, preferences.writtenKeys);
+        assertEquals("Name", callRecord.getRecordFileName());
+        assertFalse(callRecord.getStateSaveFile());
+    }
+
+    @Test
+    public void restore_writesDefaultsOnFirstStart() throws Exception {
+
+        CallRecord callRecord = CallRecord.restore(null, preferences);
+
+        assertEquals("Record", callRecord.getRecordFileName());
+        assertTrue(callRecord.getStateSaveFile());
+    }
+
+    @Test
+    public void getters_returnPendingValues() throws Exception {
+
+        CallRecord.Builder builder = new CallRecord.Builder(null, preferences)
+                .setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+
+        assertEquals(MediaRecorder.OutputFormat.MPEG_4, builder.getOutputFormat());
+        assertEquals(MediaRecorder.AudioEncoder.AMR_NB, builder.getAudioEncoder());
+        assertTrue(builder.isShowPhoneNumber());
+    }
+}
@@ -0,0 +1,184 @@
+package com.aykuttasil.callrecord;
+
+import android.media.MediaRecorder;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+import com.aykuttasil.callrecord.engine.CaptureEngine;
+import com.aykuttasil.callrecord.engine.CaptureEngineFactory;
+import com.aykuttasil.callrecord.engine.SegmentListener;
+import com.aykuttasil.callrecord.journal.CallJournal;
+import com.aykuttasil.callrecord.receiver.CallRecordReceiver;
+import com.aykuttasil.callrecord.state.CallStateMachine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверяет, что путь старта записи работает со снимком настроек
+ * и не обращается к SharedPreferences
+ */
+public class CallRecordConfigTest {
+
+    private static class FakeEngine implements CaptureEngine {
+
+        int starts;
+        int stops;
+
+        @Override
+        public void prepare(RecordingConfig config, File outputFile) throws IOException {
+        }
+
+        @Override
+        public void start() {
+            starts++;
+        }
+
+        @Override
+        public void stop() throws IOException {
+            stops++;
+        }
+
+        @Override
+        public void setSegmentListener(SegmentListener listener) {
+        }
+
+        @Override
+        public void setLevelMetering(boolean enabled) {
+        }
+
+        @Override
+        public int readLevel() {
+            return 0;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * Отдает один и тот же поддельный движок и считает вызовы
+     */
+    private static class FakeEngineFactory extends CaptureEngineFactory {
+
+        final FakeEngine engine = new FakeEngine();
+        int created;
+
+        @Override
+        public CaptureEngine newEngine(RecordingConfig config, RecordingCipher cipher) {
+            created++;
+            return engine;
+        }
+    }
+
+    private FakeSharedPreferences preferences;
+    private CallRecord callRecord;
+    private FakeEngineFactory engineFactory;
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+
+        root = File.createTempFile("config", "");
+        root.delete();
+        root.mkdirs();
+
+        preferences = new FakeSharedPreferences();
+        preferences.edit()
+                .putBoolean(CallRecord.PREF_SAVE_FILE, true)
+                .putString(CallRecord.PREF_FILE_NAME, "Record")
+                .putString(CallRecord.PREF_DIR_NAME, "CallRecord")
+                .putString(CallRecord.PREF_DIR_PATH, root.getPath())
+                .putBoolean(CallRecord.PREF_SHOW_SEED, true)
+                .putBoolean(CallRecord.PREF_SHOW_PHONE_NUMBER, true)
+                .putInt(CallRecord.PREF_OUTPUT_FORMAT, MediaRecorder.OutputFormat.MPEG_4)
+                .commit();
+
+        callRecord = new CallRecord(null, preferences);
+
+        engineFactory = new FakeEngineFactory();
+        callRecord.setCaptureEngineFactory(engineFactory);
+        callRecord.setCallJournal(new CallJournal(new File(root, CallJournal.FILE_NAME),
+                CallStateMachine.SYSTEM_CLOCK));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        callRecord.release();
+        deleteTree(root);
+    }
+
+    @Test
+    public void callStartPath_doesNotReadPreferences() throws Exception {
+
+        CallRecordReceiver receiver = new CallRecordReceiver(callRecord);
+
+        preferences.resetCounters();
+
+        for (int i = 0; i < 100; i++) {
+            receiver.onCallStateChanged(null, CallStateMachine.STATE_RINGING, "123");
+            receiver.onCallStateChanged(null, CallStateMachine.STATE_OFFHOOK, null);
+            receiver.onCallStateChanged(null, CallStateMachine.STATE_IDLE, null);
+        }
+
+        // каждый звонок прошел подготовку, старт и остановку записи
+        assertEquals(100, engineFactory.created);
+        assertEquals(100, engineFactory.engine.starts);
+        assertEquals(100, engineFactory.engine.stops);
+        assertEquals(0, callRecord.getSessionRegistry().size());
+
+        assertEquals(0, preferences.readCount);
+
+        RecordingConfig config = callRecord.getRecordingConfig();
+
+        assertTrue(config.isSaveFile());
+        assertTrue(callRecord.getFileNamingStrategy().buildFileName(config, "incoming", "123", System.currentTimeMillis())
+                .matches("Record_[-\\d]+_\\d+_incoming_123\\.mp4"));
+        assertEquals(".mp4", config.getFileSuffix());
+        assertEquals(new File(root, "CallRecord"), config.getRecordDir());
+    }
+
+    @Test
+    public void preferenceChange_rebuildsSnapshot() throws Exception {
+
+        RecordingConfig before = callRecord.getRecordingConfig();
+
+        preferences.edit().putString(CallRecord.PREF_FILE_NAME, "Other").apply();
+
+        assertNotSame(before, callRecord.getRecordingConfig());
+        assertEquals("Other", callRecord.getRecordFileName());
+    }
+
+    @Test
+    public void unrelatedPreferenceChange_keepsSnapshot() throws Exception {
+
+        RecordingConfig before = callRecord.getRecordingConfig();
+
+        preferences.resetCounters();
+        preferences.edit().putString("SomeOtherKey", "value").apply();
+
+        assertSame(before, callRecord.getRecordingConfig());
+        assertEquals(0, preferences.readCount);
+    }
+
+    private static void deleteTree(File file) {
+
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,241 @@
+package com.aykuttasil.callrecord;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+import com.aykuttasil.callrecord.engine.CaptureEngine;
+import com.aykuttasil.callrecord.engine.CaptureEngineFactory;
+import com.aykuttasil.callrecord.engine.SegmentListener;
+import com.aykuttasil.callrecord.helper.RecordingExecutor;
+import com.aykuttasil.callrecord.index.RecordingIndex;
+import com.aykuttasil.callrecord.journal.CallJournal;
+import com.aykuttasil.callrecord.receiver.CallRecordReceiver;
+import com.aykuttasil.callrecord.state.CallStateMachine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверяет, что восстановление по журналу при повторной регистрации ресивера
+ * не трогает записи, идущие в текущем процессе
+ */
+public class CallRecordRecoveryTest {
+
+    /**
+     * Контекст, запоминающий зарегистрированный ресивер
+     */
+    private static class FakeContext extends ContextWrapper {
+
+        BroadcastReceiver receiver;
+
+        FakeContext() {
+            super(null);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+            this.receiver = receiver;
+            return null;
+        }
+
+        @Override
+        public void unregisterReceiver(BroadcastReceiver receiver) {
+            this.receiver = null;
+        }
+    }
+
+    /**
+     * Движок, создающий пустой файл записи, как MediaRecorder после prepare()
+     */
+    private static class FakeEngine implements CaptureEngine {
+
+        int stops;
+
+        @Override
+        public void prepare(RecordingConfig config, File outputFile) throws IOException {
+            new FileOutputStream(outputFile).close();
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() throws IOException {
+            stops++;
+        }
+
+        @Override
+        public void setSegmentListener(SegmentListener listener) {
+        }
+
+        @Override
+        public void setLevelMetering(boolean enabled) {
+        }
+
+        @Override
+        public int readLevel() {
+            return 0;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * Выполняет задачи потока записи сразу в потоке теста
+     */
+    private static class DirectExecutor extends RecordingExecutor {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+
+    private static class FakeEngineFactory extends CaptureEngineFactory {
+
+        final FakeEngine engine = new FakeEngine();
+
+        @Override
+        public CaptureEngine newEngine(RecordingConfig config, RecordingCipher cipher) {
+            return engine;
+        }
+    }
+
+    /**
+     * Индекс в памяти, запоминает изменения записей
+     */
+    private static class FakeIndex extends RecordingIndex {
+
+        final List<Long> finished = new ArrayList<>();
+        final List<Long> deleted = new ArrayList<>();
+        long nextId = 1;
+
+        FakeIndex() {
+            super(null);
+        }
+
+        @Override
+        public synchronized long insertStarted(String number, String direction, long startTime, String path,
+                                               String format, String profile) {
+            return nextId++;
+        }
+
+        @Override
+        public synchronized boolean updateFinished(long id, long endTime, long size) {
+            finished.add(id);
+            return true;
+        }
+
+        @Override
+        public synchronized void delete(long id) {
+            deleted.add(id);
+        }
+    }
+
+    private FakeContext context;
+    private CallRecord callRecord;
+    private FakeEngineFactory engineFactory;
+    private FakeIndex index;
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+
+        root = File.createTempFile("recovery", "");
+        root.delete();
+        root.mkdirs();
+
+        FakeSharedPreferences preferences = new FakeSharedPreferences();
+        preferences.edit()
+                .putBoolean(CallRecord.PREF_SAVE_FILE, true)
+                .putString(CallRecord.PREF_FILE_NAME, "Record")
+                .putString(CallRecord.PREF_DIR_NAME, "CallRecord")
+                .putString(CallRecord.PREF_DIR_PATH, root.getPath())
+                .commit();
+
+        context = new FakeContext();
+        callRecord = new CallRecord(context, preferences);
+
+        engineFactory = new FakeEngineFactory();
+        index = new FakeIndex();
+        callRecord.setRecordingExecutor(new DirectExecutor());
+        callRecord.setCaptureEngineFactory(engineFactory);
+        callRecord.setRecordingIndex(index);
+        callRecord.setCallJournal(new CallJournal(new File(root, CallJournal.FILE_NAME),
+                CallStateMachine.SYSTEM_CLOCK));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        callRecord.release();
+        deleteTree(root);
+    }
+
+    @Test
+    public void receiverRestart_keepsRecordingInProgress() throws Exception {
+
+        callRecord.startCallReceiver();
+
+        CallRecordReceiver receiver = (CallRecordReceiver) context.receiver;
+        receiver.onCallStateChanged(null, CallStateMachine.STATE_OFFHOOK, "123");
+
+        assertEquals(1, callRecord.getSessionRegistry().size());
+
+        File file = callRecord.getSessionRegistry().get("123").getFile();
+
+        assertTrue(file.isFile());
+
+        callRecord.stopCallReceiver();
+        callRecord.startCallReceiver();
+
+        assertSame(receiver, context.receiver);
+        assertTrue(file.isFile());
+        assertTrue(index.deleted.isEmpty());
+        assertTrue(index.finished.isEmpty());
+        assertEquals(0, engineFactory.engine.stops);
+        assertEquals(1, callRecord.getSessionRegistry().size());
+
+        // звонок заканчивается обычной остановкой записи
+        receiver.onCallStateChanged(null, CallStateMachine.STATE_IDLE, null);
+
+        assertTrue(file.isFile());
+        assertEquals(1, index.finished.size());
+        assertEquals(1, engineFactory.engine.stops);
+    }
+
+    private static void deleteTree(File file) {
+
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+
+        file.delete();
+    }
+}
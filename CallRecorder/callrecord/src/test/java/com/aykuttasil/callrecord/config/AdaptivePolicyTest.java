@@ -0,0 +1,100 @@
+package com.aykuttasil.callrecord.config;
+
+import android.media.MediaRecorder;
+
+import com.aykuttasil.callrecord.CallRecord;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты выбора профиля кодирования в начале звонка
+ */
+public class AdaptivePolicyTest {
+
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+    private static final long MB = 1024 * 1024L;
+
+    private final AdaptivePolicy policy = new AdaptivePolicy.Builder()
+            .addProfile(EncodingProfile.SPEECH_PCM)
+            .addProfile(EncodingProfile.SPEECH_AAC)
+            .addProfile(EncodingProfile.SPEECH_WIDEBAND)
+            .addProfile(EncodingProfile.SPEECH_NARROWBAND)
+            .setReserveBytes(10 * MB)
+            .build();
+
+    @Test
+    public void plentyOfSpace_picksBestProfile() throws Exception {
+        assertSame(EncodingProfile.SPEECH_PCM, policy.select(10000 * MB, 80, false, HOUR_MS, false));
+    }
+
+    @Test
+    public void lowSpace_degradesInRankOrder() throws Exception {
+
+        // час PCM 16 кГц - 110 МБ, AAC 32 кбит/с - 15 МБ, AMR-WB - 6 МБ
+        assertSame(EncodingProfile.SPEECH_AAC, policy.select(50 * MB, 80, false, HOUR_MS, false));
+        assertSame(EncodingProfile.SPEECH_WIDEBAND, policy.select(20 * MB, 80, false, HOUR_MS, false));
+        assertSame(EncodingProfile.SPEECH_NARROWBAND,
+                policy.select(10 * MB + EncodingProfile.SPEECH_NARROWBAND.getBytesPerMinute() * 60, 80, false,
+                        HOUR_MS, false));
+    }
+
+    @Test
+    public void noProfileFits_fallsBackToLowAmr() throws Exception {
+
+        EncodingProfile profile = policy.select(MB, 80, false, HOUR_MS, false);
+
+        assertSame(EncodingProfile.AMR_NB_LOW, profile);
+        assertEquals(MediaRecorder.AudioEncoder.AMR_NB, profile.getAudioEncoder());
+    }
+
+    @Test
+    public void lowBattery_skipsAudioRecordAndHighBitrate() throws Exception {
+
+        assertSame(EncodingProfile.SPEECH_NARROWBAND, policy.select(10000 * MB, 10, false, HOUR_MS, false));
+        assertSame(EncodingProfile.SPEECH_PCM, policy.select(10000 * MB, 10, true, HOUR_MS, false));
+        assertSame(EncodingProfile.SPEECH_PCM, policy.select(10000 * MB, -1, false, HOUR_MS, false));
+    }
+
+    @Test
+    public void encryption_skipsContainerFormats() throws Exception {
+
+        AdaptivePolicy aacFirst = new AdaptivePolicy.Builder()
+                .addProfile(EncodingProfile.SPEECH_AAC)
+                .addProfile(EncodingProfile.SPEECH_AAC_ADTS)
+                .build();
+
+        assertSame(EncodingProfile.SPEECH_AAC, aacFirst.select(10000 * MB, 80, false, HOUR_MS, false));
+        assertSame(EncodingProfile.SPEECH_AAC_ADTS, aacFirst.select(10000 * MB, 80, false, HOUR_MS, true));
+    }
+
+    @Test
+    public void projection_usesLongestOfHistoryAndDefault() throws Exception {
+
+        assertEquals(30 * 60 * 1000L, AdaptivePolicy.DEFAULT.projectCallMs(0));
+        assertEquals(2 * HOUR_MS, AdaptivePolicy.DEFAULT.projectCallMs(2 * HOUR_MS));
+    }
+
+    @Test
+    public void withProfile_keepsOtherSettings() throws Exception {
+
+        RecordingConfig config = new RecordingConfig.Builder()
+                .setFileName("Record")
+                .setDirName("CallRecord")
+                .setSilenceThreshold(800)
+                .setOutputFormat(MediaRecorder.OutputFormat.MPEG_4)
+                .build();
+
+        RecordingConfig call = config.withProfile(EncodingProfile.SPEECH_WIDEBAND);
+
+        assertEquals("Record", call.getFileName());
+        assertEquals(800, call.getSilenceThreshold());
+        assertEquals(CallRecord.ENGINE_MEDIA_RECORDER, call.getCaptureEngine());
+        assertEquals(MediaRecorder.AudioEncoder.AMR_WB, call.getAudioEncoder());
+        assertEquals(12650, call.getBitRate());
+        assertEquals(16000, call.getSamplingRate());
+        assertEquals(".amr", call.getFileSuffix());
+        assertEquals(".mp4", config.getFileSuffix());
+    }
+}
@@ -0,0 +1,44 @@
+package com.aykuttasil.callrecord.config;
+
+import android.media.MediaRecorder;
+
+import com.aykuttasil.callrecord.naming.TimestampNamingStrategy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты снимка настроек записи
+ */
+public class RecordingConfigTest {
+
+    @Test
+    public void suffix_dependsOnOutputFormat() throws Exception {
+
+        assertEquals(".amr", RecordingConfig.suffixFor(MediaRecorder.OutputFormat.AMR_NB));
+        assertEquals(".amr", RecordingConfig.suffixFor(MediaRecorder.OutputFormat.AMR_WB));
+        assertEquals(".mp4", RecordingConfig.suffixFor(MediaRecorder.OutputFormat.MPEG_4));
+        assertEquals(".3gp", RecordingConfig.suffixFor(MediaRecorder.OutputFormat.THREE_GPP));
+        assertEquals(".aac", RecordingConfig.suffixFor(MediaRecorder.OutputFormat.AAC_ADTS));
+        assertEquals(".amr", RecordingConfig.suffixFor(MediaRecorder.OutputFormat.DEFAULT));
+    }
+
+    @Test
+    public void fileName_respectsSeedAndNumberFlags() throws Exception {
+
+        RecordingConfig withAll = new RecordingConfig.Builder()
+                .setFileName("Record")
+                .setShowSeed(true)
+                .setShowPhoneNumber(true)
+                .build();
+        RecordingConfig withNone = new RecordingConfig.Builder()
+                .setFileName("Record")
+                .build();
+
+        TimestampNamingStrategy strategy = new TimestampNamingStrategy();
+
+        assertTrue(strategy.buildFileName(withAll, "outgoing", "555", 0).matches("Record_[-\\d]+_0_outgoing_555\\.amr"));
+        assertTrue(strategy.buildFileName(withNone, "outgoing", "555", 1).matches("Record_[-\\d]+_0\\.amr"));
+    }
+}
@@ -0,0 +1,79 @@
+package com.aykuttasil.callrecord.config;
+
+import android.media.MediaRecorder;
+
+import com.aykuttasil.callrecord.CallRecord;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты оценки объема записи
+ */
+public class StorageEstimatorTest {
+
+    @Test
+    public void amr_usesModeFrameSize() throws Exception {
+
+        // 12.2 кбит/с: 32 байта на кадр, 50 кадров в секунду
+        assertEquals(96000, EncodingProfile.SPEECH_NARROWBAND.getBytesPerMinute());
+        assertEquals(39000, EncodingProfile.AMR_NB_LOW.getBytesPerMinute());
+        assertEquals(99000, EncodingProfile.SPEECH_WIDEBAND.getBytesPerMinute());
+
+        // между режимами кодек выбирает ближайший режим выше
+        assertEquals(81000, StorageEstimator.bytesPerMinute(profile(MediaRecorder.OutputFormat.AMR_NB,
+                MediaRecorder.AudioEncoder.AMR_NB, 9000, 0)));
+    }
+
+    @Test
+    public void aac_addsContainerOverhead() throws Exception {
+
+        // 24 кбит/с = 180000 байт, 16000 / 1024 кадров в секунду по 7 байт ADTS
+        assertEquals(180000 + 937 * 7, EncodingProfile.SPEECH_AAC_ADTS.getBytesPerMinute());
+        assertEquals(240000 + 937 * 4, EncodingProfile.SPEECH_AAC.getBytesPerMinute());
+    }
+
+    @Test
+    public void pcm_isExact() throws Exception {
+
+        assertEquals(16000 * 2 * 60, EncodingProfile.SPEECH_PCM.getBytesPerMinute());
+
+        RecordingConfig stereo = new RecordingConfig.Builder()
+                .setCaptureEngine(CallRecord.ENGINE_AUDIO_RECORD)
+                .setSamplingRate(8000)
+                .setChannels(2)
+                .build();
+
+        assertEquals(8000 * 2 * 2 * 60, StorageEstimator.bytesPerMinute(stereo));
+    }
+
+    @Test
+    public void defaults_matchMediaRecorder() throws Exception {
+
+        RecordingConfig config = new RecordingConfig.Builder()
+                .setOutputFormat(MediaRecorder.OutputFormat.AMR_NB)
+                .setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB)
+                .build();
+
+        assertEquals(EncodingProfile.SPEECH_NARROWBAND.getBytesPerMinute(), StorageEstimator.bytesPerMinute(config));
+
+        EncodingProfile aac = profile(MediaRecorder.OutputFormat.MPEG_4, MediaRecorder.AudioEncoder.AAC, 0, 0);
+
+        assertEquals(12200 * 60 / 8 + 468 * 4, StorageEstimator.bytesPerMinute(aac));
+    }
+
+    @Test
+    public void duration_scalesLinearly() throws Exception {
+
+        EncodingProfile profile = EncodingProfile.SPEECH_NARROWBAND;
+
+        assertEquals(96000 * 30, StorageEstimator.bytesFor(profile, 30 * 60000L));
+        assertEquals(10, StorageEstimator.minutesFor(profile, 96000 * 10 + 5));
+    }
+
+    private static EncodingProfile profile(int outputFormat, int audioEncoder, int bitRate, int samplingRate) {
+        return new EncodingProfile("test", CallRecord.ENGINE_MEDIA_RECORDER, outputFormat, audioEncoder,
+                bitRate, samplingRate, 0);
+    }
+}
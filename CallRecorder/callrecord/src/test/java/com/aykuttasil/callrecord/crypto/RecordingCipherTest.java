@@ -0,0 +1,299 @@
+package com.aykuttasil.callrecord.crypto;
+
+import com.aykuttasil.callrecord.engine.WavEncoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты потокового шифрования записей
+ */
+public class RecordingCipherTest {
+
+    private File root;
+    private RecordingCipher cipher;
+
+    @Before
+    public void setUp() throws Exception {
+
+        root = File.createTempFile("cipher", "");
+        root.delete();
+        root.mkdirs();
+
+        cipher = new RecordingCipher(newKey(1));
+    }
+
+    @After
+    public void tearDown() {
+
+        File[] files = root.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        root.delete();
+    }
+
+    @Test
+    public void chunkedWrite_decryptsToSameBytes() throws Exception {
+
+        byte[] data = newData(100000, 3);
+        File file = new File(root, "a.amr.enc");
+        Random random = new Random(5);
+
+        EncryptedWriter writer = cipher.create(file);
+
+        for (int offset = 0; offset < data.length; ) {
+
+            int length = Math.min(data.length - offset, 1 + random.nextInt(40000));
+            writer.write(ByteBuffer.wrap(data, offset, length));
+            offset += length;
+        }
+
+        writer.close();
+
+        assertEquals(data.length, writer.size());
+        assertEquals(data.length + writer.getHeaderBytes(), file.length());
+        assertFalse(contains(readFile(file), data, 0, 64));
+        assertArrayEquals(data, decrypt(file));
+    }
+
+    @Test
+    public void randomAccess_readsAnyOffset() throws Exception {
+
+        byte[] data = newData(50000, 4);
+        File file = write("b.amr.enc", data);
+        Random random = new Random(6);
+
+        DecryptedReader reader = cipher.open(file);
+        ByteBuffer buffer = ByteBuffer.allocate(3000);
+
+        try {
+
+            assertEquals(data.length, reader.size());
+
+            for (int i = 0; i < 200; i++) {
+
+                int position = random.nextInt(data.length);
+
+                buffer.clear();
+                buffer.limit(1 + random.nextInt(buffer.capacity()));
+
+                int read = reader.read(buffer, position);
+
+                assertTrue(read > 0);
+
+                for (int j = 0; j < read; j++) {
+                    assertEquals("at " + (position + j), data[position + j], buffer.get(j));
+                }
+            }
+
+            buffer.clear();
+            assertEquals(-1, reader.read(buffer, data.length));
+
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void positionalWrite_patchesInPlace() throws Exception {
+
+        byte[] data = newData(5000, 7);
+        File file = new File(root, "c.wav.enc");
+
+        EncryptedWriter writer = cipher.create(file);
+        writer.write(ByteBuffer.allocate(44));
+        writer.write(ByteBuffer.wrap(data));
+        writer.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), 4);
+        writer.write(ByteBuffer.wrap(new byte[]{5, 6, 7, 8}), 40);
+        writer.close();
+
+        byte[] plain = decrypt(file);
+
+        assertEquals(44 + data.length, plain.length);
+        assertEquals(1, plain[4]);
+        assertEquals(8, plain[43]);
+        assertEquals(0, plain[8]);
+        assertEquals(data[0], plain[44]);
+        assertEquals(data[data.length - 1], plain[plain.length - 1]);
+    }
+
+    @Test
+    public void wavEncoder_encryptedMatchesPlain() throws Exception {
+
+        ByteBuffer pcm = ByteBuffer.wrap(newData(6400, 8));
+        File plainFile = new File(root, "d.wav");
+        File encryptedFile = new File(root, "d.wav.enc");
+
+        WavEncoder plain = new WavEncoder();
+        plain.begin(plainFile, 16000, 1);
+        plain.encode(pcm.duplicate());
+        plain.encode(pcm.duplicate());
+        plain.end();
+
+        WavEncoder encrypted = new WavEncoder(cipher);
+        encrypted.begin(encryptedFile, 16000, 1);
+        encrypted.encode(pcm.duplicate());
+        encrypted.encode(pcm.duplicate());
+        encrypted.end();
+
+        assertArrayEquals(readFile(plainFile), decrypt(encryptedFile));
+    }
+
+    @Test
+    public void eachFile_getsOwnKey() throws Exception {
+
+        byte[] data = newData(1000, 9);
+
+        byte[] first = readFile(write("e1.enc", data));
+        byte[] second = readFile(write("e2.enc", data));
+
+        assertEquals(first.length, second.length);
+        assertFalse(contains(second, first, first.length - 64, 64));
+    }
+
+    @Test
+    public void truncatedFile_decryptsPrefix() throws Exception {
+
+        byte[] data = newData(20000, 10);
+        File file = write("f.enc", data);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 7001);
+        raf.close();
+
+        byte[] plain = decrypt(file);
+
+        assertEquals(data.length - 7001, plain.length);
+
+        for (int i = 0; i < plain.length; i++) {
+            assertEquals(data[i], plain[i]);
+        }
+    }
+
+    @Test
+    public void wrongMasterKey_isRejected() throws Exception {
+
+        File file = write("g.enc", newData(100, 11));
+
+        try {
+            new RecordingCipher(newKey(2)).open(file).close();
+            fail("opened with a wrong key");
+        } catch (IOException expected) {
+            // ключ файла не расшифровывается
+        }
+
+        File plain = new File(root, "h.amr");
+        FileOutputStream out = new FileOutputStream(plain);
+        out.write(newData(100, 12));
+        out.close();
+
+        try {
+            cipher.open(plain).close();
+            fail("opened a plain file");
+        } catch (IOException expected) {
+            // нет заголовка шифрования
+        }
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+
+        File file = new File(root, name);
+        EncryptedWriter writer = cipher.create(file);
+
+        try {
+            writer.write(ByteBuffer.wrap(data));
+        } finally {
+            writer.close();
+        }
+
+        return file;
+    }
+
+    private byte[] decrypt(File file) throws IOException {
+
+        InputStream in = cipher.openInputStream(file);
+
+        try {
+            return readAll(in, 777);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+
+        InputStream in = new FileInputStream(file);
+
+        try {
+            return readAll(in, 4096);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in, int bufferSize) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        int read;
+
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static boolean contains(byte[] haystack, byte[] needle, int from, int length) {
+
+        outer:
+        for (int i = 0; i + length <= haystack.length; i++) {
+
+            for (int j = 0; j < length; j++) {
+                if (haystack[i + j] != needle[from + j]) {
+                    continue outer;
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private static SecretKeySpec newKey(int seed) {
+
+        byte[] key = new byte[32];
+        new Random(seed).nextBytes(key);
+
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static byte[] newData(int size, int seed) {
+
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+
+        return data;
+    }
+}
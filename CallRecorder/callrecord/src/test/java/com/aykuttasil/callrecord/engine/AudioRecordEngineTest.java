@@ -0,0 +1,346 @@
+package com.aykuttasil.callrecord.engine;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.crypto.DecryptedReader;
+import com.aykuttasil.callrecord.crypto.RecordingCipher;
+import com.aykuttasil.callrecord.waveform.WaveformPeaks;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Прогоняет AudioRecordEngine на JVM с поддельным источником PCM
+ */
+public class AudioRecordEngineTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int FRAME_BYTES = SAMPLE_RATE * 2 * AudioRecordEngine.FRAME_MILLIS / 1000;
+
+    /**
+     * Выдает заданное количество фреймов с предсказуемым содержимым,
+     * затем ждет, как настоящий AudioRecord без данных
+     */
+    private static class FakePcmSource implements PcmSource {
+
+        private final int totalFrames;
+        private int quietFrom = -1;  ///< фреймы [quietFrom, quietTo) заполняются нулями
+        private int quietTo = -1;
+        private volatile int producedFrames;
+        private volatile boolean released;
+
+        FakePcmSource(int totalFrames) {
+            this.totalFrames = totalFrames;
+        }
+
+        @Override
+        public void open(int sampleRate, int channels) {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int size) {
+
+            if (producedFrames >= totalFrames) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+                return 0;
+            }
+
+            boolean quiet = producedFrames >= quietFrom && producedFrames < quietTo;
+
+            for (int i = 0; i < size; i++) {
+                buffer.put(i, quiet ? 0 : (byte) (producedFrames + i));
+            }
+
+            producedFrames++;
+
+            return size;
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    @Test
+    public void engine_writesAllPcmFramesToWav() throws Exception {
+
+        int frames = 50;
+        FakePcmSource source = new FakePcmSource(frames);
+        AudioRecordEngine engine = new AudioRecordEngine(source, new WavEncoder(), SAMPLE_RATE, 1, frames * 2);
+
+        File output = File.createTempFile("engine", ".wav");
+        output.deleteOnExit();
+
+        engine.prepare(new RecordingConfig.Builder().build(), output);
+        engine.start();
+
+        while (source.producedFrames < frames) {
+            Thread.sleep(1);
+        }
+
+        engine.stop();
+        engine.release();
+
+        assertTrue(source.released);
+        assertEquals(0, engine.getDroppedFrames());
+        assertEquals(44 + frames * FRAME_BYTES, output.length());
+
+        byte[] bytes = readAll(output);
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(frames * FRAME_BYTES, header.getInt(40));
+        assertEquals(SAMPLE_RATE, header.getInt(24));
+
+        for (int frame = 0; frame < frames; frame++) {
+            for (int i = 0; i < FRAME_BYTES; i += 97) {
+                assertEquals((byte) (frame + i), bytes[44 + frame * FRAME_BYTES + i]);
+            }
+        }
+    }
+
+    @Test
+    public void engine_rollsSegmentsByDuration() throws Exception {
+
+        int frames = 50;
+        FakePcmSource source = new FakePcmSource(frames);
+        AudioRecordEngine engine = new AudioRecordEngine(source, new WavEncoder(), SAMPLE_RATE, 1, frames * 2);
+
+        final List<File> segments = new ArrayList<>();
+
+        engine.setSegmentListener(new SegmentListener() {
+            @Override
+            public void onSegmentCompleted(File segment, int index) {
+                assertEquals(segments.size(), index);
+                segments.add(segment);
+            }
+        });
+
+        File output = File.createTempFile("segments", ".wav");
+        output.deleteOnExit();
+
+        // 10 фреймов по 20 мс в сегменте
+        engine.prepare(new RecordingConfig.Builder().setSegmentDurationMs(200).build(), output);
+        engine.start();
+
+        while (source.producedFrames < frames) {
+            Thread.sleep(1);
+        }
+
+        engine.stop();
+        engine.release();
+
+        assertEquals(5, segments.size());
+        assertEquals(output, segments.get(0));
+
+        for (File segment : segments) {
+            segment.deleteOnExit();
+            assertEquals(44 + 10 * FRAME_BYTES, segment.length());
+        }
+    }
+
+    @Test
+    public void segmentFiles_keepSuffix() throws Exception {
+
+        File first = new File("/records/Record_incoming_123.amr");
+
+        assertEquals(first, SegmentFiles.segmentFile(first, 0));
+        assertEquals(new File("/records/Record_incoming_123_part2.amr"), SegmentFiles.segmentFile(first, 2));
+    }
+
+    @Test
+    public void ringBuffer_rejectsWritesWhenFull() throws Exception {
+
+        PcmRingBuffer ring = new PcmRingBuffer(4, 2);
+
+        ring.acquireWrite().putInt(0, 1);
+        ring.commitWrite(4);
+        ring.acquireWrite().putInt(0, 2);
+        ring.commitWrite(4);
+
+        assertNull(ring.acquireWrite());
+        assertEquals(2, ring.size());
+
+        assertEquals(1, ring.acquireRead().getInt(0));
+        ring.releaseRead();
+
+        assertNotNull(ring.acquireWrite());
+        assertEquals(2, ring.acquireRead().getInt(0));
+    }
+
+    @Test
+    public void ringBuffer_reusesSameSlots() throws Exception {
+
+        PcmRingBuffer ring = new PcmRingBuffer(8, 4);
+        ByteBuffer first = ring.acquireWrite();
+
+        for (int i = 0; i < 4; i++) {
+            ring.commitWrite(8);
+            ring.acquireRead();
+            ring.releaseRead();
+            ring.acquireWrite();
+        }
+
+        assertSame(first, ring.acquireWrite());
+    }
+
+    @Test
+    public void engine_removesLongSilenceAndWritesSidecar() throws Exception {
+
+        int frames = 100;
+        FakePcmSource source = new FakePcmSource(frames);
+        source.quietFrom = 20;
+        source.quietTo = 80;
+
+        AudioRecordEngine engine = new AudioRecordEngine(source, new WavEncoder(), SAMPLE_RATE, 1, frames * 2);
+
+        File output = File.createTempFile("engine", ".wav");
+        output.deleteOnExit();
+        SegmentFiles.silenceFile(output).deleteOnExit();
+
+        engine.prepare(new RecordingConfig.Builder()
+                .setSilenceThreshold(1000)
+                .setSilenceMinMs(200)
+                .build(), output);
+        engine.start();
+
+        while (source.producedFrames < frames) {
+            Thread.sleep(1);
+        }
+
+        engine.stop();
+        engine.release();
+
+        // первые 200 мс тишины остаются паузой, остальные 50 фреймов вырезаны
+        assertEquals(44 + 50 * FRAME_BYTES, output.length());
+        assertEquals(SilenceDetector.SIDECAR_HEADER + "\n" + SilenceDetector.MODE_REMOVED + "\n600 1600\n",
+                new String(readAll(SegmentFiles.silenceFile(output)), "UTF-8"));
+    }
+
+    @Test
+    public void engine_writesPeaksOfEncodedFrames() throws Exception {
+
+        int frames = 100;
+        FakePcmSource source = new FakePcmSource(frames);
+        source.quietFrom = 20;
+        source.quietTo = 80;
+
+        AudioRecordEngine engine = new AudioRecordEngine(source, new WavEncoder(), SAMPLE_RATE, 1, frames * 2);
+
+        File output = File.createTempFile("engine", ".wav");
+        output.deleteOnExit();
+        SegmentFiles.silenceFile(output).deleteOnExit();
+        SegmentFiles.peaksFile(output).deleteOnExit();
+
+        engine.prepare(new RecordingConfig.Builder()
+                .setSilenceThreshold(1000)
+                .setSilenceMinMs(200)
+                .setPeakIntervalMs(AudioRecordEngine.FRAME_MILLIS)
+                .build(), output);
+        engine.start();
+
+        while (source.producedFrames < frames) {
+            Thread.sleep(1);
+        }
+
+        engine.stop();
+        engine.release();
+
+        WaveformPeaks peaks = WaveformPeaks.open(SegmentFiles.peaksFile(output));
+
+        // пики идут по времени файла: вырезанная тишина в них не попадает
+        assertEquals(1000, peaks.getDurationMs());
+        assertEquals(50, peaks.getPeakCount(0));
+        assertTrue(peaks.getMin(0, 0) < -100);
+        assertTrue(peaks.getMax(0, 0) > 100);
+
+        for (int index = 20; index < 30; index++) {
+            assertEquals(0, peaks.getMin(0, index));
+            assertEquals(0, peaks.getMax(0, index));
+        }
+
+        assertTrue(peaks.getMax(0, 30) > 100);
+    }
+
+    @Test
+    public void encryptedEngine_writesNoPlaintextSidecars() throws Exception {
+
+        int frames = 100;
+        FakePcmSource source = new FakePcmSource(frames);
+        source.quietFrom = 20;
+        source.quietTo = 80;
+
+        RecordingCipher cipher = new RecordingCipher(new SecretKeySpec(new byte[16], "AES"));
+        AudioRecordEngine engine = new AudioRecordEngine(source, new WavEncoder(cipher), SAMPLE_RATE, 1, frames * 2);
+
+        File output = File.createTempFile("engine", ".wav" + RecordingCipher.FILE_SUFFIX);
+        output.deleteOnExit();
+        SegmentFiles.silenceFile(output).deleteOnExit();
+        SegmentFiles.peaksFile(output).deleteOnExit();
+
+        engine.prepare(new RecordingConfig.Builder()
+                .setSilenceThreshold(1000)
+                .setSilenceMinMs(200)
+                .setPeakIntervalMs(AudioRecordEngine.FRAME_MILLIS)
+                .build(), output);
+        engine.start();
+
+        while (source.producedFrames < frames) {
+            Thread.sleep(1);
+        }
+
+        engine.stop();
+        engine.release();
+
+        DecryptedReader reader = cipher.open(output);
+
+        try {
+            assertEquals(44 + 50 * FRAME_BYTES, reader.size());
+        } finally {
+            reader.close();
+        }
+
+        // тишина вырезана, но ни ее участки, ни пики не лежат рядом открытыми
+        assertFalse(SegmentFiles.silenceFile(output).exists());
+        assertFalse(SegmentFiles.peaksFile(output).exists());
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+
+        return bytes;
+    }
+}
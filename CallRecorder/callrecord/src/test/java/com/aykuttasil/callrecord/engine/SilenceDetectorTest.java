@@ -0,0 +1,96 @@
+package com.aykuttasil.callrecord.engine;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты детектора тишины
+ */
+public class SilenceDetectorTest {
+
+    @Test
+    public void shortPauses_areNotSilence() throws Exception {
+
+        SilenceDetector detector = new SilenceDetector(500, 1000);
+
+        for (long t = 0; t < 10000; t += 100) {
+            // 900 мс тишины, затем 100 мс речи
+            assertFalse(detector.onLevel(t % 1000 == 900 ? 4000 : 10, t));
+        }
+
+        detector.finish(10000);
+
+        assertEquals(0, detector.getRegionCount());
+    }
+
+    @Test
+    public void longSilence_startsAfterMinimumAndEndsOnSpeech() throws Exception {
+
+        SilenceDetector detector = new SilenceDetector(500, 1000);
+
+        assertFalse(detector.onLevel(4000, 0));
+        assertFalse(detector.onLevel(10, 100));
+        assertFalse(detector.onLevel(10, 1000));
+        assertTrue(detector.onLevel(10, 1100));
+        assertTrue(detector.onLevel(499, 5000));
+        assertFalse(detector.onLevel(500, 5100));
+
+        assertEquals(1, detector.getRegionCount());
+        assertEquals(1100, detector.getRegionStart(0));
+        assertEquals(5100, detector.getRegionEnd(0));
+        assertEquals(4000, detector.getSilentMs());
+    }
+
+    @Test
+    public void manyRegions_growStorageAndOpenRegionIsClosedOnFinish() throws Exception {
+
+        SilenceDetector detector = new SilenceDetector(100, 0);
+
+        for (int i = 0; i < 100; i++) {
+            detector.onLevel(0, i * 20);
+            detector.onLevel(1000, i * 20 + 10);
+        }
+
+        detector.onLevel(0, 5000);
+        detector.finish(5500);
+
+        assertEquals(101, detector.getRegionCount());
+        assertEquals(5000, detector.getRegionStart(100));
+        assertEquals(5500, detector.getRegionEnd(100));
+        assertEquals(100 * 10 + 500, detector.getSilentMs());
+    }
+
+    @Test
+    public void noSilence_writesNoSidecar() throws Exception {
+
+        File recording = File.createTempFile("silence", ".amr");
+        recording.deleteOnExit();
+
+        assertNull(new SilenceDetector(100, 0).writeSidecar(recording, SilenceDetector.MODE_MARKED));
+        assertFalse(SegmentFiles.silenceFile(recording).exists());
+    }
+
+    @Test
+    public void peakLevel_readsSigned16BitSamples() throws Exception {
+
+        ByteBuffer frame = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        frame.putShort((short) 120).putShort((short) -3000).putShort((short) 2999).putShort(Short.MIN_VALUE);
+        frame.flip();
+
+        assertEquals(Short.MAX_VALUE, SilenceDetector.peakLevel(frame));
+        assertEquals(0, frame.position());
+
+        frame.limit(6);
+        assertEquals(3000, SilenceDetector.peakLevel(frame));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroThreshold_isRejected() throws Exception {
+        new SilenceDetector(0, 1000);
+    }
+}
@@ -0,0 +1,389 @@
+package com.aykuttasil.callrecord.export;
+
+import com.aykuttasil.callrecord.index.Recording;
+import com.aykuttasil.callrecord.index.RecordingIndex;
+import com.aykuttasil.callrecord.index.RecordingQuery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты выгрузки записей в архивы ZIP и TAR
+ */
+public class RecordingExporterTest {
+
+    /**
+     * Индекс в памяти, записи упорядочены по идентификатору
+     */
+    private static class FakeIndex extends RecordingIndex {
+
+        final List<Recording> recordings = new ArrayList<>();
+
+        FakeIndex() {
+            super(null);
+        }
+
+        @Override
+        public List<Recording> queryAfter(RecordingQuery query, long afterId, int limit) {
+
+            List<Recording> page = new ArrayList<>();
+
+            for (Recording recording : recordings) {
+                if (recording.getId() > afterId && page.size() < limit) {
+                    page.add(recording);
+                }
+            }
+
+            return page;
+        }
+    }
+
+    private File root;
+    private File records;
+    private FakeIndex index;
+    private RecordingExporter exporter;
+    private final Random random = new Random(7);
+
+    @Before
+    public void setUp() throws Exception {
+
+        root = File.createTempFile("export", "");
+        root.delete();
+        root.mkdirs();
+
+        records = new File(root, "records");
+        records.mkdirs();
+
+        index = new FakeIndex();
+        exporter = new RecordingExporter(index);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        exporter.shutdown();
+        deleteTree(root);
+    }
+
+    @Test
+    public void zip_containsSegmentsSilenceAndManifest() throws Exception {
+
+        File first = record(1, "a/Record_1.amr", 3000);
+        byte[] part = write(new File(records, "a/Record_1_part1.amr"), 70 * 1024);
+        byte[] silence = write(new File(first.getPath() + ".silence"), 16);
+        index.recordings.add(new Recording(2, "2", "outgoing", 10, 0, 0,
+                new File(records, "b.amr").getPath(), 0, "amr"));
+        index.recordings.add(new Recording(3, "3", "incoming", 10, 20, 10,
+                new File(records, "missing.amr").getPath(), 0, "amr"));
+        record(4, "Record_\"4\".amr", 0);
+
+        File archive = new File(root, "out.zip");
+        int[] recordings = new int[1];
+
+        assertTrue(exporter.export(task(archive, RecordingExporter.FORMAT_ZIP), null, recordings));
+        assertEquals(2, recordings[0]);
+
+        Map<String, byte[]> entries = readZip(archive);
+
+        assertEquals(Arrays.asList("recordings/a/Record_1.amr", "recordings/a/Record_1_part1.amr",
+                "recordings/a/Record_1.amr.silence", "recordings/Record_\"4\".amr", "manifest.jsonl"),
+                new ArrayList<>(entries.keySet()));
+        assertArrayEquals(read(first), entries.get("recordings/a/Record_1.amr"));
+        assertArrayEquals(part, entries.get("recordings/a/Record_1_part1.amr"));
+        assertArrayEquals(silence, entries.get("recordings/a/Record_1.amr.silence"));
+        assertEquals(0, entries.get("recordings/Record_\"4\".amr").length);
+
+        String[] manifest = new String(entries.get("manifest.jsonl"), "UTF-8").split("\n");
+
+        assertEquals(2, manifest.length);
+        assertTrue(manifest[0].startsWith("{\"id\":1,\"number\":\"1\",\"direction\":\"incoming\""));
+        assertTrue(manifest[0].endsWith("\"encrypted\":false,\"files\":[\"recordings/a/Record_1.amr\","
+                + "\"recordings/a/Record_1_part1.amr\"],\"silence\":\"recordings/a/Record_1.amr.silence\","
+                + "\"peaks\":null}"));
+        assertTrue(manifest[1].endsWith("\"files\":[\"recordings/Record_\\\"4\\\".amr\"],"
+                + "\"silence\":null,\"peaks\":null}"));
+
+        assertFalse(new File(archive.getPath() + RecordingExporter.STATE_SUFFIX).exists());
+        assertFalse(new File(archive.getPath() + RecordingExporter.MANIFEST_SUFFIX).exists());
+        assertFalse(new File(archive.getPath() + RecordingExporter.CENTRAL_SUFFIX).exists());
+    }
+
+    @Test
+    public void tar_longNamesUsePrefixOrPax() throws Exception {
+
+        char[] chars = new char[120];
+        Arrays.fill(chars, 'x');
+        String longName = new String(chars) + ".amr";
+        String splitName = longName.substring(30);
+
+        // первое имя длиннее 100 байт и делится на prefix и name по '/', во втором '/' нет
+        File split = record(1, "dir/" + splitName, 1000);
+        File pax = record(2, "Запись_" + longName, 513);
+
+        File archive = new File(root, "out.tar");
+
+        assertTrue(exporter.export(task(archive, RecordingExporter.FORMAT_TAR), null, new int[1]));
+        assertEquals(0, archive.length() % 512);
+
+        Map<String, byte[]> entries = readTar(archive);
+
+        assertEquals(Arrays.asList("recordings/dir/" + splitName, "recordings/Запись_" + longName, "manifest.jsonl"),
+                new ArrayList<>(entries.keySet()));
+        assertArrayEquals(read(split), entries.get("recordings/dir/" + splitName));
+        assertArrayEquals(read(pax), entries.get("recordings/Запись_" + longName));
+        assertEquals(2, new String(entries.get("manifest.jsonl"), "UTF-8").split("\n").length);
+    }
+
+    @Test
+    public void cancelledExport_resumesWithoutDuplicates() throws Exception {
+
+        for (int id = 1; id <= 5; id++) {
+            record(id, "Record_" + id + ".amr", 40 * 1024 + id);
+        }
+
+        File archive = new File(root, "out.zip");
+        final ExportTask cancelled = task(archive, RecordingExporter.FORMAT_ZIP);
+        int[] recordings = new int[1];
+
+        assertFalse(exporter.export(cancelled, new ExportListener() {
+            @Override
+            public void onExportProgress(ExportTask task, int recordings, long bytes) {
+
+                if (recordings == 2) {
+                    task.cancel();
+                }
+            }
+
+            @Override
+            public void onExportFinished(ExportTask task, int recordings, boolean complete) {
+            }
+        }, recordings));
+
+        assertEquals(2, recordings[0]);
+        assertTrue(new File(archive.getPath() + RecordingExporter.STATE_SUFFIX).exists());
+
+        assertTrue(exporter.export(task(archive, RecordingExporter.FORMAT_ZIP), null, recordings));
+        assertEquals(5, recordings[0]);
+
+        Map<String, byte[]> entries = readZip(archive);
+
+        assertEquals(6, entries.size());
+
+        for (int id = 1; id <= 5; id++) {
+            assertArrayEquals(read(new File(records, "Record_" + id + ".amr")),
+                    entries.get("recordings/Record_" + id + ".amr"));
+        }
+
+        assertEquals(5, new String(entries.get("manifest.jsonl"), "UTF-8").split("\n").length);
+    }
+
+    @Test
+    public void changedFilter_startsOver() throws Exception {
+
+        for (int id = 1; id <= 3; id++) {
+            record(id, "Record_" + id + ".amr", 100);
+        }
+
+        File archive = new File(root, "out.tar");
+        ExportCheckpoint stale = new ExportCheckpoint(RecordingExporter.FORMAT_TAR,
+                new RecordingQuery().setNumber("1").getFilterKey());
+        stale.lastId = 2;
+        stale.write(new File(archive.getPath() + RecordingExporter.STATE_SUFFIX));
+
+        int[] recordings = new int[1];
+
+        assertTrue(exporter.export(task(archive, RecordingExporter.FORMAT_TAR), null, recordings));
+        assertEquals(3, recordings[0]);
+        assertEquals(4, readTar(archive).size());
+    }
+
+    @Test
+    public void entryName_outsideRecordDirUsesId() throws Exception {
+
+        assertEquals("recordings/a/b.amr", RecordingExporter.entryName(records, new File(records, "a/b.amr"), 5));
+        assertEquals("recordings/5/b.amr", RecordingExporter.entryName(records, new File(root, "b.amr"), 5));
+    }
+
+    private ExportTask task(File archive, int format) {
+        return new ExportTask(archive, format, new RecordingQuery(), records);
+    }
+
+    private File record(long id, String path, int size) throws IOException {
+
+        File file = new File(records, path);
+        write(file, size);
+
+        index.recordings.add(new Recording(id, String.valueOf(id), "incoming", 1000 * id, 1000 * id + 500, 500,
+                file.getPath(), size, "amr"));
+
+        return file;
+    }
+
+    private byte[] write(File file, int size) throws IOException {
+
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+
+        file.getParentFile().mkdirs();
+
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        return data;
+    }
+
+    private static Map<String, byte[]> readZip(File archive) throws IOException {
+
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        ZipFile zip = new ZipFile(archive);
+
+        try {
+
+            Enumeration<? extends ZipEntry> list = zip.entries();
+
+            while (list.hasMoreElements()) {
+
+                ZipEntry entry = list.nextElement();
+
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+
+                // ZipFile проверяет CRC32 при чтении до конца
+                entries.put(entry.getName(), read(zip.getInputStream(entry)));
+            }
+
+        } finally {
+            zip.close();
+        }
+
+        return entries;
+    }
+
+    private static Map<String, byte[]> readTar(File archive) throws IOException {
+
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        DataInputStream in = new DataInputStream(new FileInputStream(archive));
+        byte[] header = new byte[512];
+        String paxPath = null;
+
+        try {
+
+            while (true) {
+
+                in.readFully(header);
+
+                if (header[0] == 0) {
+                    break;
+                }
+
+                long checksum = 0;
+
+                for (int i = 0; i < 512; i++) {
+                    checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+                }
+
+                assertEquals(checksum, Long.parseLong(string(header, 148, 7), 8));
+                assertEquals("ustar", string(header, 257, 6));
+
+                int size = Integer.parseInt(string(header, 124, 12), 8);
+                byte[] data = new byte[size];
+
+                in.readFully(data);
+                in.readFully(new byte[(512 - size % 512) % 512]);
+
+                if (header[156] == 'x') {
+
+                    String record = new String(data, "UTF-8");
+                    paxPath = record.substring(record.indexOf("path=") + 5, record.length() - 1);
+
+                    assertEquals(data.length, Integer.parseInt(record.substring(0, record.indexOf(' '))));
+                    continue;
+                }
+
+                String prefix = string(header, 345, 155);
+                String name = paxPath != null ? paxPath
+                        : prefix.isEmpty() ? string(header, 0, 100) : prefix + "/" + string(header, 0, 100);
+
+                entries.put(name, data);
+                paxPath = null;
+            }
+
+        } finally {
+            in.close();
+        }
+
+        return entries;
+    }
+
+    private static String string(byte[] header, int offset, int length) throws IOException {
+
+        int end = offset;
+
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+
+        return new String(header, offset, end - offset, "UTF-8");
+    }
+
+    private static byte[] read(File file) throws IOException {
+        return read(new FileInputStream(file));
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        try {
+
+            int read;
+
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+
+        } finally {
+            in.close();
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void deleteTree(File file) {
+
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,52 @@
+package com.aykuttasil.callrecord.index;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты построения запроса к индексу записей
+ */
+public class RecordingQueryTest {
+
+    @Test
+    public void emptyQuery_hasNoSelection() throws Exception {
+
+        RecordingQuery query = new RecordingQuery();
+
+        assertNull(query.getSelection());
+        assertNull(query.getSelectionArgs());
+        assertEquals("start_time DESC, _id DESC", query.getOrderBy());
+        assertEquals("0,100", query.getLimit());
+    }
+
+    @Test
+    public void filters_produceParameterizedSelection() throws Exception {
+
+        RecordingQuery query = new RecordingQuery()
+                .setNumber("+79990001122")
+                .setDirection(RecordingQuery.DIRECTION_INCOMING)
+                .setStartBetween(1000, 2000)
+                .setFinishedOnly(true)
+                .setOrderBy(RecordingQuery.ORDER_BY_DURATION, false)
+                .setPage(40, 20);
+
+        assertEquals("number = ? AND direction = ? AND start_time >= ? AND start_time < ? AND end_time > 0",
+                query.getSelection());
+
+        String[] args = query.getSelectionArgs();
+
+        assertEquals(4, args.length);
+        assertEquals("+79990001122", args[0]);
+        assertEquals("incoming", args[1]);
+        assertEquals("1000", args[2]);
+        assertEquals("2000", args[3]);
+        assertEquals("duration ASC, _id ASC", query.getOrderBy());
+        assertEquals("40,20", query.getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void orderBy_rejectsUnknownColumn() throws Exception {
+        new RecordingQuery().setOrderBy("path; DROP TABLE recordings", true);
+    }
+}
@@ -0,0 +1,219 @@
+package com.aykuttasil.callrecord.journal;
+
+import com.aykuttasil.callrecord.state.CallStateMachine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты журнала событий звонка: восстановление незакрытых записей,
+ * отбрасывание оборванной записи и сжатие
+ */
+public class CallJournalTest {
+
+    private static class FakeClock implements CallStateMachine.Clock {
+
+        long now = 1000000000L;
+
+        @Override
+        public long elapsedNanos() {
+            return now;
+        }
+    }
+
+    private FakeClock clock;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+
+        clock = new FakeClock();
+        file = File.createTempFile("journal", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void replay_returnsRecordsThatWereNotStopped() {
+
+        CallJournal journal = new CallJournal(file, clock);
+
+        journal.appendState(CallStateMachine.STATE_OFFHOOK, null);
+        journal.appendStart(7, "outgoing", "111", "/rec/a.amr");
+        journal.appendStop("/rec/a.amr");
+        journal.appendState(CallStateMachine.STATE_IDLE, null);
+
+        journal.appendState(CallStateMachine.STATE_RINGING, "222");
+        clock.now += 5;
+        journal.appendState(CallStateMachine.STATE_OFFHOOK, null);
+        journal.appendStart(8, "incoming", "222", "/rec/b.amr");
+        journal.close();
+
+        CallJournal.Replay replay = new CallJournal(file, clock).replay();
+
+        assertEquals(1, replay.getOrphans().size());
+
+        CallJournal.Entry orphan = replay.getOrphans().get(0);
+        assertEquals(8, orphan.getRecordId());
+        assertEquals("incoming", orphan.getDirection());
+        assertEquals("222", orphan.getNumber());
+        assertEquals("/rec/b.amr", orphan.getPath());
+
+        assertEquals(CallStateMachine.STATE_OFFHOOK, replay.getState());
+        assertTrue(replay.isIncoming());
+        assertEquals("222", replay.getNumber());
+        assertEquals(clock.now, replay.getCallStartNanos());
+        assertTrue(replay.isSameBoot());
+    }
+
+    @Test
+    public void replay_dropsTornTail() throws Exception {
+
+        CallJournal journal = new CallJournal(file, clock);
+        journal.appendStart(1, "incoming", "111", "/rec/a.amr");
+        journal.appendStop("/rec/a.amr");
+        journal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        CallJournal.Replay replay = new CallJournal(file, clock).replay();
+
+        // запись об остановке оборвана, поэтому запись звонка считается незакрытой
+        assertEquals(1, replay.getOrphans().size());
+    }
+
+    @Test
+    public void replay_ofMissingJournalIsEmpty() {
+
+        CallJournal.Replay replay = new CallJournal(file, clock).replay();
+
+        assertTrue(replay.getOrphans().isEmpty());
+        assertEquals(CallStateMachine.STATE_IDLE, replay.getState());
+        assertFalse(replay.isSameBoot());
+    }
+
+    @Test
+    public void replay_fromPreviousBootIsNotSameBoot() {
+
+        CallJournal journal = new CallJournal(file, clock);
+        journal.appendState(CallStateMachine.STATE_OFFHOOK, "111");
+        journal.close();
+
+        clock.now = 10;
+
+        assertFalse(new CallJournal(file, clock).replay().isSameBoot());
+    }
+
+    @Test
+    public void append_compactsWhenJournalGrows() {
+
+        CallJournal journal = new CallJournal(file, clock, 1024);
+
+        journal.appendStart(3, "incoming", "333", "/rec/open.amr");
+
+        for (int i = 0; i < 1000; i++) {
+            journal.appendState(CallStateMachine.STATE_RINGING, "444");
+            journal.appendStart(i + 10, "incoming", "444", "/rec/" + i + ".amr");
+            journal.appendStop("/rec/" + i + ".amr");
+            journal.appendState(CallStateMachine.STATE_IDLE, null);
+        }
+
+        assertTrue(journal.size() <= 1024 + 256);
+        journal.close();
+
+        CallJournal.Replay replay = new CallJournal(file, clock).replay();
+
+        assertEquals(1, replay.getOrphans().size());
+        assertEquals("/rec/open.amr", replay.getOrphans().get(0).getPath());
+        assertEquals(CallStateMachine.STATE_IDLE, replay.getState());
+    }
+
+    @Test
+    public void compact_afterRecoveryLeavesNoOrphans() {
+
+        CallJournal journal = new CallJournal(file, clock);
+        journal.appendStart(1, "incoming", "111", "/rec/a.amr");
+        journal.close();
+
+        CallJournal recovered = new CallJournal(file, clock);
+        assertEquals(1, recovered.replay().getOrphans().size());
+
+        recovered.compact();
+
+        assertEquals(0, recovered.replay().getOrphans().size());
+    }
+
+    @Test
+    public void replay_skipsRecordsOpenInThisProcess() {
+
+        CallJournal journal = new CallJournal(file, clock);
+        journal.appendStart(1, "incoming", "111", "/rec/a.amr");
+        journal.close();
+
+        CallJournal current = new CallJournal(file, clock);
+        current.appendStart(2, "outgoing", "222", "/rec/b.amr");
+
+        CallJournal.Replay replay = current.replay();
+
+        assertEquals(1, replay.getOrphans().size());
+        assertEquals("/rec/a.amr", replay.getOrphans().get(0).getPath());
+
+        assertTrue(current.claimRecovery());
+        assertFalse(current.claimRecovery());
+        assertFalse(new CallJournal(file, clock).claimRecovery());
+    }
+
+    @Test
+    public void replay_compact_replay_keepsCallState() {
+
+        CallJournal journal = new CallJournal(file, clock);
+
+        journal.appendState(CallStateMachine.STATE_RINGING, "111");
+        journal.appendState(CallStateMachine.STATE_IDLE, null);
+
+        journal.appendState(CallStateMachine.STATE_RINGING, "222");
+        clock.now += 5;
+        journal.appendState(CallStateMachine.STATE_OFFHOOK, null);
+        long answeredNanos = clock.now;
+        journal.appendStart(8, "incoming", "222", "/rec/b.amr");
+        clock.now += 5;
+        journal.appendState(CallStateMachine.STATE_RINGING, "333");
+        journal.close();
+
+        // новый процесс: чтение, завершение незакрытых записей и сжатие
+        CallJournal recovered = new CallJournal(file, clock);
+        CallJournal.Replay before = recovered.replay();
+        long size = recovered.size();
+
+        recovered.compact();
+
+        CallJournal.Replay after = recovered.replay();
+
+        assertTrue(recovered.size() < size);
+        assertEquals(1, before.getOrphans().size());
+        assertEquals(0, after.getOrphans().size());
+        assertEquals(CallStateMachine.STATE_RINGING, after.getState());
+        assertEquals(before.getState(), after.getState());
+        assertTrue(after.isIncoming());
+        assertEquals("222", after.getNumber());
+        assertEquals(answeredNanos, after.getCallStartNanos());
+        assertTrue(after.isSameBoot());
+
+        // и после повторного сжатия журнал читается так же
+        recovered.compact();
+
+        assertEquals("222", new CallJournal(file, clock).replay().getNumber());
+    }
+}
@@ -0,0 +1,199 @@
+package com.aykuttasil.callrecord.level;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.engine.CaptureEngine;
+import com.aykuttasil.callrecord.engine.SegmentListener;
+import com.aykuttasil.callrecord.session.RecordingSession;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты публикации уровней сигнала
+ */
+public class LevelMeterTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class LevelEngine implements CaptureEngine {
+
+        volatile boolean metering;
+        final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public void prepare(RecordingConfig config, File outputFile) {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void setSegmentListener(SegmentListener listener) {
+        }
+
+        @Override
+        public void setLevelMetering(boolean enabled) {
+            metering = enabled;
+        }
+
+        @Override
+        public int readLevel() {
+            return 1000 + reads.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private LevelMeter meter;
+    private LevelEngine engine;
+    private RecordingSession session;
+
+    @Before
+    public void setUp() throws Exception {
+
+        meter = new LevelMeter();
+        engine = new LevelEngine();
+
+        File file = File.createTempFile("level", ".amr");
+        file.deleteOnExit();
+
+        session = new RecordingSession("1", "incoming", "1");
+        session.prepare(new RecordingConfig.Builder().build(), file, engine);
+        session.start(System.nanoTime());
+        session.setRecordId(42);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        meter.shutdown();
+    }
+
+    @Test
+    public void noSubscribers_noSamplingAndNoMetering() throws Exception {
+
+        meter.addSource(session);
+
+        assertFalse(meter.isSampling());
+        assertFalse(engine.metering);
+
+        Thread.sleep(50);
+        assertEquals(0, engine.reads.get());
+    }
+
+    @Test
+    public void subscriber_receivesLevelsUntilCancelled() throws Exception {
+
+        meter.addSource(session);
+
+        final CountDownLatch received = new CountDownLatch(5);
+        final LevelSample sample = new LevelSample();
+
+        LevelSubscription subscription = meter.subscribe(LevelMeter.MAX_RATE, 16, new LevelListener() {
+            @Override
+            public void onLevelsAvailable(LevelSubscription subscription) {
+
+                while (subscription.poll(sample)) {
+
+                    assertEquals(42, sample.getRecordId());
+                    assertTrue(sample.getLevel() > 1000);
+                    assertTrue(sample.getTimeMs() >= 0);
+
+                    received.countDown();
+                }
+            }
+        }, DIRECT);
+
+        assertTrue(engine.metering);
+        assertTrue(meter.isSampling());
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        subscription.cancel();
+
+        assertFalse(meter.isSampling());
+        assertFalse(engine.metering);
+    }
+
+    @Test
+    public void slowConsumer_dropsNewestSamplesWithoutBlocking() throws Exception {
+
+        meter.addSource(session);
+
+        LevelSubscription subscription = meter.subscribe(LevelMeter.MAX_RATE, 4, null, null);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (subscription.getDroppedSamples() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(subscription.getDroppedSamples() > 0);
+
+        LevelSample sample = new LevelSample();
+        int previous = 0;
+        int polled = 0;
+
+        while (polled < 4 && subscription.poll(sample)) {
+            assertTrue(sample.getLevel() > previous);
+            previous = sample.getLevel();
+            polled++;
+        }
+
+        assertEquals(4, polled);
+        assertEquals(1001, sample.getLevel() - 3);
+    }
+
+    @Test
+    public void removedSource_stopsMetering() throws Exception {
+
+        LevelSubscription subscription = meter.subscribe(10, 16, null, null);
+
+        meter.addSource(session);
+        assertTrue(engine.metering);
+
+        meter.removeSource(session);
+        assertFalse(engine.metering);
+
+        subscription.cancel();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateOutOfRange_isRejected() throws Exception {
+        meter.subscribe(LevelMeter.MAX_RATE + 1, 16, null, null);
+    }
+
+    @Test
+    public void capacity_isRoundedToPowerOfTwo() throws Exception {
+
+        LevelSubscription subscription = meter.subscribe(10, 5, null, null);
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(subscription.offer(1, i, i));
+        }
+
+        assertFalse(subscription.offer(1, 8, 8));
+        assertEquals(1, subscription.getDroppedSamples());
+
+        subscription.cancel();
+    }
+}
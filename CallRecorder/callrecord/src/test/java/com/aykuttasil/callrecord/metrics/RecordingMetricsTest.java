@@ -0,0 +1,114 @@
+package com.aykuttasil.callrecord.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты гистограмм и снимков метрик записи
+ */
+public class RecordingMetricsTest {
+
+    @Test
+    public void histogram_placesValuesIntoInclusiveBuckets() {
+
+        Histogram histogram = new Histogram(10, 100, 1000);
+
+        assertEquals(0, histogram.bucketOf(0));
+        assertEquals(0, histogram.bucketOf(10));
+        assertEquals(1, histogram.bucketOf(11));
+        assertEquals(2, histogram.bucketOf(1000));
+        assertEquals(3, histogram.bucketOf(1001));
+        assertEquals(Long.MAX_VALUE, histogram.getBound(3));
+    }
+
+    @Test
+    public void histogram_tracksCountSumAndMax() {
+
+        Histogram histogram = new Histogram(10, 100);
+
+        assertEquals(0, histogram.getMax());
+
+        histogram.record(5);
+        histogram.record(50);
+        histogram.record(500);
+
+        Histogram.Snapshot snapshot = histogram.newSnapshot();
+        histogram.copyTo(snapshot);
+
+        assertEquals(3, snapshot.getCount());
+        assertEquals(555, snapshot.getSum());
+        assertEquals(500, snapshot.getMax());
+        assertEquals(185, snapshot.getMean());
+        assertEquals(1, snapshot.getBucket(0));
+        assertEquals(1, snapshot.getBucket(1));
+        assertEquals(1, snapshot.getBucket(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void histogram_rejectsUnsortedBounds() {
+        new Histogram(10, 5);
+    }
+
+    @Test
+    public void snapshot_isReusedAndReflectsLatestValues() {
+
+        RecordingMetrics metrics = new RecordingMetrics();
+        MetricsSnapshot snapshot = metrics.newSnapshot();
+
+        metrics.onRecordingStarted(3000000L);
+        metrics.onPrepared(40000000L);
+        metrics.onRecordingStopped(1000000L, 500000L);
+        metrics.onMissedCall();
+        metrics.onFailure(RecordingMetrics.FAILURE_START);
+
+        metrics.snapshot(snapshot);
+        Histogram.Snapshot latency = snapshot.getStartLatency();
+
+        assertEquals(1, snapshot.getRecordingsStarted());
+        assertEquals(1, snapshot.getRecordingsStopped());
+        assertEquals(1, snapshot.getMissedCalls());
+        assertEquals(1, snapshot.getFailures(RecordingMetrics.FAILURE_START));
+        assertEquals(0, snapshot.getFailures(RecordingMetrics.FAILURE_STOP));
+        assertEquals(1, latency.getCount());
+        assertEquals(500000L, snapshot.getBytesPerCall().getSum());
+
+        metrics.onRecordingStarted(7000000L);
+        metrics.snapshot(snapshot);
+
+        assertSame(latency, snapshot.getStartLatency());
+        assertEquals(2, latency.getCount());
+        assertEquals(7000000L, latency.getMax());
+    }
+
+    @Test
+    public void counters_areExactUnderContention() throws Exception {
+
+        final RecordingMetrics metrics = new RecordingMetrics();
+        final int perThread = 20000;
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        metrics.onRecordingStarted(i);
+                        metrics.onFailure(RecordingMetrics.FAILURE_PREPARE_IO);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threads.length * perThread, metrics.getRecordingsStarted());
+        assertEquals(threads.length * perThread, metrics.getStartLatency().getCount());
+        assertEquals(threads.length * perThread, metrics.getFailures(RecordingMetrics.FAILURE_PREPARE_IO));
+        assertEquals(perThread - 1, metrics.getStartLatency().getMax());
+    }
+}
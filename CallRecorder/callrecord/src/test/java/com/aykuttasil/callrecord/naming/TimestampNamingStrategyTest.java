@@ -0,0 +1,107 @@
+package com.aykuttasil.callrecord.naming;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты стратегии именования по умолчанию
+ */
+public class TimestampNamingStrategyTest {
+
+    private static final long TIME = 1488898873042L;
+
+    private static RecordingConfig config(boolean showSeed, boolean showPhoneNumber) {
+
+        return new RecordingConfig.Builder()
+                .setFileName("Record")
+                .setShowSeed(showSeed)
+                .setShowPhoneNumber(showPhoneNumber)
+                .setOutputFormat(3)
+                .build();
+    }
+
+    @Test
+    public void sameMillisecond_givesDistinctNames() throws Exception {
+
+        TimestampNamingStrategy strategy = new TimestampNamingStrategy();
+        RecordingConfig config = config(true, true);
+        Set<String> names = new HashSet<>();
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(names.add(strategy.buildFileName(config, "incoming", "123", TIME)));
+        }
+    }
+
+    @Test
+    public void names_sortInStartOrder() throws Exception {
+
+        TimestampNamingStrategy strategy = new TimestampNamingStrategy();
+        RecordingConfig config = config(false, false);
+        List<String> names = new ArrayList<>();
+
+        names.add(strategy.buildFileName(config, "incoming", "1", TIME));
+        names.add(strategy.buildFileName(config, "incoming", "1", TIME + 1));
+        names.add(strategy.buildFileName(config, "incoming", "1", TIME + 1000L * 60 * 60 * 24 * 40));
+
+        for (int i = 1; i < names.size(); i++) {
+            assertTrue(names.get(i - 1).compareTo(names.get(i)) < 0);
+        }
+    }
+
+    @Test
+    public void clockGoingBack_keepsNamesUnique() throws Exception {
+
+        TimestampNamingStrategy strategy = new TimestampNamingStrategy();
+        RecordingConfig config = config(false, false);
+
+        String first = strategy.buildFileName(config, "incoming", null, TIME);
+        String second = strategy.buildFileName(config, "incoming", null, TIME - 60000);
+
+        assertNotEquals(first, second);
+        assertTrue(first.compareTo(second) < 0);
+    }
+
+    @Test
+    public void name_containsDirectionAndSanitizedNumber() throws Exception {
+
+        String name = new TimestampNamingStrategy()
+                .buildFileName(config(true, true), "outgoing", "+7 (900) 123/45*67", TIME);
+
+        assertTrue(name, name.startsWith("Record_"));
+        assertTrue(name, name.endsWith("_outgoing_+79001234567.amr"));
+        assertTrue(name, name.matches("Record_\\d{8}-\\d{6}-\\d{3}_0_outgoing_\\+79001234567\\.amr"));
+    }
+
+    @Test
+    public void name_respectsDisabledParts() throws Exception {
+
+        String name = new TimestampNamingStrategy()
+                .buildFileName(config(false, false), "outgoing", "555", TIME);
+
+        assertTrue(name, name.matches("Record_\\d{8}-\\d{6}-\\d{3}_0\\.amr"));
+    }
+
+    @Test
+    public void hiddenNumber_isReplaced() throws Exception {
+
+        StringBuilder name = new StringBuilder();
+        TimestampNamingStrategy.appendSanitizedNumber(name, "*#/");
+        assertEquals(TimestampNamingStrategy.UNKNOWN_NUMBER, name.toString());
+
+        name.setLength(0);
+        TimestampNamingStrategy.appendSanitizedNumber(name, null);
+        assertEquals(TimestampNamingStrategy.UNKNOWN_NUMBER, name.toString());
+
+        name.setLength(0);
+        TimestampNamingStrategy.appendSanitizedNumber(name, "1234567890123456789012345678901234567890");
+        assertEquals(TimestampNamingStrategy.MAX_NUMBER_LENGTH, name.length());
+    }
+}
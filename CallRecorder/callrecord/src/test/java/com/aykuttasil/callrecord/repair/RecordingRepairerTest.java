@@ -0,0 +1,240 @@
+package com.aykuttasil.callrecord.repair;
+
+import android.media.MediaRecorder;
+
+import com.aykuttasil.callrecord.engine.SegmentFiles;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты исправления оборванных записей AMR и 3GP
+ */
+public class RecordingRepairerTest {
+
+    private static final int FRAME_BYTES = 32;          ///< кадр AMR-NB 12.2 вместе с заголовком
+    private static final int FRAME_HEADER = 7 << 3 | 0x04;
+
+    private File dir;
+    private RecordingRepairer repairer;
+
+    @Before
+    public void setUp() throws Exception {
+
+        dir = File.createTempFile("repair", "");
+        dir.delete();
+        dir.mkdirs();
+
+        repairer = new RecordingRepairer();
+    }
+
+    @After
+    public void tearDown() {
+
+        repairer.shutdown();
+
+        File[] files = dir.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        dir.delete();
+    }
+
+    @Test
+    public void amr_isTruncatedToLastWholeFrame() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("#!AMR\n".getBytes("US-ASCII"));
+        writeFrames(out, 1000);
+        out.write(FRAME_HEADER);
+        out.write(new byte[10]);
+
+        File file = write("Record_incoming_1.amr", out.toByteArray());
+
+        RepairReport report = scan();
+
+        assertEquals(1, report.getScanned());
+        assertEquals(1, report.getRepaired());
+        assertEquals(RepairReport.RESULT_AMR_TRUNCATED, report.getEntries().get(0).getResult());
+        assertEquals(6 + 1000 * FRAME_BYTES, file.length());
+    }
+
+    @Test
+    public void completeAmr_isLeftAlone() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("#!AMR\n".getBytes("US-ASCII"));
+        writeFrames(out, 50);
+
+        File file = write("Record_incoming_2.amr", out.toByteArray());
+
+        RepairReport report = scan();
+
+        assertEquals(1, report.getScanned());
+        assertTrue(report.getEntries().isEmpty());
+        assertEquals(6 + 50 * FRAME_BYTES, file.length());
+    }
+
+    @Test
+    public void threeGpWithoutMoov_getsIndexRebuilt() throws Exception {
+
+        int frames = 5000;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBox(out, 24, "ftyp");
+        out.write("3gp4".getBytes("US-ASCII"));
+        out.write(new byte[4]);
+        out.write("isom3gp4".getBytes("US-ASCII"));
+        // размер mdat не записан: 64-битный размер равен 0
+        writeBox(out, 1, "mdat");
+        out.write(new byte[8]);
+        writeFrames(out, frames);
+        out.write(FRAME_HEADER);
+
+        File file = write("Record_outgoing_3.3gp", out.toByteArray());
+
+        RepairReport report = scan();
+
+        assertEquals(RepairReport.RESULT_INDEX_REBUILT, report.getEntries().get(0).getResult());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] data = new byte[(int) raf.length()];
+        raf.readFully(data);
+        raf.close();
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        long mdatSize = buffer.getLong(24 + 8);
+        assertEquals(16 + (long) frames * FRAME_BYTES, mdatSize);
+
+        int moovStart = (int) (24 + mdatSize);
+        assertEquals("moov", type(buffer, moovStart));
+        assertEquals(data.length - moovStart, buffer.getInt(moovStart));
+
+        int stsz = indexOf(data, "stsz");
+        assertEquals(20 + 4 * frames, buffer.getInt(stsz));
+        assertEquals(frames, buffer.getInt(stsz + 16));
+        assertEquals(FRAME_BYTES, buffer.getInt(stsz + 20));
+        assertEquals(FRAME_BYTES, buffer.getInt(stsz + 16 + 4 * frames));
+
+        int stco = indexOf(data, "stco");
+        assertEquals(24 + 16, buffer.getInt(stco + 16));
+        assertEquals(data.length, stco + 20);
+
+        // повторная проверка видит moov и ничего не меняет
+        assertTrue(repairer.scan(dir, 0, Long.MAX_VALUE, MediaRecorder.AudioEncoder.AMR_NB).getEntries().isEmpty());
+    }
+
+    @Test
+    public void filesOutsideWindow_areSkipped() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("#!AMR\n".getBytes("US-ASCII"));
+        out.write(FRAME_HEADER);
+
+        File file = write("Record_incoming_4.amr", out.toByteArray());
+
+        RepairReport report = repairer.scan(dir, 0, file.lastModified(), MediaRecorder.AudioEncoder.AMR_NB);
+
+        assertEquals(0, report.getScanned());
+        assertEquals(7, file.length());
+    }
+
+    @Test
+    public void repairRecording_fixesEverySegmentRegardlessOfTime() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("#!AMR\n".getBytes("US-ASCII"));
+        writeFrames(out, 10);
+        out.write(FRAME_HEADER);
+
+        File first = write("Record_incoming_5.amr", out.toByteArray());
+        File second = write("Record_incoming_5_part1.amr", out.toByteArray());
+
+        // свежие файлы фоновая проверка пропускает, а исправление записи - нет
+        RepairReport report = repairer.repairRecording(first, MediaRecorder.AudioEncoder.AMR_NB);
+
+        assertEquals(2, report.getScanned());
+        assertEquals(2, report.getRepaired());
+        assertEquals(6 + 10 * FRAME_BYTES, first.length());
+        assertEquals(6 + 10 * FRAME_BYTES, second.length());
+
+        assertEquals(first, SegmentFiles.firstSegment(second));
+        assertEquals(first, SegmentFiles.firstSegment(first));
+    }
+
+    private RepairReport scan() {
+        return repairer.scan(dir, 0, Long.MAX_VALUE, MediaRecorder.AudioEncoder.AMR_NB);
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+
+        return file;
+    }
+
+    private static void writeFrames(ByteArrayOutputStream out, int count) {
+
+        for (int i = 0; i < count; i++) {
+            out.write(FRAME_HEADER);
+            for (int j = 1; j < FRAME_BYTES; j++) {
+                out.write(i + j);
+            }
+        }
+    }
+
+    private static void writeBox(ByteArrayOutputStream out, int size, String type) throws IOException {
+
+        out.write(ByteBuffer.allocate(4).putInt(size).array());
+        out.write(type.getBytes("US-ASCII"));
+    }
+
+    private static String type(ByteBuffer buffer, int boxStart) {
+
+        byte[] type = new byte[4];
+
+        for (int i = 0; i < 4; i++) {
+            type[i] = buffer.get(boxStart + 4 + i);
+        }
+
+        return new String(type);
+    }
+
+    private static int indexOf(byte[] data, String type) throws IOException {
+
+        byte[] needle = type.getBytes("US-ASCII");
+
+        for (int i = data.length - needle.length; i >= 0; i--) {
+
+            boolean match = true;
+
+            for (int j = 0; j < needle.length && match; j++) {
+                match = data[i + j] == needle[j];
+            }
+
+            if (match) {
+                return i - 4;
+            }
+        }
+
+        return -1;
+    }
+}
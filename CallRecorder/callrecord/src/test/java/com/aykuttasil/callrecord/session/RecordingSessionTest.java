@@ -0,0 +1,248 @@
+package com.aykuttasil.callrecord.session;
+
+import com.aykuttasil.callrecord.config.RecordingConfig;
+import com.aykuttasil.callrecord.engine.CaptureEngine;
+import com.aykuttasil.callrecord.engine.SegmentListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты переходов состояний сессии записи и реестра сессий
+ */
+public class RecordingSessionTest {
+
+    private static class FakeEngine implements CaptureEngine {
+
+        int starts;
+        int stops;
+        int releases;
+        boolean failOnStop;
+
+        @Override
+        public void prepare(RecordingConfig config, File outputFile) throws IOException {
+        }
+
+        @Override
+        public void start() {
+            starts++;
+        }
+
+        @Override
+        public void stop() throws IOException {
+            stops++;
+            if (failOnStop) {
+                throw new IOException("stop failed");
+            }
+        }
+
+        @Override
+        public void setSegmentListener(SegmentListener listener) {
+        }
+
+        @Override
+        public void setLevelMetering(boolean enabled) {
+        }
+
+        @Override
+        public int readLevel() {
+            return 0;
+        }
+
+        @Override
+        public void release() {
+            releases++;
+        }
+    }
+
+    private RecordingConfig config;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+
+        config = new RecordingConfig.Builder().build();
+        file = File.createTempFile("session", ".amr");
+        file.deleteOnExit();
+    }
+
+    @Test
+    public void stop_releasesEngineEvenWhenStopFails() throws Exception {
+
+        FakeEngine engine = new FakeEngine();
+        engine.failOnStop = true;
+
+        RecordingSession session = new RecordingSession("123", "incoming", "123");
+        session.prepare(config, file, engine);
+        session.start(System.nanoTime());
+
+        try {
+            session.stop();
+            fail("expected IOException");
+        } catch (IOException expected) {
+            // движок должен быть освобожден
+        }
+
+        assertEquals(1, engine.releases);
+        assertEquals(RecordingSession.STATE_STOPPED, session.getState());
+        assertFalse(session.stop());
+        assertEquals(1, engine.stops);
+    }
+
+    @Test
+    public void discard_deletesFileOnlyBeforeStart() throws Exception {
+
+        FakeEngine engine = new FakeEngine();
+        RecordingSession session = new RecordingSession("123", "incoming", "123");
+        session.prepare(config, file, engine);
+
+        assertTrue(session.discard());
+        assertFalse(file.exists());
+        assertEquals(1, engine.releases);
+        assertFalse(session.discard());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void start_afterDiscard_fails() throws Exception {
+
+        RecordingSession session = new RecordingSession("123", "incoming", "123");
+        session.prepare(config, file, new FakeEngine());
+        session.discard();
+        session.start(System.nanoTime());
+    }
+
+    @Test
+    public void registry_keepsOverlappingCallsApart() throws Exception {
+
+        RecordingSessionRegistry registry = new RecordingSessionRegistry();
+
+        RecordingSession first = registry.open("111", "incoming");
+        RecordingSession second = registry.open("222", "incoming");
+
+        assertNotSame(first, second);
+        assertSame(first, registry.open("111", "incoming"));
+        assertSame(second, registry.get("222"));
+        assertTrue(registry.remove(second));
+        assertSame(first, registry.get("111"));
+        assertTrue(registry.remove(first));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void registry_removeAll_drainsOverlappingCalls() throws Exception {
+
+        RecordingSessionRegistry registry = new RecordingSessionRegistry();
+        FakeEngine firstEngine = new FakeEngine();
+        FakeEngine secondEngine = new FakeEngine();
+
+        RecordingSession first = registry.open("111", "incoming");
+        first.prepare(config, file, firstEngine);
+        first.start(System.nanoTime());
+
+        RecordingSession second = registry.open("222", "outgoing");
+        second.prepare(config, file, secondEngine);
+        second.start(System.nanoTime());
+
+        // IDLE сообщает только номер последнего звонка, но закончились оба
+        List<RecordingSession> removed = registry.removeAll();
+
+        assertEquals(2, removed.size());
+        assertTrue(removed.contains(first));
+        assertTrue(removed.contains(second));
+        assertEquals(0, registry.size());
+        assertNull(registry.get("111"));
+
+        for (RecordingSession session : removed) {
+            assertTrue(session.stop());
+        }
+
+        assertEquals(1, firstEngine.stops);
+        assertEquals(1, secondEngine.stops);
+        assertEquals(1, firstEngine.releases);
+        assertEquals(1, secondEngine.releases);
+    }
+
+    @Test
+    public void preArm_answer_adoptsPreparedSessionUnderNumber() throws Exception {
+
+        RecordingSessionRegistry registry = new RecordingSessionRegistry();
+        FakeEngine engine = new FakeEngine();
+
+        // при звонке номер неизвестен
+        RecordingSession pending = registry.openPending(null, "incoming");
+        pending.prepare(config, file, engine);
+
+        assertTrue(RecordingSessionRegistry.isPending(pending));
+        assertSame(pending, registry.adoptPending("111"));
+        assertFalse(RecordingSessionRegistry.isPending(pending));
+        assertEquals("111", pending.getCallKey());
+        assertEquals("111", pending.getNumber());
+        assertSame(pending, registry.get("111"));
+        assertEquals(1, registry.size());
+
+        pending.start(System.nanoTime());
+
+        assertEquals(1, engine.starts);
+        assertNull(registry.adoptPending("111"));
+        assertTrue(registry.remove(pending));
+    }
+
+    @Test
+    public void preArm_miss_discardsPreparedSessionAndFile() throws Exception {
+
+        RecordingSessionRegistry registry = new RecordingSessionRegistry();
+        FakeEngine engine = new FakeEngine();
+
+        RecordingSession pending = registry.openPending("111", "incoming");
+        pending.prepare(config, file, engine);
+
+        // пропущенный звонок завершает все сессии: не начатая запись отменяется
+        for (RecordingSession session : registry.removeAll()) {
+            assertFalse(session.stop());
+            assertTrue(session.discard());
+        }
+
+        assertEquals(0, registry.size());
+        assertFalse(file.exists());
+        assertEquals(1, engine.releases);
+        assertEquals(0, engine.starts);
+        assertNull(registry.adoptPending("111"));
+    }
+
+    @Test
+    public void preArm_answerWithActiveSession_discardsEmptyPreparedFile() throws Exception {
+
+        RecordingSessionRegistry registry = new RecordingSessionRegistry();
+        FakeEngine pendingEngine = new FakeEngine();
+
+        RecordingSession active = registry.open("111", "incoming");
+        active.prepare(config, File.createTempFile("session", ".amr"), new FakeEngine());
+
+        RecordingSession pending = registry.openPending(null, "incoming");
+        pending.prepare(config, file, pendingEngine);
+
+        assertSame(active, registry.adoptPending("111"));
+        assertEquals(RecordingSession.STATE_DISCARDED, pending.getState());
+        assertFalse(file.exists());
+        assertEquals(1, pendingEngine.releases);
+        assertEquals(1, registry.size());
+
+        active.discard();
+    }
+
+    @Test
+    public void registry_replacesFinishedSession() throws Exception {
+
+        RecordingSessionRegistry registry = new RecordingSessionRegistry();
+        RecordingSession first = registry.open("111", "incoming");
+        first.discard();
+
+        assertNotSame(first, registry.open("111", "incoming"));
+    }
+}
@@ -0,0 +1,276 @@
+package com.aykuttasil.callrecord.state;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты машины состояний звонка на последовательностях RINGING/OFFHOOK/IDLE
+ */
+public class CallStateMachineTest {
+
+    private static class FakeClock implements CallStateMachine.Clock {
+
+        long now;
+
+        @Override
+        public long elapsedNanos() {
+            return now;
+        }
+    }
+
+    private static class CountingListener implements CallStateMachine.Listener {
+
+        int received;
+        int answered;
+        int incomingEnded;
+        int outgoingStarted;
+        int outgoingEnded;
+        int missed;
+        String lastNumber;
+        long lastStart;
+        long lastEnd;
+        long minDuration = Long.MAX_VALUE;
+
+        @Override
+        public void onIncomingCallReceived(String number, long startNanos) {
+            received++;
+            lastNumber = number;
+            lastStart = startNanos;
+        }
+
+        @Override
+        public void onIncomingCallAnswered(String number, long startNanos) {
+            answered++;
+            lastNumber = number;
+            lastStart = startNanos;
+        }
+
+        @Override
+        public void onIncomingCallEnded(String number, long startNanos, long endNanos) {
+            incomingEnded++;
+            lastNumber = number;
+            lastStart = startNanos;
+            lastEnd = endNanos;
+            minDuration = Math.min(minDuration, endNanos - startNanos);
+        }
+
+        @Override
+        public void onOutgoingCallStarted(String number, long startNanos) {
+            outgoingStarted++;
+            lastNumber = number;
+            lastStart = startNanos;
+        }
+
+        @Override
+        public void onOutgoingCallEnded(String number, long startNanos, long endNanos) {
+            outgoingEnded++;
+            lastNumber = number;
+            lastStart = startNanos;
+            lastEnd = endNanos;
+            minDuration = Math.min(minDuration, endNanos - startNanos);
+        }
+
+        @Override
+        public void onMissedCall(String number, long startNanos) {
+            missed++;
+            lastNumber = number;
+            lastStart = startNanos;
+        }
+    }
+
+    private FakeClock clock;
+    private CountingListener listener;
+    private CallStateMachine machine;
+
+    @Before
+    public void setUp() {
+
+        clock = new FakeClock();
+        listener = new CountingListener();
+        machine = new CallStateMachine(listener, clock);
+    }
+
+    @Test
+    public void incomingCall_answeredAndEnded() {
+
+        clock.now = 100;
+        machine.onEvent(CallStateMachine.STATE_RINGING, "111");
+        clock.now = 200;
+        machine.onEvent(CallStateMachine.STATE_OFFHOOK, null);
+        clock.now = 900;
+        machine.onEvent(CallStateMachine.STATE_IDLE, null);
+
+        assertEquals(1, listener.received);
+        assertEquals(1, listener.answered);
+        assertEquals(1, listener.incomingEnded);
+        assertEquals("111", listener.lastNumber);
+        assertEquals(200, listener.lastStart);
+        assertEquals(900, listener.lastEnd);
+    }
+
+    @Test
+    public void outgoingCall_keepsNumberFromOutgoingIntent() {
+
+        machine.onOutgoingNumber("222");
+        clock.now = 10;
+        machine.onEvent(CallStateMachine.STATE_OFFHOOK, null);
+        clock.now = 50;
+        machine.onEvent(CallStateMachine.STATE_IDLE, null);
+
+        assertEquals(1, listener.outgoingStarted);
+        assertEquals(1, listener.outgoingEnded);
+        assertEquals("222", listener.lastNumber);
+        assertEquals(40, listener.lastEnd - listener.lastStart);
+    }
+
+    @Test
+    public void ringingThenIdle_isMissedCall() {
+
+        machine.onEvent(CallStateMachine.STATE_RINGING, "333");
+        machine.onEvent(CallStateMachine.STATE_IDLE, null);
+
+        assertEquals(1, listener.missed);
+        assertEquals(0, listener.incomingEnded);
+        assertEquals("333", listener.lastNumber);
+    }
+
+    @Test
+    public void repeatedAndUnknownStates_areIgnored() {
+
+        machine.onEvent(CallStateMachine.STATE_IDLE, null);
+        machine.onEvent(CallStateMachine.STATE_RINGING, "444");
+        machine.onEvent(CallStateMachine.STATE_RINGING, "444");
+        machine.onEvent(CallStateMachine.STATE_UNKNOWN, null);
+
+        assertEquals(1, listener.received);
+        assertEquals(CallStateMachine.STATE_RINGING, machine.getState());
+    }
+
+    @Test
+    public void callWaiting_keepsActiveCallAndEndsItOnce() {
+
+        clock.now = 100;
+        machine.onEvent(CallStateMachine.STATE_RINGING, "111");
+        clock.now = 200;
+        machine.onEvent(CallStateMachine.STATE_OFFHOOK, null);
+
+        // второй звонок во время разговора, затем его прием или отклонение
+        clock.now = 300;
+        machine.onEvent(CallStateMachine.STATE_RINGING, "222");
+        clock.now = 400;
+        machine.onEvent(CallStateMachine.STATE_OFFHOOK, "222");
+
+        assertEquals(1, listener.received);
+        assertEquals(1, listener.answered);
+        assertEquals("111", machine.getNumber());
+
+        clock.now = 900;
+        machine.onEvent(CallStateMachine.STATE_IDLE, null);
+
+        assertEquals(1, listener.incomingEnded);
+        assertEquals(0, listener.missed);
+        assertEquals("111", listener.lastNumber);
+        assertEquals(200, listener.lastStart);
+        assertEquals(900, listener.lastEnd);
+    }
+
+    @Test
+    public void callWaiting_endedWhileRinging_endsActiveCall() {
+
+        machine.onOutgoingNumber("111");
+        clock.now = 100;
+        machine.onEvent(CallStateMachine.STATE_OFFHOOK, null);
+        machine.onEvent(CallStateMachine.STATE_RINGING, "222");
+        machine.onOutgoingNumber("333");
+        clock.now = 500;
+        machine.onEvent(CallStateMachine.STATE_IDLE, null);
+
+        assertEquals(1, listener.outgoingStarted);
+        assertEquals(1, listener.outgoingEnded);
+        assertEquals(0, listener.received);
+        assertEquals(0, listener.missed);
+        assertEquals("111", listener.lastNumber);
+        assertEquals(400, listener.lastEnd - listener.lastStart);
+    }
+
+    @Test
+    public void randomSequences_matchReferenceModel() {
+
+        Random random = new Random(42);
+        int[] states = {CallStateMachine.STATE_IDLE, CallStateMachine.STATE_RINGING, CallStateMachine.STATE_OFFHOOK};
+
+        int expectedStarts = 0;
+        int expectedEnds = 0;
+        int expectedMissed = 0;
+        int last = CallStateMachine.STATE_IDLE;
+        boolean inCall = false;
+
+        for (int i = 0; i < 20000; i++) {
+
+            int state = states[random.nextInt(states.length)];
+            clock.now += 1 + random.nextInt(1000);
+
+            machine.onEvent(state, "555");
+
+            if (state != last) {
+                if (state == CallStateMachine.STATE_OFFHOOK && !inCall) {
+                    expectedStarts++;
+                    inCall = true;
+                } else if (state == CallStateMachine.STATE_IDLE) {
+                    if (inCall) {
+                        expectedEnds++;
+                        inCall = false;
+                    } else if (last == CallStateMachine.STATE_RINGING) {
+                        expectedMissed++;
+                    }
+                }
+                last = state;
+            }
+
+            assertEquals(last, machine.getState());
+        }
+
+        assertEquals(expectedStarts, listener.answered + listener.outgoingStarted);
+        assertEquals(expectedEnds, listener.incomingEnded + listener.outgoingEnded);
+        assertEquals(expectedMissed, listener.missed);
+        assertTrue(listener.minDuration > 0);
+    }
+
+    @Test
+    public void concurrentEvents_areSerialized() throws Exception {
+
+        final int perThread = 5000;
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        machine.onEvent(CallStateMachine.STATE_RINGING, "666");
+                        machine.onEvent(CallStateMachine.STATE_OFFHOOK, null);
+                        machine.onEvent(CallStateMachine.STATE_IDLE, null);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int starts = listener.answered + listener.outgoingStarted;
+        int ends = listener.incomingEnded + listener.outgoingEnded + listener.missed;
+
+        // каждый звонок, начавшийся со звонка или снятия трубки, заканчивается ровно один раз
+        assertEquals(CallStateMachine.STATE_IDLE, machine.getState());
+        assertEquals(listener.received - listener.missed, listener.answered);
+        assertEquals(starts + listener.missed, ends);
+    }
+}
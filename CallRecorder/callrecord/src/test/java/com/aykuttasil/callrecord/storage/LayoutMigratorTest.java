@@ -0,0 +1,307 @@
+package com.aykuttasil.callrecord.storage;
+
+import com.aykuttasil.callrecord.CallRecord;
+import com.aykuttasil.callrecord.index.Recording;
+import com.aykuttasil.callrecord.index.RecordingIndex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты раскладки директории записей и переноса записей в нее
+ */
+public class LayoutMigratorTest {
+
+    private static final long OLD = 1488898873042L;
+
+    /**
+     * Индекс в памяти: путь -> время начала
+     */
+    private static class FakeIndex extends RecordingIndex {
+
+        final Map<String, Long> starts = new HashMap<>();
+
+        FakeIndex() {
+            super(null);
+        }
+
+        @Override
+        public Recording getByPath(String path) {
+
+            Long start = starts.get(path);
+
+            return start == null ? null : new Recording(1, "1", "incoming", start, 0, 0, path, 0, "amr");
+        }
+
+        @Override
+        public boolean updatePath(String oldPath, String newPath) {
+
+            Long start = starts.remove(oldPath);
+
+            if (start == null) {
+                return false;
+            }
+
+            starts.put(newPath, start);
+
+            return true;
+        }
+    }
+
+    private File root;
+    private FakeIndex index;
+    private StorageEvictor evictor;
+    private LayoutMigrator migrator;
+
+    @Before
+    public void setUp() throws Exception {
+
+        root = File.createTempFile("layout", "");
+        root.delete();
+        root.mkdirs();
+
+        index = new FakeIndex();
+        evictor = new StorageEvictor(index);
+        migrator = new LayoutMigrator(index, evictor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        migrator.shutdown();
+        evictor.shutdown();
+        deleteTree(root);
+    }
+
+    @Test
+    public void dateLayout_usesStartDate() throws Exception {
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2017, Calendar.MARCH, 7, 18, 1);
+
+        DirectoryLayout layout = new DirectoryLayout(CallRecord.LAYOUT_DATE);
+
+        assertEquals(new File(root, "2017/03/07"), layout.resolve(root, calendar.getTimeInMillis(), "a.amr"));
+        assertSame(root, new DirectoryLayout(CallRecord.LAYOUT_FLAT).resolve(root, OLD, "a.amr"));
+    }
+
+    @Test
+    public void hashLayout_isStableAndSpread() throws Exception {
+
+        DirectoryLayout layout = new DirectoryLayout(CallRecord.LAYOUT_HASH);
+        boolean[] used = new boolean[256];
+        int buckets = 0;
+
+        for (int i = 0; i < 4096; i++) {
+
+            String name = "Record_20170307-180113-042_" + i + ".amr";
+            String path = layout.relativePath(OLD, name);
+
+            assertEquals(2, path.length());
+            assertEquals(path, new DirectoryLayout(CallRecord.LAYOUT_HASH).relativePath(0, name));
+
+            int bucket = Integer.parseInt(path, 16);
+
+            if (!used[bucket]) {
+                used[bucket] = true;
+                buckets++;
+            }
+        }
+
+        assertTrue("buckets used: " + buckets, buckets > 200);
+    }
+
+    @Test
+    public void migrate_movesRecordingsWithSegmentsAndUpdatesIndex() throws Exception {
+
+        File first = newFile("Record_1.amr", OLD);
+        File part = newFile("Record_1_part1.amr", OLD);
+        File other = newFile("Record_2.amr", OLD);
+        index.starts.put(first.getAbsolutePath(), OLD);
+
+        int[] moved = new int[1];
+
+        assertTrue(migrator.migrate(root, CallRecord.LAYOUT_HASH, System.currentTimeMillis(), moved));
+        assertEquals(2, moved[0]);
+
+        DirectoryLayout layout = new DirectoryLayout(CallRecord.LAYOUT_HASH);
+        File movedFirst = new File(layout.resolve(root, OLD, "Record_1.amr"), "Record_1.amr");
+
+        assertFalse(first.exists());
+        assertFalse(part.exists());
+        assertFalse(other.exists());
+        assertTrue(movedFirst.isFile());
+        assertTrue(new File(movedFirst.getParentFile(), "Record_1_part1.amr").isFile());
+        assertEquals(Long.valueOf(OLD), index.starts.get(movedFirst.getAbsolutePath()));
+        assertFalse(new File(root, LayoutMigrator.MARKER_NAME).exists());
+    }
+
+    @Test
+    public void migrate_skipsActiveAndRecentFiles() throws Exception {
+
+        File active = newFile("Record_1.amr", OLD);
+        File recent = newFile("Record_2.amr", System.currentTimeMillis());
+        evictor.addActiveRecording(active.getAbsolutePath());
+
+        int[] moved = new int[1];
+
+        assertFalse(migrator.migrate(root, CallRecord.LAYOUT_DATE,
+                System.currentTimeMillis() - LayoutMigrator.SETTLE_MS, moved));
+        assertEquals(0, moved[0]);
+        assertTrue(active.exists());
+        assertTrue(recent.exists());
+    }
+
+    @Test
+    public void migrate_skipsGuardedRecordings() throws Exception {
+
+        final File queued = newFile("Record_1.amr", OLD);
+        File part = newFile("Record_1_part1.amr", OLD);
+        File other = newFile("Record_2.amr", OLD);
+
+        // запись ждет загрузки по исходному пути
+        evictor.setGuard(new RecordingGuard() {
+            @Override
+            public boolean isInUse(File first) {
+                return first.equals(queued);
+            }
+        });
+
+        int[] moved = new int[1];
+
+        assertFalse(migrator.migrate(root, CallRecord.LAYOUT_DATE, System.currentTimeMillis(), moved));
+        assertEquals(1, moved[0]);
+        assertTrue(queued.exists());
+        assertTrue(part.exists());
+        assertFalse(other.exists());
+    }
+
+    @Test
+    public void migrate_finishesInterruptedMove() throws Exception {
+
+        DirectoryLayout layout = new DirectoryLayout(CallRecord.LAYOUT_DATE);
+        File source = newFile("Record_1.amr", OLD);
+        File part = newFile("Record_1_part1.amr", OLD);
+        File target = new File(layout.resolve(root, OLD, "Record_1.amr"), "Record_1.amr");
+        index.starts.put(source.getAbsolutePath(), OLD);
+
+        // процесс погиб после переноса первого сегмента
+        target.getParentFile().mkdirs();
+        assertTrue(source.renameTo(target));
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(root, LayoutMigrator.MARKER_NAME)), "UTF-8");
+        writer.write(source.getAbsolutePath() + "\n" + target.getAbsolutePath() + "\n");
+        writer.close();
+
+        int[] moved = new int[1];
+
+        assertTrue(migrator.migrate(root, CallRecord.LAYOUT_DATE, System.currentTimeMillis(), moved));
+        assertEquals(1, moved[0]);
+        assertFalse(part.exists());
+        assertTrue(new File(target.getParentFile(), "Record_1_part1.amr").isFile());
+        assertTrue(index.starts.containsKey(target.getAbsolutePath()));
+        assertFalse(new File(root, LayoutMigrator.MARKER_NAME).exists());
+    }
+
+    @Test
+    public void cancel_stopsOnlyRequestsMadeBeforeIt() throws Exception {
+
+        File first = newFile("Record_1.amr", OLD);
+        index.starts.put(first.getAbsolutePath(), OLD);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // поток переноса занят, поэтому запрос ждет в очереди и отменяется до начала
+        migrator.requestMigration(root, CallRecord.LAYOUT_FLAT, new MigrationListener() {
+            @Override
+            public void onMigrationFinished(int moved, boolean complete) {
+
+                blocked.countDown();
+
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        final int[] result = {-1, 0};
+        final CountDownLatch cancelled = new CountDownLatch(1);
+
+        migrator.requestMigration(root, CallRecord.LAYOUT_DATE, new MigrationListener() {
+            @Override
+            public void onMigrationFinished(int moved, boolean complete) {
+                result[0] = moved;
+                result[1] = complete ? 1 : 0;
+                cancelled.countDown();
+            }
+        });
+
+        migrator.cancel();
+        release.countDown();
+
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertEquals(0, result[0]);
+        assertEquals(0, result[1]);
+        assertTrue(first.exists());
+
+        // отмена не выключает перенос навсегда
+        int[] moved = new int[1];
+
+        assertTrue(migrator.migrate(root, CallRecord.LAYOUT_DATE, System.currentTimeMillis(), moved));
+        assertEquals(1, moved[0]);
+        assertFalse(first.exists());
+    }
+
+    @Test
+    public void segmentNames_areRecognized() throws Exception {
+
+        assertTrue(LayoutMigrator.isSegmentName("Record_1_part2.amr"));
+        assertTrue(LayoutMigrator.isSegmentName("Record_1_part12"));
+        assertFalse(LayoutMigrator.isSegmentName("Record_1.amr"));
+        assertFalse(LayoutMigrator.isSegmentName("part1.amr"));
+        assertFalse(LayoutMigrator.isSegmentName("Record_part.amr"));
+    }
+
+    private File newFile(String name, long modified) throws IOException {
+
+        File file = new File(root, name);
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(new byte[]{1, 2, 3});
+        stream.close();
+        file.setLastModified(modified);
+
+        return file;
+    }
+
+    private static void deleteTree(File file) {
+
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,289 @@
+package com.aykuttasil.callrecord.storage;
+
+import com.aykuttasil.callrecord.index.Recording;
+import com.aykuttasil.callrecord.index.RecordingIndex;
+import com.aykuttasil.callrecord.index.RecordingQuery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты удаления старых записей по ограничениям StorageQuota
+ */
+public class StorageEvictorTest {
+
+    private static final long SIZE = 100;
+
+    /**
+     * Индекс в памяти, отдает завершенные записи от старых к новым
+     */
+    private static class FakeIndex extends RecordingIndex {
+
+        final List<Recording> recordings = new ArrayList<>();
+        final List<Long> deleted = new ArrayList<>();
+
+        FakeIndex() {
+            super(null);
+        }
+
+        @Override
+        public synchronized List<Recording> query(RecordingQuery query) {
+
+            List<Recording> finished = new ArrayList<>();
+
+            for (Recording recording : recordings) {
+                if (recording.isFinished()) {
+                    finished.add(recording);
+                }
+            }
+
+            Collections.sort(finished, new Comparator<Recording>() {
+                @Override
+                public int compare(Recording left, Recording right) {
+                    return left.getStartTime() < right.getStartTime() ? -1
+                            : left.getStartTime() > right.getStartTime() ? 1 : 0;
+                }
+            });
+
+            int from = Math.min(query.getOffset(), finished.size());
+            int to = Math.min(from + query.getPageSize(), finished.size());
+
+            return new ArrayList<>(finished.subList(from, to));
+        }
+
+        @Override
+        public synchronized long totalSize() {
+
+            long total = 0;
+
+            for (Recording recording : recordings) {
+                total += recording.getSize();
+            }
+
+            return total;
+        }
+
+        @Override
+        public synchronized void delete(long id) {
+
+            for (int i = 0; i < recordings.size(); i++) {
+                if (recordings.get(i).getId() == id) {
+                    recordings.remove(i);
+                    deleted.add(id);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Механизм удаления с заданным свободным местом на носителе
+     */
+    private static class FixedFreeEvictor extends StorageEvictor {
+
+        volatile long free = Long.MAX_VALUE;
+
+        FixedFreeEvictor(RecordingIndex index) {
+            super(index);
+        }
+
+        @Override
+        long freeBytes() {
+            return free;
+        }
+    }
+
+    private File root;
+    private FakeIndex index;
+    private FixedFreeEvictor evictor;
+
+    @Before
+    public void setUp() throws Exception {
+
+        root = File.createTempFile("evictor", "");
+        root.delete();
+        root.mkdirs();
+
+        index = new FakeIndex();
+        evictor = new FixedFreeEvictor(index);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        evictor.shutdown();
+
+        File[] files = root.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        root.delete();
+    }
+
+    @Test
+    public void sizeLimit_evictsOldestFinishedFirst() throws Exception {
+
+        File newest = record(1, 3000, true);
+        File oldest = record(2, 1000, true);
+        File middle = record(3, 2000, true);
+        File recording = record(4, 500, false);
+
+        // 400 байт по индексу, после удаления двух старых завершенных остается 200
+        evict(new StorageQuota(250, 0, 0));
+
+        assertEquals(Arrays.asList(2L, 3L), index.deleted);
+        assertFalse(oldest.exists());
+        assertFalse(middle.exists());
+        assertTrue(newest.exists());
+        assertTrue(recording.exists());
+        assertEquals(2 * SIZE, evictor.getUsedBytes());
+    }
+
+    @Test
+    public void activeRecording_isNeverEvicted() throws Exception {
+
+        File active = record(1, 1000, true);
+        File second = record(2, 2000, true);
+        File third = record(3, 3000, true);
+
+        evictor.addActiveRecording(active.getPath());
+
+        // все записи старше допустимого возраста
+        evict(new StorageQuota(0, 1, 0));
+
+        assertEquals(Arrays.asList(2L, 3L), index.deleted);
+        assertTrue(active.exists());
+        assertFalse(second.exists());
+        assertFalse(third.exists());
+        assertEquals(SIZE, evictor.getUsedBytes());
+    }
+
+    @Test
+    public void guardedRecording_isNeverEvicted() throws Exception {
+
+        final File queued = record(1, 1000, true);
+        File second = record(2, 2000, true);
+
+        // запись ждет загрузки по исходному пути
+        evictor.setGuard(new RecordingGuard() {
+            @Override
+            public boolean isInUse(File first) {
+                return first.equals(queued);
+            }
+        });
+
+        evict(new StorageQuota(0, 1, 0));
+
+        assertEquals(Arrays.asList(2L), index.deleted);
+        assertTrue(queued.exists());
+        assertFalse(second.exists());
+    }
+
+    @Test
+    public void usedBytes_isRunningTotalOfIndexDeletesAndFinishedRecordings() throws Exception {
+
+        record(1, 1000, true);
+        record(2, 2000, true);
+
+        // пока объем не подсчитан, завершенные записи не учитываются
+        evictor.onRecordingFinished(SIZE);
+        assertEquals(-1, evictor.getUsedBytes());
+
+        evictor.setQuota(new StorageQuota(150, 0, 0), root);
+        evictor.requestEviction();
+        evictor.shutdown();
+        assertTrue(evictor.awaitTermination(5000));
+
+        assertEquals(SIZE, evictor.getUsedBytes());
+
+        // дальше объем поддерживается счетчиком, индекс не перечитывается
+        index.recordings.add(new Recording(3, "3", "incoming", 3000, 3500, 500,
+                new File(root, "3.amr").getPath(), SIZE, "amr"));
+        evictor.onRecordingFinished(SIZE);
+
+        assertEquals(2 * SIZE, evictor.getUsedBytes());
+    }
+
+    @Test
+    public void freeSpace_belowThresholdEvictsUntilEnough() throws Exception {
+
+        File oldest = record(1, 1000, true);
+        File newest = record(2, 2000, true);
+
+        evictor.free = 500;
+
+        // свободного места ровно столько, сколько требуется
+        evict(new StorageQuota(0, 0, 500));
+
+        assertTrue(index.deleted.isEmpty());
+        assertTrue(oldest.exists());
+
+        evictor = new FixedFreeEvictor(index);
+        evictor.free = 499;
+
+        evict(new StorageQuota(0, 0, 500));
+
+        assertEquals(Arrays.asList(1L, 2L), index.deleted);
+        assertFalse(oldest.exists());
+        assertFalse(newest.exists());
+        assertEquals(0, evictor.getUsedBytes());
+    }
+
+    @Test
+    public void disabledQuota_evictsNothing() throws Exception {
+
+        File file = record(1, 1000, true);
+        evictor.free = 0;
+
+        evict(StorageQuota.NONE);
+
+        assertTrue(file.exists());
+        assertTrue(index.deleted.isEmpty());
+        assertEquals(-1, evictor.getUsedBytes());
+    }
+
+    /**
+     * Запускает проверку и ждет ее окончания
+     */
+    private void evict(StorageQuota quota) throws InterruptedException {
+
+        evictor.setQuota(quota, root);
+        evictor.requestEviction();
+        evictor.shutdown();
+
+        assertTrue(evictor.awaitTermination(5000));
+    }
+
+    private File record(long id, long startTime, boolean finished) throws IOException {
+
+        File file = new File(root, "Record_" + id + ".amr");
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(new byte[(int) SIZE]);
+        } finally {
+            out.close();
+        }
+
+        index.recordings.add(new Recording(id, String.valueOf(id), "incoming", startTime,
+                finished ? startTime + 500 : 0, finished ? 500 : 0, file.getPath(), SIZE, "amr"));
+
+        return file;
+    }
+}
@@ -0,0 +1,43 @@
+package com.aykuttasil.callrecord.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты ограничений на хранение записей
+ */
+public class StorageQuotaTest {
+
+    @Test
+    public void none_isNeverExceeded() throws Exception {
+
+        assertFalse(StorageQuota.NONE.isEnabled());
+        assertFalse(StorageQuota.NONE.isExceeded(Long.MAX_VALUE, 0));
+        assertFalse(StorageQuota.NONE.isExpired(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void sizeAndFreeSpaceLimits() throws Exception {
+
+        StorageQuota quota = new StorageQuota(1000, 0, 500);
+
+        assertFalse(quota.isExceeded(1000, 500));
+        assertTrue(quota.isExceeded(1001, 500));
+        assertTrue(quota.isExceeded(0, 499));
+    }
+
+    @Test
+    public void ageLimit() throws Exception {
+
+        StorageQuota quota = new StorageQuota(0, 60000, 0);
+
+        assertFalse(quota.isExpired(100000, 160000));
+        assertTrue(quota.isExpired(100000, 160001));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimits_areRejected() throws Exception {
+        new StorageQuota(-1, 0, 0);
+    }
+}
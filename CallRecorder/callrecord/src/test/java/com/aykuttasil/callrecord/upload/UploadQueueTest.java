@@ -0,0 +1,473 @@
+package com.aykuttasil.callrecord.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты очереди загрузки против HTTP-сервера в процессе теста
+ */
+public class UploadQueueTest {
+
+    /**
+     * Сервер загрузки по протоколу HttpUploadTransport
+     */
+    private static class UploadServer implements HttpHandler {
+
+        final Map<String, ByteArrayOutputStream> uploads = new HashMap<>();
+        final Map<String, Long> completed = new HashMap<>();
+
+        volatile int putStatus = 0;         ///< код ответа на PUT вместо приема, 0 - принимать
+        volatile long putDelayMs = 0;
+        final AtomicInteger fromStart = new AtomicInteger();   ///< PUT с нулевого смещения
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final CountDownLatch putFailed = new CountDownLatch(1);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+
+            String id = exchange.getRequestURI().getPath().substring(PATH.length());
+            String method = exchange.getRequestMethod();
+            byte[] body = readAll(exchange.getRequestBody());
+
+            try {
+
+                if ("HEAD".equals(method)) {
+                    head(exchange, id);
+                } else if ("PUT".equals(method)) {
+                    put(exchange, id, body);
+                } else if ("POST".equals(method)) {
+                    complete(exchange, id);
+                } else {
+                    exchange.sendResponseHeaders(405, -1);
+                }
+
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void head(HttpExchange exchange, String id) throws IOException {
+
+            ByteArrayOutputStream upload;
+
+            synchronized (this) {
+                upload = uploads.get(id);
+            }
+
+            if (upload == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set(HttpUploadTransport.HEADER_OFFSET, Integer.toString(upload.size()));
+            exchange.sendResponseHeaders(200, -1);
+        }
+
+        private void put(HttpExchange exchange, String id, byte[] body) throws IOException {
+
+            int status;
+            int size = 0;
+
+            // ответ уходит после выхода из подсчета, иначе клиент успевает начать следующий PUT
+            int now = active.incrementAndGet();
+
+            try {
+
+                synchronized (this) {
+                    maxActive.set(Math.max(maxActive.get(), now));
+                }
+
+                sleep(putDelayMs);
+
+                long offset = Long.parseLong(exchange.getRequestHeaders().getFirst(HttpUploadTransport.HEADER_OFFSET));
+
+                status = putStatus;
+
+                if (status == 0) {
+
+                    synchronized (this) {
+
+                        ByteArrayOutputStream upload = uploads.get(id);
+
+                        if (upload == null) {
+                            upload = new ByteArrayOutputStream();
+                            uploads.put(id, upload);
+                        }
+
+                        if (offset == upload.size()) {
+                            upload.write(body, 0, body.length);
+                        }
+
+                        size = upload.size();
+                    }
+
+                    if (offset == 0) {
+                        fromStart.incrementAndGet();
+                    }
+
+                    status = size == offset + body.length ? 204 : 409;
+                }
+
+            } finally {
+                active.decrementAndGet();
+            }
+
+            if (status >= 400 && status != 409) {
+                putFailed.countDown();
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set(HttpUploadTransport.HEADER_OFFSET, Integer.toString(size));
+            exchange.sendResponseHeaders(status, -1);
+        }
+
+        private void complete(HttpExchange exchange, String id) throws IOException {
+
+            long length = Long.parseLong(exchange.getRequestHeaders().getFirst(HttpUploadTransport.HEADER_LENGTH));
+
+            synchronized (this) {
+                completed.put(id, length);
+            }
+
+            exchange.sendResponseHeaders(204, -1);
+        }
+
+        synchronized byte[] content(String id) {
+            return uploads.get(id).toByteArray();
+        }
+    }
+
+    /**
+     * Слушатель, считающий результаты
+     */
+    private static class LatchListener implements UploadListener {
+
+        final CountDownLatch finished;
+        final CountDownLatch failed;
+        volatile IOException lastError;
+
+        LatchListener(int expectFinished, int expectFailed) {
+            finished = new CountDownLatch(expectFinished);
+            failed = new CountDownLatch(expectFailed);
+        }
+
+        @Override
+        public void onUploadFinished(UploadItem item) {
+            finished.countDown();
+        }
+
+        @Override
+        public void onUploadFailed(UploadItem item, IOException error) {
+            lastError = error;
+            failed.countDown();
+        }
+    }
+
+    private static final String PATH = "/uploads/";
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private UploadServer handler;
+    private UploadTransport transport;
+    private File root;
+    private File storeDir;
+    private UploadQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+
+        handler = new UploadServer();
+        serverExecutor = Executors.newCachedThreadPool();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(PATH, handler);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        transport = new HttpUploadTransport("http://127.0.0.1:" + server.getAddress().getPort() + PATH);
+
+        root = File.createTempFile("upload", "");
+        root.delete();
+        root.mkdirs();
+        storeDir = new File(root, "queue");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        if (queue != null) {
+            queue.shutdown();
+            queue.awaitTermination(5000);
+        }
+
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        deleteTree(root);
+    }
+
+    @Test
+    public void enqueue_uploadsInChunksAndForgetsItem() throws Exception {
+
+        byte[] data = newData(10000);
+        File file = newFile("Record_1.amr", data);
+
+        LatchListener listener = new LatchListener(1, 0);
+        queue = newQueue(policy(4096, 1).build(), listener);
+
+        UploadItem item = queue.enqueue(file, 7, "111", "incoming", 1488898873042L);
+
+        assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+        assertArrayEquals(data, handler.content(item.getUploadId()));
+        assertEquals(Long.valueOf(data.length), handler.completed.get(item.getUploadId()));
+        assertEquals(0, queue.getItems().size());
+        assertEquals(0, storeDir.list().length);
+    }
+
+    @Test
+    public void restart_resumesFromServerOffset() throws Exception {
+
+        byte[] data = newData(3 * 1024 + 100);
+        File file = newFile("Record_2.amr", data);
+
+        // первая часть уже принята, дальше сервер недоступен
+        handler.putStatus = 503;
+        queue = newQueue(policy(1024, 1).setBackoff(100, 100).build(), null);
+
+        UploadItem item;
+
+        synchronized (handler) {
+            item = queue.enqueue(file, -1, "222", "outgoing", 1488898873042L);
+            handler.uploads.put(item.getUploadId(), new ByteArrayOutputStream());
+            handler.uploads.get(item.getUploadId()).write(data, 0, 1024);
+        }
+
+        assertTrue(handler.putFailed.await(10, TimeUnit.SECONDS));
+
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(5000));
+
+        // "новый процесс" поднимает очередь с диска
+        handler.putStatus = 0;
+        LatchListener listener = new LatchListener(1, 0);
+        queue = newQueue(policy(1024, 1).setBackoff(100, 100).build(), listener);
+
+        assertEquals(1, queue.getItems().size());
+        assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+        assertArrayEquals(data, handler.content(item.getUploadId()));
+        assertEquals(0, handler.fromStart.get());
+    }
+
+    @Test
+    public void transientError_isRetriedWithBackoff() throws Exception {
+
+        byte[] data = newData(500);
+        File file = newFile("Record_3.amr", data);
+
+        handler.putStatus = 503;
+
+        LatchListener listener = new LatchListener(1, 0);
+        queue = newQueue(policy(1024, 1).setBackoff(200, 200).build(), listener);
+
+        long start = System.currentTimeMillis();
+        UploadItem item = queue.enqueue(file, -1, null, null, 0);
+
+        assertTrue(handler.putFailed.await(10, TimeUnit.SECONDS));
+        handler.putStatus = 0;
+
+        assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertTrue(item.getAttempts() >= 1);
+        assertArrayEquals(data, handler.content(item.getUploadId()));
+    }
+
+    @Test
+    public void clientError_failsWithoutRetry() throws Exception {
+
+        File file = newFile("Record_4.amr", newData(500));
+
+        handler.putStatus = 400;
+
+        LatchListener listener = new LatchListener(0, 1);
+        queue = newQueue(policy(1024, 1).setBackoff(10, 10).build(), listener);
+
+        UploadItem item = queue.enqueue(file, -1, null, null, 0);
+
+        assertTrue(listener.failed.await(10, TimeUnit.SECONDS));
+        assertTrue(listener.lastError instanceof UploadRejectedException);
+        assertEquals(UploadItem.STATE_FAILED, item.getState());
+        assertEquals(1, item.getAttempts());
+        assertEquals(0, queue.getPendingCount());
+
+        // неудавшаяся запись переживает перезапуск и возвращается по retryFailed()
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(5000));
+
+        handler.putStatus = 0;
+        listener = new LatchListener(1, 0);
+        queue = newQueue(policy(1024, 1).build(), listener);
+
+        assertEquals(UploadItem.STATE_FAILED, queue.getItems().get(0).getState());
+        assertEquals(1, queue.retryFailed());
+        assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void concurrency_isBounded() throws Exception {
+
+        int count = 6;
+        handler.putDelayMs = 50;
+
+        LatchListener listener = new LatchListener(count, 0);
+        queue = newQueue(policy(1024, count).setMaxConcurrent(2).setBatchDelayMs(60 * 1000).build(), listener);
+
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(newFile("Record_c" + i + ".amr", newData(1500)), i, null, null, 0);
+        }
+
+        assertTrue(listener.finished.await(20, TimeUnit.SECONDS));
+        assertTrue("max active: " + handler.maxActive.get(), handler.maxActive.get() <= 2);
+        assertEquals(count, handler.completed.size());
+    }
+
+    @Test
+    public void batch_waitsForDelayUntilFlush() throws Exception {
+
+        LatchListener listener = new LatchListener(1, 0);
+        queue = newQueue(policy(1024, 5).setBatchDelayMs(60 * 1000).build(), listener);
+
+        queue.enqueue(newFile("Record_5.amr", newData(100)), -1, null, null, 0);
+
+        assertFalse(listener.finished.await(300, TimeUnit.MILLISECONDS));
+
+        queue.flush();
+
+        assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void isQueued_coversEverySegmentUntilUploaded() throws Exception {
+
+        LatchListener listener = new LatchListener(1, 0);
+        queue = newQueue(policy(1024, 5).setBatchDelayMs(60 * 1000).build(), listener);
+
+        File first = newFile("Record_6.amr", newData(100));
+        File part = newFile("Record_6_part1.amr", newData(100));
+
+        // загружается только второй сегмент, но нужна вся запись
+        queue.enqueue(part, -1, null, null, 0);
+
+        assertTrue(queue.isQueued(first));
+        assertFalse(queue.isQueued(new File(root, "Record_7.amr")));
+
+        queue.flush();
+
+        assertTrue(listener.finished.await(10, TimeUnit.SECONDS));
+        assertFalse(queue.isQueued(first));
+    }
+
+    private UploadQueue newQueue(UploadPolicy policy, UploadListener listener) throws InterruptedException {
+
+        UploadQueue created = new UploadQueue(storeDir, transport, policy);
+        created.setListener(listener);
+        created.start();
+
+        // сохраненная очередь читается в потоке очереди
+        assertTrue(created.awaitRestored(5000));
+
+        return created;
+    }
+
+    private static UploadPolicy.Builder policy(int chunkBytes, int batchSize) {
+        return new UploadPolicy.Builder()
+                .setChunkBytes(chunkBytes)
+                .setBatchSize(batchSize)
+                .setBatchDelayMs(0);
+    }
+
+    private File newFile(String name, byte[] data) throws IOException {
+
+        File file = new File(root, name);
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    private static byte[] newData(int size) {
+
+        byte[] data = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void sleep(long ms) {
+
+        if (ms <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void deleteTree(File file) {
+
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,147 @@
+package com.aykuttasil.callrecord.waveform;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Тесты записи и чтения файла пиков волны
+ */
+public class WaveformPeaksTest {
+
+    private static final int SAMPLE_RATE = 1000;   ///< 10 отсчетов PCM на пару при 10 мс
+
+    private File sidecar;
+
+    @Before
+    public void setUp() throws Exception {
+        sidecar = File.createTempFile("waveform", ".peaks");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sidecar.delete();
+    }
+
+    @Test
+    public void pcm_buildsMinMaxPerIntervalAndCoarseLevels() throws Exception {
+
+        PeakWriter writer = new PeakWriter(sidecar, 10, SAMPLE_RATE, 1);
+
+        // 100 пар подробного уровня, у пары i амплитуда i * 256, знак чередуется по парам
+        ByteBuffer frame = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int peak = 0; peak < 100; peak++) {
+
+            frame.clear();
+
+            for (int sample = 0; sample < 10; sample++) {
+                frame.putShort((short) (sample == 3 ? (peak % 2 == 0 ? peak * 256 : -peak * 256) : 0));
+            }
+
+            frame.flip();
+            writer.addPcm(frame);
+
+            assertEquals(20, frame.remaining());
+        }
+
+        writer.finish();
+
+        WaveformPeaks peaks = WaveformPeaks.open(sidecar);
+
+        assertEquals(1000, peaks.getDurationMs());
+        assertEquals(3, peaks.getLevelCount());
+        assertEquals(100, peaks.getPeakCount(0));
+        assertEquals(13, peaks.getPeakCount(1));
+        assertEquals(2, peaks.getPeakCount(2));
+        assertEquals(10, peaks.getIntervalMs(0));
+        assertEquals(80, peaks.getIntervalMs(1));
+        assertEquals(640, peaks.getIntervalMs(2));
+
+        assertEquals(0, peaks.getMin(0, 4));
+        assertEquals(4, peaks.getMax(0, 4));
+        assertEquals(-5, peaks.getMin(0, 5));
+        assertEquals(0, peaks.getMax(0, 5));
+
+        // пара уровня 1 покрывает подробные 8..15, последняя - 96..99
+        assertEquals(-15, peaks.getMin(1, 1));
+        assertEquals(14, peaks.getMax(1, 1));
+        assertEquals(-99, peaks.getMin(1, 12));
+        assertEquals(98, peaks.getMax(1, 12));
+        assertEquals(-99, peaks.getMin(2, 1));
+    }
+
+    @Test
+    public void getPeaks_picksCoarsestLevelAndStopsAtEnd() throws Exception {
+
+        PeakWriter writer = new PeakWriter(sidecar, 10);
+
+        for (int i = 0; i < 1000; i++) {
+            writer.addLevel(i % 100 == 0 ? 100 * 256 : 256);
+        }
+
+        writer.finish();
+
+        WaveformPeaks peaks = WaveformPeaks.open(sidecar);
+        byte[] columns = new byte[20];
+
+        assertEquals(10000, peaks.getDurationMs());
+        assertEquals(0, peaks.selectLevel(100, 10));
+        assertEquals(1, peaks.selectLevel(10000, 100));
+        assertEquals(2, peaks.selectLevel(10000, 10));
+
+        assertEquals(10, peaks.getPeaks(0, 10000, 10, columns));
+
+        for (int column = 0; column < 10; column++) {
+            assertEquals(-100, columns[column * 2]);
+            assertEquals(100, columns[column * 2 + 1]);
+        }
+
+        // отрезок в конце записи: заполнены только столбцы до ее конца
+        assertEquals(5, peaks.getPeaks(9950, 10050, 10, columns));
+        assertEquals(-1, columns[0]);
+        assertEquals(1, columns[1]);
+
+        // столбец уже отсчета берет отсчет, в который попадает его начало
+        assertEquals(4, peaks.getPeaks(1000, 1004, 4, columns));
+        assertEquals(100, columns[7]);
+    }
+
+    @Test
+    public void unfinishedFile_isRejectedAndAbortDeletesIt() throws Exception {
+
+        PeakWriter writer = new PeakWriter(sidecar, 10);
+        writer.addLevel(1000);
+
+        try {
+            WaveformPeaks.open(sidecar);
+            fail("unfinished peaks file opened");
+        } catch (IOException expected) {
+            // заголовок дописывается только в finish()
+        }
+
+        writer.abort();
+
+        assertFalse(sidecar.exists());
+    }
+
+    @Test
+    public void emptyRecording_hasSingleEmptyLevel() throws Exception {
+
+        new PeakWriter(sidecar, 5).finish();
+
+        WaveformPeaks peaks = WaveformPeaks.open(sidecar);
+
+        assertEquals(1, peaks.getLevelCount());
+        assertEquals(PeakWriter.MIN_INTERVAL_MS, peaks.getIntervalMs(0));
+        assertEquals(0, peaks.getPeakCount(0));
+        assertEquals(0, peaks.getPeaks(0, 1000, 10, new byte[20]));
+    }
+}